@@ -0,0 +1,135 @@
+package com.treasure_data.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.treasure_data.model.Job;
+import com.treasure_data.model.JobSummary;
+
+/**
+ * Time and allocation of parsing a listJobs response by reading the body into
+ * a String and building a Map/List tree (the former path), compared with
+ * {@link ListResponseParser}. The GC profiler reports the bytes allocated per
+ * parse as gc.alloc.rate.norm.
+ *
+ *   mvn -P benchmark test-compile exec:java -Dbenchmark.class=com.treasure_data.client.ListJobsParseBenchmark
+ *
+ * The benchmark profile compiles for Java 21; on an older JDK, add
+ * -Dbenchmark.java.version=8 (or the version of the JDK).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListJobsParseBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Response {
+        @Param({ "100", "5000" })
+        int jobs;
+
+        byte[] body;
+
+        @Setup(Level.Trial)
+        public void create() throws Exception {
+            body = createResponse(jobs).getBytes("UTF-8");
+        }
+    }
+
+    @Benchmark
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public List<JobSummary> tree(Response r) throws Exception {
+        StringBuilder sbuf = new StringBuilder();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(r.body), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            sbuf.append(line);
+        }
+        Map map = (Map) JSONValue.parse(sbuf.toString());
+        Iterator<Map<String, Object>> iter = ((List<Map<String, Object>>) map.get("jobs")).iterator();
+        List<JobSummary> list = new ArrayList<JobSummary>();
+        while (iter.hasNext()) {
+            list.add(toJobSummary(iter.next()));
+        }
+        return list;
+    }
+
+    @Benchmark
+    public List<JobSummary> stream(Response r) throws Exception {
+        ListResponseParser<JobSummary> parser = new ListResponseParser<JobSummary>("jobs") {
+            @Override
+            protected JobSummary toElement(Map<String, Object> jobMap) {
+                return toJobSummary(jobMap);
+            }
+        };
+        return parser.parse(new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(r.body), "UTF-8")));
+    }
+
+    private static JobSummary toJobSummary(Map<String, Object> jobMap) {
+        return new JobSummary((String) jobMap.get("job_id"),
+                Job.toType((String) jobMap.get("type")), null, null,
+                (String) jobMap.get("result"),
+                JobSummary.toStatus((String) jobMap.get("status")),
+                (String) jobMap.get("start_at"), (String) jobMap.get("end_at"),
+                (String) jobMap.get("query"), null);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static String createResponse(int jobs) {
+        List list = new ArrayList();
+        for (int i = 0; i < jobs; i++) {
+            Map j = new HashMap();
+            j.put("type", "hive");
+            j.put("job_id", "" + (100000 + i));
+            j.put("status", "success");
+            j.put("created_at", "2013-06-01 05:31:00 UTC");
+            j.put("start_at", "2013-06-01 05:31:10 UTC");
+            j.put("end_at", "2013-06-01 05:59:19 UTC");
+            j.put("query", "SELECT v['path'], COUNT(1) FROM www_access GROUP BY v['path'] -- " + i);
+            j.put("result", "");
+            list.add(j);
+        }
+        Map map = new HashMap();
+        map.put("count", (long) jobs);
+        map.put("from", 0L);
+        map.put("to", (long) jobs - 1);
+        map.put("jobs", list);
+        return JSONValue.toJSONString(map);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opts = new OptionsBuilder()
+                .include(ListJobsParseBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opts).run();
+    }
+}
@@ -0,0 +1,149 @@
+package com.treasure_data.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+
+/**
+ * Producer throughput of RecordCollector, compared with RecordBatcher whose
+ * add is synchronized, for 1 to 32 threads. Records are uploaded to a local
+ * stub server that discards them.
+ *
+ *   mvn -P benchmark test-compile exec:java
+ *
+ * The benchmark profile compiles for Java 21; on an older JDK, add
+ * -Dbenchmark.java.version=8 (or the version of the JDK).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordCollectorBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        HttpServer server;
+        TreasureDataClient client;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/v3/table/import/", new HttpHandler() {
+                public void handle(HttpExchange ex) throws IOException {
+                    InputStream in = ex.getRequestBody();
+                    byte[] buf = new byte[8192];
+                    while (in.read(buf) != -1) {
+                    }
+                    byte[] body = "{\"database\":\"db\",\"table\":\"t\",\"elapsed_time\":0.1}".getBytes();
+                    ex.sendResponseHeaders(200, body.length);
+                    ex.getResponseBody().write(body);
+                    ex.close();
+                }
+            });
+            server.start();
+
+            System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+            System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+            client = new TreasureDataClient(new TreasureDataCredentials("api-key"), new Properties());
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            server.stop(0);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Collector {
+        RecordCollector collector;
+
+        @Setup(Level.Trial)
+        public void start(Server server) {
+            collector = new RecordCollector(server.client);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            collector.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Batcher {
+        RecordBatcher batcher;
+
+        @Setup(Level.Trial)
+        public void start(Server server) {
+            batcher = new RecordBatcher(server.client);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            batcher.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Record {
+        Map<String, Object> record = new HashMap<String, Object>();
+        long i = 0;
+
+        @Setup(Level.Trial)
+        public void init() {
+            record.put("host", "192.168.0.1");
+            record.put("path", "/index.html");
+            record.put("code", 200L);
+        }
+
+        Map<String, Object> next() {
+            record.put("time", 1370000000L + i++);
+            return record;
+        }
+    }
+
+    @Benchmark
+    public boolean collector(Collector c, Record r) throws ClientException {
+        return c.collector.add("db", "www_access", r.next());
+    }
+
+    @Benchmark
+    public void synchronizedBatcher(Batcher b, Record r) throws ClientException {
+        b.batcher.add("db", "www_access", r.next());
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[] { 1, 2, 4, 8, 16, 32 }) {
+            Options opts = new OptionsBuilder()
+                    .include(RecordCollectorBenchmark.class.getName())
+                    .threads(threads)
+                    .build();
+            new Runner(opts).run();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.treasure_data.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.model.JobSummary;
+
+/**
+ * Time for 10,000 concurrent blocking showJob calls through
+ * AsyncTreasureDataClient, on a pool of platform threads (td.client.executor
+ * "platform") or a virtual thread per call ("virtual", Java 21 or later).
+ * A local stub server answers each call after a fixed latency, without a
+ * thread per call of its own.
+ *
+ * The calls keep one socket each open, so raise the limit of open files
+ * (ulimit -n) above twice the calls. The fork traces virtual threads that
+ * are pinned to their carriers (Java 21 to 23); none should be printed.
+ *
+ *   mvn -P benchmark test-compile exec:java -Dbenchmark.class=com.treasure_data.client.ShowJobBenchmark
+ *
+ * Run Maven on JDK 21 or later: the benchmark profile compiles for Java 21.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.tracePinnedThreads=short")
+public class ShowJobBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({ "platform", "virtual" })
+        String executor;
+
+        @Param({ "200" })
+        String platformThreads;
+
+        @Param({ "10000" })
+        int calls;
+
+        @Param({ "50" })
+        long latencyMillis;
+
+        HttpServer server;
+        ScheduledExecutorService responder;
+        AsyncTreasureDataClient async;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            // fails first if virtual threads are not supported
+            Properties props = new Properties();
+            props.setProperty(Config.TD_CLIENT_EXECUTOR, executor);
+            props.setProperty(Config.TD_CLIENT_EXECUTOR_THREADS, platformThreads);
+            // keeps the sockets of all the calls for the next iteration
+            props.setProperty(Config.TD_CLIENT_CONNECTION_POOL_MAX_IDLE_PER_HOST, "" + calls);
+            TreasureDataClient client = new TreasureDataClient(
+                    new TreasureDataCredentials("api-key"), props);
+            async = new AsyncTreasureDataClient(client);
+
+            responder = Executors.newScheduledThreadPool(2);
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), calls);
+            server.createContext("/v3/job/show/", new HttpHandler() {
+                public void handle(final HttpExchange ex) throws IOException {
+                    InputStream in = ex.getRequestBody();
+                    while (in.read() != -1) {
+                    }
+                    String path = ex.getRequestURI().getPath();
+                    String jobID = path.substring(path.lastIndexOf('/') + 1);
+                    final byte[] body = ("{\"job_id\":\"" + jobID + "\",\"type\":\"hive\","
+                            + "\"status\":\"success\",\"query\":\"SELECT 1\","
+                            + "\"debug\":{\"cmdout\":\"\",\"stderr\":\"\"}}").getBytes("UTF-8");
+                    // the response is sent later, so that a slow API does not
+                    // take a server thread
+                    responder.schedule(new Runnable() {
+                        public void run() {
+                            try {
+                                ex.sendResponseHeaders(200, body.length);
+                                ex.getResponseBody().write(body);
+                            } catch (IOException e) {
+                                // the client closed the connection
+                            } finally {
+                                ex.close();
+                            }
+                        }
+                    }, latencyMillis, TimeUnit.MILLISECONDS);
+                }
+            });
+            server.start();
+
+            System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+            System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            async.close();
+            server.stop(0);
+            responder.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public int showJobs(Server s) throws Exception {
+        List<ClientFuture<JobSummary>> futures = new ArrayList<ClientFuture<JobSummary>>(s.calls);
+        for (int i = 0; i < s.calls; i++) {
+            futures.add(s.async.showJob("" + i));
+        }
+        int n = 0;
+        for (ClientFuture<JobSummary> f : futures) {
+            f.get();
+            n++;
+        }
+        return n;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opts = new OptionsBuilder()
+                .include(ShowJobBenchmark.class.getName())
+                .build();
+        new Runner(opts).run();
+    }
+}
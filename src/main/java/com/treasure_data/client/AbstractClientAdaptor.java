@@ -21,7 +21,9 @@ import com.treasure_data.auth.TreasureDataCredentials;
 
 public abstract class AbstractClientAdaptor {
     private Config conf;
-    protected HttpConnectionImpl conn = null;
+
+    // fixed connection, e.g. a mock object for testing
+    private volatile HttpConnection conn = null;
 
     public AbstractClientAdaptor(Config conf) {
 	this.conf = conf;
@@ -39,18 +41,25 @@ public abstract class AbstractClientAdaptor {
         conf.setCredentials(credentials);
     }
 
-    protected HttpConnectionImpl getConnection() {
+    protected HttpConnection getConnection() {
         return conn;
     }
 
-    protected HttpConnectionImpl createConnection() {
-        if (conn == null) {
-            conn = new HttpConnectionImpl(getConfig().getProperties());
+    /**
+     * Creates a connection for one API call. Connection objects hold the
+     * state of a request and its response, so they are never shared between
+     * calls and the adaptor can be used by many threads at once. The sockets
+     * underneath are shared through the transport of the config.
+     */
+    protected HttpConnection createConnection() {
+        HttpConnection c = conn;
+        if (c != null) {
+            return c;
         }
-        return conn;
+        return getConfig().getTransport().createConnection();
     }
 
-    protected void setConnection(HttpConnectionImpl conn) {
+    protected void setConnection(HttpConnection conn) {
         this.conn = conn;
     }
 }
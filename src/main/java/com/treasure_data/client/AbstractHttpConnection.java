@@ -0,0 +1,319 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import org.msgpack.MessagePack;
+import org.msgpack.unpacker.BufferUnpacker;
+import org.msgpack.unpacker.Unpacker;
+
+import com.treasure_data.model.Request;
+
+/**
+ * Base class of {@link HttpConnection}s: the request line and headers, the
+ * timeouts of td.client.*method.read.timeout, and the methods that read the
+ * response body, which subclasses give as an input stream.
+ */
+public abstract class AbstractHttpConnection implements HttpConnection {
+    private static final String RFC2822FORMAT = "E, dd MMM yyyy HH:mm:ss Z";
+
+    // Date header of the current second; replaced as a whole, never locked
+    private static volatile FormattedDate lastDate = new FormattedDate(-1, null);
+
+    protected static final String USER_AGENT = "td-client-java";
+
+    protected final int getReadTimeout;
+    protected final int putReadTimeout;
+    protected final int postReadTimeout;
+
+    protected AbstractHttpConnection(Properties props) {
+        getReadTimeout = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_GETMETHOD_READ_TIMEOUT,
+                Config.TD_CLIENT_GETMETHOD_READ_TIMEOUT_DEFAULTVALUE));
+        putReadTimeout = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_PUTMETHOD_READ_TIMEOUT,
+                Config.TD_CLIENT_PUTMETHOD_READ_TIMEOUT_DEFAULTVALUE));
+        postReadTimeout = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_POSTMETHOD_READ_TIMEOUT,
+                Config.TD_CLIENT_POSTMETHOD_READ_TIMEOUT_DEFAULTVALUE));
+    }
+
+    /**
+     * Returns the response body whatever the response code is, or null if no
+     * response has been received.
+     */
+    protected abstract InputStream getResponseStream() throws IOException;
+
+    /**
+     * Returns the URL of the current request, for error messages.
+     */
+    protected abstract String getURL();
+
+    protected static String appendParameters(String path, Map<String, String> params) {
+        StringBuilder sbuf = new StringBuilder();
+        sbuf.append(path);
+        if (params != null && !params.isEmpty()) {
+            sbuf.append("?");
+            int paramSize = params.size();
+            Iterator<Map.Entry<String, String>> iter = params.entrySet().iterator();
+            for (int i = 0; i < paramSize; ++i) {
+                Map.Entry<String, String> e = iter.next();
+                sbuf.append(e.getKey()).append("=").append(e.getValue());
+                if (i + 1 != paramSize) {
+                    sbuf.append("&");
+                }
+            }
+        }
+        return sbuf.toString();
+    }
+
+    /**
+     * Returns true if sending the request twice has the same effect as
+     * sending it once: GET and HEAD, and PUT of a bulk import part, which
+     * replaces the part of the same name. Only such requests are sent again
+     * when a reused connection fails after the whole request was written;
+     * POSTs (e.g. issuing a job or committing a session) and PUTs of
+     * imports might have been executed already.
+     */
+    protected static boolean isIdempotent(String method, String path) {
+        return method.equals("GET") || method.equals("HEAD")
+                || (method.equals("PUT") && path.startsWith("/v3/bulk_import/upload_part/"));
+    }
+
+    /**
+     * Returns the address of the HTTP proxy that the default ProxySelector
+     * chooses for the URL, or null for a direct connection. The default
+     * selector follows http.proxyHost, http.proxyPort and
+     * http.nonProxyHosts. SOCKS proxies (socksProxyHost) need nothing here,
+     * since plain sockets go through them by themselves.
+     */
+    protected static InetSocketAddress selectHttpProxy(String url) throws IOException {
+        ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null) {
+            return null;
+        }
+        List<Proxy> proxies;
+        try {
+            proxies = selector.select(new URI(url));
+        } catch (URISyntaxException e) {
+            throw new IOException("invalid URL: " + url, e);
+        }
+        for (Proxy proxy : proxies) {
+            if (proxy.type() == Proxy.Type.HTTP
+                    && proxy.address() instanceof InetSocketAddress) {
+                return (InetSocketAddress) proxy.address();
+            } else if (proxy.type() == Proxy.Type.DIRECT) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the request line and headers of an HTTP/1.1 request, ending
+     * with the empty line. size is the length of the body, or negative for a
+     * chunked body.
+     */
+    protected static byte[] toRequestHeader(Request<?> request, String method,
+            String hostAndPort, String path, Map<String, String> header, long size,
+            boolean keepAlive) throws IOException {
+        Map<String, String> props = new LinkedHashMap<String, String>();
+        props.put("Host", hostAndPort);
+        props.put("User-Agent", USER_AGENT);
+        props.put("Accept", "*/*");
+        String apiKey = request.getCredentials().getAPIKey();
+        if (apiKey != null) {
+            props.put("Authorization", "TD1 " + apiKey);
+        }
+        props.put("Date", toRFC2822Format(new Date()));
+        props.put("Connection", keepAlive ? "keep-alive" : "close");
+        if (size < 0) {
+            props.put("Transfer-Encoding", "chunked");
+        } else if (!method.equals("GET")) {
+            props.put("Content-Length", "" + size);
+        }
+        if (header != null && !header.isEmpty()) {
+            props.putAll(header);
+        }
+
+        StringBuilder sbuf = new StringBuilder();
+        sbuf.append(method).append(" ").append(path).append(" HTTP/1.1\r\n");
+        for (Map.Entry<String, String> e : props.entrySet()) {
+            sbuf.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+        }
+        sbuf.append("\r\n");
+        return sbuf.toString().getBytes("ISO-8859-1");
+    }
+
+    /**
+     * Returns host:port of the API server, from TD_API_SERVER or from
+     * td.api.server.host and td.api.server.port.
+     */
+    protected static String getApiServerPath() {
+        String hostAndPort = "";
+
+        // environment variables
+        hostAndPort = System.getenv(Config.TD_ENV_API_SERVER);
+        if (hostAndPort != null && !hostAndPort.isEmpty()) {
+            return hostAndPort;
+        }
+
+        // system properties
+        Properties props = System.getProperties();
+        String host = props.getProperty(
+                Config.TD_API_SERVER_HOST, Config.TD_API_SERVER_HOST_DEFAULTVALUE);
+        int port = Integer.parseInt(props.getProperty(
+                Config.TD_API_SERVER_PORT, Config.TD_API_SERVER_PORT_DEFAULTVALUE));
+        hostAndPort = host + ":" + port;
+
+        return hostAndPort;
+    }
+
+    public int getContentLength() throws IOException {
+        String contentLength = getHeaderField("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            long length = Long.parseLong(contentLength);
+            return length > Integer.MAX_VALUE ? -1 : (int) length;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String getResponseBody() throws IOException {
+        return readText(getInputStream());
+    }
+
+    public Reader getResponseReader() throws IOException {
+        return new BufferedReader(new InputStreamReader(getInputStream(), "UTF-8"));
+    }
+
+    public String getErrorMessage() throws IOException {
+        InputStream in = getResponseStream();
+        if (in == null) {
+            return "";
+        }
+        return readText(in);
+    }
+
+    private static String readText(InputStream in) throws IOException {
+        StringBuilder sbuf = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        while (true) {
+            String line = reader.readLine();
+            if (line == null) {
+                break;
+            }
+            sbuf.append(line);
+        }
+        reader.close();
+        return sbuf.toString();
+    }
+
+    public Unpacker getResponseBodyBinary() throws IOException {
+        BufferedInputStream in = new BufferedInputStream(getInputStream());
+        MessagePack msgpack = new MessagePack();
+        BufferUnpacker unpacker = msgpack.createBufferUnpacker();
+        byte[] buf = new byte[1024];
+
+        int len = 0;
+        while ((len = in.read(buf)) != -1) {
+            unpacker.feed(buf, 0, len);
+        }
+
+        return unpacker;
+    }
+
+    public Unpacker getResponseBodyBinaryWithGZip() throws IOException {
+        InputStream in = new GZIPInputStream(getInputStream());
+        MessagePack msgpack = new MessagePack();
+        BufferUnpacker unpacker = msgpack.createBufferUnpacker();
+        byte[] buf = new byte[1024];
+
+        int len = 0;
+        while ((len = in.read(buf)) != -1) {
+            unpacker.feed(buf, 0, len);
+        }
+
+        return unpacker;
+    }
+
+    public Unpacker getResponseBodyBinaryWithGZip2() throws IOException {
+        MessagePack msgpack = new MessagePack();
+        InputStream in = new BufferedInputStream(new GZIPInputStream(getInputStream()));
+        return msgpack.createUnpacker(in);
+    }
+
+    public InputStream getInputStream() throws IOException {
+        InputStream in = getResponseStream();
+        if (in == null) {
+            throw new IOException("request is not sent yet");
+        }
+        int responseCode = getResponseCode();
+        if (responseCode >= 400) {
+            throw new IOException(String.format(
+                    "Server returned HTTP response code: %d for URL: %s",
+                    responseCode, getURL()));
+        }
+        return in;
+    }
+
+    static String toRFC2822Format(Date from) {
+        long second = from.getTime() / 1000;
+        FormattedDate date = lastDate;
+        if (date.second != second) {
+            // SimpleDateFormat is not thread-safe; create one per second
+            SimpleDateFormat format = new SimpleDateFormat(RFC2822FORMAT, Locale.ENGLISH);
+            date = new FormattedDate(second, format.format(from));
+            lastDate = date;
+        }
+        return date.text;
+    }
+
+    private static class FormattedDate {
+        private final long second;
+        private final String text;
+
+        FormattedDate(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
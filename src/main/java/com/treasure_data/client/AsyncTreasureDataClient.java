@@ -0,0 +1,598 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.treasure_data.model.Database;
+import com.treasure_data.model.DatabaseSummary;
+import com.treasure_data.model.GetJobStatusRequest;
+import com.treasure_data.model.GetJobStatusResult;
+import com.treasure_data.model.ImportRequest;
+import com.treasure_data.model.ImportResult;
+import com.treasure_data.model.Job;
+import com.treasure_data.model.JobResult;
+import com.treasure_data.model.JobSummary;
+import com.treasure_data.model.Table;
+import com.treasure_data.model.TableSummary;
+
+/**
+ * Runs the API calls of a {@link TreasureDataClient} on an executor that the
+ * caller gives, and returns {@link ClientFuture}s of their results.
+ *
+ * Waiting does not take a thread: {@link #waitForCompletion(Job, long)}
+ * polls the job status like {@link JobWaiter}, but between polls the job only
+ * has a timer on a scheduler thread, which is shared by all the waits. So
+ * thousands of jobs can be submitted, waited for and read by a few executor
+ * threads:
+ *
+ * <pre>
+ * AsyncTreasureDataClient async = new AsyncTreasureDataClient(client, executor);
+ * async.runJob(job, 0).addCallback(new ClientCallback&lt;JobResult&gt;() {
+ *     ...
+ * });
+ * </pre>
+ *
+ * With td.client.transport=nio ({@link NioHttpTransport}), job status polls
+ * and imports do not take a thread while they wait for the server either:
+ * the request is sent by one task on the executor, and its response is read
+ * by another one, which is queued when the response header has arrived.
+ * Other calls take an executor thread until their response is read.
+ *
+ * Other API calls of the client can be run by {@link #call(Callable)}.
+ *
+ * Without an executor, the client creates the one of td.client.executor by
+ * {@link ClientExecutors#newExecutor(java.util.Properties)}; with "virtual",
+ * each call runs on a virtual thread (Java 21 or later).
+ */
+public class AsyncTreasureDataClient {
+    private static Logger LOG = Logger.getLogger(AsyncTreasureDataClient.class.getName());
+
+    /**
+     * A check that is repeated until it returns a result; see
+     * {@link AsyncTreasureDataClient#poll(Poll, long)}. Its toString names
+     * what is waited for in the timeout error.
+     */
+    public static interface Poll<T> {
+        /**
+         * Returns the result, or null if it is not ready yet.
+         */
+        T poll() throws ClientException;
+
+        /**
+         * Returns the time to wait before the next poll, in millis.
+         */
+        long getInterval();
+    }
+
+    /**
+     * An API call split at its response, see {@link #exchange(Exchange)}.
+     */
+    private static interface Exchange<T> {
+        HttpConnection send() throws ClientException;
+
+        T read(HttpConnection conn) throws ClientException;
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final TreasureDataClient client;
+    private final Executor executor;
+    private final boolean ownExecutor;
+    private final boolean ownScheduler;
+    private ScheduledExecutorService scheduler;
+    private final JobWaiter waiter;
+
+    /**
+     * Runs the API calls on the executor of td.client.executor of the
+     * client's properties. {@link #close()} shuts it down.
+     */
+    public AsyncTreasureDataClient(TreasureDataClient client) {
+        this(client, ClientExecutors.newExecutor(client.getConfig().getProperties()), null, true);
+    }
+
+    /**
+     * Runs the API calls on the executor, and times polls on a daemon thread
+     * of its own, which {@link #close()} stops.
+     */
+    public AsyncTreasureDataClient(TreasureDataClient client, Executor executor) {
+        this(client, executor, null);
+    }
+
+    /**
+     * Runs the API calls on the executor, and times polls on the scheduler;
+     * the scheduler only hands the polls to the executor.
+     */
+    public AsyncTreasureDataClient(TreasureDataClient client, Executor executor,
+            ScheduledExecutorService scheduler) {
+        this(client, executor, scheduler, false);
+    }
+
+    private AsyncTreasureDataClient(TreasureDataClient client, Executor executor,
+            ScheduledExecutorService scheduler, boolean ownExecutor) {
+        this.client = client;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.scheduler = scheduler;
+        this.ownScheduler = scheduler == null;
+        this.waiter = new JobWaiter(client);
+    }
+
+    public TreasureDataClient getClient() {
+        return client;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Returns the waiter whose min and max intervals the job status is polled
+     * with.
+     */
+    public JobWaiter getJobWaiter() {
+        return waiter;
+    }
+
+    /**
+     * Stops the scheduler thread and the executor if they are the client's
+     * own. Polls that are waiting for their next time run once more and fail.
+     */
+    public synchronized void close() {
+        if (ownScheduler && scheduler != null) {
+            scheduler.shutdown();
+        }
+        if (ownExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "td-client-async-scheduler-"
+                            + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Runs the call on the executor. It should be a blocking API call of the
+     * client; its ClientException fails the future.
+     */
+    public <T> ClientFuture<T> call(final Callable<T> call) {
+        final ClientFuture<T> future = new ClientFuture<T>();
+        execute(new Runnable() {
+            public void run() {
+                if (future.isDone()) {
+                    return; // cancelled
+                }
+                try {
+                    future.complete(call.call());
+                } catch (ClientException e) {
+                    future.fail(e);
+                } catch (Exception e) {
+                    future.fail(new ClientException(e));
+                }
+            }
+        }, future);
+        return future;
+    }
+
+    /**
+     * Polls on the executor until the poll returns a result, with the
+     * intervals that it gives. No thread is used between polls.
+     *
+     * @param timeoutMillis max time to wait; 0 or negative waits forever
+     */
+    public <T> ClientFuture<T> poll(final Poll<T> poll, final long timeoutMillis) {
+        final ClientFuture<T> future = new ClientFuture<T>();
+        final long deadline = timeoutMillis > 0
+                ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        execute(new Runnable() {
+            public void run() {
+                if (future.isDone()) {
+                    return; // cancelled
+                }
+                try {
+                    T result = poll.poll();
+                    if (result != null) {
+                        future.complete(result);
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now >= deadline) {
+                        future.fail(new ClientException(String.format(
+                                "%s did not finish in %d ms", poll, timeoutMillis)));
+                        return;
+                    }
+                    schedule(this, Math.min(poll.getInterval(), deadline - now), future);
+                } catch (ClientException e) {
+                    future.fail(e);
+                } catch (RuntimeException e) {
+                    future.fail(new ClientException(e));
+                }
+            }
+        }, future);
+        return future;
+    }
+
+    /**
+     * Sends the request on the executor and reads the response. If the
+     * connection is non-blocking, the response is read by a second task,
+     * which is queued once the response header has arrived; until then no
+     * thread waits for it.
+     */
+    private <T> ClientFuture<T> exchange(final Exchange<T> exchange) {
+        final ClientFuture<T> future = new ClientFuture<T>();
+        execute(new Runnable() {
+            public void run() {
+                if (future.isDone()) {
+                    return; // cancelled
+                }
+                final HttpConnection conn;
+                try {
+                    conn = exchange.send();
+                } catch (ClientException e) {
+                    future.fail(e);
+                    return;
+                } catch (RuntimeException e) {
+                    future.fail(new ClientException(e));
+                    return;
+                }
+
+                final Runnable read = new Runnable() {
+                    public void run() {
+                        if (future.isDone()) {
+                            conn.disconnect(); // cancelled
+                            return;
+                        }
+                        try {
+                            future.complete(exchange.read(conn));
+                        } catch (ClientException e) {
+                            future.fail(e);
+                        } catch (RuntimeException e) {
+                            future.fail(new ClientException(e));
+                        }
+                    }
+                };
+                if (conn instanceof NonBlockingHttpConnection) {
+                    ((NonBlockingHttpConnection) conn).addResponseListener(new Runnable() {
+                        public void run() {
+                            if (!execute(read, future)) {
+                                conn.disconnect();
+                            }
+                        }
+                    });
+                } else {
+                    read.run();
+                }
+            }
+        }, future);
+        return future;
+    }
+
+    // the adaptor whose calls exchange() can split, or null
+    private DefaultClientAdaptorImpl getSplittableAdaptor() {
+        DefaultClientAdaptor adaptor = client.getClientAdaptor();
+        if (adaptor instanceof DefaultClientAdaptorImpl) {
+            return (DefaultClientAdaptorImpl) adaptor;
+        }
+        return null;
+    }
+
+    private boolean execute(Runnable task, ClientFuture<?> future) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            future.fail(new ClientException("The executor rejected an API call", e));
+            return false;
+        }
+    }
+
+    private void schedule(final Runnable task, long delayMillis, final ClientFuture<?> future) {
+        try {
+            getScheduler().schedule(new Runnable() {
+                public void run() {
+                    execute(task, future);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            future.fail(new ClientException("The client is closed", e));
+        }
+    }
+
+    // Database and Table API
+
+    public ClientFuture<List<DatabaseSummary>> listDatabases() {
+        return call(new Callable<List<DatabaseSummary>>() {
+            public List<DatabaseSummary> call() throws ClientException {
+                return client.listDatabases();
+            }
+        });
+    }
+
+    public ClientFuture<List<TableSummary>> listTables(final String databaseName) {
+        return call(new Callable<List<TableSummary>>() {
+            public List<TableSummary> call() throws ClientException {
+                return client.listTables(databaseName);
+            }
+        });
+    }
+
+    // Import API
+
+    public ClientFuture<ImportResult> importData(String databaseName, String tableName,
+            byte[] data) {
+        return importData(new ImportRequest(new Table(new Database(databaseName), tableName),
+                data));
+    }
+
+    /**
+     * Imports the data like {@link TreasureDataClient#importData(ImportRequest)}:
+     * if td.create.table.auto is true and the table is not found, the table
+     * is created and the import is retried once.
+     */
+    public ClientFuture<ImportResult> importData(final ImportRequest request) {
+        final DefaultClientAdaptorImpl adaptor = getSplittableAdaptor();
+        if (adaptor == null) {
+            return call(new Callable<ImportResult>() {
+                public ImportResult call() throws ClientException {
+                    return client.importData(request);
+                }
+            });
+        }
+
+        ClientFuture<ImportResult> imported = exchange(new Exchange<ImportResult>() {
+            public HttpConnection send() throws ClientException {
+                return adaptor.sendImportData(request);
+            }
+
+            public ImportResult read(HttpConnection conn) throws ClientException {
+                return adaptor.readImportData(request, conn);
+            }
+        });
+        if (!client.isAutoCreateTable()) {
+            return imported;
+        }
+
+        final Table table = request.getTable();
+        final String databaseName = table.getDatabase().getName();
+        final ClientFuture<ImportResult> future = new ClientFuture<ImportResult>();
+        imported.addCallback(new ClientCallback<ImportResult>() {
+            public void onSuccess(ImportResult result) {
+                client.getConfig().addKnownTable(databaseName, table.getName());
+                future.complete(result);
+            }
+
+            public void onFailure(ClientException e) {
+                if (!(e instanceof HttpClientException)
+                        || ((HttpClientException) e).getResponseCode()
+                                != HttpURLConnection.HTTP_NOT_FOUND) {
+                    future.fail(e);
+                    return;
+                }
+                // the table may have been deleted by someone else
+                call(new Callable<ImportResult>() {
+                    public ImportResult call() throws ClientException {
+                        client.getConfig().removeKnownTable(databaseName, table.getName());
+                        client.createTableIfNotExists(databaseName, table.getName());
+                        ImportResult result = adaptor.importData(request);
+                        client.getConfig().addKnownTable(databaseName, table.getName());
+                        return result;
+                    }
+                }).addCallback(new ClientCallback<ImportResult>() {
+                    public void onSuccess(ImportResult result) {
+                        future.complete(result);
+                    }
+
+                    public void onFailure(ClientException e) {
+                        future.fail(e);
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    // Job API
+
+    /**
+     * Submits the job and returns it with its job ID.
+     */
+    public ClientFuture<Job> submitJob(final Job job) {
+        return call(new Callable<Job>() {
+            public Job call() throws ClientException {
+                client.submitJob(job);
+                return job;
+            }
+        });
+    }
+
+    public ClientFuture<JobSummary> showJob(final Job job) {
+        return call(new Callable<JobSummary>() {
+            public JobSummary call() throws ClientException {
+                return client.showJob(job);
+            }
+        });
+    }
+
+    public ClientFuture<JobSummary> showJob(String jobID) {
+        return showJob(new Job(jobID));
+    }
+
+    public ClientFuture<JobSummary.Status> getJobStatus(Job job) {
+        return getJobStatus(new GetJobStatusRequest(job)).then(
+                new ClientFuture.Step<GetJobStatusResult, JobSummary.Status>() {
+                    public ClientFuture<JobSummary.Status> apply(GetJobStatusResult result) {
+                        return ClientFuture.succeeded(result.getStatus());
+                    }
+                });
+    }
+
+    public ClientFuture<GetJobStatusResult> getJobStatus(final GetJobStatusRequest request) {
+        final DefaultClientAdaptorImpl adaptor = getSplittableAdaptor();
+        if (adaptor == null) {
+            return call(new Callable<GetJobStatusResult>() {
+                public GetJobStatusResult call() throws ClientException {
+                    return client.getJobStatus(request);
+                }
+            });
+        }
+        return exchange(new Exchange<GetJobStatusResult>() {
+            public HttpConnection send() throws ClientException {
+                return adaptor.sendJobStatus(request);
+            }
+
+            public GetJobStatusResult read(HttpConnection conn) throws ClientException {
+                return adaptor.readJobStatus(request, conn);
+            }
+        });
+    }
+
+    public ClientFuture<Job> killJob(final Job job) {
+        return call(new Callable<Job>() {
+            public Job call() throws ClientException {
+                client.killJob(job);
+                return job;
+            }
+        });
+    }
+
+    /**
+     * Waits until the job finishes and returns its details. The job status
+     * is polled with the intervals of {@link #getJobWaiter()}, by
+     * {@link #getJobStatus(GetJobStatusRequest)}.
+     *
+     * @param timeoutMillis max time to wait; 0 or negative waits forever
+     */
+    public ClientFuture<JobSummary> waitForCompletion(final Job job, final long timeoutMillis) {
+        final ClientFuture<JobSummary> future = new ClientFuture<JobSummary>();
+        final long started = System.currentTimeMillis();
+        final long deadline = timeoutMillis > 0 ? started + timeoutMillis : Long.MAX_VALUE;
+        new Runnable() {
+            public void run() {
+                if (future.isDone()) {
+                    return; // cancelled
+                }
+                getJobStatus(new GetJobStatusRequest(job)).addCallback(
+                        new ClientCallback<GetJobStatusResult>() {
+                    public void onSuccess(GetJobStatusResult status) {
+                        if (status.isFinished()) {
+                            finish();
+                        } else {
+                            checkLater(status);
+                        }
+                    }
+
+                    public void onFailure(ClientException e) {
+                        future.fail(e);
+                    }
+                });
+            }
+
+            private void checkLater(GetJobStatusResult status) {
+                long now = System.currentTimeMillis();
+                String statusName = JobSummary.toStatusName(status.getStatus());
+                if (now >= deadline) {
+                    future.fail(new ClientException(String.format(
+                            "Job %s (status: %s) did not finish in %d ms", job.getJobID(),
+                            statusName, timeoutMillis)));
+                    return;
+                }
+                long runningSince = JobWaiter.parseTime(status.getStartAt(), started);
+                long interval = waiter.getPollInterval(now - runningSince);
+                LOG.fine(String.format("Job %s is %s; check again in %d ms", job.getJobID(),
+                        statusName, interval));
+                // the check only starts a request, so it can run on the
+                // scheduler thread
+                try {
+                    getScheduler().schedule(this, Math.min(interval, deadline - now),
+                            TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    future.fail(new ClientException("The client is closed", e));
+                }
+            }
+
+            private void finish() {
+                if (future.isDone()) {
+                    return; // cancelled
+                }
+                showJob(job).addCallback(new ClientCallback<JobSummary>() {
+                    public void onSuccess(JobSummary summary) {
+                        future.complete(summary);
+                    }
+
+                    public void onFailure(ClientException e) {
+                        future.fail(e);
+                    }
+                });
+            }
+        }.run();
+        return future;
+    }
+
+    public ClientFuture<JobResult> getJobResult(final Job job) {
+        return call(new Callable<JobResult>() {
+            public JobResult call() throws ClientException {
+                return client.getJobResult(job);
+            }
+        });
+    }
+
+    /**
+     * Submits the job, waits until it finishes and gets its result. The
+     * future fails if the job does not succeed.
+     *
+     * @param timeoutMillis max time to wait for the job to finish; 0 or
+     * negative waits forever
+     */
+    public ClientFuture<JobResult> runJob(Job job, final long timeoutMillis) {
+        return submitJob(job).then(new ClientFuture.Step<Job, JobSummary>() {
+            public ClientFuture<JobSummary> apply(Job job) {
+                return waitForCompletion(job, timeoutMillis);
+            }
+        }).then(new ClientFuture.Step<JobSummary, JobResult>() {
+            public ClientFuture<JobResult> apply(JobSummary summary) {
+                if (summary.getStatus() != JobSummary.Status.SUCCESS) {
+                    return ClientFuture.failed(new ClientException(String.format(
+                            "Job %s finished with status %s", summary.getJobID(),
+                            JobSummary.toStatusName(summary.getStatus()))));
+                }
+                return getJobResult(summary);
+            }
+        });
+    }
+}
@@ -0,0 +1,116 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.treasure_data.model.ImportRequest;
+import com.treasure_data.model.Table;
+
+/**
+ * Uploads the batches of {@link RecordBatcher} and {@link RecordCollector}
+ * with importData, and counts them.
+ *
+ * importData is not idempotent: a batch whose response was lost, e.g. by a
+ * read timeout, may have been imported already, and sending it again would
+ * import it twice. So a batch is retried only as a non-idempotent call of
+ * the {@link RetryPolicy}: after a retryable response (429 or 5xx), or if
+ * the connection could not be made.
+ */
+class BatchUploader {
+    private static Logger LOG = Logger.getLogger(BatchUploader.class.getName());
+
+    private final TreasureDataClient client;
+
+    private volatile RetryClient retryClient = new RetryClient();
+
+    private final AtomicReference<ClientException> lastError =
+            new AtomicReference<ClientException>();
+
+    private final AtomicLong uploadedBatchCount = new AtomicLong();
+    private final AtomicLong uploadedRecordCount = new AtomicLong();
+    private final AtomicLong failedBatchCount = new AtomicLong();
+    private final AtomicLong failedRecordCount = new AtomicLong();
+
+    BatchUploader(TreasureDataClient client) {
+        this.client = client;
+    }
+
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        retryClient = new RetryClient(retryPolicy);
+    }
+
+    /**
+     * Imports the batch of records into the table. A failure is counted and
+     * kept for {@link #takeLastError()}.
+     */
+    void upload(final Table table, final byte[] bytes, long records) {
+        try {
+            retryClient.retry(new RetryClient.Retryable() {
+                public void doTry() throws ClientException {
+                    client.importData(new ImportRequest(table, bytes));
+                }
+            }, false);
+            uploadedBatchCount.incrementAndGet();
+            uploadedRecordCount.addAndGet(records);
+        } catch (IOException e) {
+            Throwable cause = e.getCause();
+            failed(table, records, cause instanceof ClientException
+                    ? (ClientException) cause : new ClientException(e));
+        }
+    }
+
+    /**
+     * Counts a batch that failed before or during its upload.
+     */
+    void failed(Table table, long records, ClientException e) {
+        failedBatchCount.incrementAndGet();
+        failedRecordCount.addAndGet(records);
+        lastError.set(e);
+        LOG.log(Level.SEVERE, String.format("Import of %d records into %s.%s failed",
+                records, table.getDatabase().getName(), table.getName()), e);
+    }
+
+    /**
+     * Returns the error of the last failed batch and clears it, or returns
+     * null if no batch failed since the last call.
+     */
+    ClientException takeLastError() {
+        return lastError.getAndSet(null);
+    }
+
+    long getUploadedBatchCount() {
+        return uploadedBatchCount.get();
+    }
+
+    long getUploadedRecordCount() {
+        return uploadedRecordCount.get();
+    }
+
+    long getFailedBatchCount() {
+        return failedBatchCount.get();
+    }
+
+    long getFailedRecordCount() {
+        return failedRecordCount.get();
+    }
+}
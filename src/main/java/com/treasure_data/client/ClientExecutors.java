@@ -0,0 +1,133 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates executors for {@link AsyncTreasureDataClient} and for callers that
+ * run blocking API calls of {@link TreasureDataClient} concurrently.
+ *
+ * On Java 21 or later, {@link #newVirtualThreadExecutor()} runs each call on
+ * a virtual thread of its own, so that tens of thousands of calls can wait for
+ * their responses at a time without a pool to size. The client does not
+ * wait in a synchronized block on the I/O path, so a waiting call does not
+ * pin its carrier thread. The virtual thread API is called by reflection,
+ * since the client is built for older Java versions too.
+ */
+public class ClientExecutors {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private ClientExecutors() {
+    }
+
+    /**
+     * Returns the executor of td.client.executor: "platform" (default) for a
+     * pool of td.client.executor.threads threads, or "virtual" for a virtual
+     * thread per task.
+     */
+    public static ExecutorService newExecutor(Properties props) {
+        String mode = props.getProperty(Config.TD_CLIENT_EXECUTOR,
+                Config.TD_CLIENT_EXECUTOR_DEFAULTVALUE);
+        if (mode.equals("platform")) {
+            int threads = Integer.parseInt(props.getProperty(Config.TD_CLIENT_EXECUTOR_THREADS,
+                    Config.TD_CLIENT_EXECUTOR_THREADS_DEFAULTVALUE));
+            return newPlatformThreadExecutor(threads);
+        } else if (mode.equals("virtual")) {
+            return newVirtualThreadExecutor();
+        }
+        throw new IllegalArgumentException("Unknown td.client.executor: " + mode);
+    }
+
+    /**
+     * Returns a fixed pool of daemon threads.
+     */
+    public static ExecutorService newPlatformThreadExecutor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("td.client.executor.threads must be positive: "
+                    + threads);
+        }
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "td-client-executor-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread for each task.
+     *
+     * @throws UnsupportedOperationException if virtual threads are not
+     * supported, i.e. before Java 21
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "td-client-virtual-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory")
+                    .invoke(builder);
+            return (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (NoSuchMethodException e) {
+            throw newUnsupported(e);
+        } catch (ClassNotFoundException e) {
+            throw newUnsupported(e);
+        } catch (IllegalAccessException e) {
+            throw newUnsupported(e);
+        } catch (InvocationTargetException e) {
+            // preview API of Java 19 and 20 that is not enabled
+            throw newUnsupported(e.getCause());
+        }
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        try {
+            newVirtualThreadExecutor().shutdown();
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the thread is a virtual thread.
+     */
+    public static boolean isVirtual(Thread thread) {
+        try {
+            Method m = Thread.class.getMethod("isVirtual");
+            return (Boolean) m.invoke(thread);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static UnsupportedOperationException newUnsupported(Throwable cause) {
+        return new UnsupportedOperationException("Virtual threads need Java 21 or later", cause);
+    }
+}
@@ -0,0 +1,237 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The result of an API call of {@link AsyncTreasureDataClient} that is
+ * running or waiting. Callbacks are called once the result is set, and
+ * {@link #then(Step)} chains the next API call to it, so that a sequence of
+ * calls runs without a thread waiting for each of them.
+ *
+ * <pre>
+ * async.submitJob(job).then(new ClientFuture.Step&lt;Job, JobSummary&gt;() {
+ *     public ClientFuture&lt;JobSummary&gt; apply(Job job) {
+ *         return async.waitForCompletion(job, 0);
+ *     }
+ * }).addCallback(callback);
+ * </pre>
+ *
+ * {@link #get()} throws an ExecutionException caused by the ClientException
+ * of the failed call. Cancelling a future does not interrupt an API call
+ * that is running, but the call's result is dropped and no later poll or
+ * chained step runs.
+ */
+public class ClientFuture<T> implements Future<T> {
+    private static Logger LOG = Logger.getLogger(ClientFuture.class.getName());
+
+    /**
+     * The next API call of a chain; see {@link ClientFuture#then(Step)}.
+     */
+    public static interface Step<T, U> {
+        /**
+         * Called with the result of the previous future, on the thread that
+         * set it. It must not block: it should start the next call on an
+         * async client and return its future.
+         */
+        ClientFuture<U> apply(T result) throws ClientException;
+    }
+
+    /**
+     * Returns a future that has the given result already.
+     */
+    public static <T> ClientFuture<T> succeeded(T result) {
+        ClientFuture<T> future = new ClientFuture<T>();
+        future.complete(result);
+        return future;
+    }
+
+    public static <T> ClientFuture<T> failed(ClientException e) {
+        ClientFuture<T> future = new ClientFuture<T>();
+        future.fail(e);
+        return future;
+    }
+
+    private boolean done = false;
+    private boolean cancelled = false;
+    private T result;
+    private ClientException error;
+    private List<ClientCallback<? super T>> callbacks =
+            new ArrayList<ClientCallback<? super T>>();
+    // waiting on a latch rather than in a synchronized block does not pin a
+    // virtual thread to its carrier
+    private final CountDownLatch doneLatch = new CountDownLatch(1);
+
+    ClientFuture() {
+    }
+
+    /**
+     * Calls the callback once the result is set: on the thread that sets it,
+     * or on the calling thread if it is set already.
+     */
+    public void addCallback(ClientCallback<? super T> callback) {
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        call(callback);
+    }
+
+    /**
+     * Returns a future of the call that the step starts with the result of
+     * this future. If this future fails, the returned one fails with the same
+     * error and the step is not called.
+     */
+    public <U> ClientFuture<U> then(final Step<? super T, U> step) {
+        final ClientFuture<U> next = new ClientFuture<U>();
+        propagateCancel(next, this);
+        addCallback(new ClientCallback<T>() {
+            public void onSuccess(T result) {
+                if (next.isDone()) {
+                    return; // cancelled
+                }
+                ClientFuture<U> f;
+                try {
+                    f = step.apply(result);
+                } catch (ClientException e) {
+                    next.fail(e);
+                    return;
+                } catch (RuntimeException e) {
+                    next.fail(new ClientException(e));
+                    return;
+                }
+                propagateCancel(next, f);
+                f.addCallback(new ClientCallback<U>() {
+                    public void onSuccess(U result) {
+                        next.complete(result);
+                    }
+
+                    public void onFailure(ClientException e) {
+                        next.fail(e);
+                    }
+                });
+            }
+
+            public void onFailure(ClientException e) {
+                next.fail(e);
+            }
+        });
+        return next;
+    }
+
+    // cancelling a chain cancels the call that is running or waiting
+    private static void propagateCancel(final ClientFuture<?> from, final Future<?> to) {
+        from.addCallback(new ClientCallback<Object>() {
+            public void onSuccess(Object result) {
+            }
+
+            public void onFailure(ClientException e) {
+                if (from.isCancelled()) {
+                    to.cancel(false);
+                }
+            }
+        });
+    }
+
+    boolean complete(T result) {
+        return set(result, null, false);
+    }
+
+    boolean fail(ClientException error) {
+        return set(null, error, false);
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return set(null, new ClientException("Cancelled", new CancellationException()), true);
+    }
+
+    private boolean set(T result, ClientException error, boolean cancelled) {
+        List<ClientCallback<? super T>> cs;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.done = true;
+            this.result = result;
+            this.error = error;
+            this.cancelled = cancelled;
+            cs = callbacks;
+            callbacks = null;
+        }
+        doneLatch.countDown();
+        for (ClientCallback<? super T> c : cs) {
+            call(c);
+        }
+        return true;
+    }
+
+    private void call(ClientCallback<? super T> callback) {
+        try {
+            if (error == null) {
+                callback.onSuccess(result);
+            } else {
+                callback.onFailure(error);
+            }
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Callback failed: " + e.getMessage(), e);
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        doneLatch.await();
+        return getResult();
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        if (!doneLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,376 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many API calls are in flight at a time, with a limit that adapts
+ * to the latency of the API server (AIMD). Every call that comes back in
+ * time adds 1/limit to the limit, i.e. the limit grows by one per round of
+ * calls while they are answered quickly. A call that is dropped (a 429 or
+ * 5xx response or a timeout), or whose round trip takes more than
+ * rttTolerance times the no-load round trip, cuts the limit by 10%, at most
+ * once per round trip. So when many workers call the API at once, their
+ * calls queue up on the client before the server is overloaded.
+ *
+ * The no-load round trip is the lowest one seen, which drifts slowly toward
+ * later round trips, so that a server that became slower for good is not
+ * taken as overloaded forever. It is kept per endpoint, since some calls are
+ * slow without any load, e.g. a large page of listJobs or a job result, and
+ * would cut the limit if they were compared with quick calls like showJob.
+ * The limit is shared by all endpoints.
+ *
+ * A call that finds the limit reached waits in a queue for up to
+ * td.client.limiter.queue.timeout millis, and is rejected with
+ * {@link LimitExceededException} if it times out or the queue is full
+ * (td.client.limiter.queue.max).
+ *
+ * <pre>
+ * limiter.acquire();
+ * long started = System.nanoTime();
+ * ...
+ * limiter.onSuccess("/v3/job/show", System.nanoTime() - started); // or onDropped(), onIgnored()
+ * </pre>
+ */
+public class ConcurrencyLimiter {
+    private static Logger LOG = Logger.getLogger(ConcurrencyLimiter.class.getName());
+
+    /**
+     * Thrown when a call is rejected because the limit is reached.
+     */
+    public static class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    // the no-load RTT moves this fraction of the way toward a slower sample
+    private static final int RTT_DRIFT = 1000;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double rttTolerance;
+    private final int maxQueueLength;
+    private final long queueTimeoutMillis;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition released = lock.newCondition();
+    private double limit;
+    private int inFlight = 0;
+    private int queueLength = 0;
+    // the no-load RTT of each endpoint
+    private final Map<String, Long> noLoadRttNanos = new HashMap<String, Long>();
+    private long lastDecreaseNanos;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public ConcurrencyLimiter(String name, Properties props) {
+        this(name,
+                Integer.parseInt(props.getProperty(Config.TD_CLIENT_LIMITER_INITIAL,
+                        Config.TD_CLIENT_LIMITER_INITIAL_DEFAULTVALUE)),
+                Integer.parseInt(props.getProperty(Config.TD_CLIENT_LIMITER_MIN,
+                        Config.TD_CLIENT_LIMITER_MIN_DEFAULTVALUE)),
+                Integer.parseInt(props.getProperty(Config.TD_CLIENT_LIMITER_MAX,
+                        Config.TD_CLIENT_LIMITER_MAX_DEFAULTVALUE)),
+                Double.parseDouble(props.getProperty(Config.TD_CLIENT_LIMITER_RTT_TOLERANCE,
+                        Config.TD_CLIENT_LIMITER_RTT_TOLERANCE_DEFAULTVALUE)),
+                Integer.parseInt(props.getProperty(Config.TD_CLIENT_LIMITER_QUEUE_MAX,
+                        Config.TD_CLIENT_LIMITER_QUEUE_MAX_DEFAULTVALUE)),
+                Long.parseLong(props.getProperty(Config.TD_CLIENT_LIMITER_QUEUE_TIMEOUT,
+                        Config.TD_CLIENT_LIMITER_QUEUE_TIMEOUT_DEFAULTVALUE)));
+    }
+
+    /**
+     * @param name of the calls that are limited, for logs and errors
+     * @param rttTolerance ratio of a round trip to the no-load round trip
+     * above which the server is taken as overloaded
+     * @param maxQueueLength max number of calls that wait; 0 rejects calls
+     * at once when the limit is reached
+     */
+    public ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit,
+            double rttTolerance, int maxQueueLength, long queueTimeoutMillis) {
+        if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit
+                || initialLimit > maxLimit) {
+            throw new IllegalArgumentException(String.format(
+                    "limits must be 1 <= min <= initial <= max: %d, %d, %d",
+                    minLimit, initialLimit, maxLimit));
+        }
+        if (rttTolerance <= 1) {
+            throw new IllegalArgumentException("rtt tolerance must be greater than 1: "
+                    + rttTolerance);
+        }
+        this.name = name;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.rttTolerance = rttTolerance;
+        this.maxQueueLength = maxQueueLength;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.lastDecreaseNanos = System.nanoTime();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Takes a permit for a call, waiting in the queue if the limit is
+     * reached. The caller must give it back by onSuccess, onDropped or
+     * onIgnored.
+     *
+     * @throws LimitExceededException if the queue is full or the wait
+     * timed out
+     */
+    public void acquire() throws IOException {
+        lock.lock();
+        try {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return;
+            }
+            if (queueLength >= maxQueueLength) {
+                throw reject("the queue is full");
+            }
+            queueLength++;
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+                while (inFlight >= (int) limit) {
+                    if (remaining <= 0) {
+                        throw reject("waited " + queueTimeoutMillis + " ms");
+                    }
+                    remaining = released.awaitNanos(remaining);
+                }
+                inFlight++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for "
+                        + name + " calls");
+            } finally {
+                queueLength--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private LimitExceededException reject(String reason) {
+        rejectedCount.incrementAndGet();
+        return new LimitExceededException(String.format(
+                "Too many %s calls in flight (limit %d): %s", name, (int) limit, reason));
+    }
+
+    /**
+     * Gives back the permit of a call that was answered, and adapts the
+     * limit to its round trip time. The call is taken as one of an endpoint
+     * named by the name of this limiter.
+     */
+    public void onSuccess(long rttNanos) {
+        onSuccess(name, rttNanos);
+    }
+
+    /**
+     * Gives back the permit of a call that was answered, and adapts the
+     * limit to its round trip time compared with the no-load round trip of
+     * the endpoint.
+     *
+     * @param endpoint class of the call, e.g. "/v3/job/show"
+     */
+    public void onSuccess(String endpoint, long rttNanos) {
+        lock.lock();
+        try {
+            int before = (int) limit;
+            boolean busy = inFlight * 2 >= limit;
+            inFlight--;
+            long noLoad = getNoLoadRttNanos(endpoint);
+            if (noLoad == 0 || rttNanos < noLoad) {
+                noLoad = Math.max(rttNanos, 1);
+            } else {
+                noLoad += (rttNanos - noLoad) / RTT_DRIFT;
+            }
+            noLoadRttNanos.put(endpoint, noLoad);
+
+            if (rttNanos > noLoad * rttTolerance) {
+                decrease(rttNanos);
+            } else if (busy) {
+                // grows only while the calls use the limit
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            signal(before);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back the permit of a call that the server dropped or did not
+     * answer in time, and cuts the limit.
+     */
+    public void onDropped() {
+        onDropped(name);
+    }
+
+    /**
+     * Gives back the permit of a call to an endpoint that the server dropped
+     * or did not answer in time, and cuts the limit.
+     */
+    public void onDropped(String endpoint) {
+        droppedCount.incrementAndGet();
+        lock.lock();
+        try {
+            int before = (int) limit;
+            inFlight--;
+            decrease(getNoLoadRttNanos(endpoint));
+            signal(before);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back the permit of a call that failed without telling anything
+     * about the load of the server, e.g. the connection was refused.
+     */
+    public void onIgnored() {
+        lock.lock();
+        try {
+            inFlight--;
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // cuts the limit once per round trip, since the calls that were in
+    // flight before the last cut would see the same overload
+    private void decrease(long rttNanos) {
+        long now = System.nanoTime();
+        if (now - lastDecreaseNanos < rttNanos) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+    }
+
+    private long getNoLoadRttNanos(String endpoint) {
+        Long rtt = noLoadRttNanos.get(endpoint);
+        return rtt != null ? rtt : 0;
+    }
+
+    private void signal(int before) {
+        int after = (int) limit;
+        if (after != before && LOG.isLoggable(Level.FINE)) {
+            LOG.fine(String.format("Concurrency limit of %s calls: %d -> %d",
+                    name, before, after));
+        }
+        if (after > before) {
+            released.signalAll();
+        } else {
+            released.signal();
+        }
+    }
+
+    /**
+     * Returns the current limit.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of calls that wait for a permit.
+     */
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return queueLength;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the lowest no-load round trip time of the endpoints in millis,
+     * or 0 if no call was answered yet.
+     */
+    public double getNoLoadRttMillis() {
+        lock.lock();
+        try {
+            long lowest = 0;
+            for (long rtt : noLoadRttNanos.values()) {
+                if (lowest == 0 || rtt < lowest) {
+                    lowest = rtt;
+                }
+            }
+            return lowest / 1e6;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the no-load round trip time of an endpoint in millis, or 0 if
+     * no call to it was answered yet.
+     */
+    public double getNoLoadRttMillis(String endpoint) {
+        lock.lock();
+        try {
+            return getNoLoadRttNanos(endpoint) / 1e6;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
@@ -17,14 +17,28 @@
 //
 package com.treasure_data.client;
 
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.treasure_data.auth.TreasureDataCredentials;
 
 public class Config implements Constants {
 
+    private static final String HTTP2_TRANSPORT_CLASS =
+            "com.treasure_data.client.http2.Http2Transport";
+
     private TreasureDataCredentials credentials;
     private Properties props;
+    private HttpConnectionPool pool;
+    private HttpTransport transport;
+    private MetadataCache metadataCache;
+    private boolean closed = false;
+    // "database.table" of tables that are known to exist
+    private final Set<String> knownTables = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
 
     public Config() {
         this(System.getProperties());
@@ -45,4 +59,106 @@ public class Config implements Constants {
     public Properties getProperties() {
         return props;
     }
+
+    public synchronized HttpConnectionPool getConnectionPool() {
+        if (pool == null) {
+            pool = new HttpConnectionPool(props);
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the transport of td.client.transport, which the client adaptors
+     * send API calls through. It is wrapped by a {@link LimitedHttpTransport}
+     * if td.client.limiter.enabled is true.
+     */
+    public synchronized HttpTransport getTransport() {
+        if (closed) {
+            throw new IllegalStateException("config is closed");
+        }
+        if (transport == null) {
+            transport = createTransport();
+            if (Boolean.parseBoolean(props.getProperty(TD_CLIENT_LIMITER_ENABLED,
+                    TD_CLIENT_LIMITER_ENABLED_DEFAULTVALUE))) {
+                transport = new LimitedHttpTransport(transport, props);
+            }
+        }
+        return transport;
+    }
+
+    private HttpTransport createTransport() {
+        String name = props.getProperty(TD_CLIENT_TRANSPORT, TD_CLIENT_TRANSPORT_DEFAULTVALUE);
+        try {
+            if (name.equals("default")) {
+                return new DefaultHttpTransport(this);
+            } else if (name.equals("nio")) {
+                return new NioHttpTransport(this);
+            } else if (name.equals("http2")) {
+                // in td-client-http2, which needs Java 11
+                name = HTTP2_TRANSPORT_CLASS;
+            }
+            Class<?> c = Class.forName(name);
+            return (HttpTransport) c.getConstructor(Config.class).newInstance(this);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Cannot create transport " + name
+                    + " of td.client.transport: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Closes the transport and the connection pool, i.e. the sockets and
+     * threads that the clients of this config send API calls through. The
+     * clients cannot call APIs afterwards.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (transport != null) {
+            transport.close();
+        }
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    public synchronized MetadataCache getMetadataCache() {
+        if (metadataCache == null) {
+            metadataCache = new MetadataCache(props);
+        }
+        return metadataCache;
+    }
+
+    public boolean isAutoCreateTable() {
+        return Boolean.parseBoolean(props.getProperty(
+                Config.TD_AUTO_CREATE_TABLE, Config.TD_AUTO_CREATE_TABLE_DEFAULTVALUE));
+    }
+
+    /**
+     * Returns true if the table is known to exist, because data was imported
+     * into it or it was created through a client of this config.
+     */
+    public boolean isKnownTable(String databaseName, String tableName) {
+        return knownTables.contains(toTableKey(databaseName, tableName));
+    }
+
+    public void addKnownTable(String databaseName, String tableName) {
+        knownTables.add(toTableKey(databaseName, tableName));
+    }
+
+    public void removeKnownTable(String databaseName, String tableName) {
+        knownTables.remove(toTableKey(databaseName, tableName));
+    }
+
+    public void removeKnownTables(String databaseName) {
+        String prefix = databaseName + ".";
+        Iterator<String> iter = knownTables.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().startsWith(prefix)) {
+                iter.remove();
+            }
+        }
+    }
+
+    private static String toTableKey(String databaseName, String tableName) {
+        return databaseName + "." + tableName;
+    }
 }
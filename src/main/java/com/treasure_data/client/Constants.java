@@ -44,4 +44,58 @@ public interface Constants {
 
     String TD_CLIENT_POSTMETHOD_READ_TIMEOUT = "td.client.postmethod.read.timeout";
     String TD_CLIENT_POSTMETHOD_READ_TIMEOUT_DEFAULTVALUE = "" + 600 * 1000; // millis
+
+    String TD_CLIENT_PUTMETHOD_BUFFER_SIZE = "td.client.putmethod.buffer.size";
+    String TD_CLIENT_PUTMETHOD_BUFFER_SIZE_DEFAULTVALUE = "" + 64 * 1024; // bytes
+
+    String TD_CLIENT_CONNECTION_POOL_MAX_IDLE_PER_HOST = "td.client.connection.pool.maxidleperhost";
+    String TD_CLIENT_CONNECTION_POOL_MAX_IDLE_PER_HOST_DEFAULTVALUE = "5"; // 0 disables keep-alive
+
+    String TD_CLIENT_CONNECTION_POOL_IDLE_TIMEOUT = "td.client.connection.pool.idletimeout";
+    String TD_CLIENT_CONNECTION_POOL_IDLE_TIMEOUT_DEFAULTVALUE = "" + 30 * 1000; // millis
+
+    String TD_CLIENT_CONNECTION_DRAIN_LIMIT = "td.client.connection.drain.limit";
+    String TD_CLIENT_CONNECTION_DRAIN_LIMIT_DEFAULTVALUE = "" + 256 * 1024; // bytes
+
+    String TD_CLIENT_TRANSPORT = "td.client.transport";
+    String TD_CLIENT_TRANSPORT_DEFAULTVALUE = "default"; // "default", "nio", "http2" or a class name
+
+    String TD_CLIENT_TRANSPORT_NIO_THREADS = "td.client.transport.nio.threads";
+    String TD_CLIENT_TRANSPORT_NIO_THREADS_DEFAULTVALUE = "1";
+
+    String TD_CLIENT_TRANSPORT_NIO_MAX_CONNECTIONS_PER_HOST = "td.client.transport.nio.maxconnectionsperhost";
+    String TD_CLIENT_TRANSPORT_NIO_MAX_CONNECTIONS_PER_HOST_DEFAULTVALUE = "64"; // per I/O thread
+
+    String TD_CLIENT_LIMITER_ENABLED = "td.client.limiter.enabled";
+    String TD_CLIENT_LIMITER_ENABLED_DEFAULTVALUE = "false";
+
+    String TD_CLIENT_LIMITER_INITIAL = "td.client.limiter.initial";
+    String TD_CLIENT_LIMITER_INITIAL_DEFAULTVALUE = "20"; // calls in flight
+
+    String TD_CLIENT_LIMITER_MIN = "td.client.limiter.min";
+    String TD_CLIENT_LIMITER_MIN_DEFAULTVALUE = "1";
+
+    String TD_CLIENT_LIMITER_MAX = "td.client.limiter.max";
+    String TD_CLIENT_LIMITER_MAX_DEFAULTVALUE = "200";
+
+    String TD_CLIENT_LIMITER_RTT_TOLERANCE = "td.client.limiter.rtt.tolerance";
+    String TD_CLIENT_LIMITER_RTT_TOLERANCE_DEFAULTVALUE = "2.0"; // ratio to the no-load RTT
+
+    String TD_CLIENT_LIMITER_QUEUE_MAX = "td.client.limiter.queue.max";
+    String TD_CLIENT_LIMITER_QUEUE_MAX_DEFAULTVALUE = "1000"; // 0 rejects calls at once
+
+    String TD_CLIENT_LIMITER_QUEUE_TIMEOUT = "td.client.limiter.queue.timeout";
+    String TD_CLIENT_LIMITER_QUEUE_TIMEOUT_DEFAULTVALUE = "" + 60 * 1000; // millis
+
+    String TD_CLIENT_EXECUTOR = "td.client.executor";
+    String TD_CLIENT_EXECUTOR_DEFAULTVALUE = "platform"; // "platform" or "virtual"
+
+    String TD_CLIENT_EXECUTOR_THREADS = "td.client.executor.threads";
+    String TD_CLIENT_EXECUTOR_THREADS_DEFAULTVALUE = "16"; // of "platform"
+
+    String TD_CLIENT_METADATA_CACHE_TTL = "td.client.metadata.cache.ttl";
+    String TD_CLIENT_METADATA_CACHE_TTL_DEFAULTVALUE = "0"; // millis; 0 disables the cache
+
+    String TD_CLIENT_METADATA_CACHE_MAX_ENTRIES = "td.client.metadata.cache.maxentries";
+    String TD_CLIENT_METADATA_CACHE_MAX_ENTRIES_DEFAULTVALUE = "1000";
 }
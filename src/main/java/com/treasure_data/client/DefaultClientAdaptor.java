@@ -44,6 +44,8 @@ import com.treasure_data.model.ListTablesRequest;
 import com.treasure_data.model.ListTablesResult;
 import com.treasure_data.model.GetJobResultRequest;
 import com.treasure_data.model.GetJobResultResult;
+import com.treasure_data.model.GetJobStatusRequest;
+import com.treasure_data.model.GetJobStatusResult;
 import com.treasure_data.model.GetServerStatusRequest;
 import com.treasure_data.model.GetServerStatusResult;
 import com.treasure_data.model.RenameTableRequest;
@@ -106,5 +108,7 @@ public interface DefaultClientAdaptor {
 
     ShowJobResult showJob(ShowJobRequest request) throws ClientException;
 
+    GetJobStatusResult getJobStatus(GetJobStatusRequest request) throws ClientException;
+
     GetJobResultResult getJobResult(GetJobResultRequest request) throws ClientException;
 }
@@ -19,9 +19,7 @@ package com.treasure_data.client;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -65,6 +63,8 @@ import com.treasure_data.model.ListTablesRequest;
 import com.treasure_data.model.ListTablesResult;
 import com.treasure_data.model.GetJobResultRequest;
 import com.treasure_data.model.GetJobResultResult;
+import com.treasure_data.model.GetJobStatusRequest;
+import com.treasure_data.model.GetJobStatusResult;
 import com.treasure_data.model.RenameTableRequest;
 import com.treasure_data.model.RenameTableResult;
 import com.treasure_data.model.ServerStatus;
@@ -100,6 +100,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         String message = null;
         int code = 0;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -120,7 +121,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Authentication failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Authentication failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -157,6 +159,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -175,7 +178,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Server is down", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Server is down",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -206,9 +210,10 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         request.setCredentials(getConfig().getCredentials());
         validator.validateCredentials(this, request);
 
-        String jsonData = null;
+        List<DatabaseSummary> databases = null;
         String message = null;
         int code = 0;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -227,12 +232,22 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "List databases failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("List databases failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
-            // receive response body
-            jsonData = conn.getResponseBody();
-            validator.validateJSONData(jsonData);
+            // receive response body and parse JSON data
+            // {"databases":[{"name":"db0", "count":1, "created_at":..}, ..]}
+            databases = new ListResponseParser<DatabaseSummary>("databases") {
+                @Override
+                protected DatabaseSummary toElement(Map<String, Object> dbMap) {
+                    String name = (String) dbMap.get("name");
+                    long count = (Long) dbMap.get("count");
+                    String createdAt = (String) dbMap.get("created_at");
+                    String updatedAt = (String) dbMap.get("updated_at");
+                    return new DatabaseSummary(name, count, createdAt, updatedAt);
+                }
+            }.parse(conn.getResponseReader());
         } catch (IOException e) {
             LOG.throwing(getClass().getName(), "listDatabases", e);
             LOG.severe(HttpClientException.toMessage(e.getMessage(), message, code));
@@ -243,24 +258,6 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
             }
         }
 
-        // parse JSON data
-        @SuppressWarnings("rawtypes")
-        Map map = (Map) JSONValue.parse(jsonData);
-        validator.validateJavaObject(jsonData, map);
-
-        @SuppressWarnings("unchecked")
-        Iterator<Map<String, Object>> dbMaps =
-            ((List<Map<String, Object>>) map.get("databases")).iterator();
-        List<DatabaseSummary> databases = new ArrayList<DatabaseSummary>();
-        while (dbMaps.hasNext()) {
-            Map<String, Object> dbMap = dbMaps.next();
-            String name = (String) dbMap.get("name");
-            long count = (Long) dbMap.get("count");
-            String createdAt = (String) dbMap.get("created_at");
-            String updatedAt = (String) dbMap.get("updated_at");
-            databases.add(new DatabaseSummary(name, count, createdAt, updatedAt));
-        }
-
         return new ListDatabasesResult(new ListDatabases<DatabaseSummary>(databases));
     }
 
@@ -274,6 +271,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -293,7 +291,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Create database failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Create database failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -327,6 +326,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -346,7 +346,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Delete database failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Delete database failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -381,9 +382,10 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         request.setCredentials(getConfig().getCredentials());
         validator.validateCredentials(this, request);
 
-        String jsonData = null;
+        List<TableSummary> tableList = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -403,12 +405,25 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "List tables failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("List tables failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
-            // receive response body
-            jsonData = conn.getResponseBody();
-            validator.validateJSONData(jsonData);
+            // receive response body and parse JSON data
+            final Database database = request.getDatabase();
+            tableList = new ListResponseParser<TableSummary>("tables") {
+                @Override
+                protected TableSummary toElement(Map<String, Object> tableMap) {
+                    String name = (String) tableMap.get("name");
+                    String typeName = (String) tableMap.get("type");
+                    Long count = (Long) tableMap.get("count");
+                    String schema = (String) tableMap.get("schema");
+                    String createdAt = (String) tableMap.get("created_at");
+                    String updatedAt = (String) tableMap.get("updated_at");
+                    return new TableSummary(database, name, Table.toType(typeName),
+                            count, schema, createdAt, updatedAt);
+                }
+            }.parse(conn.getResponseReader());
         } catch (IOException e) {
             LOG.throwing(getClass().getName(), "listTables", e);
             LOG.severe(HttpClientException.toMessage(e.getMessage(), message, code));
@@ -419,26 +434,6 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
             }
         }
 
-        @SuppressWarnings("rawtypes")
-        Map map = (Map) JSONValue.parse(jsonData);
-        validator.validateJavaObject(jsonData, map);
-        @SuppressWarnings("unchecked")
-        Iterator<Map<String, Object>> tableMapIter =
-            ((List<Map<String, Object>>) map.get("tables")).iterator();
-        List<TableSummary> tableList = new ArrayList<TableSummary>();
-        while (tableMapIter.hasNext()) {
-            Map<String, Object> tableMap = tableMapIter.next();
-            String name = (String) tableMap.get("name");
-            String typeName = (String) tableMap.get("type");
-            Long count = (Long) tableMap.get("count");
-            String schema = (String) tableMap.get("schema");
-            String createdAt = (String) tableMap.get("created_at");
-            String updatedAt = (String) tableMap.get("updated_at");
-            TableSummary tbl = new TableSummary(request.getDatabase(), name, Table.toType(typeName),
-                    count, schema, createdAt, updatedAt);
-            tableList.add(tbl);
-        }
-
         ListTables<TableSummary> tables = new ListTables<TableSummary>(tableList);
         return new ListTablesResult(request.getDatabase(), tables);
     }
@@ -453,6 +448,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -474,7 +470,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Create table failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Create table failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -510,6 +507,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -532,7 +530,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Rename table failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Rename table failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -566,6 +565,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -587,7 +587,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Swap table failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Swap table failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -621,6 +622,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -641,7 +643,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Delete table failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Delete table failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -675,6 +678,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -697,7 +701,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Delete partial table failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Delete partial table failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -725,21 +730,44 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
 
     @Override
     public ImportResult importData(ImportRequest request) throws ClientException {
+        return readImportData(request, sendImportData(request));
+    }
+
+    /**
+     * Sends the request of importData and returns the connection to read its
+     * response from by {@link #readImportData(ImportRequest, HttpConnection)}.
+     * Through a {@link NonBlockingHttpConnection}, it returns before the
+     * response arrives.
+     */
+    HttpConnection sendImportData(ImportRequest request) throws ClientException {
         request.setCredentials(getConfig().getCredentials());
         validator.validateCredentials(this, request);
 
-        String jsonData = null;
-        int code = 0;
-        String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
-            // send request
             String path = String.format(HttpURL.V3_TABLE_IMPORT,
                     HttpConnectionImpl.e(request.getTable().getDatabase().getName()),
                     HttpConnectionImpl.e(request.getTable().getName()));
             conn.doPutRequest(request, path, request.getBytes());
+            return conn;
+        } catch (IOException e) {
+            LOG.throwing(getClass().getName(), "importData", e);
+            LOG.severe(HttpClientException.toMessage(e.getMessage(), null, 0));
+            if (conn != null) {
+                conn.disconnect();
+            }
+            throw new HttpClientException("Import data failed", null, 0, e);
+        }
+    }
 
+    ImportResult readImportData(ImportRequest request, HttpConnection conn)
+            throws ClientException {
+        String jsonData = null;
+        int code = 0;
+        String message = null;
+        try {
             // receive response code
             code = conn.getResponseCode();
             message = conn.getResponseMessage();
@@ -749,7 +777,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Import data failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Import data failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -760,9 +789,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
             LOG.severe(HttpClientException.toMessage(e.getMessage(), message, code));
             throw new HttpClientException("Import data failed", message, code, e);
         } finally {
-            if (conn != null) {
-                conn.disconnect();
-            }
+            conn.disconnect();
         }
 
         // parse JSON data
@@ -783,6 +810,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -833,7 +861,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Export failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Export failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -868,6 +897,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -900,7 +930,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Submit job failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Submit job failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -932,9 +963,10 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         request.setCredentials(getConfig().getCredentials());
         validator.validateCredentials(this, request);
 
-        String jsonData = null;
+        ListResponseParser<JobSummary> parser = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -965,12 +997,26 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "List jobs failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("List jobs failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
-            // receive response body
-            jsonData = conn.getResponseBody();
-            validator.validateJSONData(jsonData);
+            // receive response body and parse JSON data
+            parser = new ListResponseParser<JobSummary>("jobs") {
+                @Override
+                protected JobSummary toElement(Map<String, Object> jobMap) {
+                    Job.Type type = Job.toType((String) jobMap.get("type"));
+                    String jobID = getJobID(jobMap);
+                    JobSummary.Status status = JobSummary.toStatus((String) jobMap.get("status"));
+                    String startAt = (String) jobMap.get("start_at");
+                    String endAt = (String) jobMap.get("end_at");
+                    String query = (String) jobMap.get("query");
+                    String result = (String) jobMap.get("result");
+                    return new JobSummary(jobID, type, null, null, result,
+                            status, startAt, endAt, query, null);
+                }
+            };
+            parser.parse(conn.getResponseReader());
         } catch (IOException e) {
             LOG.throwing(getClass().getName(), "listJobs", e);
             LOG.severe(HttpClientException.toMessage(e.getMessage(), message, code));
@@ -981,30 +1027,10 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
             }
         }
 
-        @SuppressWarnings("rawtypes")
-        Map map = (Map) JSONValue.parse(jsonData);
-        validator.validateJavaObject(jsonData, map);
-
-        long count = (Long) map.get("count");
-        long from = (Long) map.get("from");
-        long to = (Long) map.get("to");
-        @SuppressWarnings("unchecked")
-        Iterator<Map<String, Object>> jobMapIter =
-            ((List<Map<String, Object>>) map.get("jobs")).iterator();
-        List<JobSummary> jobs = new ArrayList<JobSummary>();
-        while (jobMapIter.hasNext()) {
-            Map<String, Object> jobMap = jobMapIter.next();
-            Job.Type type = Job.toType((String) jobMap.get("type"));
-            String jobID = getJobID(jobMap);
-            JobSummary.Status status = JobSummary.toStatus((String) jobMap.get("status"));
-            String startAt = (String) jobMap.get("start_at");
-            String endAt = (String) jobMap.get("end_at");
-            String query = (String) jobMap.get("query");
-            String result = (String) jobMap.get("result");
-            JobSummary job = new JobSummary(jobID, type, null, null, result,
-                    status, startAt, endAt, query, null);
-            jobs.add(job);
-        }
+        long count = toLong(parser.getField("count"));
+        long from = toLong(parser.getField("from"));
+        long to = toLong(parser.getField("to"));
+        List<JobSummary> jobs = parser.getElements();
 
         return new ListJobsResult(new ListJobs<JobSummary>(count, from, to, jobs));
     }
@@ -1017,6 +1043,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -1036,7 +1063,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Kill job failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Kill job failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -1071,6 +1099,7 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -1090,7 +1119,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Show jobs failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Show jobs failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -1132,6 +1162,86 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         return new ShowJobResult(job);
     }
 
+    @Override
+    public GetJobStatusResult getJobStatus(GetJobStatusRequest request)
+            throws ClientException {
+        return readJobStatus(request, sendJobStatus(request));
+    }
+
+    /**
+     * Sends the request of getJobStatus and returns the connection to read
+     * its response from by
+     * {@link #readJobStatus(GetJobStatusRequest, HttpConnection)}. Through a
+     * {@link NonBlockingHttpConnection}, it returns before the response
+     * arrives.
+     */
+    HttpConnection sendJobStatus(GetJobStatusRequest request) throws ClientException {
+        request.setCredentials(getConfig().getCredentials());
+        validator.validateCredentials(this, request);
+
+        HttpConnection conn = null;
+        try {
+            conn = createConnection();
+
+            String path = String.format(HttpURL.V3_JOB_STATUS,
+                    HttpConnectionImpl.e(request.getJob().getJobID()));
+            Map<String, String> header = null;
+            Map<String, String> params = null;
+            conn.doGetRequest(request, path, header, params);
+            return conn;
+        } catch (IOException e) {
+            LOG.throwing(getClass().getName(), "getJobStatus", e);
+            LOG.severe(HttpClientException.toMessage(e.getMessage(), null, 0));
+            if (conn != null) {
+                conn.disconnect();
+            }
+            throw new HttpClientException("Get job status failed", null, 0, e);
+        }
+    }
+
+    GetJobStatusResult readJobStatus(GetJobStatusRequest request, HttpConnection conn)
+            throws ClientException {
+        String jsonData = null;
+        int code = 0;
+        String message = null;
+        try {
+            // receive response code
+            code = conn.getResponseCode();
+            message = conn.getResponseMessage();
+            if (code != HttpURLConnection.HTTP_OK) {
+                String errMessage = conn.getErrorMessage();
+                LOG.severe(HttpClientException.toMessage(
+                        "Get job status failed", message, code));
+                LOG.severe(errMessage);
+                throw new HttpClientException("Get job status failed",
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
+            }
+
+            // receive response body
+            jsonData = conn.getResponseBody();
+            validator.validateJSONData(jsonData);
+        } catch (IOException e) {
+            LOG.throwing(getClass().getName(), "getJobStatus", e);
+            LOG.severe(HttpClientException.toMessage(e.getMessage(), message, code));
+            throw new HttpClientException("Get job status failed", message, code, e);
+        } finally {
+            conn.disconnect();
+        }
+
+        // parse JSON data
+        // {"job_id":"12345", "status":"running", "created_at":"..",
+        //  "start_at":"..", "end_at":null}
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = (Map<String, Object>) JSONValue.parse(jsonData);
+        validator.validateJavaObject(jsonData, map);
+
+        JobSummary.Status status = JobSummary.toStatus((String) map.get("status"));
+        String startAt = (String) map.get("start_at");
+        String endAt = (String) map.get("end_at");
+        return new GetJobStatusResult(request.getJob(), status, startAt, endAt);
+    }
+
     @Override
     public GetJobResultResult getJobResult(GetJobResultRequest request)
             throws ClientException {
@@ -1141,6 +1251,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         Unpacker unpacker = null;
         int code = 0;
         String message = null;
+        boolean streaming = false;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -1167,7 +1279,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                         "Get job result failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Get job result failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             request.getJobResult().setResultSize((long) conn.getContentLength());
@@ -1177,14 +1290,16 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
                 unpacker = conn.getResponseBodyBinaryWithGZip();
                 request.getJobResult().setResult(unpacker);
             } else {
+                // the connection is released when the result stream is closed
                 ((JobResult2) request.getJobResult()).setResultInputStream(conn.getInputStream());
+                streaming = true;
             }
         } catch (IOException e) {
             LOG.throwing(getClass().getName(), "getJobResult", e);
             LOG.severe(HttpClientException.toMessage(e.getMessage(), message, code));
             throw new HttpClientException("Get job result failed", message, code, e);
         } finally {
-            if (conn != null && !(request.getJobResult() instanceof JobResult2)) {
+            if (conn != null && !streaming) {
                 conn.disconnect();
             }
         }
@@ -1192,6 +1307,14 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
         return new GetJobResultResult(request.getJobResult());
     }
 
+    private static long toLong(Object v) throws ClientException {
+        if (!(v instanceof Number)) {
+            throw new ClientException(String.format(
+                    "Server error (invalid JSON Data): %s is not a number", v));
+        }
+        return ((Number) v).longValue();
+    }
+
     private static String getJobID(Map<String, Object> map) {
         Object job_id = map.get("job_id");
         if (job_id instanceof Number) {
@@ -1236,6 +1359,8 @@ public class DefaultClientAdaptorImpl extends AbstractClientAdaptor implements
 
         String V3_JOB_SHOW = "/v3/job/show/%s";
 
+        String V3_JOB_STATUS = "/v3/job/status/%s";
+
         String V3_JOB_RESULT = "/v3/job/result/%s";
     }
 }
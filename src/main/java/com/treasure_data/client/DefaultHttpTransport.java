@@ -0,0 +1,51 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.util.Properties;
+
+/**
+ * Transport of blocking sockets: each API call is sent by an
+ * {@link HttpConnectionImpl} on the calling thread, through the keep-alive
+ * {@link HttpConnectionPool} of the config.
+ */
+public class DefaultHttpTransport implements HttpTransport {
+    private Properties props;
+    private HttpConnectionPool pool;
+
+    public DefaultHttpTransport(Config conf) {
+        this(conf.getProperties(), conf.getConnectionPool());
+    }
+
+    public DefaultHttpTransport(Properties props, HttpConnectionPool pool) {
+        this.props = props;
+        this.pool = pool;
+    }
+
+    public HttpConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    public HttpConnection createConnection() {
+        return new HttpConnectionImpl(props, pool);
+    }
+
+    public void close() {
+        pool.close();
+    }
+}
@@ -0,0 +1,236 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response body of a pooled HTTP/1.1 connection. It decodes Content-Length and
+ * chunked framing, and hands the connection back to the pool once the body
+ * has been read to the end. If the body is closed early, the rest is drained
+ * up to the drain limit so that the connection can still be reused.
+ */
+class HttpBodyInputStream extends InputStream {
+
+    static interface Listener {
+        void onEndOfBody(boolean reusable);
+    }
+
+    private static final long UNKNOWN = -1;
+
+    private final InputStream in;
+    private final boolean chunked;
+    private final boolean keepAlive;
+    private final long drainLimit;
+    private final Listener listener;
+
+    // bytes left in the whole body (Content-Length) or in the current chunk
+    private long remaining;
+    private boolean eof = false;
+    private boolean closed = false;
+
+    static HttpBodyInputStream empty(InputStream in, boolean keepAlive, Listener listener) {
+        return new HttpBodyInputStream(in, false, 0, keepAlive, 0, listener);
+    }
+
+    static HttpBodyInputStream fixed(InputStream in, long length, boolean keepAlive,
+            long drainLimit, Listener listener) {
+        return new HttpBodyInputStream(in, false, length, keepAlive, drainLimit, listener);
+    }
+
+    static HttpBodyInputStream chunked(InputStream in, boolean keepAlive,
+            long drainLimit, Listener listener) {
+        return new HttpBodyInputStream(in, true, 0, keepAlive, drainLimit, listener);
+    }
+
+    static HttpBodyInputStream untilClose(InputStream in, Listener listener) {
+        return new HttpBodyInputStream(in, false, UNKNOWN, false, 0, listener);
+    }
+
+    private HttpBodyInputStream(InputStream in, boolean chunked, long length,
+            boolean keepAlive, long drainLimit, Listener listener) {
+        this.in = in;
+        this.chunked = chunked;
+        this.remaining = length;
+        this.keepAlive = keepAlive;
+        this.drainLimit = drainLimit;
+        this.listener = listener;
+        if (!chunked && length == 0) {
+            finish(true);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int len = read(b, 0, 1);
+        return len == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+        if (eof) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        if (chunked && remaining == 0) {
+            remaining = readChunkSize();
+            if (remaining == 0) {
+                readTrailer();
+                finish(true);
+                return -1;
+            }
+        }
+
+        int n;
+        if (remaining == UNKNOWN) {
+            n = in.read(b, off, len);
+            if (n == -1) {
+                finish(false);
+                return -1;
+            }
+            return n;
+        }
+
+        n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n == -1) {
+            finish(false);
+            throw new EOFException("premature end of response body");
+        }
+        remaining -= n;
+
+        if (remaining == 0) {
+            if (chunked) {
+                readLine(); // CRLF after chunk data
+            } else {
+                finish(true);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (closed || eof) {
+            return 0;
+        }
+        int n = in.available();
+        return remaining == UNKNOWN ? n : (int) Math.min(n, remaining);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        if (!eof) {
+            // drain the rest so that the connection can be reused
+            if (keepAlive && (chunked || remaining <= drainLimit)) {
+                try {
+                    skipRest();
+                } catch (IOException e) {
+                    finish(false);
+                }
+            } else {
+                finish(false);
+            }
+        }
+        closed = true;
+    }
+
+    private void skipRest() throws IOException {
+        byte[] buf = new byte[8192];
+        long skipped = 0;
+        while (!eof) {
+            int n = read(buf, 0, buf.length);
+            if (n == -1) {
+                break;
+            }
+            skipped += n;
+            if (skipped > drainLimit) {
+                finish(false);
+                break;
+            }
+        }
+    }
+
+    private void finish(boolean reusable) {
+        if (eof) {
+            return;
+        }
+        eof = true;
+        listener.onEndOfBody(reusable && keepAlive);
+    }
+
+    private long readChunkSize() throws IOException {
+        String line = readLine();
+        int i = line.indexOf(';'); // chunk extensions
+        if (i >= 0) {
+            line = line.substring(0, i);
+        }
+        try {
+            return Long.parseLong(line.trim(), 16);
+        } catch (NumberFormatException e) {
+            finish(false);
+            throw new IOException("invalid chunk size: " + line);
+        }
+    }
+
+    private void readTrailer() throws IOException {
+        while (readLine().length() > 0) {
+            // ignore trailer headers
+        }
+    }
+
+    private String readLine() throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            finish(false);
+            throw new EOFException("premature end of chunked response body");
+        }
+        return line;
+    }
+
+    /**
+     * Reads a CRLF (or LF) terminated line of ISO-8859-1 text. Returns null
+     * if the stream ends before any character is read.
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder sbuf = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                return sbuf.length() == 0 ? null : sbuf.toString();
+            } else if (b == '\n') {
+                break;
+            } else if (b != '\r') {
+                sbuf.append((char) b);
+            }
+        }
+        return sbuf.toString();
+    }
+}
@@ -1,5 +1,9 @@
 package com.treasure_data.client;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
 @SuppressWarnings("serial")
 public class HttpClientException extends ClientException {
     public static String toMessage(String reason, String message, int code) {
@@ -8,6 +12,7 @@ public class HttpClientException extends ClientException {
 
     private String responseMessage;
     private int responseCode;
+    private long retryAfterMillis = -1;
 
     public HttpClientException(String reason, String message, int code) {
         super(toMessage(reason, message, code));
@@ -15,6 +20,16 @@ public class HttpClientException extends ClientException {
         responseCode = code;
     }
 
+    /**
+     * @param retryAfter value of the Retry-After response header, either
+     * delay-seconds or an HTTP-date; may be null
+     */
+    public HttpClientException(String reason, String message, int code,
+            String retryAfter) {
+        this(reason, message, code);
+        retryAfterMillis = parseRetryAfter(retryAfter);
+    }
+
     public HttpClientException(String reason, String message, int code,
             Throwable cause) {
         super(toMessage(reason, message, code), cause);
@@ -34,4 +49,31 @@ public class HttpClientException extends ClientException {
         return responseCode;
     }
 
-}
\ No newline at end of file
+    /**
+     * Returns how long the server asked the client to wait before retrying,
+     * or -1 if the response had no (valid) Retry-After header.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+        retryAfter = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(retryAfter) * 1000);
+        } catch (NumberFormatException e) {
+            // HTTP-date
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat(
+                    "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
+            long at = format.parse(retryAfter).getTime();
+            return Math.max(0, at - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Map;
+
+import org.msgpack.unpacker.Unpacker;
+
+import com.treasure_data.model.Request;
+
+/**
+ * One HTTP exchange with the API server: the client adaptors send a request
+ * and read its response through this interface, whatever transport carries
+ * it. Connections are created by an {@link HttpTransport} for each API call
+ * and hold the state of one request at a time.
+ */
+public interface HttpConnection {
+
+    void doGetRequest(Request<?> request, String path, Map<String, String> header,
+            Map<String, String> params) throws IOException;
+
+    void doPostRequest(Request<?> request, String path, Map<String, String> header,
+            Map<String, String> params) throws IOException;
+
+    void doPutRequest(Request<?> request, String path, byte[] bytes) throws IOException;
+
+    /**
+     * Streams the body from the input stream. The body is sent with a fixed
+     * Content-Length, or with chunked transfer encoding if size is negative
+     * (unknown).
+     */
+    void doPutRequest(Request<?> request, String path, InputStream in, int size)
+            throws IOException;
+
+    int getResponseCode() throws IOException;
+
+    String getResponseMessage() throws IOException;
+
+    String getHeaderField(String name);
+
+    /**
+     * Returns the length of the response body, or -1 if it is unknown.
+     */
+    int getContentLength() throws IOException;
+
+    String getResponseBody() throws IOException;
+
+    /**
+     * Returns the response body as UTF-8 text for streaming parsers. The
+     * caller does not need to close it; {@link #disconnect()} does.
+     */
+    Reader getResponseReader() throws IOException;
+
+    /**
+     * Returns the body of an error response, or "" if there is none.
+     */
+    String getErrorMessage() throws IOException;
+
+    Unpacker getResponseBodyBinary() throws IOException;
+
+    Unpacker getResponseBodyBinaryWithGZip() throws IOException;
+
+    Unpacker getResponseBodyBinaryWithGZip2() throws IOException;
+
+    /**
+     * Returns the response body. Closing it finishes the response like
+     * {@link #disconnect()}.
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Finishes the current response. The rest of the response body is drained
+     * and the connection is reused when it can be.
+     */
+    void disconnect();
+}
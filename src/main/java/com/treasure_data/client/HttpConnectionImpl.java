@@ -17,318 +17,344 @@
 //
 package com.treasure_data.client;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.URLEncoder;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPInputStream;
-
-import org.msgpack.MessagePack;
-import org.msgpack.unpacker.BufferUnpacker;
-import org.msgpack.unpacker.Unpacker;
 
 import com.treasure_data.model.Request;
 
-public class HttpConnectionImpl {
+/**
+ * HTTP/1.1 connection to the API server. Sockets are borrowed from a
+ * {@link HttpConnectionPool} for each request and given back to it once the
+ * response body has been read to the end, so that successive API calls can
+ * reuse the same TCP connection.
+ *
+ * An object holds the state of one request at a time and is not thread-safe;
+ * create one per API call. The pool can be shared by any number of threads.
+ *
+ * Requests go through the HTTP proxy of the JVM's default ProxySelector
+ * (http.proxyHost, http.proxyPort and http.nonProxyHosts), as they did with
+ * HttpURLConnection; proxy authentication is not supported.
+ *
+ * @see DefaultHttpTransport
+ */
+public class HttpConnectionImpl extends AbstractHttpConnection {
     private static Logger LOG = Logger.getLogger(HttpConnectionImpl.class.getName());
 
-    private static final SimpleDateFormat RFC2822FORMAT =
-        new SimpleDateFormat( "E, dd MMM yyyy HH:mm:ss Z", Locale.ENGLISH );
+    private HttpConnectionPool pool;
 
-    private HttpURLConnection conn = null;
-    private Properties props;
+    private HttpConnectionPool.PooledConnection conn = null;
+    private String url;
+    private int responseCode = -1;
+    private String responseMessage;
+    private Map<String, String> responseHeaders;
+    private HttpBodyInputStream responseBody;
 
-    private int getReadTimeout;
-    private int putReadTimeout;
-    private int postReadTimeout;
+    private long drainLimit;
+    private int putBufferSize;
 
     public HttpConnectionImpl() {
         this(System.getProperties());
     }
 
     public HttpConnectionImpl(Properties props) {
-        getReadTimeout = Integer.parseInt(props.getProperty(
-                Config.TD_CLIENT_GETMETHOD_READ_TIMEOUT,
-                Config.TD_CLIENT_GETMETHOD_READ_TIMEOUT_DEFAULTVALUE));
-        putReadTimeout = Integer.parseInt(props.getProperty(
-                Config.TD_CLIENT_PUTMETHOD_READ_TIMEOUT,
-                Config.TD_CLIENT_PUTMETHOD_READ_TIMEOUT_DEFAULTVALUE));
-        postReadTimeout = Integer.parseInt(props.getProperty(
-                Config.TD_CLIENT_POSTMETHOD_READ_TIMEOUT,
-                Config.TD_CLIENT_POSTMETHOD_READ_TIMEOUT_DEFAULTVALUE));
+        this(props, new HttpConnectionPool(props));
     }
 
-    public void doGetRequest(Request<?> request, String path, Map<String, String> header,
-            Map<String, String> params) throws IOException {
-        StringBuilder sbuf = new StringBuilder();
-        sbuf.append("http://").append(getApiServerPath()).append(path);
-
-        // parameters
-        if (params != null && !params.isEmpty()) {
-            sbuf.append("?");
-            int paramSize = params.size();
-            Iterator<Map.Entry<String, String>> iter = params.entrySet().iterator();
-            for (int i = 0; i < paramSize; ++i) {
-                Map.Entry<String, String> e = iter.next();
-                sbuf.append(e.getKey()).append("=").append(e.getValue());
-                if (i + 1 != paramSize) {
-                    sbuf.append("&");
-                }
-            }
-        }
-
-        // create connection object with url
-        URL url = new URL(sbuf.toString());
-        conn = (HttpURLConnection) url.openConnection();
-        conn.setReadTimeout(getReadTimeout);
+    public HttpConnectionImpl(Properties props, HttpConnectionPool pool) {
+        super(props);
+        this.pool = pool;
+        drainLimit = Long.parseLong(props.getProperty(
+                Config.TD_CLIENT_CONNECTION_DRAIN_LIMIT,
+                Config.TD_CLIENT_CONNECTION_DRAIN_LIMIT_DEFAULTVALUE));
+        putBufferSize = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_PUTMETHOD_BUFFER_SIZE,
+                Config.TD_CLIENT_PUTMETHOD_BUFFER_SIZE_DEFAULTVALUE));
+    }
 
-        // header
-        conn.setRequestMethod("GET");
-        String apiKey = request.getCredentials().getAPIKey();
-        if (apiKey != null) {
-            conn.setRequestProperty("Authorization", "TD1 " + apiKey);
-        }
-        conn.setRequestProperty("Date", toRFC2822Format(new Date()));
-        if (header != null && !header.isEmpty()) {
-            for (Map.Entry<String, String> e : header.entrySet()) {
-                conn.setRequestProperty(e.getKey(), e.getValue());
-            }
-        }
+    public HttpConnectionPool getConnectionPool() {
+        return pool;
+    }
 
-        // do connection to server
-        conn.connect();
+    public void doGetRequest(Request<?> request, String path, Map<String, String> header,
+            Map<String, String> params) throws IOException {
+        sendRequest(request, "GET", appendParameters(path, params), header, null, null, 0,
+                getReadTimeout);
     }
 
     public void doPostRequest(Request<?> request, String path, Map<String, String> header,
             Map<String, String> params) throws IOException {
-        StringBuilder sbuf = new StringBuilder();
-        sbuf.append("http://").append(getApiServerPath()).append(path);
-
-        // parameters
-        if (params != null && !params.isEmpty()) {
-            sbuf.append("?");
-            int paramSize = params.size();
-            Iterator<Map.Entry<String, String>> iter = params.entrySet().iterator();
-            for (int i = 0; i < paramSize; ++i) {
-                Map.Entry<String, String> e = iter.next();
-                sbuf.append(e.getKey()).append("=").append(e.getValue());
-                if (i + 1 != paramSize) {
-                    sbuf.append("&");
-                }
-            }
-            URL url = new URL(sbuf.toString());
-            conn = (HttpURLConnection) url.openConnection();
-        } else {
-            URL url = new URL(sbuf.toString());
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestProperty("Content-Length", "0");
-        }
-        conn.setReadTimeout(postReadTimeout);
-
-        // header
-        conn.setRequestMethod("POST");
-        String apiKey = request.getCredentials().getAPIKey();
-        if (apiKey != null) {
-            conn.setRequestProperty("Authorization", "TD1 " + apiKey);
-        }
-        conn.setRequestProperty("Date", toRFC2822Format(new Date()));
-        if (header != null && !header.isEmpty()) {
-            for (Map.Entry<String, String> e : header.entrySet()) {
-                conn.setRequestProperty(e.getKey(), e.getValue());
-            }
-        }
-
+        String pathAndQuery = appendParameters(path, params);
         if (LOG.isLoggable(Level.FINE)) {
-            LOG.fine(sbuf.toString());
+            LOG.fine(pathAndQuery);
         }
-        conn.connect();
+        sendRequest(request, "POST", pathAndQuery, header, null, null, 0, postReadTimeout);
     }
 
     public void doPutRequest(Request<?> request, String path, byte[] bytes)
             throws IOException {
-        StringBuilder sbuf = new StringBuilder();
-        sbuf.append("http://").append(getApiServerPath()).append(path);
-
-        URL url = new URL(sbuf.toString());
-        conn = (HttpURLConnection) url.openConnection();
-        conn.setReadTimeout(putReadTimeout);
-
-        conn.setRequestMethod("PUT");
-        //conn.setRequestProperty("Content-Type", "application/octet-stream");
-        conn.setRequestProperty("Content-Length", "" + bytes.length);
-
-        String apiKey = request.getCredentials().getAPIKey();
-        if (apiKey != null) {
-            conn.setRequestProperty("Authorization", "TD1 " + apiKey);
-        }
-        conn.setRequestProperty("Date", toRFC2822Format(new Date()));
-        conn.setDoOutput(true);
-        conn.setUseCaches (false);
-        //conn.connect();
-
-        // body
-        BufferedOutputStream out = new BufferedOutputStream(conn.getOutputStream());
-        out.write(bytes);
-        out.flush();
-        //out.close();
+        sendRequest(request, "PUT", path, null, bytes, null, bytes.length, putReadTimeout);
     }
 
+    /**
+     * Streams the body from the input stream through a buffer of
+     * td.client.putmethod.buffer.size bytes. The body is sent with a fixed
+     * Content-Length, or with chunked transfer encoding if size is negative
+     * (unknown).
+     */
     public void doPutRequest(Request<?> request, String path,
             InputStream in, int size) throws IOException {
-        StringBuilder sbuf = new StringBuilder();
-        sbuf.append("http://").append(getApiServerPath()).append(path);
-
-        URL url = new URL(sbuf.toString());
-        conn = (HttpURLConnection) url.openConnection();
-        conn.setReadTimeout(putReadTimeout);
-        conn.setRequestMethod("PUT");
-        // conn.setRequestProperty("Content-Type", "application/octet-stream");
-        conn.setRequestProperty("Content-Length", "" + size);
-
-        String apiKey = request.getCredentials().getAPIKey();
-        if (apiKey != null) {
-            conn.setRequestProperty("Authorization", "TD1 " + apiKey);
+        sendRequest(request, "PUT", path, null, null, in, size, putReadTimeout);
+    }
+
+    private void sendRequest(Request<?> request, String method, String path,
+            Map<String, String> header, byte[] bytes, InputStream in, long size,
+            int readTimeout) throws IOException {
+        // a response body that is still open belongs to its reader now
+        if (conn != null && responseBody == null) {
+            conn.close();
+        }
+        conn = null;
+        responseCode = -1;
+        responseMessage = null;
+        responseHeaders = null;
+        responseBody = null;
+
+        String hostAndPort = getApiServerPath();
+        String host = hostAndPort;
+        int port = 80;
+        int i = hostAndPort.lastIndexOf(':');
+        if (i >= 0) {
+            host = hostAndPort.substring(0, i);
+            port = Integer.parseInt(hostAndPort.substring(i + 1));
+        }
+        url = "http://" + hostAndPort + path;
+
+        // a proxy takes the absolute URL as the request target
+        String target = path;
+        InetSocketAddress proxy = selectHttpProxy(url);
+        if (proxy != null) {
+            host = proxy.getHostName();
+            port = proxy.getPort();
+            target = url;
         }
-        conn.setRequestProperty("Date", toRFC2822Format(new Date()));
-        conn.setDoOutput(true);
-        conn.setUseCaches(false);
-        // conn.connect();
 
-        // body
-        BufferedInputStream bin = new BufferedInputStream(in);
-        BufferedOutputStream out = new BufferedOutputStream(conn.getOutputStream());
-        byte[] buf = new byte[1024];
-        int len;
-//        int count = 0;
-//        int flushThreshold = 128;
-        while ((len = bin.read(buf)) != -1) {
-            out.write(buf, 0, len);
-//            count++;
-//            if (count > flushThreshold) {
-//                out.flush();
-//            }
+        // a body given as a stream can be sent again only if it is in memory;
+        // marking other streams would make them buffer the whole body
+        boolean replayable = in == null || in instanceof ByteArrayInputStream;
+        if (in != null && replayable) {
+            in.mark(0);
         }
-        out.flush();
-        // out.close();
-    }
+        boolean idempotent = isIdempotent(method, path);
 
-    public int getResponseCode() throws IOException {
-        return conn.getResponseCode();
-    }
+        while (true) {
+            conn = pool.acquire(host, port);
+            boolean written = false;
+            try {
+                conn.setReadTimeout(readTimeout);
+                writeRequest(request, method, hostAndPort, target, header, bytes, in, size);
+                written = true;
+                readResponseHeader(method);
+                return;
+            } catch (IOException e) {
+                boolean reused = conn.isReused();
+                conn.close();
+                conn = null;
+                if (!reused || !replayable || e instanceof SocketTimeoutException
+                        || (written && !idempotent)) {
+                    throw e;
+                }
 
-    public String getResponseMessage() throws IOException {
-        return conn.getResponseMessage();
+                // the server might close the idle connection at the same time
+                LOG.fine("retry on a new connection: " + e.getMessage());
+                if (in != null) {
+                    in.reset();
+                }
+            }
+        }
     }
 
-    public String getResponseBody() throws IOException {
-        StringBuilder sbuf = new StringBuilder();
-        BufferedReader reader = new BufferedReader( 
-                new InputStreamReader(conn.getInputStream()));
-        while (true) {
-            String line = reader.readLine();
-            if (line == null) {
-                break;
+    private void writeRequest(Request<?> request, String method, String hostAndPort,
+            String path, Map<String, String> header, byte[] bytes, InputStream in,
+            long size) throws IOException {
+        OutputStream out = conn.getOutputStream();
+        out.write(toRequestHeader(request, method, hostAndPort, path, header, size,
+                pool.isKeepAliveEnabled()));
+
+        // body
+        if (bytes != null) {
+            out.write(bytes);
+        } else if (in != null && size >= 0) {
+            byte[] buf = new byte[putBufferSize];
+            long rest = size;
+            int len;
+            while (rest > 0 && (len = in.read(buf, 0, (int) Math.min(buf.length, rest))) != -1) {
+                out.write(buf, 0, len);
+                rest -= len;
+            }
+            if (rest > 0) {
+                throw new IOException(String.format(
+                        "request body is shorter than its size: %d bytes missing", rest));
+            }
+        } else if (in != null) {
+            byte[] buf = new byte[putBufferSize];
+            byte[] crlf = "\r\n".getBytes("ISO-8859-1");
+            int len;
+            while ((len = readFully(in, buf)) > 0) {
+                out.write(Integer.toHexString(len).getBytes("ISO-8859-1"));
+                out.write(crlf);
+                out.write(buf, 0, len);
+                out.write(crlf);
             }
-            sbuf.append(line);
+            out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
         }
-        reader.close();
-        return sbuf.toString();
+        out.flush();
     }
 
-    public String getErrorMessage() throws IOException {
-        StringBuilder sbuf = new StringBuilder();
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(conn.getErrorStream()));
-        while (true) {
-            String line = reader.readLine();
-            if (line == null) {
+    private static int readFully(InputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int len = in.read(buf, off, buf.length - off);
+            if (len == -1) {
                 break;
             }
-            sbuf.append(line);
+            off += len;
         }
-        reader.close();
-        return sbuf.toString();
+        return off;
     }
 
-    public void disconnect() {
-        conn.disconnect();
-    }
+    private void readResponseHeader(String method) throws IOException {
+        InputStream in = conn.getInputStream();
 
-    public int getContentLength() throws IOException {
-        return conn.getContentLength();
-    }
+        String statusLine;
+        String version;
+        int code;
+        do {
+            statusLine = HttpBodyInputStream.readLine(in);
+            if (statusLine == null) {
+                throw new IOException("connection closed by server: " + url);
+            }
+            String[] status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("invalid status line: " + statusLine);
+            }
+            version = status[0];
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid status line: " + statusLine);
+            }
+            responseMessage = status.length > 2 ? status[2] : "";
 
-    public Unpacker getResponseBodyBinary() throws IOException {
-        BufferedInputStream in = new BufferedInputStream(getInputStream());
-        MessagePack msgpack = new MessagePack();
-        BufferUnpacker unpacker = msgpack.createBufferUnpacker();
-        byte[] buf = new byte[1024];
+            responseHeaders = new HashMap<String, String>();
+            while (true) {
+                String line = HttpBodyInputStream.readLine(in);
+                if (line == null) {
+                    throw new IOException("connection closed by server: " + url);
+                }
+                if (line.length() == 0) {
+                    break;
+                }
+                int i = line.indexOf(':');
+                if (i > 0) {
+                    responseHeaders.put(line.substring(0, i).trim().toLowerCase(Locale.ENGLISH),
+                            line.substring(i + 1).trim());
+                }
+            }
+        } while (code / 100 == 1); // skip 100 Continue
+        responseCode = code;
 
-        int len = 0;
-        while ((len = in.read(buf)) != -1) {
-            unpacker.feed(buf, 0, len);
+        String connection = getHeaderField("Connection");
+        boolean keepAlive;
+        if (version.equals("HTTP/1.0")) {
+            keepAlive = "keep-alive".equalsIgnoreCase(connection);
+        } else {
+            keepAlive = !"close".equalsIgnoreCase(connection);
         }
-
-        return unpacker;
-    }
-
-    public Unpacker getResponseBodyBinaryWithGZip() throws IOException {
-        InputStream in = new GZIPInputStream(getInputStream());
-        MessagePack msgpack = new MessagePack();
-        BufferUnpacker unpacker = msgpack.createBufferUnpacker();
-        byte[] buf = new byte[1024];
-
-        int len = 0;
-        while ((len = in.read(buf)) != -1) {
-            unpacker.feed(buf, 0, len);
+        keepAlive = keepAlive && pool.isKeepAliveEnabled();
+
+        final HttpConnectionPool.PooledConnection c = conn;
+        HttpBodyInputStream.Listener listener = new HttpBodyInputStream.Listener() {
+            public void onEndOfBody(boolean reusable) {
+                if (reusable) {
+                    pool.release(c);
+                } else {
+                    c.close();
+                }
+            }
+        };
+
+        String transferEncoding = getHeaderField("Transfer-Encoding");
+        String contentLength = getHeaderField("Content-Length");
+        if (method.equals("HEAD") || code == 204 || code == 304) {
+            responseBody = HttpBodyInputStream.empty(in, keepAlive, listener);
+        } else if (transferEncoding != null
+                && transferEncoding.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+            responseBody = HttpBodyInputStream.chunked(in, keepAlive, drainLimit, listener);
+        } else if (contentLength != null) {
+            long length;
+            try {
+                length = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid Content-Length: " + contentLength);
+            }
+            responseBody = HttpBodyInputStream.fixed(in, length, keepAlive, drainLimit, listener);
+        } else {
+            responseBody = HttpBodyInputStream.untilClose(in, listener);
         }
-
-        return unpacker;
     }
 
-    public Unpacker getResponseBodyBinaryWithGZip2() throws IOException {
-        MessagePack msgpack = new MessagePack();
-        InputStream in = new BufferedInputStream(new GZIPInputStream(getInputStream()));
-        return msgpack.createUnpacker(in);
+    public int getResponseCode() throws IOException {
+        return responseCode;
     }
 
-    public InputStream getInputStream() throws IOException {
-        return conn.getInputStream();
+    public String getResponseMessage() throws IOException {
+        return responseMessage;
     }
 
-    private String getApiServerPath() {
-        String hostAndPort = "";
+    public String getHeaderField(String name) {
+        if (responseHeaders == null) {
+            return null;
+        }
+        return responseHeaders.get(name.toLowerCase(Locale.ENGLISH));
+    }
 
-        // environment variables
-        hostAndPort = System.getenv(Config.TD_ENV_API_SERVER);
-        if (hostAndPort != null && !hostAndPort.isEmpty()) {
-            return hostAndPort;
+    /**
+     * Finishes the current response. The rest of the response body is drained
+     * and the connection goes back to the pool when it can be reused.
+     */
+    public void disconnect() {
+        try {
+            if (responseBody != null) {
+                responseBody.close();
+            } else if (conn != null) {
+                conn.close();
+            }
+        } catch (IOException e) {
+            // ignore
         }
+        conn = null;
+    }
 
-        // system properties
-        Properties props = System.getProperties();
-        String host = props.getProperty(
-                Config.TD_API_SERVER_HOST, Config.TD_API_SERVER_HOST_DEFAULTVALUE);
-        int port = Integer.parseInt(props.getProperty(
-                Config.TD_API_SERVER_PORT, Config.TD_API_SERVER_PORT_DEFAULTVALUE));
-        hostAndPort = host + ":" + port;
+    @Override
+    protected InputStream getResponseStream() {
+        return responseBody;
+    }
 
-        return hostAndPort;
+    @Override
+    protected String getURL() {
+        return url;
     }
 
     public static String e(String s) throws ClientException {
@@ -338,8 +364,4 @@ public class HttpConnectionImpl {
             throw new ClientException(e);
         }
     }
-
-    private static String toRFC2822Format(Date from) {
-        return RFC2822FORMAT.format(from);
-    }
 }
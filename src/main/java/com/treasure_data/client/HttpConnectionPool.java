@@ -0,0 +1,308 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keep-alive pool of HTTP/1.1 connections, shared by all the
+ * {@link HttpConnectionImpl} objects that are created from one {@link Config}.
+ *
+ * Idle connections are kept per host (host:port) up to
+ * td.client.connection.pool.maxidleperhost and closed once they have been idle
+ * longer than td.client.connection.pool.idletimeout.
+ */
+public class HttpConnectionPool {
+    private static Logger LOG = Logger.getLogger(HttpConnectionPool.class.getName());
+
+    private static final int STALE_CHECK_TIMEOUT = 1; // millis
+
+    private final int maxIdlePerHost;
+    private final long idleTimeout;
+    private final int connectTimeout;
+
+    private final Map<String, LinkedList<PooledConnection>> idles =
+        new HashMap<String, LinkedList<PooledConnection>>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public HttpConnectionPool() {
+        this(System.getProperties());
+    }
+
+    public HttpConnectionPool(Properties props) {
+        maxIdlePerHost = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_CONNECTION_POOL_MAX_IDLE_PER_HOST,
+                Config.TD_CLIENT_CONNECTION_POOL_MAX_IDLE_PER_HOST_DEFAULTVALUE));
+        idleTimeout = Long.parseLong(props.getProperty(
+                Config.TD_CLIENT_CONNECTION_POOL_IDLE_TIMEOUT,
+                Config.TD_CLIENT_CONNECTION_POOL_IDLE_TIMEOUT_DEFAULTVALUE));
+        connectTimeout = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_CONNECT_TIMEOUT,
+                Config.TD_CLIENT_CONNECT_TIMEOUT_DEFAULTVALUE));
+    }
+
+    public boolean isKeepAliveEnabled() {
+        return maxIdlePerHost > 0;
+    }
+
+    /**
+     * Returns an idle connection to the host if one is alive, otherwise opens
+     * a new one.
+     */
+    public PooledConnection acquire(String host, int port) throws IOException {
+        String key = toKey(host, port);
+        while (true) {
+            PooledConnection c = pollIdle(key);
+            if (c == null) {
+                break;
+            }
+            if (c.isStale()) {
+                evictionCount.incrementAndGet();
+                c.close();
+                continue;
+            }
+            hitCount.incrementAndGet();
+            c.reused = true;
+            return c;
+        }
+
+        missCount.incrementAndGet();
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        return new PooledConnection(key, socket);
+    }
+
+    /**
+     * Gives back a connection whose response has been read to the end. The
+     * connection is closed instead if the pool for the host is already full.
+     */
+    public void release(PooledConnection c) {
+        if (c.isClosed()) {
+            return;
+        }
+        if (!isKeepAliveEnabled()) {
+            c.close();
+            return;
+        }
+
+        c.lastUsed = System.currentTimeMillis();
+        PooledConnection overflow = null;
+        synchronized (idles) {
+            LinkedList<PooledConnection> list = idles.get(c.key);
+            if (list == null) {
+                list = new LinkedList<PooledConnection>();
+                idles.put(c.key, list);
+            }
+            list.addFirst(c);
+            if (list.size() > maxIdlePerHost) {
+                overflow = list.removeLast();
+            }
+        }
+        if (overflow != null) {
+            evictionCount.incrementAndGet();
+            overflow.close();
+        }
+    }
+
+    /**
+     * Closes idle connections that have been idle longer than the idle timeout.
+     */
+    public void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> expired = new ArrayList<PooledConnection>();
+        synchronized (idles) {
+            Iterator<LinkedList<PooledConnection>> lists = idles.values().iterator();
+            while (lists.hasNext()) {
+                LinkedList<PooledConnection> list = lists.next();
+                Iterator<PooledConnection> iter = list.iterator();
+                while (iter.hasNext()) {
+                    PooledConnection c = iter.next();
+                    if (now - c.lastUsed > idleTimeout) {
+                        iter.remove();
+                        expired.add(c);
+                    }
+                }
+                if (list.isEmpty()) {
+                    lists.remove();
+                }
+            }
+        }
+        for (PooledConnection c : expired) {
+            evictionCount.incrementAndGet();
+            c.close();
+        }
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    public void close() {
+        List<PooledConnection> all = new ArrayList<PooledConnection>();
+        synchronized (idles) {
+            for (LinkedList<PooledConnection> list : idles.values()) {
+                all.addAll(list);
+            }
+            idles.clear();
+        }
+        for (PooledConnection c : all) {
+            c.close();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public int getIdleConnectionCount() {
+        int count = 0;
+        synchronized (idles) {
+            for (LinkedList<PooledConnection> list : idles.values()) {
+                count += list.size();
+            }
+        }
+        return count;
+    }
+
+    private PooledConnection pollIdle(String key) {
+        evictIdleConnections();
+        synchronized (idles) {
+            LinkedList<PooledConnection> list = idles.get(key);
+            if (list == null || list.isEmpty()) {
+                return null;
+            }
+            return list.removeFirst();
+        }
+    }
+
+    private static String toKey(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public static class PooledConnection {
+        private final String key;
+        private final Socket socket;
+        private final BufferedInputStream in;
+        private final OutputStream out;
+        private long lastUsed;
+        private boolean reused = false;
+
+        PooledConnection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        public void setReadTimeout(int timeout) throws IOException {
+            socket.setSoTimeout(timeout);
+        }
+
+        /**
+         * Whether the connection came from the idle pool, i.e. the server
+         * may have closed it in the meantime.
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        boolean isStale() {
+            if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+                return true;
+            }
+
+            // an idle connection must have nothing to read; EOF means that the
+            // server has closed it
+            try {
+                int timeout = socket.getSoTimeout();
+                try {
+                    socket.setSoTimeout(STALE_CHECK_TIMEOUT);
+                    in.read(); // EOF or unexpected data
+                    return true;
+                } finally {
+                    socket.setSoTimeout(timeout);
+                }
+            } catch (SocketTimeoutException e) {
+                return false;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        public void close() {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("close connection to " + key);
+            }
+            closeQuietly(socket);
+        }
+    }
+}
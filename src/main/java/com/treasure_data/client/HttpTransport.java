@@ -0,0 +1,45 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+/**
+ * Creates the {@link HttpConnection}s that the client adaptors send API calls
+ * through. One transport is created per {@link Config} and shared by all the
+ * clients and threads that use the config; it owns the sockets, e.g. a
+ * keep-alive pool, underneath the connections.
+ *
+ * The transport is selected by td.client.transport: "default" for blocking
+ * sockets ({@link DefaultHttpTransport}), "nio" for non-blocking sockets
+ * driven by a few selector threads ({@link NioHttpTransport}), "http2" for
+ * HTTP/2 through the HttpClient of Java 11 (Http2Transport of the
+ * td-client-http2 artifact), or the name of a class that implements this
+ * interface and has a public constructor taking a {@link Config}.
+ */
+public interface HttpTransport {
+
+    /**
+     * Creates a connection for one API call.
+     */
+    HttpConnection createConnection();
+
+    /**
+     * Closes the sockets of the transport. Connections created afterwards
+     * may fail.
+     */
+    void close();
+}
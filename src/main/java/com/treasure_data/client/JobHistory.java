@@ -0,0 +1,258 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.treasure_data.model.JobSummary;
+
+/**
+ * Job history, newest job first, read page by page with listJobs. Pages are
+ * fetched only when the iteration reaches them; while the caller works on
+ * the current page, the next 'prefetch depth' pages are fetched on a
+ * background thread.
+ *
+ * <pre>
+ * JobHistory history = client.getJobHistory();
+ * history.setPageSize(200);
+ * for (JobSummary job : history) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * Each iterator has its own fetch thread, which ends when the iteration
+ * reaches the end or the iterator is closed. An iteration that stops early
+ * should close its iterator. A page that cannot be fetched makes hasNext or
+ * next throw IllegalStateException whose cause is the ClientException.
+ */
+public class JobHistory implements Iterable<JobSummary> {
+
+    private final TreasureDataClient client;
+
+    private final long from;
+
+    private final long to;
+
+    private int pageSize = 100;
+
+    private int prefetchDepth = 1;
+
+    private ExecutorService executor;
+
+    public JobHistory(TreasureDataClient client) {
+        this(client, 0, -1);
+    }
+
+    /**
+     * @param from offset of the first job, 0 for the newest one
+     * @param to offset of the last job (inclusive); negative to read
+     * to the end of the history
+     */
+    public JobHistory(TreasureDataClient client, long from, long to) {
+        this.client = client;
+        this.from = from;
+        this.to = to;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("page size must be positive: " + pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * Sets how many pages ahead of the current one are fetched in the
+     * background. 0 fetches each page on the caller's thread when needed.
+     */
+    public void setPrefetchDepth(int prefetchDepth) {
+        if (prefetchDepth < 0) {
+            throw new IllegalArgumentException("prefetch depth must not be negative: "
+                    + prefetchDepth);
+        }
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    /**
+     * Sets the executor that fetches pages in the background instead of a
+     * thread per iterator. It is not shut down by this class.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public PageIterator iterator() {
+        return new PageIterator();
+    }
+
+    public class PageIterator implements Iterator<JobSummary>, Closeable {
+        private final int pageSize = JobHistory.this.pageSize;
+        private final int prefetchDepth = JobHistory.this.prefetchDepth;
+        private final LinkedList<Future<List<JobSummary>>> prefetched =
+            new LinkedList<Future<List<JobSummary>>>();
+        private ExecutorService exec;
+        private boolean ownExecutor;
+
+        private Iterator<JobSummary> page = Collections.<JobSummary>emptyList().iterator();
+        private long nextFrom = from; // offset of the next page to request
+        private boolean lastRequested = false;
+        private boolean lastReceived = false;
+        private boolean closed = false;
+
+        PageIterator() {
+        }
+
+        public boolean hasNext() {
+            if (closed) {
+                return false;
+            }
+            while (!page.hasNext()) {
+                if (lastReceived) {
+                    close();
+                    return false;
+                }
+                page = nextPage().iterator();
+            }
+            return true;
+        }
+
+        public JobSummary next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Future<List<JobSummary>> f : prefetched) {
+                f.cancel(true);
+            }
+            prefetched.clear();
+            if (ownExecutor) {
+                exec.shutdownNow();
+            }
+        }
+
+        private List<JobSummary> nextPage() {
+            List<JobSummary> jobs;
+            if (prefetchDepth == 0) {
+                jobs = fetch(requestRange());
+            } else {
+                prefetch(1);
+                try {
+                    jobs = prefetched.removeFirst().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new IllegalStateException("List jobs interrupted", e);
+                } catch (ExecutionException e) {
+                    close();
+                    throw new IllegalStateException("List jobs failed", e.getCause());
+                }
+                if (jobs.size() < pageSize) {
+                    // the pages after this one are empty
+                    for (Future<List<JobSummary>> f : prefetched) {
+                        f.cancel(true);
+                    }
+                    prefetched.clear();
+                    lastRequested = true;
+                }
+            }
+            if (jobs.size() < pageSize || (lastRequested && prefetched.isEmpty())) {
+                lastReceived = true;
+            }
+            if (!lastReceived && prefetchDepth > 0) {
+                prefetch(prefetchDepth);
+            }
+            return jobs;
+        }
+
+        // requests pages in the background until n pages are queued
+        private void prefetch(int n) {
+            if (exec == null) {
+                exec = executor;
+                if (exec == null) {
+                    exec = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "td-job-history-prefetch");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                    ownExecutor = true;
+                }
+            }
+            while (!lastRequested && prefetched.size() < n) {
+                final long[] range = requestRange();
+                prefetched.add(exec.submit(new Callable<List<JobSummary>>() {
+                    public List<JobSummary> call() throws Exception {
+                        return client.listJobs(range[0], range[1]);
+                    }
+                }));
+            }
+        }
+
+        // returns {from, to} of the next page and advances
+        private long[] requestRange() {
+            long f = nextFrom;
+            long t = f + pageSize - 1;
+            if (to >= 0 && t >= to) {
+                t = to;
+                lastRequested = true;
+            }
+            nextFrom = t + 1;
+            return new long[] { f, t };
+        }
+
+        private List<JobSummary> fetch(long[] range) {
+            try {
+                return client.listJobs(range[0], range[1]);
+            } catch (ClientException e) {
+                close();
+                throw new IllegalStateException("List jobs failed", e);
+            }
+        }
+    }
+}
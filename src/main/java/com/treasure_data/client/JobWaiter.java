@@ -0,0 +1,119 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import com.treasure_data.model.GetJobStatusRequest;
+import com.treasure_data.model.GetJobStatusResult;
+import com.treasure_data.model.Job;
+import com.treasure_data.model.JobSummary;
+
+/**
+ * Waits for a job to finish by polling its status. The lightweight status
+ * API is polled, and the full job details are fetched once, after the job
+ * has finished.
+ *
+ * The poll interval grows with the time the job has been running, see
+ * {@link PollInterval}.
+ */
+public class JobWaiter {
+    private static Logger LOG = Logger.getLogger(JobWaiter.class.getName());
+
+    private TreasureDataClient client;
+
+    private final PollInterval pollInterval = new PollInterval();
+
+    public JobWaiter(TreasureDataClient client) {
+        this.client = client;
+    }
+
+    public long getMinIntervalMillis() {
+        return pollInterval.getMinIntervalMillis();
+    }
+
+    public void setMinIntervalMillis(long minIntervalMillis) {
+        pollInterval.setMinIntervalMillis(minIntervalMillis);
+    }
+
+    public long getMaxIntervalMillis() {
+        return pollInterval.getMaxIntervalMillis();
+    }
+
+    public void setMaxIntervalMillis(long maxIntervalMillis) {
+        pollInterval.setMaxIntervalMillis(maxIntervalMillis);
+    }
+
+    /**
+     * Waits until the job finishes and returns its details.
+     *
+     * @param timeoutMillis max time to wait; 0 or negative waits forever
+     * @throws ClientException if the job does not finish within the
+     * timeout, or the thread is interrupted (the interrupt status is kept)
+     */
+    public JobSummary waitForCompletion(Job job, long timeoutMillis)
+            throws ClientException {
+        long started = System.currentTimeMillis();
+        long deadline = timeoutMillis > 0 ? started + timeoutMillis : Long.MAX_VALUE;
+        while (true) {
+            GetJobStatusResult result = client.getJobStatus(new GetJobStatusRequest(job));
+            if (result.isFinished()) {
+                return client.showJob(job);
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                throw new ClientException(String.format(
+                        "Job %s did not finish in %d ms (status: %s)", job.getJobID(),
+                        timeoutMillis, JobSummary.toStatusName(result.getStatus())));
+            }
+
+            long runningSince = parseTime(result.getStartAt(), started);
+            long interval = Math.min(getPollInterval(now - runningSince), deadline - now);
+            LOG.fine(String.format("Job %s is %s; check again in %d ms", job.getJobID(),
+                    JobSummary.toStatusName(result.getStatus()), interval));
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClientException("Waiting for job " + job.getJobID()
+                        + " was interrupted", e);
+            }
+        }
+    }
+
+    long getPollInterval(long runningMillis) {
+        return pollInterval.getMillis(runningMillis);
+    }
+
+    // e.g. "2013-06-01 05:31:10 UTC"
+    static long parseTime(String time, long defaultValue) {
+        if (time == null) {
+            return defaultValue;
+        }
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z", Locale.ENGLISH)
+                    .parse(time).getTime();
+        } catch (ParseException e) {
+            return defaultValue;
+        }
+    }
+}
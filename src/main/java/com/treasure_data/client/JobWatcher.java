@@ -0,0 +1,249 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.treasure_data.model.Job;
+import com.treasure_data.model.JobSummary;
+
+/**
+ * Watches many jobs at once and tells listeners when their status changes.
+ *
+ * Instead of calling showJob for every job, one background thread pages
+ * through listJobs, which returns the newest jobs first, until it has seen
+ * all the watched jobs or reached jobs older than the oldest watched one.
+ * The number of requests per scan depends on how far back the watched jobs
+ * go in the job history (pages), not on how many jobs are watched.
+ *
+ * A job is unwatched once it has finished and its listener has been called.
+ *
+ * <pre>
+ * JobWatcher watcher = new JobWatcher(client);
+ * watcher.watch(job, listener);
+ * watcher.start();
+ * ...
+ * watcher.stop();
+ * </pre>
+ */
+public class JobWatcher {
+    private static Logger LOG = Logger.getLogger(JobWatcher.class.getName());
+
+    public static interface Listener {
+        /**
+         * Called on the watcher's thread when the status of the job differs
+         * from the last one seen. The first scan that finds the job reports
+         * it with oldStatus null.
+         */
+        void onStatusChanged(JobSummary job, JobSummary.Status oldStatus);
+    }
+
+    private static class Watch {
+        private final String jobID;
+        private final long jobNumber;
+        private final Listener listener;
+        private JobSummary.Status status;
+
+        Watch(String jobID, Listener listener) {
+            this.jobID = jobID;
+            this.jobNumber = toJobNumber(jobID);
+            this.listener = listener;
+        }
+    }
+
+    private final TreasureDataClient client;
+
+    private final Map<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+
+    private long pollIntervalMillis = 10 * 1000;
+
+    private int pageSize = 500;
+
+    private int maxPagesPerScan = 100;
+
+    private ScheduledExecutorService scheduler;
+
+    // a scan calls the API while holding it; a monitor would pin a virtual thread
+    private final ReentrantLock scanLock = new ReentrantLock();
+
+    private volatile int lastScanPageCount;
+
+    public JobWatcher(TreasureDataClient client) {
+        this.client = client;
+    }
+
+    public void setPollIntervalMillis(long pollIntervalMillis) {
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Limits the listJobs calls of a scan, in case a watched job is not in
+     * the job history at all.
+     */
+    public void setMaxPagesPerScan(int maxPagesPerScan) {
+        this.maxPagesPerScan = maxPagesPerScan;
+    }
+
+    public void watch(Job job, Listener listener) {
+        watch(job.getJobID(), listener);
+    }
+
+    public void watch(String jobID, Listener listener) {
+        watches.put(jobID, new Watch(jobID, listener));
+    }
+
+    public void unwatch(String jobID) {
+        watches.remove(jobID);
+    }
+
+    public int getWatchedJobCount() {
+        return watches.size();
+    }
+
+    /**
+     * Returns the number of listJobs calls made by the last scan.
+     */
+    public int getLastScanPageCount() {
+        return lastScanPageCount;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "td-job-watcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    scan();
+                } catch (ClientException e) {
+                    LOG.warning("Scan of watched jobs failed: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Scan of watched jobs failed", e);
+                }
+            }
+        }, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Scans the job history once and calls the listeners. It is called
+     * periodically after {@link #start()}.
+     */
+    public void scan() throws ClientException {
+        scanLock.lock();
+        try {
+            doScan();
+        } finally {
+            scanLock.unlock();
+        }
+    }
+
+    private void doScan() throws ClientException {
+        Map<String, Watch> pending = new HashMap<String, Watch>(watches);
+        long oldest = Long.MAX_VALUE;
+        for (Watch w : pending.values()) {
+            oldest = Math.min(oldest, w.jobNumber);
+        }
+
+        int pages = 0;
+        long from = 0;
+        while (!pending.isEmpty() && pages < maxPagesPerScan) {
+            List<JobSummary> jobs = client.listJobs(from, from + pageSize - 1);
+            pages++;
+            for (JobSummary job : jobs) {
+                Watch w = pending.remove(job.getJobID());
+                if (w != null) {
+                    update(w, job);
+                }
+            }
+
+            if (jobs.size() < pageSize) {
+                break; // end of the job history
+            }
+            long last = toJobNumber(jobs.get(jobs.size() - 1).getJobID());
+            if (last >= 0 && last < oldest) {
+                break; // older than every watched job
+            }
+            from += pageSize;
+        }
+        lastScanPageCount = pages;
+        if (!pending.isEmpty() && LOG.isLoggable(Level.FINE)) {
+            LOG.fine(pending.size() + " watched jobs were not found in the job history");
+        }
+    }
+
+    private void update(Watch w, JobSummary job) {
+        JobSummary.Status old = w.status;
+        JobSummary.Status status = job.getStatus();
+        if (status == old) {
+            return;
+        }
+        w.status = status;
+        if (isFinished(status)) {
+            watches.remove(w.jobID);
+        }
+        try {
+            w.listener.onStatusChanged(job, old);
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Listener of job " + w.jobID + " failed", e);
+        }
+    }
+
+    private static boolean isFinished(JobSummary.Status status) {
+        return status == JobSummary.Status.SUCCESS
+                || status == JobSummary.Status.ERROR
+                || status == JobSummary.Status.KILLED;
+    }
+
+    // job IDs are increasing numbers; -1 for others, which makes a scan go
+    // through the whole history
+    private static long toJobNumber(String jobID) {
+        try {
+            return Long.parseLong(jobID);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
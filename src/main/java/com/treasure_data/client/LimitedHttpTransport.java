@@ -0,0 +1,303 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.Properties;
+
+import org.msgpack.unpacker.Unpacker;
+
+import com.treasure_data.model.Request;
+
+/**
+ * Transport that limits the API calls in flight on another transport with
+ * {@link ConcurrencyLimiter}s, so that scaled-out workers back off before the
+ * API server is overloaded. It is used when td.client.limiter.enabled is
+ * true.
+ *
+ * Control plane calls (GET and POST, e.g. job and table calls) and uploads
+ * (PUT of imports and bulk import parts) have limiters of their own, since an
+ * upload takes much longer than a control call and must not make it look
+ * slow. A call holds its permit from sending the request until the response
+ * headers arrive; reading the body does not count.
+ *
+ * The round trips are compared per endpoint, the path up to the action (e.g.
+ * /v3/job/list or /v3/job/result), so that calls that are slow by nature do
+ * not look like an overloaded server.
+ */
+public class LimitedHttpTransport implements HttpTransport {
+    private final HttpTransport transport;
+    private final ConcurrencyLimiter controlLimiter;
+    private final ConcurrencyLimiter uploadLimiter;
+
+    public LimitedHttpTransport(HttpTransport transport, Properties props) {
+        this(transport, new ConcurrencyLimiter("control", props),
+                new ConcurrencyLimiter("upload", props));
+    }
+
+    public LimitedHttpTransport(HttpTransport transport, ConcurrencyLimiter controlLimiter,
+            ConcurrencyLimiter uploadLimiter) {
+        this.transport = transport;
+        this.controlLimiter = controlLimiter;
+        this.uploadLimiter = uploadLimiter;
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Returns the limiter of GET and POST calls, whose current limit is
+     * {@link ConcurrencyLimiter#getLimit()}.
+     */
+    public ConcurrencyLimiter getControlLimiter() {
+        return controlLimiter;
+    }
+
+    /**
+     * Returns the limiter of PUT calls.
+     */
+    public ConcurrencyLimiter getUploadLimiter() {
+        return uploadLimiter;
+    }
+
+    public HttpConnection createConnection() {
+        HttpConnection conn = transport.createConnection();
+        if (conn instanceof NonBlockingHttpConnection) {
+            return new LimitedNonBlockingConnection((NonBlockingHttpConnection) conn);
+        }
+        return new LimitedConnection(conn);
+    }
+
+    public void close() {
+        transport.close();
+    }
+
+    /**
+     * Returns the endpoint of a path, the path before its fourth slash
+     * without the ids after it, e.g. "/v3/job/show" of "/v3/job/show/12345".
+     */
+    static String getEndpoint(String path) {
+        int end = path.indexOf('?');
+        if (end < 0) {
+            end = path.length();
+        }
+        int slashes = 0;
+        for (int i = 0; i < end; i++) {
+            if (path.charAt(i) == '/' && ++slashes == 4) {
+                return path.substring(0, i);
+            }
+        }
+        return path.substring(0, end);
+    }
+
+    private class LimitedConnection implements HttpConnection {
+        private final HttpConnection conn;
+        // limiter whose permit the current call holds, or null
+        private ConcurrencyLimiter limiter;
+        private String endpoint;
+        private long started;
+        // when a response listener saw the header arrive, or 0
+        volatile long arrived;
+
+        LimitedConnection(HttpConnection conn) {
+            this.conn = conn;
+        }
+
+        private void begin(ConcurrencyLimiter l, String path) throws IOException {
+            ignored();
+            l.acquire();
+            limiter = l;
+            endpoint = getEndpoint(path);
+            started = System.nanoTime();
+            arrived = 0;
+        }
+
+        private void answered(int code) {
+            if (limiter == null) {
+                return;
+            }
+            if (code == 429 || code >= 500) {
+                limiter.onDropped(endpoint);
+            } else {
+                long end = arrived != 0 ? arrived : System.nanoTime();
+                limiter.onSuccess(endpoint, end - started);
+            }
+            limiter = null;
+        }
+
+        private void failed(IOException e) {
+            if (limiter == null) {
+                return;
+            }
+            if (e instanceof SocketTimeoutException) {
+                limiter.onDropped(endpoint);
+            } else {
+                limiter.onIgnored();
+            }
+            limiter = null;
+        }
+
+        private void ignored() {
+            if (limiter != null) {
+                limiter.onIgnored();
+                limiter = null;
+            }
+        }
+
+        public void doGetRequest(Request<?> request, String path, Map<String, String> header,
+                Map<String, String> params) throws IOException {
+            begin(controlLimiter, path);
+            try {
+                conn.doGetRequest(request, path, header, params);
+            } catch (IOException e) {
+                failed(e);
+                throw e;
+            } catch (RuntimeException e) {
+                ignored();
+                throw e;
+            }
+        }
+
+        public void doPostRequest(Request<?> request, String path, Map<String, String> header,
+                Map<String, String> params) throws IOException {
+            begin(controlLimiter, path);
+            try {
+                conn.doPostRequest(request, path, header, params);
+            } catch (IOException e) {
+                failed(e);
+                throw e;
+            } catch (RuntimeException e) {
+                ignored();
+                throw e;
+            }
+        }
+
+        public void doPutRequest(Request<?> request, String path, byte[] bytes)
+                throws IOException {
+            begin(uploadLimiter, path);
+            try {
+                conn.doPutRequest(request, path, bytes);
+            } catch (IOException e) {
+                failed(e);
+                throw e;
+            } catch (RuntimeException e) {
+                ignored();
+                throw e;
+            }
+        }
+
+        public void doPutRequest(Request<?> request, String path, InputStream in, int size)
+                throws IOException {
+            begin(uploadLimiter, path);
+            try {
+                conn.doPutRequest(request, path, in, size);
+            } catch (IOException e) {
+                failed(e);
+                throw e;
+            } catch (RuntimeException e) {
+                ignored();
+                throw e;
+            }
+        }
+
+        public int getResponseCode() throws IOException {
+            int code;
+            try {
+                code = conn.getResponseCode();
+            } catch (IOException e) {
+                failed(e);
+                throw e;
+            }
+            answered(code);
+            return code;
+        }
+
+        public String getResponseMessage() throws IOException {
+            return conn.getResponseMessage();
+        }
+
+        public String getHeaderField(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        public int getContentLength() throws IOException {
+            return conn.getContentLength();
+        }
+
+        public String getResponseBody() throws IOException {
+            return conn.getResponseBody();
+        }
+
+        public Reader getResponseReader() throws IOException {
+            return conn.getResponseReader();
+        }
+
+        public String getErrorMessage() throws IOException {
+            return conn.getErrorMessage();
+        }
+
+        public Unpacker getResponseBodyBinary() throws IOException {
+            return conn.getResponseBodyBinary();
+        }
+
+        public Unpacker getResponseBodyBinaryWithGZip() throws IOException {
+            return conn.getResponseBodyBinaryWithGZip();
+        }
+
+        public Unpacker getResponseBodyBinaryWithGZip2() throws IOException {
+            return conn.getResponseBodyBinaryWithGZip2();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return conn.getInputStream();
+        }
+
+        public void disconnect() {
+            ignored();
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * A limited connection of a non-blocking transport. The round trip ends
+     * when the response header arrives, not when the caller gets to read it.
+     */
+    private class LimitedNonBlockingConnection extends LimitedConnection
+            implements NonBlockingHttpConnection {
+        private final NonBlockingHttpConnection nonBlocking;
+
+        LimitedNonBlockingConnection(NonBlockingHttpConnection conn) {
+            super(conn);
+            this.nonBlocking = conn;
+        }
+
+        public void addResponseListener(final Runnable listener) {
+            nonBlocking.addResponseListener(new Runnable() {
+                public void run() {
+                    arrived = System.nanoTime();
+                    listener.run();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,196 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Streaming parser of list API responses such as
+ * <pre>
+ * {"count":3, "from":0, "to":2, "jobs":[{"job_id":"1", ...}, ...]}
+ * </pre>
+ * The response body is read as it arrives, and each element of the list is
+ * turned into a model object as soon as the element ends. Neither the body
+ * text nor a generic Map/List tree of the whole response is built.
+ *
+ * Only primitive fields are collected: fields of the top-level object other
+ * than the list are available through {@link #getField(String)}, and the
+ * primitive fields of each element are passed to {@link #toElement(Map)}.
+ * Nested objects and arrays in elements are skipped.
+ */
+public abstract class ListResponseParser<T> {
+
+    private final String listKey;
+
+    private final Map<String, Object> fields = new HashMap<String, Object>();
+
+    private final List<T> elements = new ArrayList<T>();
+
+    protected ListResponseParser(String listKey) {
+        this.listKey = listKey;
+    }
+
+    /**
+     * Builds a model object from the primitive fields of a list element. The
+     * map is reused for the next element; do not keep it.
+     */
+    protected abstract T toElement(Map<String, Object> elementFields)
+            throws ClientException;
+
+    public List<T> parse(Reader reader) throws IOException, ClientException {
+        Handler handler = new Handler();
+        try {
+            new JSONParser().parse(reader, handler);
+        } catch (ParseException e) {
+            throw new ClientException(String.format(
+                    "Server error (invalid JSON Data): %s", e));
+        } catch (ElementException e) {
+            throw e.cause;
+        } catch (RuntimeException e) { // e.g. ClassCastException by an unexpected type
+            throw new ClientException(String.format(
+                    "Server error (invalid JSON Data): %s", e));
+        }
+
+        if (!handler.found) {
+            throw new ClientException(String.format(
+                    "Server error (invalid JSON Data): '%s' is not found", listKey));
+        }
+        return elements;
+    }
+
+    public Object getField(String key) {
+        return fields.get(key);
+    }
+
+    public List<T> getElements() {
+        return elements;
+    }
+
+    // wraps ClientException so that it can go through JSONParser
+    private static class ElementException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private ClientException cause;
+
+        ElementException(ClientException cause) {
+            super(cause);
+            this.cause = cause;
+        }
+    }
+
+    private class Handler implements ContentHandler {
+        // 1: top-level object, 2: the list, 3: an element of the list
+        private int depth = 0;
+        // depth of the nested objects and arrays being skipped
+        private int skip = 0;
+        private boolean inList = false;
+        private boolean found = false;
+        private String key;
+        private final Map<String, Object> elementFields = new HashMap<String, Object>();
+
+        public void startJSON() {
+        }
+
+        public void endJSON() {
+        }
+
+        public boolean startObject() throws ParseException {
+            if (skip > 0) {
+                skip++;
+            } else if (depth == 0) {
+                depth = 1;
+            } else if (inList && depth == 2) {
+                depth = 3;
+                elementFields.clear();
+            } else {
+                skip = 1;
+            }
+            return true;
+        }
+
+        public boolean endObject() {
+            if (skip > 0) {
+                skip--;
+            } else if (depth == 3) {
+                depth = 2;
+                try {
+                    elements.add(toElement(elementFields));
+                } catch (ClientException e) {
+                    throw new ElementException(e);
+                }
+            } else {
+                depth--;
+            }
+            return true;
+        }
+
+        public boolean startObjectEntry(String key) {
+            this.key = key;
+            return true;
+        }
+
+        public boolean endObjectEntry() {
+            return true;
+        }
+
+        public boolean startArray() throws ParseException {
+            if (skip > 0) {
+                skip++;
+            } else if (depth == 1 && listKey.equals(key)) {
+                depth = 2;
+                inList = true;
+                found = true;
+            } else {
+                skip = 1;
+            }
+            return true;
+        }
+
+        public boolean endArray() {
+            if (skip > 0) {
+                skip--;
+            } else {
+                depth = 1;
+                inList = false;
+            }
+            return true;
+        }
+
+        public boolean primitive(Object value) {
+            if (skip > 0) {
+                return true;
+            }
+            if (depth == 1) {
+                fields.put(key, value);
+            } else if (depth == 3) {
+                elementFields.put(key, value);
+            }
+            // primitives in the list itself or at the top level are ignored
+            return true;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.treasure_data.model.ListDatabasesResult;
+import com.treasure_data.model.ListTablesResult;
+
+/**
+ * Cache of listDatabases and listTables results, shared by the
+ * {@link TreasureDataClient} objects that are created from one {@link Config}.
+ *
+ * Results are kept for td.client.metadata.cache.ttl milliseconds; the cache is
+ * disabled if it is 0 (the default). At most
+ * td.client.metadata.cache.maxentries results are kept; the least recently
+ * used one is evicted first. createDatabase, deleteDatabase, createTable,
+ * deleteTable, renameTable, swapTable and deletePartialTable of the client
+ * invalidate the results that they change. Changes made by other clients are
+ * seen after the TTL, and so are the record counts and sizes of tables.
+ *
+ * Cached results are shared; callers must not modify their lists.
+ */
+public class MetadataCache {
+
+    static interface Loader<T> {
+        T load() throws ClientException;
+    }
+
+    private static class CachedResult {
+        private Object value;
+        private long expiresAt;
+
+        CachedResult(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final String DATABASES_KEY = "databases";
+    private static final String TABLES_KEY_PREFIX = "tables:";
+
+    private final long ttl;
+    private final int maxEntries;
+
+    private final Map<String, CachedResult> entries;
+    // incremented by every invalidation; a result that was loaded while an
+    // invalidation happened may be stale and is not cached
+    private long generation = 0;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    public MetadataCache() {
+        this(System.getProperties());
+    }
+
+    public MetadataCache(Properties props) {
+        this(Long.parseLong(props.getProperty(
+                Config.TD_CLIENT_METADATA_CACHE_TTL,
+                Config.TD_CLIENT_METADATA_CACHE_TTL_DEFAULTVALUE)),
+            Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_METADATA_CACHE_MAX_ENTRIES,
+                Config.TD_CLIENT_METADATA_CACHE_MAX_ENTRIES_DEFAULTVALUE)));
+    }
+
+    public MetadataCache(long ttl, final int maxEntries) {
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                if (size() > maxEntries) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return ttl > 0 && maxEntries > 0;
+    }
+
+    public long getTTL() {
+        return ttl;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    ListDatabasesResult getDatabases(Loader<ListDatabasesResult> loader)
+            throws ClientException {
+        return get(DATABASES_KEY, loader);
+    }
+
+    ListTablesResult getTables(String databaseName, Loader<ListTablesResult> loader)
+            throws ClientException {
+        return get(TABLES_KEY_PREFIX + databaseName, loader);
+    }
+
+    private <T> T get(String key, Loader<T> loader) throws ClientException {
+        if (!isEnabled()) {
+            return loader.load();
+        }
+
+        long gen;
+        synchronized (this) {
+            CachedResult e = entries.get(key);
+            if (e != null) {
+                if (e.expiresAt > System.currentTimeMillis()) {
+                    hitCount.incrementAndGet();
+                    @SuppressWarnings("unchecked")
+                    T value = (T) e.value;
+                    return value;
+                }
+                entries.remove(key);
+            }
+            gen = generation;
+        }
+
+        // loads without the lock; concurrent misses of a key may load it twice
+        missCount.incrementAndGet();
+        T value = loader.load();
+        synchronized (this) {
+            if (gen == generation) {
+                entries.put(key, new CachedResult(value, System.currentTimeMillis() + ttl));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Invalidates the list of databases, e.g. after a database is created or
+     * deleted.
+     */
+    public synchronized void invalidateDatabases() {
+        generation++;
+        invalidationCount.incrementAndGet();
+        entries.remove(DATABASES_KEY);
+    }
+
+    /**
+     * Invalidates the list of tables of the database and the list of
+     * databases, which has the number of tables of each database.
+     */
+    public synchronized void invalidateTables(String databaseName) {
+        generation++;
+        invalidationCount.incrementAndGet();
+        entries.remove(TABLES_KEY_PREFIX + databaseName);
+        entries.remove(DATABASES_KEY);
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        invalidationCount.incrementAndGet();
+        entries.clear();
+    }
+
+    /**
+     * Removes expired results.
+     */
+    public synchronized void evictExpiredEntries() {
+        long now = System.currentTimeMillis();
+        Iterator<CachedResult> iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().expiresAt <= now) {
+                iter.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the ratio of hits to lookups, or 0 if nothing was looked up.
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long lookups = hits + missCount.get();
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{ttl=%d, maxEntries=%d, size=%d, hits=%d, misses=%d, evictions=%d, invalidations=%d}",
+                getClass().getName(), ttl, maxEntries, size(), getHitCount(),
+                getMissCount(), getEvictionCount(), getInvalidationCount());
+    }
+}
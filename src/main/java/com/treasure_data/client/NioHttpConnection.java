@@ -0,0 +1,180 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.treasure_data.model.Request;
+
+/**
+ * Connection of a {@link NioHttpTransport}. A request is handed to an I/O
+ * thread of the transport and the do*Request methods return; the response
+ * methods wait for the response header, or a listener is told when it has
+ * arrived. The response body is read as an I/O thread receives it.
+ *
+ * An object holds the state of one request at a time and is not thread-safe;
+ * create one per API call.
+ */
+public class NioHttpConnection extends AbstractHttpConnection
+        implements NonBlockingHttpConnection {
+    private static Logger LOG = Logger.getLogger(NioHttpConnection.class.getName());
+
+    private NioHttpTransport transport;
+    private String url;
+    private NioHttpTransport.ResponseFuture pending;
+    private NioHttpTransport.Response response;
+
+    public NioHttpConnection(Properties props, NioHttpTransport transport) {
+        super(props);
+        this.transport = transport;
+    }
+
+    public void doGetRequest(Request<?> request, String path, Map<String, String> header,
+            Map<String, String> params) throws IOException {
+        sendRequest(request, "GET", appendParameters(path, params), header, null, null, 0,
+                getReadTimeout);
+    }
+
+    public void doPostRequest(Request<?> request, String path, Map<String, String> header,
+            Map<String, String> params) throws IOException {
+        String pathAndQuery = appendParameters(path, params);
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine(pathAndQuery);
+        }
+        sendRequest(request, "POST", pathAndQuery, header, null, null, 0, postReadTimeout);
+    }
+
+    public void doPutRequest(Request<?> request, String path, byte[] bytes)
+            throws IOException {
+        sendRequest(request, "PUT", path, null, bytes, null, bytes.length, putReadTimeout);
+    }
+
+    public void doPutRequest(Request<?> request, String path, InputStream in, int size)
+            throws IOException {
+        sendRequest(request, "PUT", path, null, null, in, size, putReadTimeout);
+    }
+
+    private void sendRequest(Request<?> request, String method, String path,
+            Map<String, String> header, byte[] bytes, InputStream in, long size,
+            int readTimeout) throws IOException {
+        disconnect();
+        response = null;
+
+        String hostAndPort = getApiServerPath();
+        url = "http://" + hostAndPort + path;
+        pending = transport.send(request, method, hostAndPort, path, header, bytes, in, size,
+                readTimeout);
+        if (pending.isDone()) {
+            // e.g. an unknown host: fail here like the blocking connections
+            awaitResponse();
+        }
+    }
+
+    public void addResponseListener(Runnable listener) {
+        if (pending == null) {
+            throw new IllegalStateException("no request is sent");
+        }
+        pending.addListener(listener);
+    }
+
+    private NioHttpTransport.Response awaitResponse() throws IOException {
+        if (pending != null) {
+            NioHttpTransport.ResponseFuture f = pending;
+            pending = null;
+            response = NioHttpTransport.await(f);
+        }
+        return response;
+    }
+
+    // the response if it has arrived, without waiting
+    private NioHttpTransport.Response getArrivedResponse() {
+        if (pending != null && pending.isDone()) {
+            try {
+                awaitResponse();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return response;
+    }
+
+    public int getResponseCode() throws IOException {
+        NioHttpTransport.Response r = awaitResponse();
+        return r == null ? -1 : r.getResponseCode();
+    }
+
+    public String getResponseMessage() throws IOException {
+        NioHttpTransport.Response r = awaitResponse();
+        return r == null ? null : r.getResponseMessage();
+    }
+
+    public String getHeaderField(String name) {
+        NioHttpTransport.Response r = getArrivedResponse();
+        return r == null ? null : r.getHeaderField(name);
+    }
+
+    /**
+     * Finishes the current response. The rest of the response body is drained
+     * and the connection is kept alive when it can be reused. A response that
+     * has not arrived yet is drained by the I/O thread when it does.
+     */
+    public void disconnect() {
+        if (pending != null) {
+            final NioHttpTransport.ResponseFuture f = pending;
+            pending = null;
+            f.addListener(new Runnable() {
+                public void run() {
+                    try {
+                        close(NioHttpTransport.await(f));
+                    } catch (IOException e) {
+                        // failed; nothing to drain
+                    }
+                }
+            });
+            return;
+        }
+        close(response);
+    }
+
+    private static void close(NioHttpTransport.Response r) {
+        if (r == null) {
+            return;
+        }
+        try {
+            r.getInputStream().close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    protected InputStream getResponseStream() throws IOException {
+        NioHttpTransport.Response r = awaitResponse();
+        return r == null ? null : r.getInputStream();
+    }
+
+    @Override
+    protected String getURL() {
+        return url;
+    }
+}
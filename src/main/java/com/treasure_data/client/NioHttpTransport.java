@@ -0,0 +1,1555 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.treasure_data.model.Request;
+
+/**
+ * Transport of non-blocking sockets: td.client.transport.nio.threads I/O
+ * threads, each with a {@link Selector}, drive the HTTP/1.1 exchanges of all
+ * the API calls, so that thousands of calls can be in flight without a thread
+ * each.
+ *
+ * A {@link NioHttpConnection} returns as soon as the request is handed to an
+ * I/O thread. Blocking API calls wait for the response header when they ask
+ * for the response code; {@link AsyncTreasureDataClient} instead registers a
+ * listener ({@link NonBlockingHttpConnection#addResponseListener(Runnable)})
+ * and reads the response on its executor once the header has arrived, so no
+ * thread waits for the server. The response body is read as an I/O thread
+ * receives it; reading from the socket pauses while 256 KB of the body is
+ * waiting to be read.
+ *
+ * Requests go through the HTTP proxy of the JVM's default ProxySelector
+ * (http.proxyHost, http.proxyPort and http.nonProxyHosts), like with
+ * {@link HttpConnectionImpl}.
+ *
+ * Connections are kept alive like in {@link HttpConnectionPool}
+ * (td.client.connection.pool.*), and an idle connection that the server
+ * closes is noticed at once by its I/O thread. At most
+ * td.client.transport.nio.maxconnectionsperhost connections per host and I/O
+ * thread are busy at a time; more requests wait for one of them.
+ *
+ * A request body that is given as a stream is read on the calling thread,
+ * at most 256 KB ahead of the I/O thread that writes it to the socket.
+ *
+ * A request on a reused connection that the server has closed meanwhile is
+ * sent again on a new connection only if it is idempotent or has not been
+ * written entirely, and its body is in memory or not read yet.
+ */
+public class NioHttpTransport implements HttpTransport {
+    private static Logger LOG = Logger.getLogger(NioHttpTransport.class.getName());
+
+    private static final int BODY_BUFFER_LIMIT = 256 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final long MAX_SELECT_TIMEOUT = 1000; // millis
+
+    // states of a response
+    private static final int STATUS_LINE = 0;
+    private static final int HEADER = 1;
+    private static final int FIXED_BODY = 2;
+    private static final int CHUNK_SIZE = 3;
+    private static final int CHUNK_DATA = 4;
+    private static final int CHUNK_END = 5;
+    private static final int TRAILER = 6;
+    private static final int UNTIL_CLOSE = 7;
+    private static final int DONE = 8;
+
+    static class Response {
+        private final int code;
+        private final String message;
+        private final Map<String, String> headers;
+        private final InputStream body;
+
+        Response(int code, String message, Map<String, String> headers, InputStream body) {
+            this.code = code;
+            this.message = message;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int getResponseCode() {
+            return code;
+        }
+
+        public String getResponseMessage() {
+            return message;
+        }
+
+        public String getHeaderField(String name) {
+            return headers.get(name.toLowerCase(Locale.ENGLISH));
+        }
+
+        public InputStream getInputStream() {
+            return body;
+        }
+    }
+
+    private final Properties props;
+    private final int connectTimeout;
+    private final int getReadTimeout;
+    private final int putReadTimeout;
+    private final int postReadTimeout;
+    private final int maxIdlePerHost;
+    private final long idleTimeout;
+    private final long drainLimit;
+    private final int putBufferSize;
+    private final int maxConnectionsPerHost;
+
+    private final IOLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public NioHttpTransport(Config conf) throws IOException {
+        this(conf.getProperties());
+    }
+
+    public NioHttpTransport(Properties props) throws IOException {
+        this.props = props;
+        connectTimeout = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_CONNECT_TIMEOUT,
+                Config.TD_CLIENT_CONNECT_TIMEOUT_DEFAULTVALUE));
+        getReadTimeout = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_GETMETHOD_READ_TIMEOUT,
+                Config.TD_CLIENT_GETMETHOD_READ_TIMEOUT_DEFAULTVALUE));
+        putReadTimeout = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_PUTMETHOD_READ_TIMEOUT,
+                Config.TD_CLIENT_PUTMETHOD_READ_TIMEOUT_DEFAULTVALUE));
+        postReadTimeout = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_POSTMETHOD_READ_TIMEOUT,
+                Config.TD_CLIENT_POSTMETHOD_READ_TIMEOUT_DEFAULTVALUE));
+        maxIdlePerHost = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_CONNECTION_POOL_MAX_IDLE_PER_HOST,
+                Config.TD_CLIENT_CONNECTION_POOL_MAX_IDLE_PER_HOST_DEFAULTVALUE));
+        idleTimeout = Long.parseLong(props.getProperty(
+                Config.TD_CLIENT_CONNECTION_POOL_IDLE_TIMEOUT,
+                Config.TD_CLIENT_CONNECTION_POOL_IDLE_TIMEOUT_DEFAULTVALUE));
+        drainLimit = Long.parseLong(props.getProperty(
+                Config.TD_CLIENT_CONNECTION_DRAIN_LIMIT,
+                Config.TD_CLIENT_CONNECTION_DRAIN_LIMIT_DEFAULTVALUE));
+        putBufferSize = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_PUTMETHOD_BUFFER_SIZE,
+                Config.TD_CLIENT_PUTMETHOD_BUFFER_SIZE_DEFAULTVALUE));
+        maxConnectionsPerHost = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_TRANSPORT_NIO_MAX_CONNECTIONS_PER_HOST,
+                Config.TD_CLIENT_TRANSPORT_NIO_MAX_CONNECTIONS_PER_HOST_DEFAULTVALUE));
+        int threads = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_TRANSPORT_NIO_THREADS,
+                Config.TD_CLIENT_TRANSPORT_NIO_THREADS_DEFAULTVALUE));
+        if (threads < 1) {
+            throw new IllegalArgumentException("td.client.transport.nio.threads must be positive: "
+                    + threads);
+        }
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException(
+                    "td.client.transport.nio.maxconnectionsperhost must be positive: "
+                    + maxConnectionsPerHost);
+        }
+
+        loops = new IOLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new IOLoop(i);
+        }
+        for (IOLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    public HttpConnection createConnection() {
+        return new NioHttpConnection(props, this);
+    }
+
+    public boolean isKeepAliveEnabled() {
+        return maxIdlePerHost > 0;
+    }
+
+    /**
+     * Sends a request. The future completes when the response header is
+     * received, on the I/O thread, and the body is read as it arrives.
+     *
+     * A request body given as a stream is read on the calling thread before
+     * this method returns, unless the request fails earlier. Otherwise the
+     * method returns once the request is handed to an I/O thread.
+     */
+    ResponseFuture send(Request<?> request, String method, String hostAndPort,
+            String path, Map<String, String> header, byte[] bytes, InputStream in,
+            long size, int readTimeout) {
+        String host = hostAndPort;
+        int port = 80;
+        int i = hostAndPort.lastIndexOf(':');
+        if (i >= 0) {
+            host = hostAndPort.substring(0, i);
+            port = Integer.parseInt(hostAndPort.substring(i + 1));
+        }
+
+        IOLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        final Exchange ex;
+        try {
+            // a proxy takes the absolute URL as the request target
+            String target = path;
+            String url = "http://" + hostAndPort + path;
+            InetSocketAddress proxy = AbstractHttpConnection.selectHttpProxy(url);
+            if (proxy != null) {
+                host = proxy.getHostName();
+                port = proxy.getPort();
+                target = url;
+            }
+
+            if (in instanceof ByteArrayInputStream && size >= 0) {
+                // in memory already; as bytes, it can be sent again
+                bytes = readFully(in, size);
+                in = null;
+            }
+            byte[] head = AbstractHttpConnection.toRequestHeader(request, method, hostAndPort,
+                    target, header, size, isKeepAliveEnabled());
+            ex = new Exchange(loop, host + ":" + port, method, path, head, bytes, in != null,
+                    readTimeout);
+        } catch (IOException e) {
+            ResponseFuture f = new ResponseFuture();
+            f.fail(e);
+            return f;
+        }
+
+        // resolved on the calling thread, not to block an I/O thread
+        ex.address = new InetSocketAddress(host, port);
+        if (ex.address.isUnresolved()) {
+            ex.fail(new UnknownHostException(host));
+            return ex.future;
+        }
+
+        loop.execute(new Runnable() {
+            public void run() {
+                ex.loop.dispatch(ex);
+            }
+        });
+        if (ex.bodySource != null) {
+            try {
+                ex.bodySource.pump(in, size, putBufferSize);
+            } catch (IOException e) {
+                // fails here rather than when the I/O thread gets to it
+                ex.future.fail(e);
+            }
+        }
+        return ex.future;
+    }
+
+    private static byte[] readFully(InputStream in, long size) throws IOException {
+        byte[] bytes = new byte[(int) size];
+        int off = 0;
+        while (off < bytes.length) {
+            int len = in.read(bytes, off, bytes.length - off);
+            if (len == -1) {
+                throw new IOException(String.format(
+                        "request body is shorter than its size: %d bytes missing",
+                        bytes.length - off));
+            }
+            off += len;
+        }
+        return bytes;
+    }
+
+    /**
+     * Waits for the response of a future from {@link #send}.
+     */
+    static Response await(Future<Response> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Closes all connections and stops the I/O threads. Requests in flight
+     * fail.
+     */
+    public void close() {
+        closed = true;
+        for (IOLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public int getOpenConnectionCount() {
+        int count = 0;
+        for (IOLoop loop : loops) {
+            count += loop.openCount;
+        }
+        return count;
+    }
+
+    static class ResponseFuture implements Future<Response> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicBoolean set = new AtomicBoolean();
+        private volatile Response response;
+        private volatile IOException error;
+        private List<Runnable> listeners = new ArrayList<Runnable>();
+
+        boolean complete(Response response) {
+            if (!set.compareAndSet(false, true)) {
+                return false;
+            }
+            this.response = response;
+            done.countDown();
+            notifyListeners();
+            return true;
+        }
+
+        boolean fail(IOException error) {
+            if (!set.compareAndSet(false, true)) {
+                return false;
+            }
+            this.error = error;
+            done.countDown();
+            notifyListeners();
+            return true;
+        }
+
+        /**
+         * Runs the listener once the future is done: on the thread that
+         * completes it, usually an I/O thread, or on the calling thread if it
+         * is done already. It must not block.
+         */
+        void addListener(Runnable listener) {
+            synchronized (this) {
+                if (listeners != null) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            runListener(listener);
+        }
+
+        private void notifyListeners() {
+            List<Runnable> ls;
+            synchronized (this) {
+                ls = listeners;
+                listeners = null;
+            }
+            for (Runnable l : ls) {
+                runListener(l);
+            }
+        }
+
+        private static void runListener(Runnable listener) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Response listener failed: " + e.getMessage(), e);
+            }
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public Response get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResult();
+        }
+
+        public Response get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getResult();
+        }
+
+        private Response getResult() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * A socket to a host. It is used by its I/O thread only.
+     */
+    private static class Conn {
+        private final String hostKey;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private boolean connecting = false;
+        private long connectDeadline;
+        private boolean reused = false;
+        private long lastUsed;
+        private Exchange exchange;
+
+        Conn(String hostKey, SocketChannel channel) {
+            this.hostKey = hostKey;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A request and its response. The fields other than the future are
+     * accessed by the I/O thread only.
+     */
+    private class Exchange {
+        private final IOLoop loop;
+        private final String hostKey;
+        private final boolean noResponseBody;
+        private final boolean idempotent;
+        private final byte[] head;
+        private final byte[] body;
+        private final RequestBody bodySource;
+        private final int readTimeout;
+        private final ResponseFuture future = new ResponseFuture();
+        private InetSocketAddress address;
+        private Conn conn;
+        private long deadline;
+        private boolean paused;
+
+        // request
+        private int writeStep;
+        private ByteBuffer out;
+        private boolean waitingForBody;
+        private boolean requestSent;
+
+        // response
+        private boolean responseStarted;
+        private int state;
+        private StringBuilder line = new StringBuilder();
+        private int code;
+        private String message;
+        private boolean http10;
+        private Map<String, String> headers;
+        private boolean keepAlive;
+        private long rest;
+        private boolean trailingBytes;
+        private BodyStream bodyStream;
+        private boolean discarding;
+        private long discarded;
+
+        Exchange(IOLoop loop, String hostKey, String method, String path, byte[] head,
+                byte[] body, boolean streamedBody, int readTimeout) {
+            this.loop = loop;
+            this.hostKey = hostKey;
+            this.noResponseBody = method.equals("HEAD");
+            this.idempotent = AbstractHttpConnection.isIdempotent(method, path);
+            this.head = head;
+            this.body = body;
+            this.bodySource = streamedBody ? new RequestBody(this) : null;
+            this.readTimeout = readTimeout;
+        }
+
+        /**
+         * Returns true if the request can be sent again after the connection
+         * failed before any response: the server might have processed it
+         * unless it was not written entirely, and a streamed body can be sent
+         * only once.
+         */
+        boolean canSendAgain() {
+            return (idempotent || !requestSent)
+                    && (bodySource == null || bodySource.isUntouched());
+        }
+
+        void startAttempt() throws IOException {
+            writeStep = 0;
+            out = null;
+            waitingForBody = false;
+            requestSent = false;
+            responseStarted = false;
+            state = STATUS_LINE;
+            line.setLength(0);
+            headers = null;
+            trailingBytes = false;
+            paused = false;
+            touch();
+        }
+
+        void touch() {
+            if (readTimeout > 0) {
+                deadline = System.currentTimeMillis() + readTimeout;
+                loop.scheduleCheck(deadline);
+            } else {
+                deadline = 0;
+            }
+        }
+
+        /**
+         * Prepares the next bytes of the request to write. Returns false when
+         * the whole request has been written.
+         */
+        boolean fillOut() throws IOException {
+            switch (writeStep) {
+            case 0:
+                out = ByteBuffer.wrap(head);
+                writeStep = 1;
+                return true;
+            case 1:
+                if (body != null) {
+                    out = ByteBuffer.wrap(body);
+                    writeStep = 2;
+                    return true;
+                } else if (bodySource == null) {
+                    writeStep = 2;
+                    return false;
+                }
+
+                byte[] chunk = bodySource.poll();
+                if (chunk == null) {
+                    // until the calling thread has read more of the body
+                    out = null;
+                    waitingForBody = true;
+                    return true;
+                } else if (chunk == RequestBody.END) {
+                    writeStep = 2;
+                    return false;
+                }
+                out = ByteBuffer.wrap(chunk);
+                return true;
+            default:
+                return false;
+            }
+        }
+
+        void feed(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                switch (state) {
+                case STATUS_LINE:
+                case HEADER:
+                case CHUNK_SIZE:
+                case CHUNK_END:
+                case TRAILER:
+                    String l = readLine(buf);
+                    if (l == null) {
+                        return;
+                    }
+                    onLine(l);
+                    break;
+                case FIXED_BODY:
+                case CHUNK_DATA:
+                    int n = (int) Math.min(rest, buf.remaining());
+                    onBody(buf, n);
+                    rest -= n;
+                    if (rest == 0) {
+                        state = state == FIXED_BODY ? DONE : CHUNK_END;
+                    }
+                    break;
+                case UNTIL_CLOSE:
+                    onBody(buf, buf.remaining());
+                    break;
+                default:
+                    // nothing must follow a response
+                    trailingBytes = true;
+                    buf.position(buf.limit());
+                    return;
+                }
+            }
+        }
+
+        private String readLine(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                byte b = buf.get();
+                if (b == '\n') {
+                    int len = line.length();
+                    if (len > 0 && line.charAt(len - 1) == '\r') {
+                        line.setLength(len - 1);
+                    }
+                    String l = line.toString();
+                    line.setLength(0);
+                    return l;
+                }
+                line.append((char) (b & 0xff));
+                if (line.length() > MAX_LINE_LENGTH) {
+                    throw new IOException("too long line in response: " + hostKey);
+                }
+            }
+            return null;
+        }
+
+        private void onLine(String l) throws IOException {
+            switch (state) {
+            case STATUS_LINE:
+                String[] status = l.split(" ", 3);
+                if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                    throw new IOException("invalid status line: " + l);
+                }
+                http10 = status[0].equals("HTTP/1.0");
+                try {
+                    code = Integer.parseInt(status[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid status line: " + l);
+                }
+                message = status.length > 2 ? status[2] : "";
+                headers = new HashMap<String, String>();
+                state = HEADER;
+                break;
+            case HEADER:
+                if (l.length() > 0) {
+                    int i = l.indexOf(':');
+                    if (i > 0) {
+                        headers.put(l.substring(0, i).trim().toLowerCase(Locale.ENGLISH),
+                                l.substring(i + 1).trim());
+                    }
+                } else if (code / 100 == 1) {
+                    // skip 100 Continue
+                    state = STATUS_LINE;
+                } else {
+                    onHeaderEnd();
+                }
+                break;
+            case CHUNK_SIZE:
+                int i = l.indexOf(';');
+                String hex = (i >= 0 ? l.substring(0, i) : l).trim();
+                try {
+                    rest = Long.parseLong(hex, 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid chunk size: " + l);
+                }
+                state = rest == 0 ? TRAILER : CHUNK_DATA;
+                break;
+            case CHUNK_END:
+                if (l.length() > 0) {
+                    throw new IOException("invalid end of chunk: " + l);
+                }
+                state = CHUNK_SIZE;
+                break;
+            case TRAILER:
+                if (l.length() == 0) {
+                    state = DONE;
+                }
+                break;
+            }
+        }
+
+        private void onHeaderEnd() throws IOException {
+            String connection = headers.get("connection");
+            if (http10) {
+                keepAlive = "keep-alive".equalsIgnoreCase(connection);
+            } else {
+                keepAlive = !"close".equalsIgnoreCase(connection);
+            }
+            keepAlive = keepAlive && isKeepAliveEnabled();
+
+            String transferEncoding = headers.get("transfer-encoding");
+            String contentLength = headers.get("content-length");
+            if (noResponseBody || code == 204 || code == 304) {
+                state = DONE;
+            } else if (transferEncoding != null
+                    && transferEncoding.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+                state = CHUNK_SIZE;
+            } else if (contentLength != null) {
+                try {
+                    rest = Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid Content-Length: " + contentLength);
+                }
+                state = rest == 0 ? DONE : FIXED_BODY;
+            } else {
+                state = UNTIL_CLOSE;
+                keepAlive = false;
+            }
+
+            bodyStream = new BodyStream(this);
+            future.complete(new Response(code, message, headers, bodyStream));
+        }
+
+        private void onBody(ByteBuffer buf, int len) {
+            if (discarding) {
+                discarded += len;
+                buf.position(buf.position() + len);
+            } else {
+                byte[] b = new byte[len];
+                buf.get(b);
+                bodyStream.offer(b);
+            }
+        }
+
+        /**
+         * Called when the server closes the connection.
+         */
+        void onEndOfStream() throws IOException {
+            if (state == UNTIL_CLOSE) {
+                state = DONE;
+            } else {
+                throw new IOException("connection closed by server: " + hostKey);
+            }
+        }
+
+        boolean isReusable() {
+            return keepAlive && requestSent && !trailingBytes;
+        }
+
+        void finish() {
+            if (bodySource != null) {
+                bodySource.abort();
+            }
+            bodyStream.finish();
+        }
+
+        void fail(IOException e) {
+            if (bodySource != null) {
+                bodySource.abort();
+            }
+            if (!future.fail(e) && bodyStream != null) {
+                bodyStream.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Request body that the calling thread reads from its stream and an I/O
+     * thread writes to the socket, so that a slow stream, e.g. a file, never
+     * blocks an I/O thread. The calling thread waits while 256 KB of the body
+     * is not written yet.
+     */
+    private static class RequestBody {
+        static final byte[] END = new byte[0];
+
+        private final Exchange exchange;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+        private long buffered = 0;
+        private boolean taken = false;
+        private boolean waiting = false;
+        private boolean aborted = false;
+        private IOException error;
+
+        RequestBody(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        /**
+         * Reads the body on the calling thread and hands it to the I/O
+         * thread, in chunked encoding if the size is negative. It returns
+         * early when the exchange ends, and throws the error of reading the
+         * stream after handing it to the I/O thread, which fails the exchange.
+         */
+        void pump(InputStream in, long size, int bufferSize) throws IOException {
+            try {
+                long rest = size;
+                while (size < 0 || rest > 0) {
+                    int max = size < 0 ? bufferSize : (int) Math.min(bufferSize, rest);
+                    byte[] buf = new byte[max];
+                    int len = in.read(buf);
+                    if (len == -1) {
+                        if (size >= 0) {
+                            throw new IOException(String.format(
+                                    "request body is shorter than its size: %d bytes missing",
+                                    rest));
+                        }
+                        break;
+                    }
+
+                    byte[] chunk;
+                    if (size >= 0) {
+                        rest -= len;
+                        chunk = len == max ? buf : Arrays.copyOf(buf, len);
+                    } else {
+                        byte[] sizeLine = (Integer.toHexString(len) + "\r\n")
+                                .getBytes("ISO-8859-1");
+                        chunk = new byte[sizeLine.length + len + 2];
+                        System.arraycopy(sizeLine, 0, chunk, 0, sizeLine.length);
+                        System.arraycopy(buf, 0, chunk, sizeLine.length, len);
+                        chunk[chunk.length - 2] = '\r';
+                        chunk[chunk.length - 1] = '\n';
+                    }
+                    if (!offer(chunk)) {
+                        return;
+                    }
+                }
+                if (size < 0 && !offer("0\r\n\r\n".getBytes("ISO-8859-1"))) {
+                    return;
+                }
+                offer(END);
+            } catch (IOException e) {
+                // the I/O thread fails the exchange with it
+                lock.lock();
+                try {
+                    error = e;
+                } finally {
+                    lock.unlock();
+                }
+                wakeUp();
+                throw e;
+            }
+        }
+
+        private boolean offer(byte[] chunk) throws IOException {
+            lock.lock();
+            try {
+                while (buffered >= BODY_BUFFER_LIMIT && !aborted) {
+                    try {
+                        changed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while sending the request");
+                    }
+                }
+                if (aborted) {
+                    return false;
+                }
+                chunks.add(chunk);
+                buffered += chunk.length;
+            } finally {
+                lock.unlock();
+            }
+            wakeUp();
+            return true;
+        }
+
+        private void wakeUp() {
+            boolean wasWaiting;
+            lock.lock();
+            try {
+                wasWaiting = waiting;
+                waiting = false;
+            } finally {
+                lock.unlock();
+            }
+            if (wasWaiting) {
+                exchange.loop.resumeWrite(exchange);
+            }
+        }
+
+        /**
+         * Returns the next chunk, {@link #END} at the end, or null if the
+         * calling thread has not read it yet; then the I/O thread is woken up
+         * by {@link IOLoop#resumeWrite}.
+         */
+        byte[] poll() throws IOException {
+            lock.lock();
+            try {
+                if (error != null) {
+                    throw error;
+                }
+                byte[] chunk = chunks.poll();
+                if (chunk == null) {
+                    waiting = true;
+                    return null;
+                }
+                buffered -= chunk.length;
+                taken = true;
+                changed.signalAll();
+                return chunk;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isUntouched() {
+            lock.lock();
+            try {
+                return !taken && error == null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void abort() {
+            lock.lock();
+            try {
+                aborted = true;
+                chunks.clear();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Response body that an I/O thread fills and the caller reads. It waits
+     * on a lock rather than a monitor, so that a reader on a virtual thread
+     * is unmounted from its carrier while the body arrives.
+     */
+    private static class BodyStream extends InputStream {
+        private final Exchange exchange;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+        private int pos = 0;
+        private long buffered = 0;
+        private boolean eof = false;
+        private IOException error;
+        private boolean closed = false;
+        private boolean paused = false;
+
+        BodyStream(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        void offer(byte[] b) {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                chunks.add(b);
+                buffered += b.length;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Returns true if the reader is behind, i.e. reading from the socket
+         * should pause until it catches up.
+         */
+        boolean pauseIfFull() {
+            lock.lock();
+            try {
+                if (buffered >= BODY_BUFFER_LIMIT) {
+                    paused = true;
+                }
+                return paused;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void finish() {
+            lock.lock();
+            try {
+                eof = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void fail(IOException e) {
+            lock.lock();
+            try {
+                if (!eof) {
+                    error = e;
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n;
+            boolean resume = false;
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new IOException("stream is closed");
+                }
+                while (chunks.isEmpty() && !eof && error == null) {
+                    try {
+                        changed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while reading the response");
+                    }
+                }
+                if (chunks.isEmpty()) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    return -1;
+                }
+
+                byte[] head = chunks.getFirst();
+                n = Math.min(len, head.length - pos);
+                System.arraycopy(head, pos, b, off, n);
+                pos += n;
+                if (pos == head.length) {
+                    chunks.removeFirst();
+                    pos = 0;
+                }
+                buffered -= n;
+                if (paused && buffered < BODY_BUFFER_LIMIT / 2) {
+                    paused = false;
+                    resume = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (resume) {
+                exchange.loop.resume(exchange);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return (int) Math.min(buffered, Integer.MAX_VALUE);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Discards the rest of the body. The connection is reused if the rest
+         * is within td.client.connection.drain.limit.
+         */
+        @Override
+        public void close() {
+            boolean discard;
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                discard = !eof && error == null;
+                chunks.clear();
+                buffered = 0;
+                paused = false;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (discard) {
+                exchange.loop.discard(exchange);
+            }
+        }
+    }
+
+    private class IOLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private volatile boolean running = true;
+        private volatile int openCount = 0;
+
+        // accessed by the I/O thread only
+        private final Set<Conn> conns = new HashSet<Conn>();
+        private final Map<String, LinkedList<Conn>> idles = new HashMap<String, LinkedList<Conn>>();
+        private final Map<String, Integer> busyCounts = new HashMap<String, Integer>();
+        private final Map<String, LinkedList<Exchange>> pendings =
+            new HashMap<String, LinkedList<Exchange>>();
+        private long nextCheck = 0;
+
+        IOLoop(int id) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "td-client-nio-" + id);
+            thread.setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (running) {
+                selector.wakeup();
+            } else {
+                // the I/O thread has stopped; the tasks fail or do nothing
+                runTasks();
+            }
+        }
+
+        void resume(final Exchange ex) {
+            execute(new Runnable() {
+                public void run() {
+                    Conn c = ex.conn;
+                    if (running && c != null && c.exchange == ex && c.key.isValid()) {
+                        ex.paused = false;
+                        c.key.interestOps(c.key.interestOps() | SelectionKey.OP_READ);
+                        ex.touch();
+                    }
+                }
+            });
+        }
+
+        void resumeWrite(final Exchange ex) {
+            execute(new Runnable() {
+                public void run() {
+                    Conn c = ex.conn;
+                    if (running && c != null && c.exchange == ex && c.key.isValid()
+                            && !ex.requestSent) {
+                        ex.waitingForBody = false;
+                        c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+                        ex.touch();
+                        try {
+                            write(c);
+                        } catch (IOException e) {
+                            failConn(c, e);
+                        }
+                    }
+                }
+            });
+        }
+
+        void discard(final Exchange ex) {
+            execute(new Runnable() {
+                public void run() {
+                    Conn c = ex.conn;
+                    if (running && c != null && c.exchange == ex && c.key.isValid()) {
+                        ex.discarding = true;
+                        ex.paused = false;
+                        c.key.interestOps(c.key.interestOps() | SelectionKey.OP_READ);
+                        ex.touch();
+                    }
+                }
+            });
+        }
+
+        void scheduleCheck(long time) {
+            if (time < nextCheck) {
+                nextCheck = time;
+            }
+        }
+
+        public void run() {
+            try {
+                while (!closed) {
+                    long timeout = nextCheck - System.currentTimeMillis();
+                    selector.select(Math.max(1, Math.min(timeout, MAX_SELECT_TIMEOUT)));
+                    runTasks();
+
+                    Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        handle((Conn) key.attachment(), key);
+                    }
+                    checkTimeouts();
+                }
+            } catch (Throwable t) {
+                LOG.log(Level.SEVERE, "I/O thread of NioHttpTransport failed", t);
+            } finally {
+                shutdown();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void handle(Conn c, SelectionKey key) {
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    if (c.channel.finishConnect()) {
+                        c.connecting = false;
+                        beginRequest(c);
+                    }
+                }
+                if (key.isValid() && key.isWritable() && c.exchange != null) {
+                    write(c);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(c);
+                }
+            } catch (IOException e) {
+                failConn(c, e);
+            }
+        }
+
+        private void dispatch(Exchange ex) {
+            if (!running) {
+                ex.fail(new IOException("transport is closed"));
+                return;
+            }
+
+            Conn c = pollIdle(ex.hostKey);
+            if (c != null) {
+                hitCount.incrementAndGet();
+                c.reused = true;
+                assign(c, ex);
+                try {
+                    beginRequest(c);
+                } catch (IOException e) {
+                    failConn(c, e);
+                }
+                return;
+            }
+
+            if (getBusyCount(ex.hostKey) >= maxConnectionsPerHost) {
+                LinkedList<Exchange> list = pendings.get(ex.hostKey);
+                if (list == null) {
+                    list = new LinkedList<Exchange>();
+                    pendings.put(ex.hostKey, list);
+                }
+                list.add(ex);
+                return;
+            }
+
+            missCount.incrementAndGet();
+            SocketChannel channel;
+            try {
+                channel = SocketChannel.open();
+            } catch (IOException e) {
+                ex.fail(e);
+                return;
+            }
+            c = new Conn(ex.hostKey, channel);
+            conns.add(c);
+            openCount = conns.size();
+            assign(c, ex);
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                if (channel.connect(ex.address)) {
+                    c.key = channel.register(selector, 0, c);
+                    beginRequest(c);
+                } else {
+                    c.connecting = true;
+                    if (connectTimeout > 0) {
+                        c.connectDeadline = System.currentTimeMillis() + connectTimeout;
+                        scheduleCheck(c.connectDeadline);
+                    }
+                    c.key = channel.register(selector, SelectionKey.OP_CONNECT, c);
+                }
+            } catch (IOException e) {
+                failConn(c, e);
+            }
+        }
+
+        private void dispatchPending(String hostKey) {
+            LinkedList<Exchange> list = pendings.get(hostKey);
+            if (list == null) {
+                return;
+            }
+            while (!list.isEmpty() && getBusyCount(hostKey) < maxConnectionsPerHost) {
+                dispatch(list.removeFirst());
+            }
+            if (list.isEmpty()) {
+                pendings.remove(hostKey);
+            }
+        }
+
+        private void assign(Conn c, Exchange ex) {
+            c.exchange = ex;
+            ex.conn = c;
+            busyCounts.put(c.hostKey, getBusyCount(c.hostKey) + 1);
+        }
+
+        private void unassign(Conn c) {
+            c.exchange.conn = null;
+            c.exchange = null;
+            int count = getBusyCount(c.hostKey) - 1;
+            if (count > 0) {
+                busyCounts.put(c.hostKey, count);
+            } else {
+                busyCounts.remove(c.hostKey);
+            }
+        }
+
+        private int getBusyCount(String hostKey) {
+            Integer count = busyCounts.get(hostKey);
+            return count == null ? 0 : count;
+        }
+
+        private void beginRequest(Conn c) throws IOException {
+            c.exchange.startAttempt();
+            c.key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+            write(c);
+        }
+
+        private void write(Conn c) throws IOException {
+            Exchange ex = c.exchange;
+            while (!ex.requestSent) {
+                if (ex.out == null || !ex.out.hasRemaining()) {
+                    if (!ex.fillOut()) {
+                        ex.requestSent = true;
+                        break;
+                    } else if (ex.out == null) {
+                        c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_WRITE);
+                        return; // until resumeWrite
+                    }
+                }
+                if (c.channel.write(ex.out) > 0) {
+                    ex.touch();
+                }
+                if (ex.out.hasRemaining()) {
+                    return; // until the socket is writable again
+                }
+            }
+            if (c.key.isValid()) {
+                c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void read(Conn c) throws IOException {
+            Exchange ex = c.exchange;
+            readBuffer.clear();
+            int n = c.channel.read(readBuffer);
+            if (ex == null) {
+                // an idle connection must have nothing to read; EOF means that
+                // the server has closed it
+                if (n != 0) {
+                    evictionCount.incrementAndGet();
+                    closeConn(c);
+                }
+                return;
+            }
+
+            if (n == -1) {
+                ex.onEndOfStream();
+            } else if (n > 0) {
+                ex.responseStarted = true;
+                ex.touch();
+                readBuffer.flip();
+                ex.feed(readBuffer);
+            }
+
+            if (ex.state == DONE) {
+                boolean reusable = ex.isReusable() && n != -1;
+                unassign(c);
+                ex.finish();
+                if (reusable) {
+                    release(c);
+                } else {
+                    closeConn(c);
+                }
+                dispatchPending(c.hostKey);
+            } else if (ex.discarding && ex.discarded > drainLimit) {
+                // not worth reading to the end
+                unassign(c);
+                closeConn(c);
+                dispatchPending(c.hostKey);
+            } else if (ex.bodyStream != null && !ex.discarding && ex.bodyStream.pauseIfFull()) {
+                ex.paused = true;
+                c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        private void failConn(Conn c, IOException e) {
+            closeConn(c);
+            Exchange ex = c.exchange;
+            if (ex == null) {
+                return;
+            }
+            unassign(c);
+
+            if (c.reused && !ex.responseStarted && ex.canSendAgain()
+                    && !(e instanceof SocketTimeoutException) && running) {
+                // the server might close the idle connection at the same time
+                LOG.fine("retry on a new connection: " + e.getMessage());
+                dispatch(ex);
+            } else {
+                ex.fail(e);
+            }
+            dispatchPending(c.hostKey);
+        }
+
+        private Conn pollIdle(String hostKey) {
+            LinkedList<Conn> list = idles.get(hostKey);
+            if (list == null) {
+                return null;
+            }
+            Conn c = null;
+            while (!list.isEmpty() && c == null) {
+                c = list.removeFirst();
+                if (!c.channel.isOpen() || !c.key.isValid()) {
+                    closeConn(c);
+                    c = null;
+                }
+            }
+            if (list.isEmpty()) {
+                idles.remove(hostKey);
+            }
+            return c;
+        }
+
+        private void release(Conn c) {
+            if (!running || !c.key.isValid()) {
+                closeConn(c);
+                return;
+            }
+            c.lastUsed = System.currentTimeMillis();
+            scheduleCheck(c.lastUsed + idleTimeout);
+            // readable only when the server closes it
+            c.key.interestOps(SelectionKey.OP_READ);
+
+            LinkedList<Conn> list = idles.get(c.hostKey);
+            if (list == null) {
+                list = new LinkedList<Conn>();
+                idles.put(c.hostKey, list);
+            }
+            list.addFirst(c);
+            if (list.size() > maxIdlePerHost) {
+                evictionCount.incrementAndGet();
+                closeConn(list.removeLast());
+            }
+        }
+
+        private void closeConn(Conn c) {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("close connection to " + c.hostKey);
+            }
+            conns.remove(c);
+            openCount = conns.size();
+            LinkedList<Conn> list = idles.get(c.hostKey);
+            if (list != null) {
+                list.remove(c);
+                if (list.isEmpty()) {
+                    idles.remove(c.hostKey);
+                }
+            }
+            if (c.key != null) {
+                c.key.cancel();
+            }
+            try {
+                c.channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        private void checkTimeouts() {
+            long now = System.currentTimeMillis();
+            if (now < nextCheck) {
+                return;
+            }
+            long next = now + MAX_SELECT_TIMEOUT;
+            for (Conn c : new ArrayList<Conn>(conns)) {
+                if (!conns.contains(c)) {
+                    continue; // closed by an earlier failure
+                }
+                if (c.connecting) {
+                    if (c.connectDeadline == 0) {
+                        continue;
+                    } else if (now >= c.connectDeadline) {
+                        failConn(c, new SocketTimeoutException("connect timed out: " + c.hostKey));
+                    } else {
+                        next = Math.min(next, c.connectDeadline);
+                    }
+                } else if (c.exchange != null) {
+                    Exchange ex = c.exchange;
+                    if (ex.deadline == 0 || ex.paused || ex.waitingForBody) {
+                        continue;
+                    } else if (now >= ex.deadline) {
+                        failConn(c, new SocketTimeoutException("Read timed out: " + c.hostKey));
+                    } else {
+                        next = Math.min(next, ex.deadline);
+                    }
+                } else {
+                    long expiry = c.lastUsed + idleTimeout;
+                    if (now >= expiry) {
+                        evictionCount.incrementAndGet();
+                        closeConn(c);
+                    } else {
+                        next = Math.min(next, expiry);
+                    }
+                }
+            }
+            nextCheck = next;
+        }
+
+        private void shutdown() {
+            running = false;
+            runTasks();
+
+            IOException e = new IOException("transport is closed");
+            for (Conn c : new ArrayList<Conn>(conns)) {
+                Exchange ex = c.exchange;
+                closeConn(c);
+                if (ex != null) {
+                    ex.fail(e);
+                }
+            }
+            for (LinkedList<Exchange> list : pendings.values()) {
+                for (Exchange ex : list) {
+                    ex.fail(e);
+                }
+            }
+            pendings.clear();
+            idles.clear();
+            try {
+                selector.close();
+            } catch (IOException ioe) {
+                // ignore
+            }
+        }
+    }
+}
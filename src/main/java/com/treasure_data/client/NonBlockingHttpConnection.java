@@ -0,0 +1,36 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+/**
+ * Connection whose do*Request methods return as soon as the request is handed
+ * to the transport, without waiting for the response. The response methods
+ * wait for it as usual, so the blocking client adaptors work unchanged; an
+ * async caller registers a listener instead and reads the response once it
+ * is there.
+ */
+public interface NonBlockingHttpConnection extends HttpConnection {
+
+    /**
+     * Runs the listener once the response header of the current request has
+     * arrived or the request has failed: on a transport thread, or on the
+     * calling thread if that happened already. The listener must not block;
+     * it should hand the reading of the response to another thread.
+     */
+    void addResponseListener(Runnable listener);
+}
@@ -0,0 +1,320 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * gzip output stream that compresses on many cores. The data is split into
+ * blocks, and each block is compressed on a worker thread into its own gzip
+ * member. The members are written in order, so the output is a multi-member
+ * gzip file (RFC 1952) that any gzip reader, including GZIPInputStream and
+ * the import API, reads as one stream.
+ *
+ * The output is a bit larger than that of GZIPOutputStream because blocks do
+ * not share a dictionary; with the default 128KB block, about 2% larger for
+ * packed records.
+ *
+ * By default the workers are a shared pool of daemon threads, one per core.
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int OS_UNKNOWN = 255;
+
+    private static ExecutorService sharedExecutor;
+
+    /**
+     * Returns the shared pool of compression threads.
+     */
+    public static synchronized ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            sharedExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "td-gzip-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sharedExecutor;
+    }
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int level;
+    private final int maxPendingBlocks;
+
+    private final LinkedList<Future<Member>> pending = new LinkedList<Future<Member>>();
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final ConcurrentLinkedQueue<byte[]> freeBlocks = new ConcurrentLinkedQueue<byte[]>();
+
+    private byte[] block;
+    private int blockLength = 0;
+    private boolean written = false;
+    private boolean finished = false;
+    private volatile boolean closed = false;
+
+    public ParallelGZIPOutputStream(OutputStream out) {
+        this(out, getSharedExecutor());
+    }
+
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor) {
+        this(out, executor, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param blockSize size of uncompressed data in one gzip member
+     * @param level compression level of {@link Deflater}
+     */
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor,
+            int blockSize, int level) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        this.out = out;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.level = level;
+        // enough blocks to keep every core busy while the oldest one is written
+        this.maxPendingBlocks = Runtime.getRuntime().availableProcessors() * 2;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        block[blockLength++] = (byte) b;
+        if (blockLength == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the members that have been compressed so far and flushes the
+     * underlying stream. Like GZIPOutputStream, it does not force out the data
+     * of the current block.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!pending.isEmpty() && pending.getFirst().isDone()) {
+            writeMember(pending.removeFirst());
+        }
+        out.flush();
+    }
+
+    /**
+     * Compresses the rest of the data and writes all the members without
+     * closing the underlying stream. The native memory of the deflaters is
+     * released, as nothing more can be written.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        ensureOpen();
+        if (blockLength > 0 || !written) {
+            // an empty input is still written as one empty member
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeMember(pending.removeFirst());
+        }
+        finished = true;
+        block = null;
+        freeBlocks.clear();
+        // every worker has returned its deflater before its member completed
+        endDeflaters();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            finish();
+        } finally {
+            closed = true;
+            for (Future<Member> f : pending) {
+                f.cancel(false);
+            }
+            pending.clear();
+            endDeflaters();
+            out.close();
+        }
+    }
+
+    private void endDeflaters() {
+        Deflater d;
+        while ((d = deflaters.poll()) != null) {
+            d.end();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (finished) {
+            throw new IOException("write beyond end of stream");
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        if (pending.size() >= maxPendingBlocks) {
+            writeMember(pending.removeFirst());
+        }
+
+        final byte[] data = block;
+        final int length = blockLength;
+        pending.addLast(executor.submit(new Callable<Member>() {
+            public Member call() throws Exception {
+                try {
+                    return compress(data, length);
+                } finally {
+                    freeBlocks.offer(data);
+                }
+            }
+        }));
+        written = true;
+
+        byte[] b = freeBlocks.poll();
+        block = b != null ? b : new byte[blockSize];
+        blockLength = 0;
+    }
+
+    private void writeMember(Future<Member> f) throws IOException {
+        Member m;
+        try {
+            m = f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compression interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Compression failed: " + cause, cause);
+        }
+        out.write(m.bytes, 0, m.length);
+    }
+
+    private Member compress(byte[] data, int length) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+
+            // deflate rarely grows the data by more than a few bytes per 16KB
+            byte[] buf = new byte[length + (length >> 12) + 64];
+            writeHeader(buf);
+            int pos = 10;
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (pos == buf.length) {
+                    byte[] b = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, b, 0, pos);
+                    buf = b;
+                }
+                pos += deflater.deflate(buf, pos, buf.length - pos);
+            }
+            if (buf.length - pos < 8) {
+                byte[] b = new byte[pos + 8];
+                System.arraycopy(buf, 0, b, 0, pos);
+                buf = b;
+            }
+            writeInt(buf, pos, (int) crc.getValue());
+            writeInt(buf, pos + 4, length);
+            return new Member(buf, pos + 8);
+        } finally {
+            deflater.reset();
+            if (closed) {
+                deflater.end();
+            } else {
+                deflaters.offer(deflater);
+            }
+        }
+    }
+
+    private static void writeHeader(byte[] buf) {
+        buf[0] = (byte) GZIP_MAGIC;
+        buf[1] = (byte) (GZIP_MAGIC >> 8);
+        buf[2] = Deflater.DEFLATED;
+        buf[3] = 0; // flags
+        buf[4] = buf[5] = buf[6] = buf[7] = 0; // mtime
+        buf[8] = 0; // xfl
+        buf[9] = (byte) OS_UNKNOWN;
+    }
+
+    private static void writeInt(byte[] buf, int off, int v) {
+        buf[off] = (byte) v;
+        buf[off + 1] = (byte) (v >> 8);
+        buf[off + 2] = (byte) (v >> 16);
+        buf[off + 3] = (byte) (v >> 24);
+    }
+
+    private static class Member {
+        private final byte[] bytes;
+        private final int length;
+
+        Member(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+}
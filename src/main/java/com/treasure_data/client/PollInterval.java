@@ -0,0 +1,57 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+/**
+ * Interval between polls of a long-running operation, e.g. a job or the
+ * perform of a bulk import session. It grows with the time the operation has
+ * been running: a tenth of it, between the min and max intervals. A short
+ * query is checked every second, while a Hive job that has been running for
+ * an hour is checked every 30 seconds (by default).
+ */
+public class PollInterval {
+
+    private long minIntervalMillis = 1000;
+
+    private long maxIntervalMillis = 30 * 1000;
+
+    public long getMinIntervalMillis() {
+        return minIntervalMillis;
+    }
+
+    public void setMinIntervalMillis(long minIntervalMillis) {
+        this.minIntervalMillis = minIntervalMillis;
+    }
+
+    public long getMaxIntervalMillis() {
+        return maxIntervalMillis;
+    }
+
+    public void setMaxIntervalMillis(long maxIntervalMillis) {
+        this.maxIntervalMillis = maxIntervalMillis;
+    }
+
+    /**
+     * Returns the time to wait before the next poll.
+     *
+     * @param elapsedMillis time the operation has been running
+     */
+    public long getMillis(long elapsedMillis) {
+        return Math.max(minIntervalMillis, Math.min(maxIntervalMillis, elapsedMillis / 10));
+    }
+}
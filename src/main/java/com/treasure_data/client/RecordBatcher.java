@@ -0,0 +1,389 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.msgpack.MessagePack;
+import org.msgpack.MessageTypeException;
+import org.msgpack.packer.Packer;
+
+import com.treasure_data.model.Database;
+import com.treasure_data.model.Table;
+
+/**
+ * Buffers records per table and imports them in batches with importData.
+ *
+ * Records are packed into msgpack and gzipped as they are added. A table's
+ * batch is sent when its packed size reaches the max batch bytes, when it
+ * holds the max batch records, or when it is older than the max batch age.
+ * Batches are uploaded on a background thread, retried by the
+ * {@link RetryPolicy} only when the server cannot have imported them; if too
+ * many batches are waiting for upload, {@link #add(Table, Object)} blocks.
+ *
+ * <pre>
+ * RecordBatcher batcher = new RecordBatcher(client);
+ * Map&lt;String, Object&gt; record = new HashMap&lt;String, Object&gt;();
+ * record.put("time", System.currentTimeMillis() / 1000);
+ * record.put("path", "/index.html");
+ * batcher.add("mydb", "www_access", record);
+ * ...
+ * batcher.close();
+ * </pre>
+ */
+public class RecordBatcher implements Closeable {
+    private final BatchUploader uploader;
+
+    private final MessagePack msgpack = new MessagePack();
+
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+    // a record is packed here first, so that a record that cannot be packed
+    // leaves no partial bytes in its batch
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(1024);
+
+    private Packer recordPacker = msgpack.createPacker(recordBuffer);
+
+    private final LinkedList<Future<?>> uploads = new LinkedList<Future<?>>();
+
+    private final ScheduledExecutorService executor;
+
+    private long maxBatchBytes = 8 * 1024 * 1024;
+
+    private int maxBatchRecords = 100000;
+
+    private long maxBatchAgeMillis = 30 * 1000;
+
+    private int maxPendingBatches = 4;
+
+    private Semaphore pendingBatches;
+
+    private boolean closed = false;
+
+    public RecordBatcher(TreasureDataClient client) {
+        uploader = new BatchUploader(client);
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "td-record-batcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Sets the size of packed (uncompressed) records at which a batch is sent.
+     */
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public void setMaxBatchRecords(int maxBatchRecords) {
+        this.maxBatchRecords = maxBatchRecords;
+    }
+
+    public void setMaxBatchAgeMillis(long maxBatchAgeMillis) {
+        this.maxBatchAgeMillis = maxBatchAgeMillis;
+    }
+
+    /**
+     * Sets how many batches may wait for upload before add blocks.
+     */
+    public void setMaxPendingBatches(int maxPendingBatches) {
+        this.maxPendingBatches = maxPendingBatches;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        uploader.setRetryPolicy(retryPolicy);
+    }
+
+    public void add(String databaseName, String tableName, Object record)
+            throws ClientException {
+        add(new Table(new Database(databaseName), tableName), record);
+    }
+
+    /**
+     * Adds a record to the table's batch. A record is a Map whose keys are
+     * column names, or any object that msgpack can serialize as a map; the
+     * 'time' column is required by the server.
+     */
+    public void add(Table table, Object record) throws ClientException {
+        Batch full = null;
+        synchronized (this) {
+            if (closed) {
+                throw new ClientException("RecordBatcher is already closed");
+            }
+            start();
+
+            String key = toKey(table);
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(table);
+                batches.put(key, batch);
+            }
+            try {
+                pack(record);
+                batch.add(recordBuffer);
+            } catch (IOException e) {
+                throw new ClientException("Cannot pack record: " + e.getMessage(), e);
+            } catch (MessageTypeException e) {
+                throw new ClientException("Cannot pack record: " + e.getMessage(), e);
+            }
+            if (batch.bytes.count >= maxBatchBytes || batch.records >= maxBatchRecords) {
+                batches.remove(key);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    /**
+     * Sends all the batches and waits until the batches sent so far have
+     * been uploaded.
+     *
+     * @throws ClientException if a batch failed to upload since the last
+     * flush
+     */
+    public void flush() throws ClientException {
+        for (Batch batch : removeBatches(0)) {
+            send(batch);
+        }
+
+        List<Future<?>> waiting;
+        synchronized (uploads) {
+            waiting = new ArrayList<Future<?>>(uploads);
+        }
+        for (Future<?> f : waiting) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClientException("Flush interrupted", e);
+            } catch (ExecutionException e) {
+                // counted by the upload task
+            }
+        }
+
+        ClientException e = uploader.takeLastError();
+        if (e != null) {
+            throw new ClientException("Some batches failed to upload: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Flushes the batches and stops the upload thread.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            flush();
+        } catch (ClientException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public long getUploadedBatchCount() {
+        return uploader.getUploadedBatchCount();
+    }
+
+    public long getUploadedRecordCount() {
+        return uploader.getUploadedRecordCount();
+    }
+
+    public long getFailedBatchCount() {
+        return uploader.getFailedBatchCount();
+    }
+
+    public long getFailedRecordCount() {
+        return uploader.getFailedRecordCount();
+    }
+
+    // called with the lock held
+    private void start() {
+        if (pendingBatches != null) {
+            return;
+        }
+        pendingBatches = new Semaphore(maxPendingBatches);
+        long period = Math.max(1, maxBatchAgeMillis / 4);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                // tracked like the other uploads, so that flush waits for them;
+                // under the lock, so that a flush sees them once it has
+                // removed the rest
+                synchronized (RecordBatcher.this) {
+                    for (final Batch batch : removeBatches(maxBatchAgeMillis)) {
+                        track(executor.submit(new Runnable() {
+                            public void run() {
+                                upload(batch);
+                            }
+                        }));
+                    }
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // removes the batches older than the age
+    private synchronized List<Batch> removeBatches(long age) {
+        List<Batch> removed = new ArrayList<Batch>();
+        long now = System.currentTimeMillis();
+        Iterator<Batch> iter = batches.values().iterator();
+        while (iter.hasNext()) {
+            Batch batch = iter.next();
+            if (now - batch.createdAt >= age) {
+                iter.remove();
+                removed.add(batch);
+            }
+        }
+        return removed;
+    }
+
+    private void send(final Batch batch) throws ClientException {
+        try {
+            pendingBatches.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ClientException ex = new ClientException("Send batch interrupted", e);
+            uploader.failed(batch.table, batch.records, ex);
+            throw ex;
+        }
+
+        track(executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    upload(batch);
+                } finally {
+                    pendingBatches.release();
+                }
+            }
+        }));
+    }
+
+    private void track(Future<?> f) {
+        synchronized (uploads) {
+            uploads.add(f);
+            Iterator<Future<?>> iter = uploads.iterator();
+            while (iter.hasNext()) {
+                if (iter.next().isDone()) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    private void upload(Batch batch) {
+        byte[] bytes;
+        try {
+            bytes = batch.finish();
+        } catch (IOException e) {
+            uploader.failed(batch.table, batch.records,
+                    new ClientException("Cannot compress batch: " + e.getMessage(), e));
+            return;
+        }
+        uploader.upload(batch.table, bytes, batch.records);
+    }
+
+    private void pack(Object r) throws IOException {
+        recordBuffer.reset();
+        try {
+            recordPacker.write(r);
+            recordPacker.flush();
+        } catch (IOException e) {
+            // the packer may be in the middle of a map
+            recordPacker = msgpack.createPacker(recordBuffer);
+            throw e;
+        } catch (MessageTypeException e) {
+            recordPacker = msgpack.createPacker(recordBuffer);
+            throw e;
+        }
+    }
+
+    private static String toKey(Table table) {
+        return table.getDatabase().getName() + "." + table.getName();
+    }
+
+    private class Batch {
+        private final Table table;
+        private final long createdAt = System.currentTimeMillis();
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final ParallelGZIPOutputStream gzout = new ParallelGZIPOutputStream(out);
+        private final CountingOutputStream bytes;
+        private int records = 0;
+
+        Batch(Table table) {
+            this.table = table;
+            bytes = new CountingOutputStream(gzout);
+        }
+
+        void add(ByteArrayOutputStream record) throws IOException {
+            record.writeTo(bytes);
+            records++;
+        }
+
+        byte[] finish() throws IOException {
+            gzout.close();
+            return out.toByteArray();
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
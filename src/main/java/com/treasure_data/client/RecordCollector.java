@@ -0,0 +1,536 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.msgpack.MessagePack;
+import org.msgpack.MessageTypeException;
+import org.msgpack.packer.Packer;
+
+import com.treasure_data.model.Database;
+import com.treasure_data.model.Table;
+
+/**
+ * Collects records from many threads and imports them in batches, for
+ * applications that emit records from hundreds of threads. Unlike
+ * {@link RecordBatcher}, adding a record does not take a lock shared by all
+ * the threads.
+ *
+ * Records are packed into one of several stripes of msgpack buffers. A
+ * thread claims a free stripe with a compare-and-set, trying the next one if
+ * its stripe is in use, so threads rarely wait for each other. Full buffers
+ * (chunks) are handed to a single flusher thread through a lock-free queue.
+ * The flusher gzips the chunks of each table into a batch with
+ * {@link ParallelGZIPOutputStream} and uploads it with importData when the
+ * batch is big or old enough. Like in {@link RecordBatcher}, a failed upload
+ * is retried only when the server cannot have imported the batch.
+ *
+ * When more than the max queued bytes are waiting for the flusher,
+ * {@link OverflowMode#BLOCK} makes add wait, and {@link OverflowMode#DROP}
+ * makes it drop the record and count it.
+ */
+public class RecordCollector implements Closeable {
+    public static enum OverflowMode {
+        BLOCK, DROP,
+    }
+
+    private static final long BLOCK_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final BatchUploader uploader;
+
+    private final MessagePack msgpack = new MessagePack();
+
+    private final Stripe[] stripes;
+
+    private final ConcurrentLinkedQueue<Chunk> queue = new ConcurrentLinkedQueue<Chunk>();
+
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    private final OverflowMode overflowMode;
+
+    private long maxQueuedBytes = 32 * 1024 * 1024;
+
+    private int chunkBytes = 64 * 1024;
+
+    private long maxBatchBytes = 8 * 1024 * 1024;
+
+    private volatile long maxAgeMillis = 10 * 1000;
+
+    private final Thread flusher;
+
+    private volatile boolean closed = false;
+
+    // number of threads in add; close waits for them before the flusher stops
+    private final AtomicInteger activeAdds = new AtomicInteger();
+
+    private volatile boolean stopping = false;
+
+    private final AtomicLong flushRequested = new AtomicLong();
+
+    private volatile long flushCompleted = 0;
+
+    private final AtomicLong droppedRecordCount = new AtomicLong();
+
+    public RecordCollector(TreasureDataClient client) {
+        this(client, OverflowMode.BLOCK, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param stripes number of packer stripes, rounded up to a power of 2;
+     * about the number of threads that add records at the same time
+     */
+    public RecordCollector(TreasureDataClient client, OverflowMode overflowMode, int stripes) {
+        this.uploader = new BatchUploader(client);
+        this.overflowMode = overflowMode;
+        int n = 1;
+        while (n < stripes) {
+            n <<= 1;
+        }
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new Stripe();
+        }
+
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                runFlusher();
+            }
+        }, "td-record-collector");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Sets the bytes of packed records waiting for the flusher at which add
+     * blocks or drops records.
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Sets the size at which a stripe's buffer is handed to the flusher.
+     */
+    public void setChunkBytes(int chunkBytes) {
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Sets the size of packed (uncompressed) records at which a batch is
+     * uploaded.
+     */
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Sets how long a record may wait in a buffer or a batch before it is
+     * uploaded.
+     */
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+        LockSupport.unpark(flusher); // to sweep at the new interval
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        uploader.setRetryPolicy(retryPolicy);
+    }
+
+    public boolean add(String databaseName, String tableName, Object record)
+            throws ClientException {
+        return add(databaseName + "." + tableName, databaseName, tableName, record);
+    }
+
+    public boolean add(Table table, Object record) throws ClientException {
+        return add(table.getDatabase().getName(), table.getName(), record);
+    }
+
+    /**
+     * Adds a record. A record is a Map whose keys are column names, or any
+     * object that msgpack can serialize as a map.
+     *
+     * @return false if the record was dropped because the queue was full
+     */
+    private boolean add(String key, String databaseName, String tableName, Object record)
+            throws ClientException {
+        activeAdds.incrementAndGet();
+        try {
+            if (closed) {
+                throw new ClientException("RecordCollector is already closed");
+            }
+            return doAdd(key, databaseName, tableName, record);
+        } finally {
+            activeAdds.decrementAndGet();
+        }
+    }
+
+    private boolean doAdd(String key, String databaseName, String tableName, Object record)
+            throws ClientException {
+        if (queuedBytes.get() >= maxQueuedBytes) {
+            if (overflowMode == OverflowMode.DROP) {
+                droppedRecordCount.incrementAndGet();
+                return false;
+            }
+            waitForQueue();
+        }
+
+        Stripe stripe = claimStripe();
+        Chunk full = null;
+        try {
+            // packed apart first, so that a record that cannot be packed
+            // leaves no partial bytes in the buffer
+            stripe.pack(record);
+            Buffer buf = stripe.buffers.get(key);
+            if (buf == null) {
+                buf = new Buffer(new Table(new Database(databaseName), tableName));
+                stripe.buffers.put(key, buf);
+            }
+            stripe.record.writeTo(buf.out);
+            buf.records++;
+            stripe.addedRecords++;
+            if (buf.out.size() >= chunkBytes) {
+                stripe.buffers.remove(key);
+                full = buf.toChunk(key);
+            }
+        } catch (IOException e) {
+            throw new ClientException("Cannot pack record: " + e.getMessage(), e);
+        } catch (MessageTypeException e) {
+            throw new ClientException("Cannot pack record: " + e.getMessage(), e);
+        } finally {
+            stripe.release();
+        }
+
+        if (full != null) {
+            queuedBytes.addAndGet(full.bytes.length);
+            queue.offer(full);
+            LockSupport.unpark(flusher);
+        }
+        return true;
+    }
+
+    private void waitForQueue() throws ClientException {
+        while (queuedBytes.get() >= maxQueuedBytes) {
+            if (closed) {
+                throw new ClientException("RecordCollector is already closed");
+            }
+            LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new ClientException("Waiting for the queue was interrupted");
+            }
+        }
+    }
+
+    private Stripe claimStripe() {
+        int mask = stripes.length - 1;
+        int i = hash(Thread.currentThread().getId()) & mask;
+        while (true) {
+            for (int n = 0; n <= mask; n++) {
+                Stripe s = stripes[(i + n) & mask];
+                if (s.tryClaim()) {
+                    return s;
+                }
+            }
+            Thread.yield(); // every stripe is in use
+        }
+    }
+
+    private static int hash(long id) {
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Uploads all the records added so far and waits for it.
+     *
+     * @throws ClientException if some records failed to upload since the
+     * last flush
+     */
+    public void flush() throws ClientException {
+        long request = flushRequested.incrementAndGet();
+        LockSupport.unpark(flusher);
+        while (flushCompleted < request) {
+            if (!flusher.isAlive()) {
+                throw new ClientException("RecordCollector is already closed");
+            }
+            LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new ClientException("Flush interrupted");
+            }
+        }
+
+        ClientException e = uploader.takeLastError();
+        if (e != null) {
+            throw new ClientException("Some records failed to upload: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Uploads all the records and stops the flusher thread. Records that
+     * other threads are adding at the same time are uploaded too, or their
+     * add fails.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // a thread that passed the closed check may still hand over a chunk
+        while (activeAdds.get() > 0) {
+            LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Close interrupted");
+            }
+        }
+        stopping = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Close interrupted");
+        }
+        ClientException e = uploader.takeLastError();
+        if (e != null) {
+            throw new IOException("Some records failed to upload: " + e.getMessage(), e);
+        }
+    }
+
+    public long getAddedRecordCount() {
+        long count = 0;
+        for (Stripe s : stripes) {
+            count += s.addedRecords;
+        }
+        return count;
+    }
+
+    public long getDroppedRecordCount() {
+        return droppedRecordCount.get();
+    }
+
+    public long getUploadedBatchCount() {
+        return uploader.getUploadedBatchCount();
+    }
+
+    public long getUploadedRecordCount() {
+        return uploader.getUploadedRecordCount();
+    }
+
+    public long getFailedRecordCount() {
+        return uploader.getFailedRecordCount();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    // flusher thread
+
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+    private void runFlusher() {
+        long nextSweep = System.currentTimeMillis() + Math.max(1, maxAgeMillis / 4);
+        while (true) {
+            // the max age may be changed while the flusher runs
+            long sweepInterval = Math.max(1, maxAgeMillis / 4);
+            nextSweep = Math.min(nextSweep, System.currentTimeMillis() + sweepInterval);
+
+            // read the requests first: chunks queued before a flush (or close)
+            // request are then drained below
+            boolean closing = stopping;
+            long flushRequest = flushRequested.get();
+
+            Chunk c;
+            while ((c = queue.poll()) != null) {
+                queuedBytes.addAndGet(-c.bytes.length);
+                addToBatch(c);
+            }
+
+            boolean force = closing || flushRequest > flushCompleted;
+            long now = System.currentTimeMillis();
+            if (force || now >= nextSweep) {
+                sweep(force, now);
+                nextSweep = now + sweepInterval;
+            }
+            if (force) {
+                flushCompleted = flushRequest;
+            }
+            if (closing && queue.isEmpty()) {
+                break;
+            }
+            if (queue.isEmpty()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(
+                        Math.max(1, nextSweep - System.currentTimeMillis())));
+            }
+        }
+    }
+
+    // moves buffers and batches older than the max age (or all of them if
+    // forced) to upload
+    private void sweep(boolean force, long now) {
+        for (Stripe s : stripes) {
+            while (!s.tryClaim()) {
+                Thread.yield();
+            }
+            try {
+                Iterator<Map.Entry<String, Buffer>> iter = s.buffers.entrySet().iterator();
+                while (iter.hasNext()) {
+                    Map.Entry<String, Buffer> e = iter.next();
+                    if (force || now - e.getValue().createdAt >= maxAgeMillis) {
+                        iter.remove();
+                        addToBatch(e.getValue().toChunk(e.getKey()));
+                    }
+                }
+            } finally {
+                s.release();
+            }
+        }
+
+        Iterator<Batch> iter = batches.values().iterator();
+        while (iter.hasNext()) {
+            Batch b = iter.next();
+            if (force || now - b.createdAt >= maxAgeMillis) {
+                iter.remove();
+                upload(b);
+            }
+        }
+    }
+
+    private void addToBatch(Chunk c) {
+        Batch b = batches.get(c.key);
+        if (b == null) {
+            b = new Batch(c.table, c.createdAt);
+            batches.put(c.key, b);
+        }
+        try {
+            b.gzout.write(c.bytes);
+            b.size += c.bytes.length;
+            b.records += c.records;
+        } catch (IOException e) { // never happens with ByteArrayOutputStream
+            uploader.failed(c.table, c.records, new ClientException(e));
+            return;
+        }
+        if (b.size >= maxBatchBytes) {
+            batches.remove(c.key);
+            upload(b);
+        }
+    }
+
+    private void upload(Batch b) {
+        byte[] bytes;
+        try {
+            b.gzout.close();
+            bytes = b.out.toByteArray();
+        } catch (IOException e) {
+            uploader.failed(b.table, b.records, new ClientException(e));
+            return;
+        }
+        uploader.upload(b.table, bytes, b.records);
+    }
+
+    private class Stripe {
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        // the fields below are accessed by the thread that claims the stripe
+        private final Map<String, Buffer> buffers = new HashMap<String, Buffer>();
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream(1024);
+        private Packer packer = msgpack.createPacker(record);
+        private volatile long addedRecords = 0;
+
+        void pack(Object r) throws IOException {
+            record.reset();
+            try {
+                packer.write(r);
+                packer.flush();
+            } catch (IOException e) {
+                // the packer may be in the middle of a map
+                packer = msgpack.createPacker(record);
+                throw e;
+            } catch (MessageTypeException e) {
+                packer = msgpack.createPacker(record);
+                throw e;
+            }
+        }
+
+        boolean tryClaim() {
+            return !claimed.get() && claimed.compareAndSet(false, true);
+        }
+
+        void release() {
+            claimed.set(false);
+        }
+    }
+
+    private class Buffer {
+        private final Table table;
+        private final long createdAt = System.currentTimeMillis();
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(chunkBytes + 1024);
+        private int records = 0;
+
+        Buffer(Table table) {
+            this.table = table;
+        }
+
+        Chunk toChunk(String key) {
+            return new Chunk(key, table, out.toByteArray(), records, createdAt);
+        }
+    }
+
+    private static class Chunk {
+        private final String key;
+        private final Table table;
+        private final byte[] bytes;
+        private final int records;
+        private final long createdAt;
+
+        Chunk(String key, Table table, byte[] bytes, int records, long createdAt) {
+            this.key = key;
+            this.table = table;
+            this.bytes = bytes;
+            this.records = records;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private static class Batch {
+        private final Table table;
+        private final long createdAt;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final ParallelGZIPOutputStream gzout = new ParallelGZIPOutputStream(out);
+        private long size = 0;
+        private long records = 0;
+
+        Batch(Table table, long createdAt) {
+            this.table = table;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+/**
+ * Token bucket that limits how many retries are made, shared by all the calls
+ * that use it. Every retry takes a token and tokens come back at a fixed
+ * rate, so when the API is down the clients stop retrying after the bucket
+ * is empty instead of multiplying the load.
+ */
+public class RetryBudget {
+
+    private static final RetryBudget DEFAULT = new RetryBudget(100, 10);
+
+    /**
+     * Returns the budget shared by the {@link RetryPolicy} objects that are
+     * not given their own one.
+     */
+    public static RetryBudget getDefault() {
+        return DEFAULT;
+    }
+
+    private final double capacity;
+    private final double refillPerMillis;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param capacity max number of retries that can be made in a burst
+     * @param refillPerSecond number of tokens that come back per second
+     */
+    public RetryBudget(int capacity, double refillPerSecond) {
+        if (capacity < 0 || refillPerSecond < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "capacity and refill rate must not be negative: %d, %f",
+                    capacity, refillPerSecond));
+        }
+        this.capacity = capacity;
+        this.refillPerMillis = refillPerSecond / 1000;
+        this.tokens = capacity;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes a token for a retry. Returns false if the budget is used up.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    public synchronized int getAvailableTokens() {
+        refill();
+        return (int) tokens;
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerMillis);
+            lastRefill = now;
+        }
+    }
+}
@@ -18,8 +18,13 @@
 package com.treasure_data.client;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.logging.Logger;
 
+/**
+ * Runs a {@link Retryable} until it succeeds or the {@link RetryPolicy}
+ * gives up.
+ */
 public class RetryClient {
     private static Logger LOG = Logger.getLogger(RetryClient.class.getName());
 
@@ -27,59 +32,96 @@ public class RetryClient {
         void doTry() throws ClientException;
     }
 
+    private RetryPolicy policy;
+
+    public RetryClient() {
+        this(new RetryPolicy());
+    }
+
+    public RetryClient(RetryPolicy policy) {
+        this.policy = policy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return policy;
+    }
+
+    public void retry(Retryable r) throws IOException {
+        doRetry(r, policy.getMaxRetries(), policy.getBaseDelayMillis(), true);
+    }
+
+    /**
+     * Retries a call that must not run twice, e.g. importData, only when
+     * the server has not processed it; see
+     * {@link RetryPolicy#isRetryable(ClientException, boolean)}.
+     */
+    public void retry(Retryable r, boolean idempotent) throws IOException {
+        doRetry(r, policy.getMaxRetries(), policy.getBaseDelayMillis(), idempotent);
+    }
+
     public void retry(Retryable r, int retryCount) throws IOException {
+        doRetry(r, retryCount, policy.getBaseDelayMillis(), true);
+    }
+
+    /**
+     * @param waitSec base of the backoff, in seconds
+     */
+    public void retry(Retryable r, int retryCount, long waitSec) throws IOException {
+        doRetry(r, retryCount, waitSec * 1000, true);
+    }
+
+    /**
+     * @throws InterruptedIOException if the thread is interrupted while
+     * waiting for a retry; the interrupt status is set again
+     * @throws IOException if the last attempt failed; the cause is the
+     * ClientException thrown by it
+     */
+    private void doRetry(Retryable r, int retryCount, long baseDelayMillis,
+            boolean idempotent) throws IOException {
         int count = 0;
+        long delay = 0;
         while (true) {
             try {
                 r.doTry();
                 if (count > 0) {
+                    policy.onRecovered();
                     LOG.warning("Retry succeeded.");
                 }
-                break;
+                return;
             } catch (ClientException e) {
                 LOG.warning(e.getMessage());
-                if (count >= retryCount) {
-                    LOG.warning("Retry count exceeded limit.");
-                    throw new IOException("Retry error");
-                } else {
-                    count++;
-                    LOG.warning("It failed. but will be retried.");
-                    waitRetry(1);
+                if (!policy.shouldRetry(e, count, retryCount, idempotent)) {
+                    String reason;
+                    if (!policy.isRetryable(e, idempotent)) {
+                        reason = "Not retryable error";
+                    } else if (count >= retryCount) {
+                        reason = "Retry count exceeded limit";
+                    } else {
+                        reason = "Retry budget exhausted";
+                    }
+                    LOG.warning(reason + ".");
+                    IOException ex = new IOException(reason);
+                    ex.initCause(e);
+                    throw ex;
                 }
-            }
-        }
-    }
 
-    public void retry(Retryable r, int retryCount, long waitSec) throws IOException {
-        int count = 0;
-        boolean notRetry = false;
-        while (true) {
-            try {
-                r.doTry();
-                break;
-            } catch (ClientException e) {
-                LOG.warning(e.getMessage());
-                if (e instanceof HttpClientException
-                        && ((HttpClientException) e).getResponseCode() < 400) {
-                    count++;
-                    waitRetry(waitSec);
-                } else {
-                    LOG.info("turned notRetry flag: " + notRetry);
-                    notRetry = true;
-                }
-            } finally {
-                if (count >= retryCount || notRetry) {
-                    throw new IOException("Retry out error");
-                }
+                count++;
+                delay = policy.getDelayMillis(e, delay, baseDelayMillis);
+                LOG.warning(String.format("It failed. but will be retried in %d ms (retry %d/%d).",
+                        delay, count, retryCount));
+                waitRetryMillis(delay);
             }
         }
     }
 
-    protected void waitRetry(long sec) {
+    protected void waitRetryMillis(long millis) throws InterruptedIOException {
         try {
-            Thread.sleep(sec * 1000);
+            Thread.sleep(millis);
         } catch (InterruptedException e) {
-            // ignore
+            Thread.currentThread().interrupt();
+            InterruptedIOException ex = new InterruptedIOException("Retry interrupted");
+            ex.initCause(e);
+            throw ex;
         }
     }
 }
@@ -0,0 +1,272 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Decides whether a failed API call is retried and how long to wait before
+ * the next attempt.
+ *
+ * Only transient errors are retried: 408, 429 and 5xx (except 501 and 505)
+ * responses, and I/O errors other than unknown hosts, bad URLs and SSL
+ * errors. The wait is an exponential backoff with decorrelated jitter,
+ * <pre>
+ * wait = min(maxDelay, random(baseDelay, previousWait * 3))
+ * </pre>
+ * so that clients that failed at the same time do not retry at the same
+ * time. A Retry-After header sent by the server takes precedence. Every
+ * retry also needs a token from the {@link RetryBudget}.
+ *
+ * A call that is not idempotent, e.g. importData, is retried only if the
+ * server has not processed it: after a retryable response code, or if the
+ * connection could not be made. After a read timeout or a connection reset,
+ * the server may have processed the request already.
+ *
+ * One policy can be shared by many calls and threads; its counters then
+ * cover all of them.
+ */
+public class RetryPolicy {
+
+    private volatile int maxRetries = 3;
+    private volatile long baseDelayMillis = 1000;
+    private volatile long maxDelayMillis = 60 * 1000;
+    private volatile RetryBudget budget = RetryBudget.getDefault();
+    private final Random random = new Random();
+
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong recoveredCount = new AtomicLong();
+    private final AtomicLong exhaustedCount = new AtomicLong();
+    private final AtomicLong budgetExhaustedCount = new AtomicLong();
+    private final AtomicLong nonRetryableCount = new AtomicLong();
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    public void setBaseDelayMillis(long baseDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public void setMaxDelayMillis(long maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return budget;
+    }
+
+    public void setRetryBudget(RetryBudget budget) {
+        this.budget = budget;
+    }
+
+    public boolean isRetryable(ClientException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return isRetryable((IOException) cause);
+        }
+        if (e instanceof HttpClientException) {
+            return isRetryable(((HttpClientException) e).getResponseCode());
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether a call that failed with the exception may be tried
+     * again. A call that is not idempotent may be only if its request never
+     * reached the server or the server answered with a retryable code.
+     */
+    public boolean isRetryable(ClientException e, boolean idempotent) {
+        if (idempotent) {
+            return isRetryable(e);
+        }
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return isRetryable((IOException) cause) && isNotSent((IOException) cause);
+        }
+        if (e instanceof HttpClientException) {
+            return isRetryable(((HttpClientException) e).getResponseCode());
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the error means that the request was not sent: the
+     * connection to the server could not be made. A connect timeout is not
+     * told apart from a read timeout, so it does not count.
+     */
+    public boolean isNotSent(IOException e) {
+        return e instanceof ConnectException || e instanceof NoRouteToHostException;
+    }
+
+    public boolean isRetryable(int responseCode) {
+        switch (responseCode) {
+        case 408: // Request Timeout
+        case 429: // Too Many Requests
+        case 500:
+        case 502:
+        case 503:
+        case 504:
+            return true;
+        default:
+            return responseCode > 500 && responseCode < 600
+                    && responseCode != 501 && responseCode != 505;
+        }
+    }
+
+    public boolean isRetryable(IOException e) {
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+            return false; // the thread was interrupted
+        }
+        return !(e instanceof UnknownHostException
+                || e instanceof MalformedURLException
+                || e instanceof SSLException);
+    }
+
+    /**
+     * Returns how long to wait before the next attempt.
+     *
+     * @param previousDelayMillis wait before the last attempt, 0 for the
+     * first retry
+     */
+    public long getDelayMillis(ClientException e, long previousDelayMillis) {
+        return getDelayMillis(e, previousDelayMillis, baseDelayMillis);
+    }
+
+    public long getDelayMillis(ClientException e, long previousDelayMillis,
+            long baseDelayMillis) {
+        if (e instanceof HttpClientException) {
+            long retryAfter = ((HttpClientException) e).getRetryAfterMillis();
+            if (retryAfter >= 0) {
+                return retryAfter;
+            }
+        }
+
+        long base = Math.min(baseDelayMillis, maxDelayMillis);
+        long upper = Math.max(base, Math.min(maxDelayMillis, previousDelayMillis * 3));
+        long delay = base;
+        if (upper > base) {
+            synchronized (random) {
+                delay = base + (long) (random.nextDouble() * (upper - base));
+            }
+        }
+        return Math.min(maxDelayMillis, delay);
+    }
+
+    /**
+     * Returns whether the call that failed with the exception is tried
+     * again. The retry takes a token from the budget, and the outcome is
+     * counted.
+     *
+     * @param retries number of retries already made for the call
+     */
+    public boolean shouldRetry(ClientException e, int retries, int maxRetries) {
+        return shouldRetry(e, retries, maxRetries, true);
+    }
+
+    /**
+     * Like {@link #shouldRetry(ClientException, int, int)}, for a call that
+     * may not be idempotent.
+     */
+    public boolean shouldRetry(ClientException e, int retries, int maxRetries,
+            boolean idempotent) {
+        if (!isRetryable(e, idempotent)) {
+            nonRetryableCount.incrementAndGet();
+            return false;
+        }
+        if (retries >= maxRetries) {
+            exhaustedCount.incrementAndGet();
+            return false;
+        }
+        RetryBudget b = budget;
+        if (b != null && !b.tryAcquire()) {
+            budgetExhaustedCount.incrementAndGet();
+            return false;
+        }
+        retryCount.incrementAndGet();
+        return true;
+    }
+
+    public boolean shouldRetry(ClientException e, int retries) {
+        return shouldRetry(e, retries, maxRetries);
+    }
+
+    /**
+     * Records that a call succeeded after one or more retries.
+     */
+    public void onRecovered() {
+        recoveredCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of retries made.
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Returns the number of calls that succeeded after retries.
+     */
+    public long getRecoveredCount() {
+        return recoveredCount.get();
+    }
+
+    /**
+     * Returns the number of calls that failed after the max retries.
+     */
+    public long getExhaustedCount() {
+        return exhaustedCount.get();
+    }
+
+    /**
+     * Returns the number of retries given up because the budget was empty.
+     */
+    public long getBudgetExhaustedCount() {
+        return budgetExhaustedCount.get();
+    }
+
+    /**
+     * Returns the number of calls that failed with a non-retryable error.
+     */
+    public long getNonRetryableCount() {
+        return nonRetryableCount.get();
+    }
+}
@@ -17,6 +17,8 @@
 //
 package com.treasure_data.client;
 
+import java.io.Closeable;
+import java.net.HttpURLConnection;
 import java.util.List;
 import java.util.Properties;
 
@@ -41,6 +43,8 @@ import com.treasure_data.model.ImportRequest;
 import com.treasure_data.model.ImportResult;
 import com.treasure_data.model.Job;
 import com.treasure_data.model.JobResult;
+import com.treasure_data.model.JobResult2;
+import com.treasure_data.model.JobResultCursor;
 import com.treasure_data.model.JobSummary;
 import com.treasure_data.model.KillJobRequest;
 import com.treasure_data.model.KillJobResult;
@@ -52,6 +56,8 @@ import com.treasure_data.model.ListTablesRequest;
 import com.treasure_data.model.ListTablesResult;
 import com.treasure_data.model.GetJobResultRequest;
 import com.treasure_data.model.GetJobResultResult;
+import com.treasure_data.model.GetJobStatusRequest;
+import com.treasure_data.model.GetJobStatusResult;
 import com.treasure_data.model.RenameTableRequest;
 import com.treasure_data.model.RenameTableResult;
 import com.treasure_data.model.ServerStatus;
@@ -66,7 +72,7 @@ import com.treasure_data.model.SwapTableResult;
 import com.treasure_data.model.Table;
 import com.treasure_data.model.TableSummary;
 
-public class TreasureDataClient {
+public class TreasureDataClient implements Closeable {
     /**
      * adaptor factory method
      */
@@ -97,10 +103,27 @@ public class TreasureDataClient {
         return clientAdaptor.getConfig();
     }
 
+    /**
+     * Closes the sockets and threads of the transport that this client, and
+     * the clients created from it, send API calls through. See
+     * {@link Config#close()}.
+     */
+    public void close() {
+        getConfig().close();
+    }
+
     public DefaultClientAdaptor getClientAdaptor() {
         return clientAdaptor;
     }
 
+    /**
+     * Returns the cache of listDatabases and listTables results. It is
+     * enabled by td.client.metadata.cache.ttl.
+     */
+    public MetadataCache getMetadataCache() {
+        return getConfig().getMetadataCache();
+    }
+
     public TreasureDataCredentials getTreasureDataCredentials() {
         return clientAdaptor.getTreasureDataCredentials();
     }
@@ -141,9 +164,13 @@ public class TreasureDataClient {
         return listDatabases(new ListDatabasesRequest()).getDatabases();
     }
 
-    public ListDatabasesResult listDatabases(ListDatabasesRequest request)
+    public ListDatabasesResult listDatabases(final ListDatabasesRequest request)
             throws ClientException {
-        return clientAdaptor.listDatabases(request);
+        return getMetadataCache().getDatabases(new MetadataCache.Loader<ListDatabasesResult>() {
+            public ListDatabasesResult load() throws ClientException {
+                return clientAdaptor.listDatabases(request);
+            }
+        });
     }
 
     public Database createDatabase(String databaseName) throws ClientException {
@@ -153,7 +180,11 @@ public class TreasureDataClient {
 
     public CreateDatabaseResult createDatabase(CreateDatabaseRequest request)
             throws ClientException {
-        return clientAdaptor.createDatabase(request);
+        try {
+            return clientAdaptor.createDatabase(request);
+        } finally {
+            getMetadataCache().invalidateDatabases();
+        }
     }
 
     public void deleteDatabase(String databaseName) throws ClientException {
@@ -162,7 +193,12 @@ public class TreasureDataClient {
 
     public DeleteDatabaseResult deleteDatabase(DeleteDatabaseRequest request)
             throws ClientException {
-        return clientAdaptor.deleteDatabase(request);
+        try {
+            return clientAdaptor.deleteDatabase(request);
+        } finally {
+            getMetadataCache().invalidateTables(request.getDatabaseName());
+            getConfig().removeKnownTables(request.getDatabaseName());
+        }
     }
 
     // Table API
@@ -177,9 +213,14 @@ public class TreasureDataClient {
         return listTables(new ListTablesRequest(database)).getTables();
     }
 
-    public ListTablesResult listTables(ListTablesRequest request)
+    public ListTablesResult listTables(final ListTablesRequest request)
             throws ClientException {
-        return clientAdaptor.listTables(request);
+        return getMetadataCache().getTables(request.getDatabaseName(),
+                new MetadataCache.Loader<ListTablesResult>() {
+            public ListTablesResult load() throws ClientException {
+                return clientAdaptor.listTables(request);
+            }
+        });
     }
 
     public Table createTable(String databaseName, String tableName)
@@ -206,7 +247,12 @@ public class TreasureDataClient {
     }
 
     public RenameTableResult renameTable(RenameTableRequest request) throws ClientException {
-        return clientAdaptor.renameTable(request);
+        try {
+            return clientAdaptor.renameTable(request);
+        } finally {
+            getMetadataCache().invalidateTables(request.getDatabaseName());
+            getConfig().removeKnownTable(request.getDatabaseName(), request.getOrigTableName());
+        }
     }
 
     public void swapTable(String databaseName, String tableName1,
@@ -216,12 +262,55 @@ public class TreasureDataClient {
 
     public SwapTableResult swapTable(SwapTableRequest request)
             throws ClientException {
-        return clientAdaptor.swapTable(request);
+        try {
+            return clientAdaptor.swapTable(request);
+        } finally {
+            getMetadataCache().invalidateTables(request.getDatabaseName());
+        }
     }
 
     public CreateTableResult createTable(CreateTableRequest request)
             throws ClientException {
-        return clientAdaptor.createTable(request);
+        try {
+            CreateTableResult result = clientAdaptor.createTable(request);
+            getConfig().addKnownTable(request.getDatabaseName(), request.getTableName());
+            return result;
+        } finally {
+            getMetadataCache().invalidateTables(request.getDatabaseName());
+        }
+    }
+
+    /**
+     * Creates the table unless it is known to exist. A table is known to
+     * exist once data is imported into it or it is created through a client
+     * of the same {@link Config}, so only the first call makes an API call.
+     *
+     * @return true if the table was created by this call
+     */
+    public boolean createTableIfNotExists(String databaseName, String tableName)
+            throws ClientException {
+        if (getConfig().isKnownTable(databaseName, tableName)) {
+            return false;
+        }
+        try {
+            createTable(databaseName, tableName);
+            return true;
+        } catch (HttpClientException e) {
+            if (e.getResponseCode() != HttpURLConnection.HTTP_CONFLICT) {
+                throw e;
+            }
+            // created by someone else, e.g. another thread
+            getConfig().addKnownTable(databaseName, tableName);
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if td.create.table.auto is true: importData and the bulk
+     * import client then create a table that is not found, and retry once.
+     */
+    public boolean isAutoCreateTable() {
+        return getConfig().isAutoCreateTable();
     }
 
     public void deleteTable(String databaseName, String tableName)
@@ -232,18 +321,27 @@ public class TreasureDataClient {
 
     public DeleteTableResult deleteTable(DeleteTableRequest request)
             throws ClientException {
-        return clientAdaptor.deleteTable(request);
+        try {
+            return clientAdaptor.deleteTable(request);
+        } finally {
+            getMetadataCache().invalidateTables(request.getDatabaseName());
+            getConfig().removeKnownTable(request.getDatabaseName(), request.getTableName());
+        }
     }
 
     public void deletePartiallTable(String databaseName, String tableName,
             long from, long to) throws ClientException {
-        clientAdaptor.deletePartialTable(new DeletePartialTableRequest(
+        deletePartiallTable(new DeletePartialTableRequest(
                 new Table(new Database(databaseName), tableName), from, to));
     }
 
     public DeletePartialTableResult deletePartiallTable(
             DeletePartialTableRequest request) throws ClientException {
-        return clientAdaptor.deletePartialTable(request);
+        try {
+            return clientAdaptor.deletePartialTable(request);
+        } finally {
+            getMetadataCache().invalidateTables(request.getDatabaseName());
+        }
     }
 
     // TODO #MN add it in next version
@@ -261,9 +359,33 @@ public class TreasureDataClient {
         return importData(new ImportRequest(table, data));
     }
 
+    /**
+     * Imports the data into the table. If td.create.table.auto is true and
+     * the table is not found, the table is created and the import is retried
+     * once.
+     */
     public ImportResult importData(ImportRequest request)
             throws ClientException {
-        return clientAdaptor.importData(request);
+        if (!isAutoCreateTable()) {
+            return clientAdaptor.importData(request);
+        }
+
+        Table table = request.getTable();
+        String databaseName = table.getDatabase().getName();
+        ImportResult result;
+        try {
+            result = clientAdaptor.importData(request);
+        } catch (HttpClientException e) {
+            if (e.getResponseCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw e;
+            }
+            // the table may have been deleted by someone else
+            getConfig().removeKnownTable(databaseName, table.getName());
+            createTableIfNotExists(databaseName, table.getName());
+            result = clientAdaptor.importData(request);
+        }
+        getConfig().addKnownTable(databaseName, table.getName());
+        return result;
     }
 
     // Export API
@@ -288,6 +410,14 @@ public class TreasureDataClient {
         return listJobs(new ListJobsRequest(from, to)).getJobs();
     }
 
+    /**
+     * Returns the job history, newest job first, which is read lazily page
+     * by page; see {@link JobHistory}.
+     */
+    public JobHistory getJobHistory() {
+        return new JobHistory(this);
+    }
+
     public ListJobsResult listJobs(ListJobsRequest request)
             throws ClientException {
         return clientAdaptor.listJobs(request);
@@ -317,6 +447,26 @@ public class TreasureDataClient {
         return clientAdaptor.showJob(request);
     }
 
+    public JobSummary.Status getJobStatus(Job job) throws ClientException {
+        return getJobStatus(new GetJobStatusRequest(job)).getStatus();
+    }
+
+    public GetJobStatusResult getJobStatus(GetJobStatusRequest request)
+            throws ClientException {
+        return clientAdaptor.getJobStatus(request);
+    }
+
+    /**
+     * Waits until the job finishes and returns its details. The job status is
+     * polled less often as the job runs longer; see {@link JobWaiter}.
+     *
+     * @param timeoutMillis max time to wait; 0 or negative waits forever
+     */
+    public JobSummary waitForCompletion(Job job, long timeoutMillis)
+            throws ClientException {
+        return new JobWaiter(this).waitForCompletion(job, timeoutMillis);
+    }
+
     public JobResult getJobResult(Job job) throws ClientException {
         return getJobResult(new GetJobResultRequest(new JobResult(job)))
                 .getJobResult();
@@ -327,6 +477,18 @@ public class TreasureDataClient {
         return clientAdaptor.getJobResult(request);
     }
 
+    /**
+     * Opens a cursor over the rows of the job result. Rows are decoded while
+     * they are downloaded, so memory use does not depend on the result size.
+     * The cursor must be closed unless it is read to the end. If the download
+     * fails, the cursor throws a MessagePackCursor.ReadException.
+     */
+    public JobResultCursor getJobResultCursor(Job job) throws ClientException {
+        JobResult2 result = (JobResult2) getJobResult(
+                new GetJobResultRequest(new JobResult2(job))).getJobResult();
+        return result.getResultCursor();
+    }
+
     // Job Scheduling API
 
     // TODO #MN add it in next version
@@ -0,0 +1,267 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.io.IOException;
+
+import org.msgpack.packer.Packer;
+
+import com.treasure_data.client.ClientException;
+
+/**
+ * Converts Apache access logs in the common or combined log format into
+ * msgpack.gz parts, with the same columns as td-agent's apache2 format:
+ * host, user, time, method, path, code, size, referer and agent. '-' values
+ * become nil. Lines are parsed by hand, without regular expressions or date
+ * formats.
+ *
+ * <pre>
+ * 127.0.0.1 - frank [10/Oct/2000:13:55:36 -0700] "GET /apache_pb.gif HTTP/1.0" 200 2326 "http://www.example.com/start.html" "Mozilla/4.08"
+ * </pre>
+ */
+public class ApacheLogPartPreparer extends PartPreparer {
+
+    @Override
+    protected LineParser createLineParser() {
+        return new ApacheLogLineParser();
+    }
+
+    static class ApacheLogLineParser extends LineParser {
+        private static final String[] MONTHS = {
+            "Jan", "Feb", "Mar", "Apr", "May", "Jun",
+            "Jul", "Aug", "Sep", "Oct", "Nov", "Dec",
+        };
+
+        private String line;
+        private int pos;
+
+        // field boundaries of the current line
+        private int hostStart, hostEnd;
+        private int userStart, userEnd;
+        private int reqStart, reqEnd;
+        private int codeStart, codeEnd;
+        private int sizeStart, sizeEnd;
+        private int refererStart = -1, refererEnd;
+        private int agentStart = -1, agentEnd;
+
+        @Override
+        public boolean parse(String line, Packer packer) throws IOException, ClientException {
+            if (line.length() == 0) {
+                return false;
+            }
+            this.line = line;
+            pos = 0;
+
+            hostStart = pos;
+            hostEnd = nextSpace();
+            nextSpace(); // ident
+            userStart = pos;
+            userEnd = nextSpace();
+
+            if (pos >= line.length() || line.charAt(pos) != '[') {
+                throw new ClientException("expected '[' of time");
+            }
+            long time = parseTime(pos + 1);
+            pos = line.indexOf(']', pos);
+            if (pos < 0) {
+                throw new ClientException("expected ']' of time");
+            }
+            pos++;
+            skipSpace();
+
+            reqStart = quotedStart();
+            reqEnd = quotedEnd();
+            skipSpace();
+            codeStart = pos;
+            codeEnd = nextSpace();
+            sizeStart = pos;
+            sizeEnd = nextSpace();
+
+            refererStart = agentStart = -1;
+            if (pos < line.length()) { // combined log format
+                refererStart = quotedStart();
+                refererEnd = quotedEnd();
+                skipSpace();
+                agentStart = quotedStart();
+                agentEnd = quotedEnd();
+            }
+
+            int code = parseInt(codeStart, codeEnd, "code");
+            packer.writeMapBegin(agentStart < 0 ? 7 : 9);
+            packer.write("host");
+            writeString(packer, hostStart, hostEnd);
+            packer.write("user");
+            writeString(packer, userStart, userEnd);
+            packer.write("time");
+            packer.write(time);
+            writeRequest(packer);
+            packer.write("code");
+            packer.write(code);
+            packer.write("size");
+            if (isNil(sizeStart, sizeEnd)) {
+                packer.writeNil();
+            } else {
+                packer.write(parseLong(sizeStart, sizeEnd, "size"));
+            }
+            if (agentStart >= 0) {
+                packer.write("referer");
+                writeString(packer, refererStart, refererEnd);
+                packer.write("agent");
+                writeString(packer, agentStart, agentEnd);
+            }
+            packer.writeMapEnd();
+            return true;
+        }
+
+        // "METHOD path PROTOCOL"
+        private void writeRequest(Packer packer) throws IOException {
+            int sp1 = line.indexOf(' ', reqStart);
+            if (sp1 < 0 || sp1 >= reqEnd) {
+                // e.g. "-" of a broken request
+                packer.write("method");
+                packer.writeNil();
+                packer.write("path");
+                writeString(packer, reqStart, reqEnd);
+                return;
+            }
+            int sp2 = line.lastIndexOf(' ', reqEnd - 1);
+            if (sp2 <= sp1) {
+                sp2 = reqEnd;
+            }
+            packer.write("method");
+            packer.write(line.substring(reqStart, sp1));
+            packer.write("path");
+            packer.write(line.substring(sp1 + 1, sp2));
+        }
+
+        private void writeString(Packer packer, int start, int end) throws IOException {
+            if (isNil(start, end)) {
+                packer.writeNil();
+            } else {
+                packer.write(line.substring(start, end));
+            }
+        }
+
+        private boolean isNil(int start, int end) {
+            return end - start == 1 && line.charAt(start) == '-';
+        }
+
+        // returns the end of the field, and moves to the next field
+        private int nextSpace() throws ClientException {
+            if (pos >= line.length()) {
+                throw new ClientException("too few fields");
+            }
+            int end = line.indexOf(' ', pos);
+            if (end < 0) {
+                end = line.length();
+            }
+            pos = end;
+            skipSpace();
+            return end;
+        }
+
+        private void skipSpace() {
+            while (pos < line.length() && line.charAt(pos) == ' ') {
+                pos++;
+            }
+        }
+
+        private int quotedStart() throws ClientException {
+            if (pos >= line.length() || line.charAt(pos) != '"') {
+                throw new ClientException("expected '\"'");
+            }
+            return ++pos;
+        }
+
+        // backslash escapes are kept as they are
+        private int quotedEnd() throws ClientException {
+            for (; pos < line.length(); pos++) {
+                char c = line.charAt(pos);
+                if (c == '\\') {
+                    pos++;
+                } else if (c == '"') {
+                    return pos++;
+                }
+            }
+            throw new ClientException("unterminated quoted field");
+        }
+
+        // dd/MMM/yyyy:HH:mm:ss +zzzz
+        private long parseTime(int i) throws ClientException {
+            if (i + 26 > line.length() || line.charAt(i + 2) != '/' || line.charAt(i + 6) != '/'
+                    || line.charAt(i + 11) != ':' || line.charAt(i + 20) != ' ') {
+                throw new ClientException("invalid time");
+            }
+            int day = parseInt(i, i + 2, "day");
+            int month = -1;
+            for (int m = 0; m < 12; m++) {
+                if (line.startsWith(MONTHS[m], i + 3)) {
+                    month = m + 1;
+                    break;
+                }
+            }
+            if (month < 0) {
+                throw new ClientException("invalid month");
+            }
+            int year = parseInt(i + 7, i + 11, "year");
+            int hour = parseInt(i + 12, i + 14, "hour");
+            int min = parseInt(i + 15, i + 17, "minute");
+            int sec = parseInt(i + 18, i + 20, "second");
+            char sign = line.charAt(i + 21);
+            if (sign != '+' && sign != '-') {
+                throw new ClientException("invalid time zone");
+            }
+            int offset = parseInt(i + 22, i + 24, "time zone") * 3600
+                    + parseInt(i + 24, i + 26, "time zone") * 60;
+            if (sign == '-') {
+                offset = -offset;
+            }
+            return daysFromEpoch(year, month, day) * 86400L
+                    + hour * 3600 + min * 60 + sec - offset;
+        }
+
+        // days since 1970-01-01 of a date in the proleptic Gregorian calendar
+        static long daysFromEpoch(int year, int month, int day) {
+            int y = month <= 2 ? year - 1 : year;
+            int era = (y >= 0 ? y : y - 399) / 400;
+            int yoe = y - era * 400;
+            int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+            int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+            return era * 146097L + doe - 719468;
+        }
+
+        private int parseInt(int start, int end, String name) throws ClientException {
+            return (int) parseLong(start, end, name);
+        }
+
+        private long parseLong(int start, int end, String name) throws ClientException {
+            if (start >= end || end - start > 18) {
+                throw new ClientException("invalid " + name);
+            }
+            long v = 0;
+            for (int i = start; i < end; i++) {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9') {
+                    throw new ClientException("invalid " + name);
+                }
+                v = v * 10 + (c - '0');
+            }
+            return v;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.treasure_data.client.AsyncTreasureDataClient;
+import com.treasure_data.client.ClientException;
+import com.treasure_data.client.ClientFuture;
+import com.treasure_data.client.PollInterval;
+import com.treasure_data.client.RetryPolicy;
+import com.treasure_data.model.bulkimport.Session;
+import com.treasure_data.model.bulkimport.SessionSummary;
+
+/**
+ * Runs the API calls of a {@link BulkImportClient} on the executor of an
+ * {@link AsyncTreasureDataClient}, and returns {@link ClientFuture}s of their
+ * results. The perform and the commit are waited for by polling without a
+ * thread, with an interval that grows with the time spent waiting: a tenth
+ * of it, between the min and max intervals. As in {@link BulkImportPipeline},
+ * failed polls are retried by a {@link RetryPolicy}, and the session status
+ * is polled if the perform_finished or commit_finished API is not found.
+ *
+ * <pre>
+ * AsyncBulkImportClient async = new AsyncBulkImportClient(biclient, asyncClient);
+ * async.performSession(sess).then(...waitForPerformFinished...).then(...commitSession...);
+ * </pre>
+ */
+public class AsyncBulkImportClient {
+
+    private BulkImportClient client;
+    private AsyncTreasureDataClient async;
+    private final PollInterval pollInterval = new PollInterval();
+    private RetryPolicy retryPolicy = new RetryPolicy();
+
+    public AsyncBulkImportClient(BulkImportClient client, AsyncTreasureDataClient async) {
+        this.client = client;
+        this.async = async;
+    }
+
+    public BulkImportClient getClient() {
+        return client;
+    }
+
+    public void setMinIntervalMillis(long minIntervalMillis) {
+        pollInterval.setMinIntervalMillis(minIntervalMillis);
+    }
+
+    public void setMaxIntervalMillis(long maxIntervalMillis) {
+        pollInterval.setMaxIntervalMillis(maxIntervalMillis);
+    }
+
+    /**
+     * Sets the retry policy of the polls of waitForPerformFinished and
+     * waitForCommitFinished.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public <T> ClientFuture<T> call(Callable<T> call) {
+        return async.call(call);
+    }
+
+    public ClientFuture<List<SessionSummary>> listSessions() {
+        return call(new Callable<List<SessionSummary>>() {
+            public List<SessionSummary> call() throws ClientException {
+                return client.listSessions();
+            }
+        });
+    }
+
+    public ClientFuture<Session> createSession(final String sessName,
+            final String databaseName, final String tableName) {
+        return call(new Callable<Session>() {
+            public Session call() throws ClientException {
+                return client.createSession(sessName, databaseName, tableName);
+            }
+        });
+    }
+
+    public ClientFuture<List<String>> listParts(final Session sess) {
+        return call(new Callable<List<String>>() {
+            public List<String> call() throws ClientException {
+                return client.listParts(sess);
+            }
+        });
+    }
+
+    /**
+     * Uploads a part and returns its part ID.
+     */
+    public ClientFuture<String> uploadPart(final Session sess, final String partID,
+            final byte[] bytes) {
+        return call(new Callable<String>() {
+            public String call() throws ClientException {
+                client.uploadPart(sess, partID, bytes);
+                return partID;
+            }
+        });
+    }
+
+    /**
+     * Uploads a part and returns its part ID.
+     */
+    public ClientFuture<String> uploadPart(final Session sess, final PartSource part) {
+        return call(new Callable<String>() {
+            public String call() throws ClientException {
+                client.uploadPart(sess, part);
+                return part.getPartID();
+            }
+        });
+    }
+
+    public ClientFuture<Session> freezeSession(final Session sess) {
+        return call(new Callable<Session>() {
+            public Session call() throws ClientException {
+                client.freezeSession(sess);
+                return sess;
+            }
+        });
+    }
+
+    public ClientFuture<Session> performSession(final Session sess) {
+        return call(new Callable<Session>() {
+            public Session call() throws ClientException {
+                client.performSession(sess);
+                return sess;
+            }
+        });
+    }
+
+    /**
+     * Waits until the perform started by performSession finishes.
+     *
+     * @param timeoutMillis max time to wait; 0 or negative waits forever
+     */
+    public ClientFuture<Session> waitForPerformFinished(final Session sess,
+            long timeoutMillis) {
+        return async.poll(new SessionPoll(sess, BulkImportPipeline.Phase.PERFORM),
+                timeoutMillis);
+    }
+
+    public ClientFuture<Session> commitSession(final Session sess) {
+        return call(new Callable<Session>() {
+            public Session call() throws ClientException {
+                client.commitSession(sess);
+                return sess;
+            }
+        });
+    }
+
+    /**
+     * Waits until the commit started by commitSession finishes.
+     *
+     * @param timeoutMillis max time to wait; 0 or negative waits forever
+     */
+    public ClientFuture<Session> waitForCommitFinished(final Session sess,
+            long timeoutMillis) {
+        return async.poll(new SessionPoll(sess, BulkImportPipeline.Phase.COMMIT),
+                timeoutMillis);
+    }
+
+    public ClientFuture<Session> deleteSession(final Session sess) {
+        return call(new Callable<Session>() {
+            public Session call() throws ClientException {
+                client.deleteSession(sess);
+                return sess;
+            }
+        });
+    }
+
+    long getPollInterval(long elapsedMillis) {
+        return pollInterval.getMillis(elapsedMillis);
+    }
+
+    private class SessionPoll implements AsyncTreasureDataClient.Poll<Session> {
+        private final Session sess;
+        private final BulkImportPipeline.Phase phase;
+        private final SessionFinishedCheck check;
+        private final long started = System.currentTimeMillis();
+
+        SessionPoll(Session sess, BulkImportPipeline.Phase phase) {
+            this.sess = sess;
+            this.phase = phase;
+            this.check = new SessionFinishedCheck(client, sess, phase, retryPolicy);
+        }
+
+        public Session poll() throws ClientException {
+            return check.poll() ? sess : null;
+        }
+
+        public long getInterval() {
+            return Math.max(getPollInterval(System.currentTimeMillis() - started),
+                    check.getRetryDelayMillis());
+        }
+
+        @Override
+        public String toString() {
+            String name = phase.name();
+            return name.charAt(0) + name.substring(1).toLowerCase() + " of session "
+                    + sess.getName();
+        }
+    }
+}
@@ -17,13 +17,21 @@
 //
 package com.treasure_data.client.bulkimport;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.util.List;
 
+import org.msgpack.MessageTypeException;
 import org.msgpack.unpacker.Unpacker;
 
 import com.treasure_data.client.ClientException;
+import com.treasure_data.client.HttpClientException;
 import com.treasure_data.client.TreasureDataClient;
+import com.treasure_data.model.bulkimport.CommitFinishedRequest;
+import com.treasure_data.model.bulkimport.CommitFinishedResult;
 import com.treasure_data.model.bulkimport.CommitSessionRequest;
 import com.treasure_data.model.bulkimport.CommitSessionResult;
 import com.treasure_data.model.bulkimport.CreateSessionRequest;
@@ -32,6 +40,8 @@ import com.treasure_data.model.bulkimport.DeletePartRequest;
 import com.treasure_data.model.bulkimport.DeletePartResult;
 import com.treasure_data.model.bulkimport.DeleteSessionRequest;
 import com.treasure_data.model.bulkimport.DeleteSessionResult;
+import com.treasure_data.model.MessagePackCursor;
+import com.treasure_data.model.bulkimport.ErrorRecordCursor;
 import com.treasure_data.model.bulkimport.FreezeSessionRequest;
 import com.treasure_data.model.bulkimport.FreezeSessionResult;
 import com.treasure_data.model.bulkimport.GetErrorRecordsRequest;
@@ -40,6 +50,8 @@ import com.treasure_data.model.bulkimport.ListPartsRequest;
 import com.treasure_data.model.bulkimport.ListPartsResult;
 import com.treasure_data.model.bulkimport.ListSessionsRequest;
 import com.treasure_data.model.bulkimport.ListSessionsResult;
+import com.treasure_data.model.bulkimport.PerformFinishedRequest;
+import com.treasure_data.model.bulkimport.PerformFinishedResult;
 import com.treasure_data.model.bulkimport.PerformSessionRequest;
 import com.treasure_data.model.bulkimport.PerformSessionResult;
 import com.treasure_data.model.bulkimport.Session;
@@ -51,9 +63,12 @@ import com.treasure_data.model.bulkimport.UploadPartResult;
 
 public class BulkImportClient {
 
+    private TreasureDataClient client;
+
     private BulkImportClientAdaptor clientAdaptor;
 
     public BulkImportClient(TreasureDataClient client) {
+        this.client = client;
         clientAdaptor = new BulkImportClientAdaptorImpl(client);
     }
 
@@ -112,9 +127,26 @@ public class BulkImportClient {
                 sessName, databaseName, tableName)).getSession();
     }
 
+    /**
+     * Creates a session. If td.create.table.auto is true and the table is not
+     * found, the table is created and the request is retried once.
+     */
     public CreateSessionResult createSession(CreateSessionRequest request)
             throws ClientException {
-        return clientAdaptor.createSession(request);
+        if (!client.isAutoCreateTable()) {
+            return clientAdaptor.createSession(request);
+        }
+
+        try {
+            return clientAdaptor.createSession(request);
+        } catch (HttpClientException e) {
+            if (e.getResponseCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw e;
+            }
+            client.getConfig().removeKnownTable(request.getDatabaseName(), request.getTableName());
+            client.createTableIfNotExists(request.getDatabaseName(), request.getTableName());
+            return clientAdaptor.createSession(request);
+        }
     }
 
     /**
@@ -131,11 +163,79 @@ public class BulkImportClient {
         uploadPart(new UploadPartRequest(sess, partID, bytes));
     }
 
+    /**
+     * Upload a part from a stream. The part is streamed to the server through
+     * a bounded buffer, without copying it into memory.
+     *
+     * @param sess
+     * @param partID    a part name
+     * @param in        data
+     * @param size      the number of bytes, or -1 if it is unknown (the part
+     *                  is sent with chunked transfer encoding)
+     * @throws ClientException
+     */
     public void uploadPart(Session sess, String partID, InputStream in, int size)
             throws ClientException {
         uploadPart(new UploadPartRequest(sess, partID, in, size));
     }
 
+    /**
+     * Upload a part from a msgpack.gz file without loading it into memory.
+     *
+     * @param sess
+     * @param partID    a part name
+     * @param file      a msgpack.gz file
+     * @throws ClientException
+     */
+    public void uploadPart(Session sess, String partID, File file)
+            throws ClientException {
+        long length = file.length();
+        int size = length > Integer.MAX_VALUE ? -1 : (int) length;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            uploadPart(new UploadPartRequest(sess, partID, in, size));
+        } catch (IOException e) {
+            throw new ClientException(e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Upload a part, e.g. a {@link PreparedPart} written by a
+     * {@link PartPreparer}.
+     *
+     * @param sess
+     * @param part      a msgpack.gz part
+     * @throws ClientException
+     */
+    public void uploadPart(Session sess, PartSource part) throws ClientException {
+        long size = part.getSize();
+        InputStream in = null;
+        try {
+            in = part.openStream();
+            uploadPart(new UploadPartRequest(sess, part.getPartID(), in,
+                    size < 0 || size > Integer.MAX_VALUE ? -1 : (int) size));
+        } catch (IOException e) {
+            throw new ClientException(e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
     public UploadPartResult uploadPart(UploadPartRequest request) throws ClientException {
         return clientAdaptor.uploadPart(request);
     }
@@ -173,6 +273,21 @@ public class BulkImportClient {
         return clientAdaptor.performSession(request);
     }
 
+    /**
+     * Whether the perform started by performSession has finished.
+     *
+     * @param sess
+     * @throws ClientException
+     */
+    public boolean isPerformFinished(Session sess) throws ClientException {
+        return performFinished(new PerformFinishedRequest(sess)).isFinished();
+    }
+
+    public PerformFinishedResult performFinished(PerformFinishedRequest request)
+            throws ClientException {
+        return clientAdaptor.performFinished(request);
+    }
+
     /**
      * Show records which did not pass validations.
      *
@@ -187,6 +302,38 @@ public class BulkImportClient {
         return clientAdaptor.getErrorRecords(request);
     }
 
+    /**
+     * Opens a cursor over the records which did not pass validations. Records
+     * are decoded while they are downloaded, so memory use does not depend on
+     * the number of error records. The cursor must be closed unless it is
+     * read to the end.
+     */
+    public ErrorRecordCursor getErrorRecordCursor(Session sess) throws ClientException {
+        return getErrorRecords(new GetErrorRecordsRequest(sess, true)).getErrorRecordCursor();
+    }
+
+    /**
+     * Reads all records which did not pass validations into the aggregator.
+     */
+    public ErrorRecordAggregator aggregateErrorRecords(Session sess,
+            ErrorRecordAggregator aggregator) throws ClientException {
+        ErrorRecordCursor cursor = getErrorRecordCursor(sess);
+        try {
+            return aggregator.addAll(cursor);
+        } catch (MessageTypeException e) {
+            throw new ClientException("Read error_records failed: " + e.getMessage());
+        } catch (MessagePackCursor.ReadException e) {
+            throw new ClientException("Read error_records failed: " + e.getMessage(),
+                    e.getCause());
+        } finally {
+            try {
+                cursor.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
     /**
      * Start to commit a performed bulk import session.
      *
@@ -203,6 +350,21 @@ public class BulkImportClient {
         return clientAdaptor.commitSession(request);
     }
 
+    /**
+     * Whether the commit started by commitSession has finished.
+     *
+     * @param sess
+     * @throws ClientException
+     */
+    public boolean isCommitFinished(Session sess) throws ClientException {
+        return commitFinished(new CommitFinishedRequest(sess)).isFinished();
+    }
+
+    public CommitFinishedResult commitFinished(CommitFinishedRequest request)
+            throws ClientException {
+        return clientAdaptor.commitFinished(request);
+    }
+
     /**
      * Delete a bulk import session.
      *
@@ -18,6 +18,8 @@
 package com.treasure_data.client.bulkimport;
 
 import com.treasure_data.client.ClientException;
+import com.treasure_data.model.bulkimport.CommitFinishedRequest;
+import com.treasure_data.model.bulkimport.CommitFinishedResult;
 import com.treasure_data.model.bulkimport.CommitSessionRequest;
 import com.treasure_data.model.bulkimport.CommitSessionResult;
 import com.treasure_data.model.bulkimport.CreateSessionRequest;
@@ -34,6 +36,8 @@ import com.treasure_data.model.bulkimport.ListPartsRequest;
 import com.treasure_data.model.bulkimport.ListPartsResult;
 import com.treasure_data.model.bulkimport.ListSessionsRequest;
 import com.treasure_data.model.bulkimport.ListSessionsResult;
+import com.treasure_data.model.bulkimport.PerformFinishedRequest;
+import com.treasure_data.model.bulkimport.PerformFinishedResult;
 import com.treasure_data.model.bulkimport.PerformSessionRequest;
 import com.treasure_data.model.bulkimport.PerformSessionResult;
 import com.treasure_data.model.bulkimport.UnfreezeSessionRequest;
@@ -55,10 +59,14 @@ public interface BulkImportClientAdaptor {
 
     PerformSessionResult performSession(PerformSessionRequest request) throws ClientException;
 
+    PerformFinishedResult performFinished(PerformFinishedRequest request) throws ClientException;
+
     GetErrorRecordsResult getErrorRecords(GetErrorRecordsRequest request) throws ClientException;
 
     CommitSessionResult commitSession(CommitSessionRequest request) throws ClientException;
 
+    CommitFinishedResult commitFinished(CommitFinishedRequest request) throws ClientException;
+
     DeleteSessionResult deleteSession(DeleteSessionRequest request) throws ClientException;
 
     FreezeSessionResult freezeSession(FreezeSessionRequest request) throws ClientException;
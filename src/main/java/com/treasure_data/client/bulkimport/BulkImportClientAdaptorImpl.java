@@ -20,8 +20,6 @@ package com.treasure_data.client.bulkimport;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.HttpURLConnection;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -32,9 +30,14 @@ import org.msgpack.unpacker.Unpacker;
 import com.treasure_data.client.AbstractClientAdaptor;
 import com.treasure_data.client.ClientException;
 import com.treasure_data.client.HttpClientException;
+import com.treasure_data.client.HttpConnection;
 import com.treasure_data.client.HttpConnectionImpl;
+import com.treasure_data.client.ListResponseParser;
 import com.treasure_data.client.TreasureDataClient;
 import com.treasure_data.client.Validator;
+import com.treasure_data.model.bulkimport.BulkImportSpecifyRequest;
+import com.treasure_data.model.bulkimport.CommitFinishedRequest;
+import com.treasure_data.model.bulkimport.CommitFinishedResult;
 import com.treasure_data.model.bulkimport.CommitSessionRequest;
 import com.treasure_data.model.bulkimport.CommitSessionResult;
 import com.treasure_data.model.bulkimport.CreateSessionRequest;
@@ -43,6 +46,7 @@ import com.treasure_data.model.bulkimport.DeletePartRequest;
 import com.treasure_data.model.bulkimport.DeletePartResult;
 import com.treasure_data.model.bulkimport.DeleteSessionRequest;
 import com.treasure_data.model.bulkimport.DeleteSessionResult;
+import com.treasure_data.model.bulkimport.ErrorRecordCursor;
 import com.treasure_data.model.bulkimport.FreezeSessionRequest;
 import com.treasure_data.model.bulkimport.FreezeSessionResult;
 import com.treasure_data.model.bulkimport.GetErrorRecordsRequest;
@@ -52,8 +56,11 @@ import com.treasure_data.model.bulkimport.ListPartsResult;
 import com.treasure_data.model.bulkimport.ListSessions;
 import com.treasure_data.model.bulkimport.ListSessionsRequest;
 import com.treasure_data.model.bulkimport.ListSessionsResult;
+import com.treasure_data.model.bulkimport.PerformFinishedRequest;
+import com.treasure_data.model.bulkimport.PerformFinishedResult;
 import com.treasure_data.model.bulkimport.PerformSessionRequest;
 import com.treasure_data.model.bulkimport.PerformSessionResult;
+import com.treasure_data.model.bulkimport.Session;
 import com.treasure_data.model.bulkimport.SessionSummary;
 import com.treasure_data.model.bulkimport.UnfreezeSessionRequest;
 import com.treasure_data.model.bulkimport.UnfreezeSessionResult;
@@ -68,8 +75,6 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
 
     private Validator validator;
 
-    private HttpConnectionImpl conn;
-
     BulkImportClientAdaptorImpl(TreasureDataClient client) {
         super(client.getConfig());
         this.client = client;
@@ -82,9 +87,10 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
         request.setCredentials(client.getTreasureDataCredentials());
         validator.validateCredentials(client, request);
 
-        String jsonData = null;
+        List<SessionSummary> sessions = null;
         String message = null;
         int code = 0;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -103,12 +109,44 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
                         "List sessions failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("List sessions failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
-            // receive response body
-            jsonData = conn.getResponseBody();
-            validator.validateJSONData(jsonData);
+            // receive response body and parse JSON data
+            // {"bulk_imports":
+            //   [
+            //     {"name":"t01", "database":"sfdb", "table":"bi02",
+            //      "status":"ready", "upload_frozen":false,
+            //      "job_id":"70220", "valid_records":100,
+            //      "error_records":10, "valid_parts":2, "error_parts":1},
+            //     {"name":"sess01", "database":"mugadb", "table":"test04",
+            //      "status":"uploading", "upload_frozen":false,
+            //      "job_id":null, "valid_records":null,
+            //      "error_records":null, "valid_parts":null, "error_parts":null}
+            //   ]}
+            sessions = new ListResponseParser<SessionSummary>("bulk_imports") {
+                @Override
+                protected SessionSummary toElement(Map<String, Object> sess) {
+                    String name = (String) sess.get("name");
+                    String database = (String) sess.get("database");
+                    String table = (String) sess.get("table");
+                    String status = (String) sess.get("status");
+                    boolean upload_frozen = (Boolean) sess.get("upload_frozen");
+                    String job_id = (String) sess.get("job_id");
+                    Long vr = (Long) sess.get("valid_records");
+                    long valid_records = vr != null ? vr : 0;
+                    Long er = (Long) sess.get("error_records");
+                    long error_records = er != null ? er : 0;
+                    Long vp = (Long) sess.get("valid_parts");
+                    long valid_parts = vp != null ? vp : 0;
+                    Long ep = (Long) sess.get("error_parts");
+                    long error_parts = ep != null ? ep : 0;
+                    return new SessionSummary(name, database, table,
+                            SessionSummary.Status.fromString(status), upload_frozen, job_id,
+                            valid_records, error_records, valid_parts, error_parts);
+                }
+            }.parse(conn.getResponseReader());
         } catch (IOException e) {
             LOG.throwing(getClass().getName(), "listSessions", e);
             LOG.severe(HttpClientException.toMessage(e.getMessage(), message, code));
@@ -119,48 +157,6 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
             }
         }
 
-        // parse JSON data
-        // {"bulk_imports":
-        //   [
-        //     {"name":"t01", "database":"sfdb", "table":"bi02",
-        //      "status":"ready", "upload_frozen":false,
-        //      "job_id":"70220", "valid_records":100,
-        //      "error_records":10, "valid_parts":2, "error_parts":1},
-        //     {"name":"sess01", "database":"mugadb", "table":"test04",
-        //      "status":"uploading", "upload_frozen":false,
-        //      "job_id":null, "valid_records":null,
-        //      "error_records":null, "valid_parts":null, "error_parts":null}
-        //   ]}
-        @SuppressWarnings("rawtypes")
-        Map map = (Map) JSONValue.parse(jsonData);
-        validator.validateJavaObject(jsonData, map);
-
-        @SuppressWarnings("unchecked")
-        Iterator<Map<String, Object>> sessIter =
-            ((List<Map<String, Object>>) map.get("bulk_imports")).iterator();
-        List<SessionSummary> sessions = new ArrayList<SessionSummary>();
-        while (sessIter.hasNext()) {
-            Map<String, Object> sess = sessIter.next();
-            String name = (String) sess.get("name");
-            String database = (String) sess.get("database");
-            String table = (String) sess.get("table");
-            String status = (String) sess.get("status");
-            boolean upload_frozen = (Boolean) sess.get("upload_frozen");
-            String job_id = (String) sess.get("job_id");
-            Long vr = (Long) sess.get("valid_records");
-            long valid_records = vr != null ? vr : 0;
-            Long er = (Long) sess.get("error_records");
-            long error_records = er != null ? er : 0;
-            Long vp = (Long) sess.get("valid_parts");
-            long valid_parts = vp != null ? vp : 0;
-            Long ep = (Long) sess.get("error_parts");
-            long error_parts = ep != null ? ep : 0;
-            SessionSummary summary = new SessionSummary(name, database, table,
-                    SessionSummary.Status.fromString(status), upload_frozen, job_id,
-                    valid_records, error_records, valid_parts, error_parts);
-            sessions.add(summary);
-        }
-
         return new ListSessionsResult(new ListSessions<SessionSummary>(sessions));
     }
 
@@ -173,6 +169,7 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -192,7 +189,8 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
                         "List parts failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("List parts failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -227,6 +225,7 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -248,7 +247,8 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
                         "Create session failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Create session failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -281,6 +281,7 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -299,7 +300,8 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
                         "Upload part failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Upload part failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -332,6 +334,7 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -352,7 +355,8 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
                         "Delete part failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Delete part failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -385,6 +389,7 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -404,7 +409,8 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
                         "Perform session failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Perform session failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -428,6 +434,75 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
         return new PerformSessionResult(request.getSession());
     }
 
+    @Override
+    public PerformFinishedResult performFinished(PerformFinishedRequest request)
+            throws ClientException {
+        boolean finished = getFinished(request, HttpURL.V3_PERFORM_FINISHED,
+                "Get perform_finished failed");
+        return new PerformFinishedResult(request.getSession(), finished);
+    }
+
+    @Override
+    public CommitFinishedResult commitFinished(CommitFinishedRequest request)
+            throws ClientException {
+        boolean finished = getFinished(request, HttpURL.V3_COMMIT_FINISHED,
+                "Get commit_finished failed");
+        return new CommitFinishedResult(request.getSession(), finished);
+    }
+
+    private boolean getFinished(BulkImportSpecifyRequest<Session> request,
+            String pathFormat, String errorMessage) throws ClientException {
+        request.setCredentials(client.getTreasureDataCredentials());
+        validator.validateCredentials(client, request);
+
+        String jsonData = null;
+        int code = 0;
+        String message = null;
+        HttpConnection conn = null;
+        try {
+            conn = createConnection();
+
+            // send request
+            String path = String.format(pathFormat,
+                    HttpConnectionImpl.e(request.getSessionName()));
+            Map<String, String> header = null;
+            Map<String, String> params = null;
+            conn.doGetRequest(request, path, header, params);
+
+            // receive response code
+            code = conn.getResponseCode();
+            message = conn.getResponseMessage();
+            if (code != HttpURLConnection.HTTP_OK) {
+                String errMessage = conn.getErrorMessage();
+                LOG.severe(HttpClientException.toMessage(errorMessage, message, code));
+                LOG.severe(errMessage);
+                throw new HttpClientException(errorMessage,
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
+            }
+
+            // receive response body
+            jsonData = conn.getResponseBody();
+            validator.validateJSONData(jsonData);
+        } catch (IOException e) {
+            LOG.throwing(getClass().getName(), "getFinished", e);
+            LOG.severe(HttpClientException.toMessage(e.getMessage(), message, code));
+            throw new HttpClientException(errorMessage, message, code, e);
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+
+        // parse JSON data {"name":"sess01","finished":true}
+        @SuppressWarnings({ "rawtypes" })
+        Map map = (Map) JSONValue.parse(jsonData);
+        validator.validateJavaObject(jsonData, map);
+
+        Object finished = map.get("finished");
+        return Boolean.TRUE.equals(finished) || "true".equals(finished);
+    }
+
     @Override
     public GetErrorRecordsResult getErrorRecords(GetErrorRecordsRequest request)
             throws ClientException {
@@ -435,8 +510,10 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
         validator.validateCredentials(client, request);
 
         Unpacker unpacker = null;
+        ErrorRecordCursor cursor = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -456,25 +533,34 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
                         "Get error_records failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Get error_records failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
-            try {
-                unpacker = conn.getResponseBodyBinary();
-            } catch (EOFException e) {
-                // ignore
+            if (request.isStreaming()) {
+                // the connection is released when the cursor is closed
+                cursor = new ErrorRecordCursor(conn.getInputStream());
+            } else {
+                try {
+                    unpacker = conn.getResponseBodyBinary();
+                } catch (EOFException e) {
+                    // ignore
+                }
             }
         } catch (IOException e) {
             LOG.throwing(getClass().getName(), "getErrorRecords", e);
             LOG.severe(HttpClientException.toMessage(e.getMessage(), message, code));
             throw new HttpClientException("Get error_records failed", message, code, e);
         } finally {
-            if (conn != null) {
+            if (conn != null && cursor == null) {
                 conn.disconnect();
             }
         }
 
+        if (cursor != null) {
+            return new GetErrorRecordsResult(request.getSession(), cursor);
+        }
         return new GetErrorRecordsResult(request.getSession(), unpacker);
     }
 
@@ -487,6 +573,7 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -506,7 +593,8 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
                         "Commit session failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Commit session failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -539,6 +627,7 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -558,7 +647,8 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
                         "Delete session failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Delete session failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -591,6 +681,7 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -610,7 +701,8 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
                         "Freeze session failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Freeze session failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
@@ -643,6 +735,7 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
         String jsonData = null;
         int code = 0;
         String message = null;
+        HttpConnection conn = null;
         try {
             conn = createConnection();
 
@@ -662,7 +755,8 @@ public class BulkImportClientAdaptorImpl extends AbstractClientAdaptor
                         "Unfreeze session failed", message, code));
                 LOG.severe(errMessage);
                 throw new HttpClientException("Unfreeze session failed",
-                        message + ", detail = " + errMessage, code);
+                        message + ", detail = " + errMessage, code,
+                        conn.getHeaderField("Retry-After"));
             }
 
             // receive response body
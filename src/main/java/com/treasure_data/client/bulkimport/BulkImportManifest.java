@@ -0,0 +1,316 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.treasure_data.client.ClientException;
+
+/**
+ * A local record of the parts that have been uploaded to a bulk import
+ * session: the part ID, size, modification time and SHA-1 hash of each part.
+ * It is a text file with one line per part, appended and flushed as soon as a
+ * part is uploaded, so that it survives a crash of the import.
+ *
+ * <pre>
+ * #td-bulk-import-manifest 1 sess01
+ * www_access_000_0000	4194304	1370000000000	2fd4e1c67a2d28fced849ee1bb76e7391b93eb12
+ * </pre>
+ *
+ * Later lines of a part override earlier ones. {@link #compact(Collection)}
+ * rewrites the file with the latest line of each part.
+ */
+public class BulkImportManifest {
+    private static Logger LOG = Logger.getLogger(BulkImportManifest.class.getName());
+
+    private static final String HEADER = "#td-bulk-import-manifest 1 ";
+    private static final String UTF8 = "UTF-8";
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    public static class Entry {
+        private String partID;
+        private long size;
+        private long lastModified;
+        private String hash;
+
+        public Entry(String partID, long size, long lastModified, String hash) {
+            this.partID = partID;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public String getPartID() {
+            return partID;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Returns true if the part has the size and modification time of this
+         * entry, i.e. it is not changed since it was recorded and its hash
+         * does not have to be computed again.
+         */
+        public boolean isUnchanged(PartSource part) {
+            return lastModified > 0 && lastModified == part.getLastModified()
+                    && size == part.getSize();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s{partID=%s, size=%d, lastModified=%d, hash=%s}",
+                    getClass().getName(), partID, size, lastModified, hash);
+        }
+    }
+
+    /**
+     * Opens the manifest of the session. The file is created if it does not
+     * exist; it must not be the manifest of another session.
+     */
+    public static BulkImportManifest open(File file, String sessionName)
+            throws ClientException {
+        BulkImportManifest manifest = new BulkImportManifest(file, sessionName);
+        if (file.exists()) {
+            manifest.load();
+        }
+        return manifest;
+    }
+
+    private File file;
+    private String sessionName;
+    private Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private Writer writer;
+
+    private BulkImportManifest(File file, String sessionName) {
+        this.file = file;
+        this.sessionName = sessionName;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getSessionName() {
+        return sessionName;
+    }
+
+    public synchronized Entry get(String partID) {
+        return entries.get(partID);
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Records an uploaded part and flushes the line to the file.
+     */
+    public synchronized void put(Entry entry) throws ClientException {
+        checkPartID(entry.getPartID());
+        try {
+            if (writer == null) {
+                boolean empty = !file.exists() || file.length() == 0;
+                writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF8);
+                if (empty) {
+                    writer.write(HEADER + sessionName + "\n");
+                }
+            }
+            writeEntry(writer, entry);
+            writer.flush();
+        } catch (IOException e) {
+            throw new ClientException(String.format("Cannot write manifest %s: %s",
+                    file, e.getMessage()));
+        }
+        entries.put(entry.getPartID(), entry);
+    }
+
+    /**
+     * Rewrites the file with the entries of the given parts only; entries of
+     * other parts are dropped.
+     */
+    public synchronized void compact(Collection<String> partIDs) throws ClientException {
+        Map<String, Entry> kept = new LinkedHashMap<String, Entry>();
+        for (String partID : partIDs) {
+            Entry e = entries.get(partID);
+            if (e != null) {
+                kept.put(partID, e);
+            }
+        }
+
+        close();
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Writer w = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+            try {
+                w.write(HEADER + sessionName + "\n");
+                for (Entry e : kept.values()) {
+                    writeEntry(w, e);
+                }
+            } finally {
+                w.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw new ClientException(String.format("Cannot write manifest %s: %s",
+                    file, e.getMessage()));
+        }
+        // File.renameTo does not replace an existing file on every platform
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new ClientException(String.format("Cannot replace manifest %s with %s",
+                    file, tmp));
+        }
+        entries = kept;
+    }
+
+    public synchronized void close() throws ClientException {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new ClientException(String.format("Cannot write manifest %s: %s",
+                    file, e.getMessage()));
+        } finally {
+            writer = null;
+        }
+    }
+
+    private void load() throws ClientException {
+        int lineNo = 0;
+        try {
+            BufferedReader r = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), UTF8));
+            try {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    lineNo++;
+                    if (lineNo == 1) {
+                        if (!line.startsWith(HEADER)) {
+                            throw new ClientException(file + " is not a bulk import manifest");
+                        }
+                        String name = line.substring(HEADER.length());
+                        if (!name.equals(sessionName)) {
+                            throw new ClientException(String.format(
+                                    "Manifest %s is of session %s, not %s", file, name, sessionName));
+                        }
+                        continue;
+                    }
+
+                    String[] cols = line.split("\t");
+                    if (cols.length != 4) {
+                        // e.g. the last line written by a crashed import
+                        LOG.warning(String.format("Ignore broken line %d of manifest %s",
+                                lineNo, file));
+                        continue;
+                    }
+                    try {
+                        entries.put(cols[0], new Entry(cols[0], Long.parseLong(cols[1]),
+                                Long.parseLong(cols[2]), cols[3]));
+                    } catch (NumberFormatException e) {
+                        LOG.warning(String.format("Ignore broken line %d of manifest %s",
+                                lineNo, file));
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            throw new ClientException(String.format("Cannot read manifest %s: %s",
+                    file, e.getMessage()));
+        }
+    }
+
+    private static void writeEntry(Writer w, Entry e) throws IOException {
+        w.write(e.getPartID() + "\t" + e.getSize() + "\t" + e.getLastModified()
+                + "\t" + e.getHash() + "\n");
+    }
+
+    private static void checkPartID(String partID) throws ClientException {
+        if (partID.indexOf('\t') >= 0 || partID.indexOf('\n') >= 0
+                || partID.indexOf('\r') >= 0) {
+            throw new ClientException("Invalid part ID: " + partID);
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] digest) {
+        StringBuilder sbuf = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sbuf.append(Character.forDigit((b >> 4) & 0xf, 16))
+                .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sbuf.toString();
+    }
+
+    /**
+     * Computes the SHA-1 hash of the part data.
+     */
+    public static String hash(PartSource part) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = part.openStream();
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                digest.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+}
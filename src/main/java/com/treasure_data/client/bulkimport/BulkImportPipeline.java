@@ -0,0 +1,363 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.treasure_data.client.ClientException;
+import com.treasure_data.client.PollInterval;
+import com.treasure_data.client.RetryPolicy;
+import com.treasure_data.model.bulkimport.Session;
+import com.treasure_data.model.bulkimport.SessionSummary;
+
+/**
+ * Runs a whole bulk import: creates a session, uploads the parts in
+ * parallel, freezes the session, performs it, waits until the perform
+ * finishes, and commits it and waits until the commit finishes.
+ *
+ * The perform_finished and commit_finished APIs are polled with an interval
+ * that grows with the time spent in the phase: a tenth of it, between the min
+ * and max intervals. Failed polls are retried as the {@link RetryPolicy}
+ * allows. If the server has no such API, the session status is polled
+ * instead.
+ *
+ * {@link #cancel()} stops a running import from another thread; the session
+ * is left as it is, so that it can be inspected or deleted.
+ *
+ * If a manifest file is set, the upload is resumable: a run after a failed
+ * one reuses the session if it is still uploading, and uploads only the parts
+ * that the session does not have or that changed (see
+ * {@link ResumableUploader}).
+ *
+ * <pre>
+ * BulkImportPipeline pipeline = new BulkImportPipeline(biclient);
+ * BulkImportPipeline.Report report = pipeline.run("sess01", "mydb", "www_access", parts);
+ * System.out.println(report);
+ * </pre>
+ */
+public class BulkImportPipeline {
+    private static Logger LOG = Logger.getLogger(BulkImportPipeline.class.getName());
+
+    public static enum Phase {
+        CREATE, UPLOAD, FREEZE, PERFORM, COMMIT,
+    }
+
+    public static class Report {
+        private Session session;
+        private ParallelUploader.Report uploadReport;
+        private List<String> skippedParts = Collections.emptyList();
+        private SessionSummary summary;
+        private boolean committed = false;
+        private Map<Phase, Long> phaseMillis = new EnumMap<Phase, Long>(Phase.class);
+        private Map<Phase, Integer> pollCounts = new EnumMap<Phase, Integer>(Phase.class);
+
+        Report(Session session) {
+            this.session = session;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        public ParallelUploader.Report getUploadReport() {
+            return uploadReport;
+        }
+
+        /**
+         * Returns the IDs of the parts that a previous run uploaded and that
+         * were skipped. It is empty unless a manifest file is set.
+         */
+        public List<String> getSkippedParts() {
+            return skippedParts;
+        }
+
+        /**
+         * Returns the session after the perform, with the numbers of valid and
+         * error records.
+         */
+        public SessionSummary getSessionSummary() {
+            return summary;
+        }
+
+        public boolean isCommitted() {
+            return committed;
+        }
+
+        /**
+         * Returns the time spent in the phase, or -1 if it was not run.
+         */
+        public long getPhaseMillis(Phase phase) {
+            Long millis = phaseMillis.get(phase);
+            return millis != null ? millis : -1;
+        }
+
+        public long getTotalMillis() {
+            long total = 0;
+            for (long millis : phaseMillis.values()) {
+                total += millis;
+            }
+            return total;
+        }
+
+        /**
+         * Returns the number of status polls in the PERFORM or COMMIT phase.
+         */
+        public int getPollCount(Phase phase) {
+            Integer count = pollCounts.get(phase);
+            return count != null ? count : 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sbuf = new StringBuilder();
+            sbuf.append(getClass().getName()).append("{session=").append(session.getName());
+            for (Map.Entry<Phase, Long> e : phaseMillis.entrySet()) {
+                sbuf.append(", ").append(e.getKey().name().toLowerCase())
+                    .append('=').append(e.getValue()).append("ms");
+            }
+            if (summary != null) {
+                sbuf.append(", validRecords=").append(summary.getValidRecords())
+                    .append(", errorRecords=").append(summary.getErrorRecords());
+            }
+            sbuf.append(", committed=").append(committed).append('}');
+            return sbuf.toString();
+        }
+    }
+
+    private BulkImportClient client;
+    private int uploadConcurrency = 4;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private ParallelUploader.Listener uploadListener;
+    private final PollInterval pollInterval = new PollInterval();
+    private long waitTimeoutMillis = 0;
+    private long maxErrorRecords = Long.MAX_VALUE;
+    private File manifestFile;
+
+    private volatile boolean cancelled = false;
+    private volatile Thread runner;
+
+    public BulkImportPipeline(BulkImportClient client) {
+        this.client = client;
+    }
+
+    public void setUploadConcurrency(int uploadConcurrency) {
+        this.uploadConcurrency = uploadConcurrency;
+    }
+
+    /**
+     * Sets the retry policy of part uploads and status polls.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public void setUploadListener(ParallelUploader.Listener uploadListener) {
+        this.uploadListener = uploadListener;
+    }
+
+    public void setMinIntervalMillis(long minIntervalMillis) {
+        pollInterval.setMinIntervalMillis(minIntervalMillis);
+    }
+
+    public void setMaxIntervalMillis(long maxIntervalMillis) {
+        pollInterval.setMaxIntervalMillis(maxIntervalMillis);
+    }
+
+    /**
+     * Sets the max time to wait for the perform and for the commit; 0 waits
+     * forever.
+     */
+    public void setWaitTimeoutMillis(long waitTimeoutMillis) {
+        this.waitTimeoutMillis = waitTimeoutMillis;
+    }
+
+    /**
+     * Sets the max number of error records with which the session is still
+     * committed. If the perform finds more, the import stops before the
+     * commit and the report says that it is not committed.
+     */
+    public void setMaxErrorRecords(long maxErrorRecords) {
+        this.maxErrorRecords = maxErrorRecords;
+    }
+
+    /**
+     * Sets the manifest file that records the uploaded parts, to make the
+     * upload resumable. It should be deleted after the import is committed.
+     */
+    public void setManifestFile(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Stops the running import. run() throws a ClientException once the
+     * current API call returns.
+     */
+    public void cancel() {
+        cancelled = true;
+        Thread t = runner;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public Report run(String sessionName, String databaseName, String tableName,
+            Collection<? extends PartSource> parts) throws ClientException {
+        runner = Thread.currentThread();
+        try {
+            return doRun(new Session(sessionName, databaseName, tableName), parts);
+        } finally {
+            runner = null;
+            if (cancelled) {
+                Thread.interrupted(); // clear the interrupt of cancel()
+            }
+        }
+    }
+
+    private Report doRun(Session sess, Collection<? extends PartSource> parts)
+            throws ClientException {
+        Report report = new Report(sess);
+
+        long started = startPhase(Phase.CREATE, sess);
+        SessionSummary existing = manifestFile != null ? client.showSession(sess.getName()) : null;
+        if (existing == null) {
+            sess = client.createSession(sess.getName(), sess.getDatabaseName(), sess.getTableName());
+        } else if (existing.uploadFrozen()
+                || !existing.getStatus().equals(SessionSummary.Status.UPLOADING.statusName())) {
+            throw new ClientException(String.format(
+                    "Session %s cannot be resumed: it is %s already", sess.getName(),
+                    existing.uploadFrozen() ? "frozen" : existing.getStatus()));
+        } else {
+            LOG.info("Resume bulk import of session " + sess.getName());
+            sess = existing;
+        }
+        report.session = sess;
+        endPhase(report, Phase.CREATE, started);
+
+        started = startPhase(Phase.UPLOAD, sess);
+        try {
+            if (manifestFile != null) {
+                ResumableUploader uploader = new ResumableUploader(client,
+                        uploadConcurrency, manifestFile);
+                uploader.setRetryPolicy(retryPolicy);
+                uploader.setListener(uploadListener);
+                ResumableUploader.Report r = uploader.upload(sess, parts);
+                report.uploadReport = r.getUploadReport();
+                report.skippedParts = r.getSkippedParts();
+            } else {
+                ParallelUploader uploader = new ParallelUploader(client, uploadConcurrency);
+                uploader.setRetryPolicy(retryPolicy);
+                uploader.setListener(uploadListener);
+                report.uploadReport = uploader.upload(sess, parts);
+            }
+        } catch (ClientException e) {
+            checkCancelled(sess);
+            throw e;
+        }
+        endPhase(report, Phase.UPLOAD, started);
+        if (!report.uploadReport.isSucceeded()) {
+            throw new ClientException(String.format("%d of %d parts failed to upload to %s",
+                    report.uploadReport.getFailedParts().size(), parts.size(), sess.getName()));
+        }
+
+        started = startPhase(Phase.FREEZE, sess);
+        client.freezeSession(sess);
+        endPhase(report, Phase.FREEZE, started);
+
+        started = startPhase(Phase.PERFORM, sess);
+        client.performSession(sess);
+        report.pollCounts.put(Phase.PERFORM, waitFor(sess, Phase.PERFORM));
+        report.summary = client.showSession(sess.getName());
+        endPhase(report, Phase.PERFORM, started);
+
+        if (report.summary != null && report.summary.getErrorRecords() > maxErrorRecords) {
+            LOG.warning(String.format("Session %s has %d error records; it is not committed",
+                    sess.getName(), report.summary.getErrorRecords()));
+            return report;
+        }
+
+        started = startPhase(Phase.COMMIT, sess);
+        client.commitSession(sess);
+        report.pollCounts.put(Phase.COMMIT, waitFor(sess, Phase.COMMIT));
+        report.committed = true;
+        endPhase(report, Phase.COMMIT, started);
+        return report;
+    }
+
+    private long startPhase(Phase phase, Session sess) throws ClientException {
+        checkCancelled(sess);
+        LOG.fine(String.format("Session %s: %s", sess.getName(), phase.name().toLowerCase()));
+        return System.currentTimeMillis();
+    }
+
+    private void endPhase(Report report, Phase phase, long started) {
+        report.phaseMillis.put(phase, System.currentTimeMillis() - started);
+    }
+
+    private void checkCancelled(Session sess) throws ClientException {
+        if (cancelled) {
+            throw new ClientException("Bulk import " + sess.getName() + " was cancelled");
+        }
+    }
+
+    // returns the number of polls
+    private int waitFor(Session sess, Phase phase) throws ClientException {
+        SessionFinishedCheck check = new SessionFinishedCheck(client, sess, phase, retryPolicy);
+        long started = System.currentTimeMillis();
+        long deadline = waitTimeoutMillis > 0 ? started + waitTimeoutMillis : Long.MAX_VALUE;
+        int polls = 0;
+        while (true) {
+            checkCancelled(sess);
+            long now = System.currentTimeMillis();
+            long interval = pollInterval.getMillis(now - started);
+            polls++;
+            try {
+                if (check.poll()) {
+                    return polls;
+                }
+            } catch (ClientException e) {
+                checkCancelled(sess);
+                throw e;
+            }
+            interval = Math.max(interval, check.getRetryDelayMillis());
+
+            now = System.currentTimeMillis();
+            if (now >= deadline) {
+                throw new ClientException(String.format("%s of %s did not finish in %d ms",
+                        phase.name().toLowerCase(), sess.getName(), waitTimeoutMillis));
+            }
+            try {
+                Thread.sleep(Math.min(interval, deadline - now));
+            } catch (InterruptedException e) {
+                checkCancelled(sess);
+                Thread.currentThread().interrupt();
+                throw new ClientException("Waiting for " + phase.name().toLowerCase() + " of "
+                        + sess.getName() + " was interrupted", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.msgpack.packer.Packer;
+
+import com.treasure_data.client.ClientException;
+
+/**
+ * Converts CSV or TSV files into msgpack.gz parts. Column names come from the
+ * header line or from {@link #setColumnNames(String...)}. Values are typed by
+ * {@link #setColumnType(String, ColumnType)}, or guessed (integer, floating
+ * point or string) by default; empty values become nil.
+ *
+ * Every record needs a 'time' value. It is taken from the time column
+ * ('time' by default), as unix time or in the time format, or is the fixed
+ * time value if the file has no time column.
+ *
+ * <pre>
+ * CSVPartPreparer preparer = new CSVPartPreparer();
+ * preparer.setTimeColumn("created_at");
+ * preparer.setTimeFormat("yyyy-MM-dd HH:mm:ss");
+ * preparer.setColumnType("user_id", CSVPartPreparer.ColumnType.STRING);
+ * List&lt;PreparedPart&gt; parts = preparer.prepare(new File("users.csv"));
+ * </pre>
+ */
+public class CSVPartPreparer extends PartPreparer {
+
+    public static enum ColumnType {
+        GUESS, STRING, LONG, DOUBLE, BOOLEAN,
+    }
+
+    public static CSVPartPreparer newTSVPartPreparer() {
+        CSVPartPreparer p = new CSVPartPreparer('\t');
+        p.setQuoteChar(NO_QUOTE);
+        return p;
+    }
+
+    public static final char NO_QUOTE = 0;
+
+    private static final String TIME = "time";
+
+    private final char delimiter;
+    private char quote = '"';
+    private boolean hasHeader = true;
+    private String[] columnNames;
+    private final Map<String, ColumnType> columnTypes = new HashMap<String, ColumnType>();
+    private String timeColumn = TIME;
+    private String timeFormat;
+    private TimeZone timeZone = TimeZone.getTimeZone("UTC");
+    private Long timeValue;
+
+    public CSVPartPreparer() {
+        this(',');
+    }
+
+    public CSVPartPreparer(char delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Sets the quote character, or {@link #NO_QUOTE}. Two quote characters in
+     * a quoted value stand for one.
+     */
+    public void setQuoteChar(char quote) {
+        this.quote = quote;
+    }
+
+    /**
+     * Sets whether the first line is a header of column names. If column
+     * names are set too, the header line is skipped.
+     */
+    public void setHasHeader(boolean hasHeader) {
+        this.hasHeader = hasHeader;
+    }
+
+    public void setColumnNames(String... columnNames) {
+        this.columnNames = columnNames;
+    }
+
+    public void setColumnType(String columnName, ColumnType type) {
+        columnTypes.put(columnName, type);
+    }
+
+    public void setTimeColumn(String timeColumn) {
+        this.timeColumn = timeColumn;
+    }
+
+    /**
+     * Sets the {@link SimpleDateFormat} pattern of the time column. Without
+     * it, the time column is unix time in seconds.
+     */
+    public void setTimeFormat(String timeFormat) {
+        this.timeFormat = timeFormat;
+    }
+
+    /**
+     * Sets the time zone of time values whose format has no zone. The
+     * default is UTC.
+     */
+    public void setTimeZone(TimeZone timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * Sets the time (unix time in seconds) of all the records, for files that
+     * have no time column.
+     */
+    public void setTimeValue(long timeValue) {
+        this.timeValue = timeValue;
+    }
+
+    @Override
+    protected boolean hasHeader() {
+        return hasHeader;
+    }
+
+    @Override
+    protected void readHeader(String line) throws ClientException {
+        if (columnNames == null) {
+            List<String> names = new ArrayList<String>();
+            split(line, names);
+            columnNames = names.toArray(new String[names.size()]);
+        }
+    }
+
+    @Override
+    protected LineParser createLineParser() throws ClientException {
+        if (columnNames == null) {
+            throw new ClientException("Column names are neither set nor read from a header");
+        }
+
+        int timeIndex = -1;
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].equals(timeColumn)) {
+                timeIndex = i;
+            }
+        }
+        if (timeIndex < 0 && timeValue == null) {
+            throw new ClientException(String.format(
+                    "Time column '%s' is not found and time value is not set", timeColumn));
+        }
+
+        ColumnType[] types = new ColumnType[columnNames.length];
+        for (int i = 0; i < types.length; i++) {
+            ColumnType t = columnTypes.get(columnNames[i]);
+            types[i] = t != null ? t : ColumnType.GUESS;
+        }
+
+        SimpleDateFormat format = null;
+        if (timeFormat != null) {
+            format = new SimpleDateFormat(timeFormat);
+            format.setTimeZone(timeZone);
+            format.setLenient(false);
+        }
+        return new CSVLineParser(columnNames.clone(), types, timeIndex, format);
+    }
+
+    private class CSVLineParser extends LineParser {
+        private final String[] names;
+        private final ColumnType[] types;
+        private final int timeIndex;
+        private final SimpleDateFormat timeFormat;
+        private final boolean addsTime;
+        private final List<String> values = new ArrayList<String>();
+
+        CSVLineParser(String[] names, ColumnType[] types, int timeIndex,
+                SimpleDateFormat timeFormat) {
+            this.names = names;
+            this.types = types;
+            this.timeIndex = timeIndex;
+            this.timeFormat = timeFormat;
+            // the time column other than 'time' is kept and 'time' is added
+            this.addsTime = timeIndex < 0 || !names[timeIndex].equals(TIME);
+        }
+
+        @Override
+        public boolean parse(String line, Packer packer) throws IOException, ClientException {
+            if (line.length() == 0) {
+                return false;
+            }
+            values.clear();
+            split(line, values);
+            if (values.size() != names.length) {
+                throw new ClientException(String.format(
+                        "expected %d columns but got %d", names.length, values.size()));
+            }
+
+            long time = timeIndex < 0 ? timeValue : parseTime(values.get(timeIndex));
+
+            packer.writeMapBegin(names.length + (addsTime ? 1 : 0));
+            if (addsTime) {
+                packer.write(TIME);
+                packer.write(time);
+            }
+            for (int i = 0; i < names.length; i++) {
+                packer.write(names[i]);
+                if (i == timeIndex && !addsTime) {
+                    packer.write(time);
+                } else {
+                    writeValue(packer, types[i], values.get(i), names[i]);
+                }
+            }
+            packer.writeMapEnd();
+            return true;
+        }
+
+        private long parseTime(String value) throws ClientException {
+            try {
+                if (timeFormat != null) {
+                    return timeFormat.parse(value).getTime() / 1000;
+                }
+                return Long.parseLong(value);
+            } catch (ParseException e) {
+                throw new ClientException("invalid time: " + value);
+            } catch (NumberFormatException e) {
+                throw new ClientException("invalid time: " + value);
+            }
+        }
+    }
+
+    private static void writeValue(Packer packer, ColumnType type, String value, String name)
+            throws IOException, ClientException {
+        if (value.length() == 0) {
+            packer.writeNil();
+            return;
+        }
+
+        try {
+            switch (type) {
+            case STRING:
+                packer.write(value);
+                break;
+            case LONG:
+                packer.write(Long.parseLong(value));
+                break;
+            case DOUBLE:
+                packer.write(Double.parseDouble(value));
+                break;
+            case BOOLEAN:
+                if (value.equalsIgnoreCase("true")) {
+                    packer.write(true);
+                } else if (value.equalsIgnoreCase("false")) {
+                    packer.write(false);
+                } else {
+                    throw new NumberFormatException();
+                }
+                break;
+            default:
+                writeGuessedValue(packer, value);
+            }
+        } catch (NumberFormatException e) {
+            throw new ClientException(String.format("invalid %s value of '%s': %s",
+                    type.name().toLowerCase(), name, value));
+        }
+    }
+
+    private static void writeGuessedValue(Packer packer, String value) throws IOException {
+        switch (guessType(value)) {
+        case LONG:
+            try {
+                packer.write(Long.parseLong(value));
+                return;
+            } catch (NumberFormatException e) {
+                break; // too large for long
+            }
+        case DOUBLE:
+            try {
+                packer.write(Double.parseDouble(value));
+                return;
+            } catch (NumberFormatException e) {
+                break;
+            }
+        default:
+            break;
+        }
+        packer.write(value);
+    }
+
+    // looks at the characters only, so that most strings are not parsed
+    static ColumnType guessType(String value) {
+        int i = 0;
+        int len = value.length();
+        if (i < len && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            i++;
+        }
+        if (i == len) {
+            return ColumnType.STRING;
+        }
+        boolean digits = false;
+        boolean fraction = false;
+        for (; i < len; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c == '.' || c == 'e' || c == 'E'
+                    || ((c == '-' || c == '+') && i > 0
+                            && (value.charAt(i - 1) == 'e' || value.charAt(i - 1) == 'E'))) {
+                fraction = true;
+            } else {
+                return ColumnType.STRING;
+            }
+        }
+        if (!digits) {
+            return ColumnType.STRING;
+        }
+        // leading zeros (e.g. zip codes) are kept as strings
+        int first = value.charAt(0) == '-' || value.charAt(0) == '+' ? 1 : 0;
+        if (!fraction && len - first > 1 && value.charAt(first) == '0') {
+            return ColumnType.STRING;
+        }
+        return fraction ? ColumnType.DOUBLE : ColumnType.LONG;
+    }
+
+    /**
+     * Splits a line into values. A quoted value may contain delimiters and
+     * doubled quote characters.
+     */
+    void split(String line, List<String> values) throws ClientException {
+        int len = line.length();
+        int i = 0;
+        StringBuilder sbuf = null;
+        while (true) {
+            if (quote != NO_QUOTE && i < len && line.charAt(i) == quote) {
+                if (sbuf == null) {
+                    sbuf = new StringBuilder();
+                }
+                sbuf.setLength(0);
+                i++;
+                while (true) {
+                    if (i >= len) {
+                        throw new ClientException("unterminated quoted value");
+                    }
+                    char c = line.charAt(i++);
+                    if (c == quote) {
+                        if (i < len && line.charAt(i) == quote) {
+                            sbuf.append(quote);
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        sbuf.append(c);
+                    }
+                }
+                values.add(sbuf.toString());
+                if (i < len && line.charAt(i) != delimiter) {
+                    throw new ClientException("unexpected character after quoted value");
+                }
+            } else {
+                int end = line.indexOf(delimiter, i);
+                if (end < 0) {
+                    end = len;
+                }
+                values.add(line.substring(i, end));
+                i = end;
+            }
+
+            if (i >= len) {
+                return;
+            }
+            i++; // delimiter
+            if (i == len) {
+                values.add(""); // trailing empty value
+                return;
+            }
+        }
+    }
+}
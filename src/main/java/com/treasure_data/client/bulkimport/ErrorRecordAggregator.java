@@ -0,0 +1,274 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.msgpack.type.Value;
+
+/**
+ * Counts the error records of a bulk import session by group, and keeps a
+ * reservoir sample of the records of each group and of all records. Records
+ * are added one by one, e.g. from an {@link
+ * com.treasure_data.model.bulkimport.ErrorRecordCursor}, so memory use
+ * depends on the numbers of groups and samples, not on the number of records.
+ *
+ * <pre>
+ * ErrorRecordAggregator agg = new ErrorRecordAggregator(ErrorRecordAggregator.byColumnType());
+ * biclient.aggregateErrorRecords(sess, agg);
+ * for (ErrorRecordAggregator.Group g : agg.getGroups()) {
+ *     System.out.println(g.getKey() + ": " + g.getCount() + " " + g.getSamples());
+ * }
+ * </pre>
+ *
+ * This class is not thread-safe.
+ */
+public class ErrorRecordAggregator {
+
+    /**
+     * Decides the groups that a record is counted in.
+     */
+    public static interface Grouping {
+        Collection<String> getGroups(Value record);
+    }
+
+    public static final String NONE = "(none)";
+
+    public static final String OTHER = "(other)";
+
+    /**
+     * Groups map records by the value of the key, e.g. the error kind or
+     * message. Records without the key are in the {@link #NONE} group.
+     */
+    public static Grouping byField(final String key) {
+        return new Grouping() {
+            public Collection<String> getGroups(Value record) {
+                if (!record.isMapValue()) {
+                    return Collections.singletonList(NONE);
+                }
+                for (Map.Entry<Value, Value> e : record.asMapValue().entrySet()) {
+                    if (e.getKey().isRawValue() && key.equals(e.getKey().asRawValue().getString())) {
+                        return Collections.singletonList(toString(e.getValue()));
+                    }
+                }
+                return Collections.singletonList(NONE);
+            }
+
+            private String toString(Value v) {
+                return v.isRawValue() ? v.asRawValue().getString() : v.toString();
+            }
+        };
+    }
+
+    /**
+     * Groups map records by column and value type, e.g. "time:raw" for
+     * records whose time column is a string. A record is counted in the group
+     * of each of its columns.
+     */
+    public static Grouping byColumnType() {
+        return new Grouping() {
+            public Collection<String> getGroups(Value record) {
+                if (!record.isMapValue()) {
+                    return Collections.singletonList(NONE);
+                }
+                List<String> groups = new ArrayList<String>();
+                for (Map.Entry<Value, Value> e : record.asMapValue().entrySet()) {
+                    String column = e.getKey().isRawValue()
+                            ? e.getKey().asRawValue().getString() : e.getKey().toString();
+                    groups.add(column + ":" + e.getValue().getType().name().toLowerCase());
+                }
+                return groups;
+            }
+        };
+    }
+
+    public static class Group {
+        private String key;
+        private long count = 0;
+        private Reservoir samples;
+
+        Group(String key, int sampleSize) {
+            this.key = key;
+            this.samples = new Reservoir(sampleSize);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns records of the group that are chosen uniformly at random.
+         */
+        public List<Value> getSamples() {
+            return samples.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s{key=%s, count=%d}", getClass().getName(), key, count);
+        }
+    }
+
+    // Vitter's algorithm R
+    private static class Reservoir {
+        private int size;
+        private List<Value> values = new ArrayList<Value>();
+        private long seen = 0;
+
+        Reservoir(int size) {
+            this.size = size;
+        }
+
+        void add(Value v, Random random) {
+            seen++;
+            if (values.size() < size) {
+                values.add(v);
+            } else if (size > 0) {
+                long i = (long) (random.nextDouble() * seen);
+                if (i < size) {
+                    values.set((int) i, v);
+                }
+            }
+        }
+
+        List<Value> get() {
+            return Collections.unmodifiableList(new ArrayList<Value>(values));
+        }
+    }
+
+    private Grouping grouping;
+    private int sampleSize = 5;
+    private int maxGroups = 1000;
+    private Random random = new Random();
+
+    private Map<String, Group> groups = new HashMap<String, Group>();
+    private Reservoir samples = new Reservoir(sampleSize);
+    private long recordCount = 0;
+
+    public ErrorRecordAggregator(Grouping grouping) {
+        this.grouping = grouping;
+    }
+
+    /**
+     * Sets the number of sample records kept for each group and for all
+     * records. It must be set before records are added.
+     */
+    public void setSampleSize(int sampleSize) {
+        if (sampleSize < 0) {
+            throw new IllegalArgumentException("sampleSize must not be negative: " + sampleSize);
+        }
+        this.sampleSize = sampleSize;
+        samples = new Reservoir(sampleSize);
+    }
+
+    /**
+     * Sets the max number of groups. Records of more groups are counted in
+     * the {@link #OTHER} group.
+     */
+    public void setMaxGroups(int maxGroups) {
+        this.maxGroups = maxGroups;
+    }
+
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    public void add(Value record) {
+        recordCount++;
+        samples.add(record, random);
+        for (String key : grouping.getGroups(record)) {
+            Group g = groups.get(key);
+            if (g == null) {
+                if (groups.size() >= maxGroups) {
+                    key = OTHER;
+                    g = groups.get(key);
+                }
+                if (g == null) {
+                    g = new Group(key, sampleSize);
+                    groups.put(key, g);
+                }
+            }
+            g.count++;
+            g.samples.add(record, random);
+        }
+    }
+
+    /**
+     * Adds all records of the iterator, e.g. an ErrorRecordCursor.
+     */
+    public ErrorRecordAggregator addAll(Iterator<Value> records) {
+        while (records.hasNext()) {
+            add(records.next());
+        }
+        return this;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the groups, the largest first.
+     */
+    public List<Group> getGroups() {
+        List<Group> list = new ArrayList<Group>(groups.values());
+        Collections.sort(list, new Comparator<Group>() {
+            public int compare(Group g1, Group g2) {
+                if (g1.count != g2.count) {
+                    return g1.count > g2.count ? -1 : 1;
+                }
+                return g1.key.compareTo(g2.key);
+            }
+        });
+        return list;
+    }
+
+    public Group getGroup(String key) {
+        return groups.get(key);
+    }
+
+    /**
+     * Returns records that are chosen uniformly at random from all records.
+     */
+    public List<Value> getSamples() {
+        return samples.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sbuf = new StringBuilder();
+        sbuf.append(getClass().getName()).append("{records=").append(recordCount);
+        for (Group g : getGroups()) {
+            sbuf.append(", ").append(g.key).append('=').append(g.count);
+        }
+        sbuf.append('}');
+        return sbuf.toString();
+    }
+}
@@ -0,0 +1,345 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.io.IOException;
+
+import org.msgpack.packer.Packer;
+
+import com.treasure_data.client.ClientException;
+
+/**
+ * Converts newline-delimited JSON (one JSON object per line) into msgpack.gz
+ * parts. Each line is written to the packer while it is parsed, without
+ * building a Map for it. Records without a top-level 'time' are malformed
+ * unless a time value is set, in which case it is added to them.
+ */
+public class JSONPartPreparer extends PartPreparer {
+
+    private static final String TIME = "time";
+
+    private Long timeValue;
+
+    /**
+     * Sets the time (unix time in seconds) of records that have no 'time'.
+     */
+    public void setTimeValue(long timeValue) {
+        this.timeValue = timeValue;
+    }
+
+    @Override
+    protected LineParser createLineParser() {
+        return new JSONLineParser(timeValue);
+    }
+
+    static class JSONLineParser extends LineParser {
+        private final Long timeValue;
+        private final StringBuilder sbuf = new StringBuilder();
+        private String line;
+        private int pos;
+        private boolean hasTime;
+
+        JSONLineParser(Long timeValue) {
+            this.timeValue = timeValue;
+        }
+
+        @Override
+        public boolean parse(String line, Packer packer) throws IOException, ClientException {
+            this.line = line;
+            pos = 0;
+            skipWhitespace();
+            if (pos == line.length()) {
+                return false;
+            }
+            if (line.charAt(pos) != '{') {
+                throw error("a record must be a JSON object");
+            }
+
+            hasTime = false;
+            int size = countElements(pos, true);
+            boolean addsTime = !hasTime;
+            if (addsTime && timeValue == null) {
+                throw error("no time");
+            }
+            writeObject(packer, size, addsTime);
+            skipWhitespace();
+            if (pos != line.length()) {
+                throw error("unexpected characters after the object");
+            }
+            return true;
+        }
+
+        private void writeValue(Packer packer) throws IOException, ClientException {
+            skipWhitespace();
+            if (pos >= line.length()) {
+                throw error("unexpected end of line");
+            }
+            char c = line.charAt(pos);
+            switch (c) {
+            case '{':
+                writeObject(packer, countElements(pos, false), false);
+                break;
+            case '[':
+                writeArray(packer, countElements(pos, false));
+                break;
+            case '"':
+                packer.write(parseString());
+                break;
+            case 't':
+                expect("true");
+                packer.write(true);
+                break;
+            case 'f':
+                expect("false");
+                packer.write(false);
+                break;
+            case 'n':
+                expect("null");
+                packer.writeNil();
+                break;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    writeNumber(packer);
+                } else {
+                    throw error("unexpected character '" + c + "'");
+                }
+            }
+        }
+
+        private void writeObject(Packer packer, int size, boolean addsTime)
+                throws IOException, ClientException {
+            pos++; // '{'
+            packer.writeMapBegin(size + (addsTime ? 1 : 0));
+            if (addsTime) {
+                packer.write(TIME);
+                packer.write(timeValue.longValue());
+            }
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    expectChar(',');
+                }
+                skipWhitespace();
+                if (pos >= line.length() || line.charAt(pos) != '"') {
+                    throw error("expected a key");
+                }
+                packer.write(parseString());
+                expectChar(':');
+                writeValue(packer);
+            }
+            expectChar('}');
+            packer.writeMapEnd();
+        }
+
+        private void writeArray(Packer packer, int size) throws IOException, ClientException {
+            pos++; // '['
+            packer.writeArrayBegin(size);
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    expectChar(',');
+                }
+                writeValue(packer);
+            }
+            expectChar(']');
+            packer.writeArrayEnd();
+        }
+
+        private void writeNumber(Packer packer) throws IOException, ClientException {
+            int start = pos;
+            boolean integral = true;
+            if (line.charAt(pos) == '-') {
+                pos++;
+            }
+            int digits = pos;
+            while (pos < line.length()) {
+                char c = line.charAt(pos);
+                if (c >= '0' && c <= '9') {
+                    pos++;
+                } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                    integral = false;
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            if (pos == digits) {
+                throw error("invalid number");
+            }
+
+            if (integral && pos - digits <= 18) {
+                // fits in long; parse without a substring
+                long v = 0;
+                for (int i = digits; i < pos; i++) {
+                    v = v * 10 + (line.charAt(i) - '0');
+                }
+                packer.write(digits > start ? -v : v);
+                return;
+            }
+            String s = line.substring(start, pos);
+            try {
+                if (integral) {
+                    try {
+                        packer.write(Long.parseLong(s));
+                        return;
+                    } catch (NumberFormatException e) {
+                        // too large for long
+                    }
+                }
+                packer.write(Double.parseDouble(s));
+            } catch (NumberFormatException e) {
+                throw error("invalid number: " + s);
+            }
+        }
+
+        private String parseString() throws ClientException {
+            pos++; // '"'
+            int start = pos;
+            // fast path: no escape
+            while (pos < line.length()) {
+                char c = line.charAt(pos);
+                if (c == '"') {
+                    return line.substring(start, pos++);
+                } else if (c == '\\') {
+                    break;
+                }
+                pos++;
+            }
+
+            sbuf.setLength(0);
+            sbuf.append(line, start, pos);
+            while (pos < line.length()) {
+                char c = line.charAt(pos++);
+                if (c == '"') {
+                    return sbuf.toString();
+                } else if (c != '\\') {
+                    sbuf.append(c);
+                    continue;
+                }
+                if (pos >= line.length()) {
+                    break;
+                }
+                c = line.charAt(pos++);
+                switch (c) {
+                case 'b': sbuf.append('\b'); break;
+                case 'f': sbuf.append('\f'); break;
+                case 'n': sbuf.append('\n'); break;
+                case 'r': sbuf.append('\r'); break;
+                case 't': sbuf.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > line.length()) {
+                        throw error("invalid unicode escape");
+                    }
+                    try {
+                        sbuf.append((char) Integer.parseInt(line.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("invalid unicode escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    sbuf.append(c); // '"', '\\' and '/'
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        /**
+         * Counts the members of the object or the elements of the array that
+         * starts at 'start', by scanning to its end without writing. For the
+         * top-level object, it also looks for a 'time' key.
+         */
+        private int countElements(int start, boolean topLevel) throws ClientException {
+            char close = line.charAt(start) == '{' ? '}' : ']';
+            int depth = 0;
+            int count = 0;
+            boolean empty = true;
+            boolean keyPosition = topLevel;
+            for (int i = start + 1; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == '"') {
+                    int end = skipString(i);
+                    if (depth == 0 && keyPosition && end - i == 5
+                            && line.startsWith(TIME, i + 1)) {
+                        hasTime = true;
+                    }
+                    keyPosition = false;
+                    empty = false;
+                    i = end;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                    empty = false;
+                } else if (c == '}' || c == ']') {
+                    if (depth == 0) {
+                        if (c != close) {
+                            throw error("mismatched brackets");
+                        }
+                        return empty ? 0 : count + 1;
+                    }
+                    depth--;
+                } else if (c == ',' && depth == 0) {
+                    count++;
+                    keyPosition = topLevel;
+                } else if (c != ' ' && c != '\t' && c != ':') {
+                    empty = false;
+                }
+            }
+            throw error("unterminated " + (close == '}' ? "object" : "array"));
+        }
+
+        // returns the index of the closing quote
+        private int skipString(int i) throws ClientException {
+            for (i++; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    return i;
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        private void expect(String literal) throws ClientException {
+            if (!line.startsWith(literal, pos)) {
+                throw error("invalid literal");
+            }
+            pos += literal.length();
+        }
+
+        private void expectChar(char c) throws ClientException {
+            skipWhitespace();
+            if (pos >= line.length() || line.charAt(pos) != c) {
+                throw error("expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        private void skipWhitespace() {
+            while (pos < line.length()) {
+                char c = line.charAt(pos);
+                if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                    break;
+                }
+                pos++;
+            }
+        }
+
+        private ClientException error(String message) {
+            return new ClientException(message + " at column " + (pos + 1));
+        }
+    }
+}
@@ -0,0 +1,340 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.treasure_data.client.ClientException;
+import com.treasure_data.client.RetryPolicy;
+import com.treasure_data.model.bulkimport.Session;
+import com.treasure_data.model.bulkimport.UploadPartRequest;
+
+/**
+ * Uploads many parts to a bulk import session at the same time. At most
+ * 'concurrency' parts are in flight; each part is retried on its own when its
+ * upload fails, as the {@link RetryPolicy} allows.
+ *
+ * <pre>
+ * ParallelUploader uploader = new ParallelUploader(client, 4);
+ * ParallelUploader.Report report = uploader.upload(sess, parts);
+ * </pre>
+ */
+public class ParallelUploader {
+    private static Logger LOG = Logger.getLogger(ParallelUploader.class.getName());
+
+    public static interface Listener {
+        void onPartStarted(PartSource part, int attempt);
+
+        void onPartProgress(PartSource part, long sentBytes);
+
+        void onPartFinished(PartResult result);
+    }
+
+    public static class PartResult {
+        private PartSource part;
+        private long size;
+        private int attempts;
+        private long elapsedMillis;
+        private ClientException error;
+
+        PartResult(PartSource part, long size, int attempts, long elapsedMillis,
+                ClientException error) {
+            this.part = part;
+            this.size = size;
+            this.attempts = attempts;
+            this.elapsedMillis = elapsedMillis;
+            this.error = error;
+        }
+
+        public String getPartID() {
+            return part.getPartID();
+        }
+
+        public PartSource getPart() {
+            return part;
+        }
+
+        /**
+         * Returns the number of bytes sent by the last attempt.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Returns the time of the last attempt.
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public double getThroughput() { // bytes per second
+            return elapsedMillis > 0 ? size * 1000.0 / elapsedMillis : 0;
+        }
+
+        public boolean isSucceeded() {
+            return error == null;
+        }
+
+        public ClientException getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s{partID=%s, size=%d, attempts=%d, elapsed=%d, error=%s}",
+                    getClass().getName(), getPartID(), size, attempts,
+                    elapsedMillis, error);
+        }
+    }
+
+    public static class Report {
+        private List<PartResult> results;
+        private long elapsedMillis;
+
+        Report(List<PartResult> results, long elapsedMillis) {
+            this.results = results;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public List<PartResult> getPartResults() {
+            return results;
+        }
+
+        public List<PartResult> getFailedParts() {
+            List<PartResult> failed = new ArrayList<PartResult>();
+            for (PartResult r : results) {
+                if (!r.isSucceeded()) {
+                    failed.add(r);
+                }
+            }
+            return failed;
+        }
+
+        public boolean isSucceeded() {
+            return getFailedParts().isEmpty();
+        }
+
+        public long getUploadedBytes() {
+            long bytes = 0;
+            for (PartResult r : results) {
+                if (r.isSucceeded()) {
+                    bytes += r.getSize();
+                }
+            }
+            return bytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public double getThroughput() { // bytes per second
+            return elapsedMillis > 0 ? getUploadedBytes() * 1000.0 / elapsedMillis : 0;
+        }
+    }
+
+    private BulkImportClient client;
+    private int concurrency;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private Listener listener;
+
+    public ParallelUploader(BulkImportClient client, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+        }
+        this.client = client;
+        this.concurrency = concurrency;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public void setRetryCount(int retryCount) {
+        retryPolicy.setMaxRetries(retryCount);
+    }
+
+    public void setRetryWaitMillis(long retryWaitMillis) {
+        retryPolicy.setBaseDelayMillis(retryWaitMillis);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Uploads the parts and waits for all of them. Parts that still fail
+     * after the retries are reported in {@link Report#getFailedParts()}.
+     */
+    public Report upload(final Session sess, Collection<? extends PartSource> parts)
+            throws ClientException {
+        long started = System.currentTimeMillis();
+        ExecutorService exec = Executors.newFixedThreadPool(
+                Math.min(concurrency, Math.max(1, parts.size())), new UploaderThreadFactory());
+        try {
+            List<Future<PartResult>> futures = new ArrayList<Future<PartResult>>();
+            for (final PartSource part : parts) {
+                futures.add(exec.submit(new Callable<PartResult>() {
+                    public PartResult call() throws Exception {
+                        return uploadPart(sess, part);
+                    }
+                }));
+            }
+
+            List<PartResult> results = new ArrayList<PartResult>();
+            for (Future<PartResult> f : futures) {
+                results.add(f.get());
+            }
+            return new Report(Collections.unmodifiableList(results),
+                    System.currentTimeMillis() - started);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Upload parts interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ClientException("Upload parts failed", e.getCause());
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    PartResult uploadPart(Session sess, PartSource part) throws InterruptedException {
+        int attempt = 0;
+        long delay = 0;
+        while (true) {
+            attempt++;
+            if (listener != null) {
+                listener.onPartStarted(part, attempt);
+            }
+
+            long started = System.currentTimeMillis();
+            ClientException error = null;
+            CountingInputStream in = null;
+            try {
+                in = new CountingInputStream(part.openStream(), part);
+                long size = part.getSize();
+                client.uploadPart(new UploadPartRequest(sess, part.getPartID(), in,
+                        size > Integer.MAX_VALUE ? -1 : (int) size));
+            } catch (IOException e) {
+                // the part cannot be read: a local error, not retried
+                error = new ClientException(String.format("Cannot read part %s: %s",
+                        part.getPartID(), e.getMessage()));
+            } catch (ClientException e) {
+                error = e;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+            long elapsed = System.currentTimeMillis() - started;
+            long sent = in != null ? in.count : 0;
+
+            if (error == null || !retryPolicy.shouldRetry(error, attempt - 1)) {
+                if (error == null && attempt > 1) {
+                    retryPolicy.onRecovered();
+                }
+                PartResult result = new PartResult(part, sent, attempt, elapsed, error);
+                if (listener != null) {
+                    listener.onPartFinished(result);
+                }
+                return result;
+            }
+
+            delay = retryPolicy.getDelayMillis(error, delay);
+            LOG.warning(String.format("Upload part %s failed (attempt %d), will be retried in %d ms: %s",
+                    part.getPartID(), attempt, delay, error.getMessage()));
+            Thread.sleep(delay);
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        private PartSource part;
+        private long count = 0;
+
+        CountingInputStream(InputStream in, PartSource part) {
+            super(in);
+            this.part = part;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                progress(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                progress(n);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void progress(int n) {
+            count += n;
+            if (listener != null) {
+                listener.onPartProgress(part, count);
+            }
+        }
+    }
+
+    private static class UploaderThreadFactory implements ThreadFactory {
+        private static final AtomicInteger SEQ = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "td-bulk-import-uploader-" + SEQ.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
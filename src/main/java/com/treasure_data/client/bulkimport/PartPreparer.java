@@ -0,0 +1,527 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.msgpack.MessagePack;
+import org.msgpack.MessageTypeException;
+import org.msgpack.packer.Packer;
+
+import com.treasure_data.client.ClientException;
+import com.treasure_data.client.ParallelGZIPOutputStream;
+
+/**
+ * Converts a line-oriented file into msgpack.gz parts that can be uploaded
+ * to a bulk import session. Subclasses parse the lines; this class splits
+ * the output into parts of about the part size, and parses a large file on
+ * many threads by splitting it at line boundaries. Each thread writes its
+ * own parts, named &lt;prefix&gt;_&lt;chunk&gt;_&lt;seq&gt;.
+ *
+ * Lines that cannot be parsed are skipped and counted in
+ * {@link PreparedPart#getErrorCount()}.
+ *
+ * <pre>
+ * List&lt;PreparedPart&gt; parts = new CSVPartPreparer().prepare(new File("access.csv"));
+ * new ParallelUploader(client, 4).upload(sess, parts);
+ * </pre>
+ */
+public abstract class PartPreparer {
+    private static Logger LOG = Logger.getLogger(PartPreparer.class.getName());
+
+    private static final int MAX_LOGGED_ERRORS = 10;
+
+    private static final String UTF8 = "UTF-8";
+
+    /**
+     * Parses lines into records. A parser is created per thread, so it
+     * does not need to be thread-safe.
+     */
+    protected static abstract class LineParser {
+        /**
+         * Writes the record of a line with the packer.
+         *
+         * @return false if the line has no record, e.g. it is empty
+         * @throws ClientException if the line is malformed. What was written
+         * for the line is discarded.
+         */
+        public abstract boolean parse(String line, Packer packer)
+                throws IOException, ClientException;
+    }
+
+    private final MessagePack msgpack = new MessagePack();
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private long partSize = 64 * 1024 * 1024;
+
+    private File outputDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+    private long minChunkSize = 4 * 1024 * 1024;
+
+    private final AtomicLong loggedErrors = new AtomicLong();
+
+    /**
+     * Sets the number of threads that parse a file.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the size of packed (uncompressed) records at which a part is
+     * closed and the next one is started.
+     */
+    public void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    /**
+     * Sets the directory of the part files. The default is java.io.tmpdir.
+     */
+    public void setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    void setMinChunkSize(long minChunkSize) {
+        this.minChunkSize = minChunkSize;
+    }
+
+    /**
+     * Whether the first line of the input is a header rather than a record.
+     */
+    protected boolean hasHeader() {
+        return false;
+    }
+
+    /**
+     * Called with the header line before any record is parsed.
+     */
+    protected void readHeader(String line) throws ClientException {
+    }
+
+    protected abstract LineParser createLineParser() throws ClientException;
+
+    /**
+     * Converts a file. Files larger than a few MB are parsed on many threads.
+     */
+    public List<PreparedPart> prepare(File file) throws ClientException {
+        String prefix = toPartPrefix(file.getName());
+        long[] bounds;
+        try {
+            long start = 0;
+            if (hasHeader()) {
+                start = readHeader(file);
+            }
+            bounds = split(file, start);
+        } catch (IOException e) {
+            throw new ClientException(e);
+        }
+
+        int chunks = bounds.length - 1;
+        if (chunks == 1) {
+            return prepareChunk(file, prefix, 0, bounds[0], bounds[1]);
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(chunks, new PreparerThreadFactory());
+        List<Future<List<PreparedPart>>> futures = new ArrayList<Future<List<PreparedPart>>>();
+        try {
+            for (int i = 0; i < chunks; i++) {
+                final File f = file;
+                final String p = prefix;
+                final int chunk = i;
+                final long start = bounds[i];
+                final long end = bounds[i + 1];
+                futures.add(exec.submit(new Callable<List<PreparedPart>>() {
+                    public List<PreparedPart> call() throws Exception {
+                        return prepareChunk(f, p, chunk, start, end);
+                    }
+                }));
+            }
+
+            List<PreparedPart> parts = new ArrayList<PreparedPart>();
+            ClientException error = null;
+            for (Future<List<PreparedPart>> f : futures) {
+                try {
+                    parts.addAll(f.get());
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        Throwable cause = e.getCause();
+                        error = cause instanceof ClientException
+                                ? (ClientException) cause : new ClientException(cause);
+                    }
+                }
+            }
+            if (error != null) {
+                deleteQuietly(parts);
+                throw error;
+            }
+            return parts;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Prepare parts interrupted", e);
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    /**
+     * Converts a stream on the calling thread. The stream is not closed.
+     *
+     * @param name the prefix of the part IDs
+     */
+    public List<PreparedPart> prepare(String name, InputStream in) throws ClientException {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(in, UTF8), 64 * 1024);
+            if (hasHeader()) {
+                String line = reader.readLine();
+                if (line != null) {
+                    readHeader(stripBOM(line));
+                }
+            }
+        } catch (IOException e) {
+            throw new ClientException(e);
+        }
+        return prepareChunk(toPartPrefix(name), 0, reader);
+    }
+
+    private List<PreparedPart> prepareChunk(File file, String prefix, int chunk,
+            long start, long end) throws ClientException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            in.getChannel().position(start);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new BoundedInputStream(in, end - start), UTF8), 64 * 1024);
+            return prepareChunk(prefix, chunk, reader);
+        } catch (IOException e) {
+            throw new ClientException(e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private List<PreparedPart> prepareChunk(String prefix, int chunk, BufferedReader reader)
+            throws ClientException {
+        LineParser parser = createLineParser();
+        ByteArrayOutputStream record = new ByteArrayOutputStream(1024);
+        Packer packer = msgpack.createPacker(record);
+        PartWriter writer = new PartWriter(prefix, chunk);
+        try {
+            String line;
+            boolean first = chunk == 0;
+            while ((line = reader.readLine()) != null) {
+                if (first) {
+                    line = stripBOM(line);
+                    first = false;
+                }
+                record.reset();
+                try {
+                    if (parser.parse(line, packer)) {
+                        packer.flush();
+                        writer.write(record);
+                    }
+                } catch (ClientException e) {
+                    writer.error();
+                    logError(prefix, line, e.getMessage());
+                    // the packer may be in the middle of a map
+                    packer = msgpack.createPacker(record);
+                } catch (MessageTypeException e) {
+                    writer.error();
+                    logError(prefix, line, e.getMessage());
+                    packer = msgpack.createPacker(record);
+                }
+            }
+            return writer.finish();
+        } catch (IOException e) {
+            writer.abort();
+            throw new ClientException(e);
+        } catch (RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    private void logError(String prefix, String line, String message) {
+        if (loggedErrors.incrementAndGet() <= MAX_LOGGED_ERRORS) {
+            if (line.length() > 200) {
+                line = line.substring(0, 200) + "...";
+            }
+            LOG.warning(String.format("Skip a malformed line of %s: %s: %s",
+                    prefix, message, line));
+        }
+    }
+
+    // returns the offset of the first line after the header
+    private long readHeader(File file) throws IOException, ClientException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long offset = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                offset++;
+                if (b == '\n') {
+                    break;
+                }
+                line.write(b);
+            }
+            String header = line.toString(UTF8);
+            if (header.endsWith("\r")) {
+                header = header.substring(0, header.length() - 1);
+            }
+            readHeader(stripBOM(header));
+            return offset;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Splits [start, file length) into up to 'threads' ranges that begin at
+     * line boundaries. Quoted values with line breaks must not cross a
+     * boundary, so such files should be parsed with one thread.
+     */
+    private long[] split(File file, long start) throws IOException {
+        long length = file.length();
+        int n = (int) Math.max(1, Math.min(threads, (length - start) / minChunkSize));
+        List<Long> bounds = new ArrayList<Long>();
+        bounds.add(start);
+        if (n > 1) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] buf = new byte[8192];
+                for (int i = 1; i < n; i++) {
+                    long pos = start + (length - start) * i / n;
+                    long bound = nextLineStart(raf, pos, buf);
+                    if (bound > bounds.get(bounds.size() - 1) && bound < length) {
+                        bounds.add(bound);
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        bounds.add(length);
+
+        long[] array = new long[bounds.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = bounds.get(i);
+        }
+        return array;
+    }
+
+    // the offset just after the first '\n' at or after pos - 1
+    private static long nextLineStart(RandomAccessFile raf, long pos, byte[] buf)
+            throws IOException {
+        long offset = pos - 1;
+        raf.seek(offset);
+        int n;
+        while ((n = raf.read(buf)) != -1) {
+            for (int i = 0; i < n; i++) {
+                if (buf[i] == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += n;
+        }
+        return offset;
+    }
+
+    private static String stripBOM(String line) {
+        return line.length() > 0 && line.charAt(0) == '\uFEFF' ? line.substring(1) : line;
+    }
+
+    static String toPartPrefix(String name) {
+        int i = name.indexOf('.');
+        if (i > 0) {
+            name = name.substring(0, i);
+        }
+        return name.replaceAll("[^A-Za-z0-9_\\-]", "_");
+    }
+
+    private static void deleteQuietly(List<PreparedPart> parts) {
+        for (PreparedPart p : parts) {
+            p.delete();
+        }
+    }
+
+    /**
+     * Writes the records of one chunk into parts.
+     */
+    private class PartWriter {
+        private final String prefix;
+        private final int chunk;
+        private final List<PreparedPart> parts = new ArrayList<PreparedPart>();
+        private int seq = 0;
+
+        private String partID;
+        private File file;
+        private OutputStream out;
+        private long size;
+        private long records;
+        private long errors;
+        private long pendingErrors = 0;
+
+        PartWriter(String prefix, int chunk) {
+            this.prefix = prefix;
+            this.chunk = chunk;
+        }
+
+        void write(ByteArrayOutputStream record) throws IOException {
+            if (out == null) {
+                open();
+            }
+            record.writeTo(out);
+            size += record.size();
+            records++;
+            if (size >= partSize) {
+                close();
+            }
+        }
+
+        // errors are counted in the part that the next record goes to
+        void error() {
+            if (out != null) {
+                errors++;
+            } else {
+                pendingErrors++;
+            }
+        }
+
+        List<PreparedPart> finish() throws IOException {
+            if (out != null) {
+                close();
+            }
+            if (pendingErrors > 0) {
+                if (parts.isEmpty()) {
+                    LOG.warning(String.format("%d lines of %s were malformed and no records were written",
+                            pendingErrors, prefix));
+                } else {
+                    parts.get(parts.size() - 1).addErrorCount(pendingErrors);
+                }
+            }
+            return parts;
+        }
+
+        void abort() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                file.delete();
+            }
+            deleteQuietly(parts);
+        }
+
+        private void open() throws IOException {
+            partID = String.format("%s_%03d_%04d", prefix, chunk, seq++);
+            file = new File(outputDirectory, partID + ".msgpack.gz");
+            out = new ParallelGZIPOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 64 * 1024));
+            size = 0;
+            records = 0;
+            errors = pendingErrors;
+            pendingErrors = 0;
+        }
+
+        private void close() throws IOException {
+            out.close();
+            out = null;
+            parts.add(new PreparedPart(partID, file, records, errors));
+        }
+    }
+
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+
+    private static class PreparerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "td-part-preparer-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A msgpack.gz part to be uploaded to a bulk import session. The data can be
+ * opened more than once, so that a failed upload can be retried.
+ */
+public abstract class PartSource {
+
+    public static PartSource fromFile(String partID, final File file) {
+        return new PartSource(partID) {
+            @Override
+            public long getSize() {
+                return file.length();
+            }
+
+            @Override
+            public long getLastModified() {
+                return file.lastModified();
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return new FileInputStream(file);
+            }
+        };
+    }
+
+    public static PartSource fromBytes(String partID, final byte[] bytes) {
+        return new PartSource(partID) {
+            @Override
+            public long getSize() {
+                return bytes.length;
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return new ByteArrayInputStream(bytes);
+            }
+        };
+    }
+
+    private String partID;
+
+    protected PartSource(String partID) {
+        this.partID = partID;
+    }
+
+    public String getPartID() {
+        return partID;
+    }
+
+    /**
+     * Returns the size of the part in bytes, or -1 if it is unknown.
+     */
+    public abstract long getSize();
+
+    /**
+     * Returns the time when the part data was last modified, or 0 if it is
+     * unknown. A {@link BulkImportManifest} trusts the recorded hash of a part
+     * whose size and modification time did not change.
+     */
+    public long getLastModified() {
+        return 0;
+    }
+
+    /**
+     * Opens a new stream of the part data. The caller closes it.
+     */
+    public abstract InputStream openStream() throws IOException;
+
+    @Override
+    public String toString() {
+        return String.format("%s{partID=%s}", getClass().getName(), partID);
+    }
+}
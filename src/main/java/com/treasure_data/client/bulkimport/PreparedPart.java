@@ -0,0 +1,86 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A msgpack.gz part file written by a {@link PartPreparer}, with the number
+ * of records in it and the number of input lines that could not be parsed
+ * while it was written.
+ */
+public class PreparedPart extends PartSource {
+
+    private File file;
+    private long recordCount;
+    private long errorCount;
+
+    PreparedPart(String partID, File file, long recordCount, long errorCount) {
+        super(partID);
+        this.file = file;
+        this.recordCount = recordCount;
+        this.errorCount = errorCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    void addErrorCount(long count) {
+        errorCount += count;
+    }
+
+    @Override
+    public long getSize() {
+        return file.length();
+    }
+
+    @Override
+    public long getLastModified() {
+        return file.lastModified();
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Deletes the part file, e.g. after it has been uploaded.
+     */
+    public boolean delete() {
+        return file.delete();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{partID=%s, file=%s, records=%d, errors=%d}",
+                getClass().getName(), getPartID(), file, recordCount, errorCount);
+    }
+}
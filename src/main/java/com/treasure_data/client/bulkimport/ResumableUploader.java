@@ -0,0 +1,324 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.treasure_data.client.ClientException;
+import com.treasure_data.client.RetryPolicy;
+import com.treasure_data.model.bulkimport.Session;
+
+/**
+ * Uploads parts to a bulk import session so that the upload can be resumed
+ * after a crash. Every uploaded part is recorded in a
+ * {@link BulkImportManifest} with the hash of its data. When the upload is
+ * run again, the manifest is reconciled with the parts that the session has
+ * ({@link BulkImportClient#listParts(Session)}):
+ *
+ * <ul>
+ * <li>a part that the session has and whose hash is the recorded one is
+ * skipped,</li>
+ * <li>a part that the session does not have, or whose data changed, or that
+ * is not in the manifest is uploaded.</li>
+ * </ul>
+ *
+ * The hash of a part is computed while it is uploaded; a part that is skipped
+ * is read again only if its size or modification time changed. So resuming
+ * costs about as much as the missing parts.
+ *
+ * <pre>
+ * ResumableUploader uploader = new ResumableUploader(biclient, 4, new File("sess01.manifest"));
+ * ResumableUploader.Report report = uploader.upload(sess, parts);
+ * </pre>
+ */
+public class ResumableUploader {
+    private static Logger LOG = Logger.getLogger(ResumableUploader.class.getName());
+
+    public static class Report {
+        private List<String> skippedParts;
+        private ParallelUploader.Report uploadReport;
+
+        Report(List<String> skippedParts, ParallelUploader.Report uploadReport) {
+            this.skippedParts = skippedParts;
+            this.uploadReport = uploadReport;
+        }
+
+        /**
+         * Returns the IDs of the parts that were uploaded before and skipped.
+         */
+        public List<String> getSkippedParts() {
+            return skippedParts;
+        }
+
+        /**
+         * Returns the results of the parts that were uploaded this time.
+         */
+        public ParallelUploader.Report getUploadReport() {
+            return uploadReport;
+        }
+
+        public boolean isSucceeded() {
+            return uploadReport.isSucceeded();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s{skipped=%d, uploaded=%d, failed=%d}",
+                    getClass().getName(), skippedParts.size(),
+                    uploadReport.getPartResults().size() - uploadReport.getFailedParts().size(),
+                    uploadReport.getFailedParts().size());
+        }
+    }
+
+    private BulkImportClient client;
+    private int concurrency;
+    private File manifestFile;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private ParallelUploader.Listener listener;
+
+    public ResumableUploader(BulkImportClient client, int concurrency,
+            File manifestFile) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+        }
+        this.client = client;
+        this.concurrency = concurrency;
+        this.manifestFile = manifestFile;
+    }
+
+    public File getManifestFile() {
+        return manifestFile;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public void setListener(ParallelUploader.Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Uploads the parts that the session does not have yet, or that changed,
+     * and waits for all of them.
+     */
+    public Report upload(Session sess, Collection<? extends PartSource> parts)
+            throws ClientException {
+        final BulkImportManifest manifest = BulkImportManifest.open(manifestFile, sess.getName());
+        try {
+            // drops entries of other parts, and a line broken by a crash
+            List<String> partIDs = new ArrayList<String>();
+            for (PartSource part : parts) {
+                partIDs.add(part.getPartID());
+            }
+            manifest.compact(partIDs);
+
+            Set<String> uploaded = new HashSet<String>(client.listParts(sess));
+            List<String> skipped = new ArrayList<String>();
+            List<HashingPart> toUpload = new ArrayList<HashingPart>();
+            for (PartSource part : parts) {
+                if (uploaded.contains(part.getPartID()) && isUploaded(manifest, part)) {
+                    skipped.add(part.getPartID());
+                } else {
+                    toUpload.add(new HashingPart(part));
+                }
+            }
+            LOG.info(String.format("Session %s: %d parts are uploaded already, %d parts to upload",
+                    sess.getName(), skipped.size(), toUpload.size()));
+
+            ParallelUploader uploader = new ParallelUploader(client, concurrency);
+            uploader.setRetryPolicy(retryPolicy);
+            uploader.setListener(new ParallelUploader.Listener() {
+                public void onPartStarted(PartSource part, int attempt) {
+                    if (listener != null) {
+                        listener.onPartStarted(((HashingPart) part).part, attempt);
+                    }
+                }
+
+                public void onPartProgress(PartSource part, long sentBytes) {
+                    if (listener != null) {
+                        listener.onPartProgress(((HashingPart) part).part, sentBytes);
+                    }
+                }
+
+                public void onPartFinished(ParallelUploader.PartResult result) {
+                    HashingPart part = (HashingPart) result.getPart();
+                    if (result.isSucceeded()) {
+                        record(manifest, part);
+                    }
+                    if (listener != null) {
+                        listener.onPartFinished(new ParallelUploader.PartResult(part.part,
+                                result.getSize(), result.getAttempts(),
+                                result.getElapsedMillis(), result.getError()));
+                    }
+                }
+            });
+            ParallelUploader.Report report = uploader.upload(sess, toUpload);
+            return new Report(Collections.unmodifiableList(skipped), unwrap(report));
+        } finally {
+            manifest.close();
+        }
+    }
+
+    private boolean isUploaded(BulkImportManifest manifest, PartSource part)
+            throws ClientException {
+        BulkImportManifest.Entry e = manifest.get(part.getPartID());
+        if (e == null) {
+            // uploaded by someone else, or the manifest line was lost
+            return false;
+        }
+        if (e.isUnchanged(part)) {
+            return true;
+        }
+        if (e.getSize() != part.getSize() && part.getSize() >= 0) {
+            return false;
+        }
+
+        String hash;
+        try {
+            hash = BulkImportManifest.hash(part);
+        } catch (IOException ex) {
+            throw new ClientException(String.format("Cannot read part %s: %s",
+                    part.getPartID(), ex.getMessage()));
+        }
+        if (!hash.equals(e.getHash())) {
+            return false;
+        }
+        // the data is the same; saves the new modification time not to hash it again
+        if (part.getLastModified() > 0) {
+            manifest.put(new BulkImportManifest.Entry(part.getPartID(), e.getSize(),
+                    part.getLastModified(), hash));
+        }
+        return true;
+    }
+
+    private void record(BulkImportManifest manifest, HashingPart part) {
+        String hash = part.getHash();
+        if (hash == null) {
+            // the data was not read to the end; it is uploaded again next time
+            return;
+        }
+        try {
+            manifest.put(new BulkImportManifest.Entry(part.getPartID(), part.readBytes,
+                    part.lastModified, hash));
+        } catch (ClientException e) {
+            LOG.warning(String.format("Cannot record part %s: %s",
+                    part.getPartID(), e.getMessage()));
+        }
+    }
+
+    private static ParallelUploader.Report unwrap(ParallelUploader.Report report) {
+        List<ParallelUploader.PartResult> results = new ArrayList<ParallelUploader.PartResult>();
+        for (ParallelUploader.PartResult r : report.getPartResults()) {
+            results.add(new ParallelUploader.PartResult(((HashingPart) r.getPart()).part,
+                    r.getSize(), r.getAttempts(), r.getElapsedMillis(), r.getError()));
+        }
+        return new ParallelUploader.Report(Collections.unmodifiableList(results),
+                report.getElapsedMillis());
+    }
+
+    /**
+     * Computes the hash of the data of the last upload attempt.
+     */
+    private static class HashingPart extends PartSource {
+        private PartSource part;
+        private long lastModified;
+        private volatile MessageDigest digest;
+        private volatile boolean eof;
+        private volatile long readBytes;
+
+        HashingPart(PartSource part) {
+            super(part.getPartID());
+            this.part = part;
+            // taken before the data is read: if it changes while being read, it is
+            // hashed again next time
+            this.lastModified = part.getLastModified();
+        }
+
+        @Override
+        public long getSize() {
+            return part.getSize();
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            final MessageDigest d = BulkImportManifest.newDigest();
+            digest = d;
+            eof = false;
+            readBytes = 0;
+            return new FilterInputStream(part.openStream()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b == -1) {
+                        eof = true;
+                    } else {
+                        d.update((byte) b);
+                        readBytes++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n == -1) {
+                        eof = true;
+                    } else {
+                        d.update(b, off, n);
+                        readBytes += n;
+                    }
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    throw new IOException("skip is not supported");
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+        }
+
+        String getHash() {
+            if (!eof && readBytes != part.getSize()) {
+                return null;
+            }
+            return BulkImportManifest.toHex(digest.digest());
+        }
+    }
+}
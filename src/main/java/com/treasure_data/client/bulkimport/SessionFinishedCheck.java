@@ -0,0 +1,125 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.bulkimport;
+
+import java.util.logging.Logger;
+
+import com.treasure_data.client.ClientException;
+import com.treasure_data.client.HttpClientException;
+import com.treasure_data.client.RetryPolicy;
+import com.treasure_data.model.bulkimport.Session;
+import com.treasure_data.model.bulkimport.SessionSummary;
+
+/**
+ * Polls whether the perform or the commit of a session has finished, for
+ * {@link BulkImportPipeline} and {@link AsyncBulkImportClient}. If the
+ * perform_finished or commit_finished API is not found (404), the session
+ * status is polled instead. A failed poll is retried as the
+ * {@link RetryPolicy} decides: {@link #poll()} returns false, and the next
+ * poll is due after {@link #getRetryDelayMillis()}.
+ */
+class SessionFinishedCheck {
+    private static Logger LOG = Logger.getLogger(SessionFinishedCheck.class.getName());
+
+    private final BulkImportClient client;
+    private final Session sess;
+    private final BulkImportPipeline.Phase phase;
+    private final RetryPolicy retryPolicy;
+
+    private boolean useStatus = false;
+    private int retries = 0;
+    private long retryDelay = 0;
+
+    /**
+     * @param phase PERFORM or COMMIT
+     */
+    SessionFinishedCheck(BulkImportClient client, Session sess,
+            BulkImportPipeline.Phase phase, RetryPolicy retryPolicy) {
+        if (phase != BulkImportPipeline.Phase.PERFORM
+                && phase != BulkImportPipeline.Phase.COMMIT) {
+            throw new IllegalArgumentException("not a phase that is polled: " + phase);
+        }
+        this.client = client;
+        this.sess = sess;
+        this.phase = phase;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns whether the phase has finished; false also if the poll failed
+     * and is retried.
+     *
+     * @throws ClientException if the poll failed and is not retried
+     */
+    boolean poll() throws ClientException {
+        boolean finished;
+        try {
+            finished = isFinished();
+        } catch (ClientException e) {
+            if (!retryPolicy.shouldRetry(e, retries)) {
+                throw e;
+            }
+            retries++;
+            retryDelay = retryPolicy.getDelayMillis(e, retryDelay);
+            return false;
+        }
+        if (retries > 0) {
+            retryPolicy.onRecovered();
+        }
+        retries = 0;
+        retryDelay = 0;
+        return finished;
+    }
+
+    /**
+     * Returns the wait before retrying the last poll, or 0 if it did not
+     * fail.
+     */
+    long getRetryDelayMillis() {
+        return retryDelay;
+    }
+
+    private boolean isFinished() throws ClientException {
+        boolean perform = phase == BulkImportPipeline.Phase.PERFORM;
+        if (!useStatus) {
+            try {
+                return perform ? client.isPerformFinished(sess) : client.isCommitFinished(sess);
+            } catch (HttpClientException e) {
+                if (e.getResponseCode() != 404) {
+                    throw e;
+                }
+                LOG.info(String.format("%s API is not found; poll the session status",
+                        perform ? "perform_finished" : "commit_finished"));
+                useStatus = true;
+            }
+        }
+
+        SessionSummary summary = client.showSession(sess.getName());
+        if (summary == null) {
+            throw new ClientException("Session " + sess.getName() + " is not found");
+        }
+        String status = summary.getStatus();
+        if (perform) {
+            return status.equals(SessionSummary.Status.READY.statusName())
+                    || status.equals(SessionSummary.Status.COMMITTING.statusName())
+                    || status.equals(SessionSummary.Status.COMMITTED.statusName());
+        } else {
+            return status.equals(SessionSummary.Status.COMMITTED.statusName());
+        }
+    }
+}
@@ -17,9 +17,9 @@
 //
 package com.treasure_data.model;
 
-public class GetJobStatusRequest extends AbstractRequest<Job> {
+public class GetJobStatusRequest extends JobSpecifyRequest<Job> {
 
-    public GetJobStatusRequest() {
-        super(null);
+    public GetJobStatusRequest(Job job) {
+        super(job);
     }
 }
@@ -17,10 +17,43 @@
 //
 package com.treasure_data.model;
 
-public class GetJobStatusResult extends AbstractResult<Job> {
+/**
+ * Status of a job without its query, result schema and debug output.
+ */
+public class GetJobStatusResult extends JobSpecifyResult<Job> {
 
-    protected GetJobStatusResult(Job job) {
+    private JobSummary.Status status;
+
+    private String startAt;
+
+    private String endAt;
+
+    public GetJobStatusResult(Job job, JobSummary.Status status,
+            String startAt, String endAt) {
         super(job);
+        this.status = status;
+        this.startAt = startAt;
+        this.endAt = endAt;
+    }
+
+    public JobSummary.Status getStatus() {
+        return status;
     }
 
+    public String getStartAt() {
+        return startAt;
+    }
+
+    public String getEndAt() {
+        return endAt;
+    }
+
+    /**
+     * Returns true if the job has succeeded, failed or been killed.
+     */
+    public boolean isFinished() {
+        return status == JobSummary.Status.SUCCESS
+                || status == JobSummary.Status.ERROR
+                || status == JobSummary.Status.KILLED;
+    }
 }
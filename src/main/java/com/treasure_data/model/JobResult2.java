@@ -20,28 +20,36 @@ package com.treasure_data.model;
 import java.io.IOException;
 import java.io.InputStream;
 
-import org.msgpack.unpacker.Unpacker;
-
 import com.treasure_data.client.ClientException;
 
 /**
- * this class is developed for td-jdbc
+ * this class is developed for td-jdbc. The result is not buffered; it is
+ * read from the response body through {@link #getResultInputStream()} or
+ * {@link #getResultCursor()}.
  */
 public class JobResult2 extends JobResult {
 
     private InputStream in;
 
+    private JobResultCursor cursor;
+
     public JobResult2(Job job) {
         super(job);
     }
 
     public void close() throws ClientException {
-        if (getResult() != null) {
-            try {
+        try {
+            if (getResult() != null) {
                 getResult().close();
-            } catch (IOException e) {
-                throw new ClientException(e);
             }
+            if (cursor != null) {
+                cursor.close();
+            } else if (in != null) {
+                // gives the connection back to the pool
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new ClientException(e);
         }
     }
 
@@ -52,4 +60,27 @@ public class JobResult2 extends JobResult {
     public InputStream getResultInputStream() {
         return in;
     }
+
+    /**
+     * Returns a cursor that decodes rows from the msgpack.gz result stream
+     * one by one, instead of loading the whole result into memory.
+     */
+    public JobResultCursor getResultCursor() throws ClientException {
+        if (cursor == null) {
+            if (in == null) {
+                throw new ClientException("result is not received yet");
+            }
+            try {
+                cursor = new JobResultCursor(in);
+            } catch (IOException e) {
+                try {
+                    in.close();
+                } catch (IOException e2) {
+                    // ignore
+                }
+                throw new ClientException(e);
+            }
+        }
+        return cursor;
+    }
 }
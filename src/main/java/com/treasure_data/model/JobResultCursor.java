@@ -0,0 +1,45 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Iterates over the rows of a job result while they are decoded from the
+ * msgpack.gz response body, so only one row is held in memory at a time.
+ * A row is an array value. Closing the cursor, or reading it to the end, releases the connection.
+ * A body that fails or is cut off before its end is thrown as a
+ * {@link MessagePackCursor.ReadException}, not taken as the last row.
+ */
+public class JobResultCursor extends MessagePackCursor {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    public JobResultCursor(InputStream gzipped) throws IOException {
+        super("job result", gzipped, new GZIPInputStream(gzipped, BUFFER_SIZE));
+    }
+
+    /**
+     * Returns the number of rows read so far.
+     */
+    public long getRowCount() {
+        return getCount();
+    }
+}
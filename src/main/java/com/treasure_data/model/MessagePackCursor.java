@@ -0,0 +1,150 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.model;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.msgpack.MessagePack;
+import org.msgpack.type.Value;
+import org.msgpack.unpacker.Unpacker;
+
+/**
+ * Iterates over the msgpack values of a response body while they are
+ * decoded, so only one value is held in memory at a time. Closing the
+ * cursor, or reading it to the end, releases the connection.
+ *
+ * The body ends only where the stream ends between two values. An I/O error,
+ * or a stream that ends in the middle of a value, is thrown from hasNext or
+ * next as a {@link ReadException}, so a dropped connection is not taken as
+ * the end of the values.
+ */
+public abstract class MessagePackCursor implements Iterator<Value>, Closeable {
+
+    /**
+     * Thrown when the values cannot be read to the end. The cause is the
+     * IOException.
+     */
+    public static class ReadException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ReadException(String message, IOException cause) {
+            super(message, cause);
+        }
+    }
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final String name;
+    private final InputStream in;
+    private final BufferedInputStream buffered;
+    private final Unpacker unpacker;
+    private Value next;
+    private long count = 0;
+    private boolean closed = false;
+
+    /**
+     * @param name of the values, for errors
+     * @param in the response body, which is closed with the cursor
+     * @param decoded stream of the msgpack values, e.g. in itself or a
+     * GZIPInputStream over it
+     */
+    protected MessagePackCursor(String name, InputStream in, InputStream decoded) {
+        this.name = name;
+        this.in = in;
+        buffered = new BufferedInputStream(decoded, BUFFER_SIZE);
+        unpacker = new MessagePack().createUnpacker(buffered);
+    }
+
+    /**
+     * @throws ReadException if the next value cannot be read
+     */
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (closed) {
+            return false;
+        }
+        try {
+            // the end of the stream is the end of the values only here, since
+            // the unpacker reads no byte beyond a value
+            buffered.mark(1);
+            if (buffered.read() < 0) {
+                closeQuietly();
+                return false;
+            }
+            buffered.reset();
+            next = unpacker.readValue();
+            return true;
+        } catch (IOException e) {
+            closeQuietly();
+            throw new ReadException(String.format("Read %s failed after %d values: %s",
+                    name, count, e), e);
+        }
+    }
+
+    /**
+     * @throws ReadException if the next value cannot be read
+     */
+    public Value next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Value v = next;
+        next = null;
+        count++;
+        return v;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the number of values read so far.
+     */
+    protected long getCount() {
+        return count;
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        next = null;
+        try {
+            unpacker.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,43 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.model.bulkimport;
+
+import java.io.InputStream;
+
+import com.treasure_data.model.MessagePackCursor;
+
+/**
+ * Iterates over the error records of a bulk import session while they are
+ * decoded from the msgpack response body, so only one record is held in
+ * memory at a time. A record is usually a map value. Closing the cursor, or
+ * reading it to the end, releases the connection. A body that fails or is
+ * cut off in a record is thrown as a {@link MessagePackCursor.ReadException}.
+ */
+public class ErrorRecordCursor extends MessagePackCursor {
+
+    public ErrorRecordCursor(InputStream in) {
+        super("error records", in, in);
+    }
+
+    /**
+     * Returns the number of records read so far.
+     */
+    public long getRecordCount() {
+        return getCount();
+    }
+}
@@ -19,8 +19,23 @@ package com.treasure_data.model.bulkimport;
 
 public class GetErrorRecordsRequest extends BulkImportSpecifyRequest<Session> {
 
+    private boolean streaming = false;
+
     public GetErrorRecordsRequest(Session sess) {
         super(sess);
     }
 
+    /**
+     * If streaming is true, the result has an {@link ErrorRecordCursor} that
+     * reads the response body while it is iterated, instead of an Unpacker of
+     * the whole body.
+     */
+    public GetErrorRecordsRequest(Session sess, boolean streaming) {
+        super(sess);
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
 }
@@ -23,12 +23,26 @@ public class GetErrorRecordsResult extends BulkImportSpecifyResult<Session> {
 
     private Unpacker unpacker;
 
+    private ErrorRecordCursor cursor;
+
     public GetErrorRecordsResult(Session sess, Unpacker unpacker) {
         super(sess);
         this.unpacker = unpacker;
     }
 
+    public GetErrorRecordsResult(Session sess, ErrorRecordCursor cursor) {
+        super(sess);
+        this.cursor = cursor;
+    }
+
     public Unpacker getErrorRecords() {
         return unpacker;
     }
+
+    /**
+     * Returns the cursor of a streaming request, or null.
+     */
+    public ErrorRecordCursor getErrorRecordCursor() {
+        return cursor;
+    }
 }
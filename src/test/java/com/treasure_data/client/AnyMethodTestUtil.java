@@ -11,6 +11,7 @@ import static org.mockito.Mockito.spy;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
 import java.util.Properties;
 
@@ -29,8 +30,9 @@ import com.treasure_data.model.Result;
 public abstract class AnyMethodTestUtil<REQ extends Request<?>, RET extends Result<?>, CLIENT extends AbstractClientAdaptor> {
 
     protected CLIENT clientAdaptor;
-    protected HttpConnectionImpl conn;
+    protected HttpConnection conn;
     protected boolean responsedBinary = false;
+    protected boolean responsedStream = false;
 
     @Before
     public void createResources() throws Exception {
@@ -73,12 +75,14 @@ public abstract class AnyMethodTestUtil<REQ extends Request<?>, RET extends Resu
 
     @Test
     public void checkNormalBehavior() throws Exception {
-        // create mock HttpConnectionImpl object
+        // create mock HttpConnection object
         callMockDoMethodRequest();
         doReturn(HttpURLConnection.HTTP_OK).when(conn).getResponseCode();
         doReturn("something").when(conn).getResponseMessage();
         doReturn("something").when(conn).getErrorMessage();
-        if (!responsedBinary) {
+        if (responsedStream) {
+            doReturn(new StringReader(getJSONTextForChecking())).when(conn).getResponseReader();
+        } else if (!responsedBinary) {
             doReturn(getJSONTextForChecking()).when(conn).getResponseBody();
         } else {
             doReturn(getMockResponseBodyBinary()).when(conn).getResponseBodyBinary();
@@ -98,12 +102,14 @@ public abstract class AnyMethodTestUtil<REQ extends Request<?>, RET extends Resu
     @Test
     public void throwClientErrorWhenReceivedInvalidJSONAsResponseBody()
             throws Exception {
-        // create mock HttpConnectionImpl object
+        // create mock HttpConnection object
         callMockDoMethodRequest();
         doReturn(HttpURLConnection.HTTP_OK).when(conn).getResponseCode();
         doReturn("something").when(conn).getResponseMessage();
         doReturn("something").when(conn).getErrorMessage();
-        if (!responsedBinary) {
+        if (responsedStream) {
+            doReturn(new StringReader("invalid_json")).when(conn).getResponseReader();
+        } else if (!responsedBinary) {
             doReturn("invalid_json").when(conn).getResponseBody();
         } else {
             InputStream in = new ByteArrayInputStream(new byte[] { 0x01 });
@@ -134,7 +140,7 @@ public abstract class AnyMethodTestUtil<REQ extends Request<?>, RET extends Resu
         String expectedMessage = "something";
         String expectedErrMessage = "something2";
 
-        // create mock HttpConnectionImpl object
+        // create mock HttpConnection object
         callMockDoMethodRequest();
         doReturn(expectedCode).when(conn).getResponseCode();
         doReturn(expectedMessage).when(conn).getResponseMessage();
@@ -162,7 +168,7 @@ public abstract class AnyMethodTestUtil<REQ extends Request<?>, RET extends Resu
     @Test
     public void throwClientErrorWhenGetResponseCodeThrowsIOError()
             throws Exception {
-        // create mock HttpConnectionImpl object
+        // create mock HttpConnection object
         callMockDoMethodRequest();
         doThrow(new IOException()).when(conn).getResponseCode();
         doReturn("something").when(conn).getResponseMessage();
@@ -191,7 +197,7 @@ public abstract class AnyMethodTestUtil<REQ extends Request<?>, RET extends Resu
             throws Exception {
         int expectedCode = HttpURLConnection.HTTP_BAD_REQUEST;
 
-        // create mock HttpConnectionImpl object
+        // create mock HttpConnection object
         callMockDoMethodRequest();
         doReturn(expectedCode).when(conn).getResponseCode();
         doThrow(new IOException()).when(conn).getResponseMessage();
@@ -222,12 +228,14 @@ public abstract class AnyMethodTestUtil<REQ extends Request<?>, RET extends Resu
         int expectedCode = HttpURLConnection.HTTP_OK;
         String expectedMessage = "something";
 
-        // create mock HttpConnectionImpl object
+        // create mock HttpConnection object
         callMockDoMethodRequest();
         doReturn(expectedCode).when(conn).getResponseCode();
         doReturn("something").when(conn).getResponseMessage();
         doReturn("something").when(conn).getErrorMessage();
-        if (!responsedBinary) {
+        if (responsedStream) {
+            doThrow(new IOException()).when(conn).getResponseReader();
+        } else if (!responsedBinary) {
             doThrow(new IOException()).when(conn).getResponseBody();
         } else {
             doReturn(new IOException()).when(conn).getResponseBodyBinary();
@@ -0,0 +1,80 @@
+package com.treasure_data.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers requests on keep-alive connections, but closes the connection
+ * without an answer when it reads the request of the given number, as if
+ * it closed the idle connection at the same time.
+ */
+class DroppingServer extends Thread {
+    private final ServerSocket serverSocket;
+    private final int dropAt;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    DroppingServer(int dropAt) throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.dropAt = dropAt;
+        setDaemon(true);
+        start();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                new Thread() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }.start();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = HttpBodyInputStream.readLine(in)) != null) {
+                while (line.length() > 0) {
+                    line = HttpBodyInputStream.readLine(in);
+                }
+                if (requests.incrementAndGet() == dropAt) {
+                    break;
+                }
+                out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes());
+                out.flush();
+            }
+        } catch (IOException e) {
+            // closed by the client
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    int getRequestCount() {
+        return requests.get();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+    }
+}
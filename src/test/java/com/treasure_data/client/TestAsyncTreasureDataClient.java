@@ -0,0 +1,318 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.packer.Packer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.model.Database;
+import com.treasure_data.model.Job;
+import com.treasure_data.model.JobResult;
+import com.treasure_data.model.JobSummary;
+
+public class TestAsyncTreasureDataClient {
+
+    private static final int THREADS = 4;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private Properties sysprops;
+    private ExecutorService executor;
+    private AsyncTreasureDataClient async;
+
+    private AtomicInteger nextJobID = new AtomicInteger(1);
+    private ConcurrentMap<String, AtomicInteger> statusCalls =
+            new ConcurrentHashMap<String, AtomicInteger>();
+    private volatile int runningPolls = 3;
+    private volatile String finalStatus = "success";
+    private volatile int jobsPolledBeforeFirstResult = -1;
+    // status requests wait until this many are in flight, if not null
+    private volatile CountDownLatch statusBarrier;
+    private volatile boolean statusBarrierPassed = true;
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/job/", new HttpHandler() {
+            @SuppressWarnings({ "rawtypes", "unchecked" })
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                while (in.read() != -1) {
+                }
+                String path = ex.getRequestURI().getPath();
+                String jobID = path.substring(path.lastIndexOf('/') + 1);
+
+                int code = 200;
+                byte[] body;
+                Map map = new HashMap();
+                if (path.startsWith("/v3/job/issue/")) {
+                    map.put("job_id", "" + nextJobID.getAndIncrement());
+                    map.put("database", jobID);
+                    body = JSONValue.toJSONString(map).getBytes("UTF-8");
+                } else if (path.startsWith("/v3/job/status/")) {
+                    CountDownLatch barrier = statusBarrier;
+                    if (barrier != null) {
+                        barrier.countDown();
+                        try {
+                            if (!barrier.await(5, TimeUnit.SECONDS)) {
+                                statusBarrierPassed = false;
+                            }
+                        } catch (InterruptedException e) {
+                            statusBarrierPassed = false;
+                        }
+                    }
+                    statusCalls.putIfAbsent(jobID, new AtomicInteger());
+                    int n = statusCalls.get(jobID).incrementAndGet();
+                    map.put("job_id", jobID);
+                    map.put("status", n <= runningPolls ? "running" : finalStatus);
+                    map.put("start_at", "2013-06-01 05:31:10 UTC");
+                    body = JSONValue.toJSONString(map).getBytes("UTF-8");
+                } else if (path.startsWith("/v3/job/show/") && !jobID.equals("unknown")) {
+                    map.put("job_id", jobID);
+                    map.put("type", "hive");
+                    map.put("status", finalStatus);
+                    map.put("query", "SELECT " + jobID);
+                    Map debugMap = new HashMap();
+                    debugMap.put("cmdout", "");
+                    debugMap.put("stderr", "");
+                    map.put("debug", debugMap);
+                    body = JSONValue.toJSONString(map).getBytes("UTF-8");
+                } else if (path.startsWith("/v3/job/result/")) {
+                    synchronized (statusCalls) {
+                        if (jobsPolledBeforeFirstResult < 0) {
+                            jobsPolledBeforeFirstResult = statusCalls.size();
+                        }
+                    }
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    GZIPOutputStream gzout = new GZIPOutputStream(out);
+                    Packer packer = new MessagePack().createPacker(gzout);
+                    packer.write(jobID);
+                    gzout.close();
+                    body = out.toByteArray();
+                } else {
+                    code = 404;
+                    body = "{\"error\":\"not found\"}".getBytes("UTF-8");
+                }
+                ex.sendResponseHeaders(code, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+
+        TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), new Properties());
+        executor = Executors.newFixedThreadPool(THREADS);
+        async = new AsyncTreasureDataClient(client, executor);
+        async.getJobWaiter().setMinIntervalMillis(5);
+        async.getJobWaiter().setMaxIntervalMillis(5);
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        async.close();
+        executor.shutdownNow();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        System.setProperties(sysprops);
+    }
+
+    @Test
+    public void runManyJobsOnFewThreads() throws Exception {
+        int jobs = 20;
+        List<ClientFuture<JobResult>> futures = new ArrayList<ClientFuture<JobResult>>();
+        for (int i = 0; i < jobs; i++) {
+            futures.add(async.runJob(new Job(new Database("mydb"), "SELECT 1"), 10000));
+        }
+
+        for (ClientFuture<JobResult> f : futures) {
+            JobResult result = f.get(10, TimeUnit.SECONDS);
+            String jobID = result.getJob().getJobID();
+            assertEquals(jobID, result.getResult().readValue().asRawValue().getString());
+            assertEquals(runningPolls + 1, statusCalls.get(jobID).get());
+        }
+        assertEquals(jobs, statusCalls.size());
+        // more jobs are waited for at a time than there are threads
+        assertTrue(jobsPolledBeforeFirstResult > THREADS);
+    }
+
+    @Test
+    public void waitForResponsesWithoutThreads() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_CLIENT_TRANSPORT, "nio");
+        TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), props);
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        AsyncTreasureDataClient nio = new AsyncTreasureDataClient(client, single);
+        try {
+            int jobs = 6;
+            runningPolls = 0;
+            statusBarrier = new CountDownLatch(jobs);
+            // every status request is answered only when all of them are in
+            // flight, so one thread must not wait for a response
+            List<ClientFuture<JobSummary>> futures = new ArrayList<ClientFuture<JobSummary>>();
+            for (int i = 0; i < jobs; i++) {
+                futures.add(nio.waitForCompletion(new Job("" + i), 10000));
+            }
+            for (ClientFuture<JobSummary> f : futures) {
+                assertEquals(JobSummary.Status.SUCCESS, f.get(10, TimeUnit.SECONDS).getStatus());
+            }
+            assertTrue(statusBarrierPassed);
+        } finally {
+            nio.close();
+            single.shutdownNow();
+            client.close();
+        }
+    }
+
+    @Test
+    public void failRunJobIfJobDoesNotSucceed() throws Exception {
+        finalStatus = "error";
+        try {
+            async.runJob(new Job(new Database("mydb"), "SELECT 1"), 10000).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClientException);
+            assertTrue(e.getCause().getMessage().contains("error"));
+        }
+    }
+
+    @Test
+    public void callBackOnSuccessAndFailure() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicReference<JobSummary> job = new AtomicReference<JobSummary>();
+        final AtomicReference<ClientException> error = new AtomicReference<ClientException>();
+        async.showJob("12345").addCallback(new ClientCallback<JobSummary>() {
+            public void onSuccess(JobSummary result) {
+                job.set(result);
+                latch.countDown();
+            }
+
+            public void onFailure(ClientException e) {
+                latch.countDown();
+            }
+        });
+        async.showJob("unknown").addCallback(new ClientCallback<JobSummary>() {
+            public void onSuccess(JobSummary result) {
+                latch.countDown();
+            }
+
+            public void onFailure(ClientException e) {
+                error.set(e);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals("SELECT 12345", job.get().getQuery());
+        assertEquals(404, ((HttpClientException) error.get()).getResponseCode());
+    }
+
+    @Test
+    public void failWaitOnTimeout() throws Exception {
+        runningPolls = Integer.MAX_VALUE;
+        try {
+            async.waitForCompletion(new Job("12345"), 100).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("running"));
+        }
+    }
+
+    @Test
+    public void stopPollingWhenCancelled() throws Exception {
+        runningPolls = Integer.MAX_VALUE;
+        ClientFuture<JobSummary> f = async.waitForCompletion(new Job("12345"), 0);
+        while (statusCalls.get("12345") == null || statusCalls.get("12345").get() < 3) {
+            Thread.sleep(1);
+        }
+        assertTrue(f.cancel(false));
+        assertTrue(f.isCancelled());
+        Thread.sleep(50);
+        int calls = statusCalls.get("12345").get();
+        Thread.sleep(100);
+        assertEquals(calls, statusCalls.get("12345").get());
+    }
+
+    @Test
+    public void runAnyCallOnTheExecutor() throws Exception {
+        final String[] thread = new String[1];
+        ClientFuture<String> f = async.call(new Callable<String>() {
+            public String call() throws Exception {
+                thread[0] = Thread.currentThread().getName();
+                return "done";
+            }
+        });
+        assertEquals("done", f.get());
+        assertTrue(!thread[0].equals(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void runCallsOnExecutorOfProperties() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_CLIENT_EXECUTOR_THREADS, "2");
+        TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), props);
+        AsyncTreasureDataClient owning = new AsyncTreasureDataClient(client);
+        assertEquals("SELECT 12345", owning.showJob("12345").get().getQuery());
+        ExecutorService executor = (ExecutorService) owning.getExecutor();
+        owning.close();
+        assertTrue(executor.isShutdown());
+    }
+
+    @Test
+    public void failIfExecutorRejects() throws Exception {
+        AsyncTreasureDataClient rejecting = new AsyncTreasureDataClient(async.getClient(),
+                new Executor() {
+                    public void execute(Runnable command) {
+                        throw new RejectedExecutionException();
+                    }
+                });
+        ClientFuture<JobSummary> f = rejecting.showJob("12345");
+        assertTrue(f.isDone());
+        try {
+            f.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClientException);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.client.bulkimport.BulkImportClient;
+import com.treasure_data.model.Database;
+import com.treasure_data.model.Table;
+import com.treasure_data.model.bulkimport.CreateSessionRequest;
+
+public class TestAutoCreateTable {
+
+    private HttpServer server;
+    private Properties sysprops;
+
+    // "database.table" of the tables that the stub server has
+    private Set<String> tables = Collections.synchronizedSet(new HashSet<String>());
+    private AtomicInteger importCount = new AtomicInteger();
+    private AtomicInteger createCount = new AtomicInteger();
+    private AtomicInteger sessionCount = new AtomicInteger();
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/table/import/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                importCount.incrementAndGet();
+                String[] path = readPath(ex);
+                if (!tables.contains(path[4] + "." + path[5])) {
+                    respond(ex, 404, "{\"error\":\"Table not found\"}");
+                    return;
+                }
+                respond(ex, 200, "{\"database\":\"" + path[4] + "\",\"table\":\""
+                        + path[5] + "\",\"elapsed_time\":0.1}");
+            }
+        });
+        server.createContext("/v3/table/create/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                createCount.incrementAndGet();
+                String[] path = readPath(ex);
+                if (!tables.add(path[4] + "." + path[5])) {
+                    respond(ex, 409, "{\"error\":\"Table already exists\"}");
+                    return;
+                }
+                respond(ex, 200, tableJSON(path[4], path[5]));
+            }
+        });
+        server.createContext("/v3/table/delete/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                String[] path = readPath(ex);
+                tables.remove(path[4] + "." + path[5]);
+                respond(ex, 200, tableJSON(path[4], path[5]));
+            }
+        });
+        server.createContext("/v3/bulk_import/create/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                sessionCount.incrementAndGet();
+                String[] path = readPath(ex);
+                if (!tables.contains(path[5] + "." + path[6])) {
+                    respond(ex, 404, "{\"error\":\"Table not found\"}");
+                    return;
+                }
+                respond(ex, 200, "{\"name\":\"" + path[4] + "\"}");
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        System.setProperties(sysprops);
+    }
+
+    private static String[] readPath(HttpExchange ex) throws IOException {
+        InputStream in = ex.getRequestBody();
+        while (in.read() != -1) {
+        }
+        // e.g. ["", "v3", "table", "import", "db", "tbl", "msgpack.gz"]
+        return ex.getRequestURI().getPath().split("/");
+    }
+
+    private static void respond(HttpExchange ex, int code, String json) throws IOException {
+        byte[] body = json.getBytes("UTF-8");
+        ex.sendResponseHeaders(code, body.length);
+        ex.getResponseBody().write(body);
+        ex.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String tableJSON(String databaseName, String tableName) {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("database", databaseName);
+        map.put("table", tableName);
+        map.put("type", "log");
+        return JSONValue.toJSONString(map);
+    }
+
+    private static TreasureDataClient newClient(boolean autoCreate) {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_AUTO_CREATE_TABLE, "" + autoCreate);
+        return new TreasureDataClient(new TreasureDataCredentials("api-key"), props);
+    }
+
+    private static Table table(String databaseName, String tableName) {
+        return new Table(new Database(databaseName), tableName);
+    }
+
+    @Test
+    public void createTableOnFirstImportOnly() throws Exception {
+        TreasureDataClient client = newClient(true);
+        assertTrue(client.isAutoCreateTable());
+
+        client.importData(table("db", "tbl"), new byte[] { 0 });
+        assertEquals(1, createCount.get());
+        assertEquals(2, importCount.get());
+        assertTrue(tables.contains("db.tbl"));
+
+        // the table is known to exist: no more create call
+        client.importData(table("db", "tbl"), new byte[] { 0 });
+        client.importData(table("db", "tbl"), new byte[] { 0 });
+        assertEquals(1, createCount.get());
+        assertEquals(4, importCount.get());
+    }
+
+    @Test
+    public void notFoundIsThrownWithoutAutoCreate() throws Exception {
+        TreasureDataClient client = newClient(false);
+        assertFalse(client.isAutoCreateTable());
+        try {
+            client.importData(table("db", "tbl"), new byte[] { 0 });
+            fail();
+        } catch (HttpClientException e) {
+            assertEquals(404, e.getResponseCode());
+        }
+        assertEquals(0, createCount.get());
+        assertEquals(1, importCount.get());
+    }
+
+    @Test
+    public void treatConflictAsCreated() throws Exception {
+        // created by another client
+        tables.add("db.tbl");
+
+        TreasureDataClient client = newClient(true);
+        assertFalse(client.createTableIfNotExists("db", "tbl"));
+        assertEquals(1, createCount.get());
+        assertFalse(client.createTableIfNotExists("db", "tbl"));
+        assertEquals(1, createCount.get());
+    }
+
+    @Test
+    public void createTableAgainAfterDelete() throws Exception {
+        TreasureDataClient client = newClient(true);
+        assertTrue(client.createTableIfNotExists("db", "tbl"));
+        assertFalse(client.createTableIfNotExists("db", "tbl"));
+        assertEquals(1, createCount.get());
+
+        client.deleteTable("db", "tbl");
+        assertTrue(client.createTableIfNotExists("db", "tbl"));
+        assertEquals(2, createCount.get());
+    }
+
+    @Test
+    public void createTableAgainIfDeletedBySomeoneElse() throws Exception {
+        TreasureDataClient client = newClient(true);
+        client.importData(table("db", "tbl"), new byte[] { 0 });
+        assertEquals(1, createCount.get());
+
+        tables.remove("db.tbl");
+        client.importData(table("db", "tbl"), new byte[] { 0 });
+        assertEquals(2, createCount.get());
+        assertTrue(tables.contains("db.tbl"));
+    }
+
+    @Test
+    public void createTableOnCreateSession() throws Exception {
+        BulkImportClient biclient = new BulkImportClient(newClient(true));
+        biclient.createSession(new CreateSessionRequest("sess01", "db", "tbl"));
+        assertEquals(1, createCount.get());
+        assertEquals(2, sessionCount.get());
+
+        biclient = new BulkImportClient(newClient(false));
+        try {
+            biclient.createSession(new CreateSessionRequest("sess02", "db", "tbl2"));
+            fail();
+        } catch (HttpClientException e) {
+            assertEquals(404, e.getResponseCode());
+        }
+        assertEquals(1, createCount.get());
+    }
+}
@@ -0,0 +1,81 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.Test;
+
+public class TestClientExecutors {
+
+    private static final Callable<Thread> CURRENT_THREAD = new Callable<Thread>() {
+        public Thread call() {
+            return Thread.currentThread();
+        }
+    };
+
+    @Test
+    public void createPlatformThreadPoolByDefault() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_CLIENT_EXECUTOR_THREADS, "3");
+        ExecutorService executor = ClientExecutors.newExecutor(props);
+        try {
+            assertEquals(3, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+            Thread t = executor.submit(CURRENT_THREAD).get();
+            assertTrue(t.isDaemon());
+            assertTrue(t.getName().startsWith("td-client-executor-"));
+            assertFalse(ClientExecutors.isVirtual(t));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void createVirtualThreadExecutorIfSupported() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_CLIENT_EXECUTOR, "virtual");
+        if (!ClientExecutors.isVirtualThreadSupported()) {
+            try {
+                ClientExecutors.newExecutor(props);
+                fail();
+            } catch (UnsupportedOperationException e) {
+                // expected before Java 21
+            }
+            return;
+        }
+
+        ExecutorService executor = ClientExecutors.newExecutor(props);
+        try {
+            Thread t = executor.submit(CURRENT_THREAD).get();
+            assertTrue(ClientExecutors.isVirtual(t));
+            assertTrue(t.getName().startsWith("td-client-virtual-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectUnknownExecutor() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_CLIENT_EXECUTOR, "green");
+        try {
+            ClientExecutors.newExecutor(props);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("green"));
+        }
+
+        try {
+            ClientExecutors.newPlatformThreadExecutor(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
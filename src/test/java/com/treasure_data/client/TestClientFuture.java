@@ -0,0 +1,135 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class TestClientFuture {
+
+    private static class RecordingCallback<T> implements ClientCallback<T> {
+        private List<Object> events = new ArrayList<Object>();
+
+        public void onSuccess(T result) {
+            events.add(result);
+        }
+
+        public void onFailure(ClientException e) {
+            events.add(e);
+        }
+    }
+
+    @Test
+    public void callCallbacksOnceWhenCompleted() throws Exception {
+        ClientFuture<String> f = new ClientFuture<String>();
+        RecordingCallback<String> before = new RecordingCallback<String>();
+        f.addCallback(before);
+        assertTrue(before.events.isEmpty());
+
+        assertTrue(f.complete("a"));
+        assertFalse(f.complete("b"));
+        assertFalse(f.fail(new ClientException("error")));
+        assertEquals(1, before.events.size());
+        assertEquals("a", before.events.get(0));
+
+        // called at once if the result is set already
+        RecordingCallback<String> after = new RecordingCallback<String>();
+        f.addCallback(after);
+        assertEquals("a", after.events.get(0));
+        assertEquals("a", f.get());
+    }
+
+    @Test
+    public void throwExecutionExceptionOfError() throws Exception {
+        ClientFuture<String> f = new ClientFuture<String>();
+        try {
+            f.get(10, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException e) {
+            // expected
+        }
+        ClientException error = new ClientException("error");
+        f.fail(error);
+        try {
+            f.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() == error);
+        }
+    }
+
+    @Test
+    public void chainSteps() throws Exception {
+        ClientFuture<Integer> first = new ClientFuture<Integer>();
+        final ClientFuture<String> second = new ClientFuture<String>();
+        ClientFuture<String> chain = first.then(new ClientFuture.Step<Integer, String>() {
+            public ClientFuture<String> apply(Integer result) {
+                return second;
+            }
+        }).then(new ClientFuture.Step<String, String>() {
+            public ClientFuture<String> apply(String result) {
+                return ClientFuture.succeeded(result + "!");
+            }
+        });
+
+        first.complete(1);
+        assertFalse(chain.isDone());
+        second.complete("done");
+        assertEquals("done!", chain.get());
+    }
+
+    @Test
+    public void skipStepsAfterFailure() throws Exception {
+        ClientFuture<Integer> first = new ClientFuture<Integer>();
+        final int[] calls = new int[1];
+        ClientFuture<String> chain = first.then(new ClientFuture.Step<Integer, String>() {
+            public ClientFuture<String> apply(Integer result) {
+                calls[0]++;
+                return ClientFuture.succeeded("x");
+            }
+        });
+        ClientException error = new ClientException("error");
+        first.fail(error);
+        try {
+            chain.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() == error);
+        }
+        assertEquals(0, calls[0]);
+    }
+
+    @Test
+    public void cancelRunningStepOfChain() throws Exception {
+        ClientFuture<Integer> first = new ClientFuture<Integer>();
+        final ClientFuture<String> second = new ClientFuture<String>();
+        ClientFuture<String> chain = first.then(new ClientFuture.Step<Integer, String>() {
+            public ClientFuture<String> apply(Integer result) {
+                return second;
+            }
+        });
+        first.complete(1);
+
+        RecordingCallback<String> callback = new RecordingCallback<String>();
+        chain.addCallback(callback);
+        assertTrue(chain.cancel(false));
+        assertTrue(second.isCancelled());
+        assertTrue(((ClientException) callback.events.get(0)).getCause()
+                instanceof CancellationException);
+        try {
+            chain.get();
+            fail();
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestConcurrencyLimiter {
+
+    private static final long MILLIS = 1000 * 1000;
+
+    @Test
+    public void growLimitWhileCallsAreAnsweredQuickly() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 4, 1, 10, 2.0, 0, 0);
+        for (int round = 0; round < 100; round++) {
+            int limit = limiter.getLimit();
+            for (int i = 0; i < limit; i++) {
+                limiter.acquire();
+            }
+            for (int i = 0; i < limit; i++) {
+                limiter.onSuccess(MILLIS);
+            }
+        }
+        assertEquals(10, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(1.0, limiter.getNoLoadRttMillis(), 0.01);
+    }
+
+    @Test
+    public void keepLimitIfCallsDoNotUseIt() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 4, 1, 10, 2.0, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.onSuccess(MILLIS);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void cutLimitOnDroppedAndSlowCalls() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 2, 10, 2.0, 0, 0);
+        limiter.acquire();
+        limiter.onSuccess(MILLIS);
+
+        Thread.sleep(2);
+        limiter.acquire();
+        limiter.onDropped();
+        assertEquals(9, limiter.getLimit());
+        assertEquals(1, limiter.getDroppedCount());
+
+        // once per round trip only
+        limiter.acquire();
+        limiter.onSuccess(100 * MILLIS);
+        assertEquals(9, limiter.getLimit());
+
+        Thread.sleep(20);
+        limiter.acquire();
+        limiter.onSuccess(10 * MILLIS);
+        assertEquals(8, limiter.getLimit());
+
+        for (int i = 0; i < 50; i++) {
+            Thread.sleep(2);
+            limiter.acquire();
+            limiter.onDropped();
+        }
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void compareRoundTripsPerEndpoint() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 2, 10, 2.0, 0, 0);
+        limiter.acquire();
+        limiter.onSuccess("/v3/job/show", MILLIS);
+
+        Thread.sleep(2);
+        limiter.acquire();
+        limiter.onSuccess("/v3/job/result", 100 * MILLIS);
+        assertEquals(10, limiter.getLimit());
+
+        Thread.sleep(20);
+        limiter.acquire();
+        limiter.onSuccess("/v3/job/show", 10 * MILLIS);
+        assertEquals(9, limiter.getLimit());
+        assertEquals(1.0, limiter.getNoLoadRttMillis(), 0.01);
+        assertEquals(100.0, limiter.getNoLoadRttMillis("/v3/job/result"), 0.01);
+    }
+
+    @Test
+    public void rejectCallsIfQueueIsFull() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 2, 1, 10, 2.0, 0, 0);
+        limiter.acquire();
+        limiter.acquire();
+        try {
+            limiter.acquire();
+            fail();
+        } catch (ConcurrencyLimiter.LimitExceededException e) {
+            assertTrue(e.getMessage().contains("test"));
+        }
+        assertEquals(1, limiter.getRejectedCount());
+
+        limiter.onIgnored();
+        limiter.acquire();
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void queueCallsUntilPermitIsGivenBack() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, 10, 2.0, 10,
+                10 * 1000);
+        limiter.acquire();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    limiter.acquire();
+                    acquired.countDown();
+                } catch (Exception e) {
+                    // the test fails on the latch
+                }
+            }
+        };
+        t.start();
+        while (limiter.getQueueLength() == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, acquired.getCount());
+
+        limiter.onIgnored();
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        assertEquals(0, limiter.getQueueLength());
+        assertEquals(1, limiter.getInFlight());
+        t.join();
+    }
+
+    @Test
+    public void rejectCallsThatWaitTooLong() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, 10, 2.0, 10, 50);
+        limiter.acquire();
+        long started = System.currentTimeMillis();
+        try {
+            limiter.acquire();
+            fail();
+        } catch (ConcurrencyLimiter.LimitExceededException e) {
+            assertTrue(e.getMessage().contains("50 ms"));
+        }
+        assertTrue(System.currentTimeMillis() - started >= 50);
+        assertEquals(0, limiter.getQueueLength());
+    }
+}
@@ -0,0 +1,64 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+
+import com.treasure_data.model.GetJobStatusRequest;
+import com.treasure_data.model.GetJobStatusResult;
+import com.treasure_data.model.Job;
+import com.treasure_data.model.JobSummary;
+
+public class TestGetJobStatus extends
+        GetMethodTestUtil<GetJobStatusRequest, GetJobStatusResult, DefaultClientAdaptorImpl> {
+
+    private GetJobStatusRequest request;
+
+    @Override
+    public DefaultClientAdaptorImpl createClientAdaptorImpl(Config conf) {
+        return new DefaultClientAdaptorImpl(conf);
+    }
+
+    @Before
+    public void createResources() throws Exception {
+        super.createResources();
+        request = new GetJobStatusRequest(new Job("12345"));
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        super.deleteResources();
+        request = null;
+    }
+
+    @Override
+    public void checkNormalBehavior0() throws Exception {
+        GetJobStatusResult result = doBusinessLogic();
+        assertEquals("12345", result.getJobID());
+        assertEquals(JobSummary.Status.SUCCESS, result.getStatus());
+        assertEquals("2011-09-09 05:31:10 UTC", result.getStartAt());
+        assertTrue(result.isFinished());
+    }
+
+    @Override
+    public String getJSONTextForChecking() {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("job_id", "12345");
+        map.put("status", "success");
+        map.put("created_at", "2011-09-09 05:31:00 UTC");
+        map.put("start_at", "2011-09-09 05:31:10 UTC");
+        map.put("end_at", "2011-09-09 05:59:19 UTC");
+        return JSONValue.toJSONString(map);
+    }
+
+    @Override
+    public GetJobStatusResult doBusinessLogic() throws Exception {
+        return clientAdaptor.getJobStatus(request);
+    }
+}
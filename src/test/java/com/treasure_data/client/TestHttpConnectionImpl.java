@@ -0,0 +1,213 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.model.GetServerStatusRequest;
+
+public class TestHttpConnectionImpl {
+
+    /**
+     * Generates bytes without holding them in memory.
+     */
+    private static class GeneratedInputStream extends InputStream {
+        private long rest;
+
+        GeneratedInputStream(long size) {
+            rest = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (rest <= 0) {
+                return -1;
+            }
+            rest--;
+            return (int) (rest & 0x7f);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (rest <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, rest);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = (byte) read();
+            }
+            return n;
+        }
+    }
+
+    private HttpServer server;
+    private Properties sysprops;
+    private Properties props;
+    private GetServerStatusRequest request;
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                byte[] buf = new byte[8192];
+                long total = 0;
+                int len;
+                while ((len = in.read(buf)) != -1) {
+                    total += len;
+                }
+                String te = ex.getRequestHeaders().getFirst("Transfer-Encoding");
+                byte[] body = (total + "," + te).getBytes();
+                ex.sendResponseHeaders(200, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+
+        props = new Properties();
+        request = new GetServerStatusRequest();
+        request.setCredentials(new TreasureDataCredentials("api-key"));
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        System.setProperties(sysprops);
+    }
+
+    @Test
+    public void putStreamWithFixedLength() throws Exception {
+        HttpConnectionImpl conn = new HttpConnectionImpl(props);
+        int size = 32 * 1024 * 1024;
+        conn.doPutRequest(request, "/put", new GeneratedInputStream(size), size);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(size + ",null", conn.getResponseBody());
+        conn.disconnect();
+    }
+
+    @Test
+    public void putStreamWithChunkedEncoding() throws Exception {
+        props.setProperty(Config.TD_CLIENT_PUTMETHOD_BUFFER_SIZE, "1000");
+        HttpConnectionImpl conn = new HttpConnectionImpl(props);
+        int size = 1024 * 1024 + 123;
+        conn.doPutRequest(request, "/put", new GeneratedInputStream(size), -1);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(size + ",chunked", conn.getResponseBody());
+        conn.disconnect();
+    }
+
+    @Test
+    public void putByteArrayStream() throws Exception {
+        HttpConnectionImpl conn = new HttpConnectionImpl(props);
+        conn.doPutRequest(request, "/put", new ByteArrayInputStream(new byte[100]), 100);
+        assertEquals("100,null", conn.getResponseBody());
+        conn.disconnect();
+    }
+
+    @Test
+    public void throwIOErrorIfStreamIsShorterThanSize() throws Exception {
+        HttpConnectionImpl conn = new HttpConnectionImpl(props);
+        try {
+            conn.doPutRequest(request, "/put", new GeneratedInputStream(10), 100);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("90 bytes missing"));
+        }
+    }
+
+    @Test
+    public void sendGetAgainIfReusedConnectionIsClosed() throws Exception {
+        DroppingServer dropping = new DroppingServer(2);
+        try {
+            System.setProperty(Config.TD_API_SERVER_PORT, "" + dropping.getPort());
+            HttpConnectionPool pool = new HttpConnectionPool(props);
+            for (int i = 0; i < 2; i++) {
+                HttpConnectionImpl conn = new HttpConnectionImpl(props, pool);
+                conn.doGetRequest(request, "/v3/job/show/1", null, null);
+                assertEquals("ok", conn.getResponseBody());
+                conn.disconnect();
+            }
+            assertEquals(3, dropping.getRequestCount());
+        } finally {
+            dropping.close();
+        }
+    }
+
+    @Test
+    public void notSendPostAgainIfReusedConnectionIsClosed() throws Exception {
+        DroppingServer dropping = new DroppingServer(2);
+        try {
+            System.setProperty(Config.TD_API_SERVER_PORT, "" + dropping.getPort());
+            HttpConnectionPool pool = new HttpConnectionPool(props);
+            HttpConnectionImpl conn = new HttpConnectionImpl(props, pool);
+            conn.doPostRequest(request, "/v3/job/issue/hive/db", null, null);
+            assertEquals("ok", conn.getResponseBody());
+            conn.disconnect();
+
+            conn = new HttpConnectionImpl(props, pool);
+            try {
+                conn.doPostRequest(request, "/v3/job/issue/hive/db", null, null);
+                fail();
+            } catch (IOException e) {
+                // the job might have been issued
+            }
+            assertEquals(2, dropping.getRequestCount());
+        } finally {
+            dropping.close();
+        }
+    }
+
+    @Test
+    public void sendRequestsThroughHttpProxy() throws Exception {
+        final List<String> targets = Collections.synchronizedList(new ArrayList<String>());
+        HttpServer proxy = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        proxy.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                targets.add(ex.getRequestURI() + " " + ex.getRequestHeaders().getFirst("Host"));
+                byte[] body = "proxied".getBytes();
+                ex.sendResponseHeaders(200, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        proxy.start();
+        try {
+            System.setProperty(Config.TD_API_SERVER_HOST, "api.example.invalid");
+            System.setProperty(Config.TD_API_SERVER_PORT, "8080");
+            System.setProperty("http.proxyHost", "127.0.0.1");
+            System.setProperty("http.proxyPort", "" + proxy.getAddress().getPort());
+
+            HttpConnectionImpl conn = new HttpConnectionImpl(props);
+            conn.doGetRequest(request, "/v3/system/server_status", null, null);
+            assertEquals("proxied", conn.getResponseBody());
+            conn.disconnect();
+            assertEquals("http://api.example.invalid:8080/v3/system/server_status"
+                    + " api.example.invalid:8080", targets.get(0));
+        } finally {
+            proxy.stop(0);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.model.GetServerStatusRequest;
+
+public class TestHttpConnectionPool {
+
+    private HttpServer server;
+    private Properties sysprops;
+    private Properties props;
+    private GetServerStatusRequest request;
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                while (in.read() != -1) {
+                }
+                byte[] body = "{\"status\":\"ok\"}".getBytes();
+                int code = ex.getRequestURI().getPath().equals("/error") ? 404 : 200;
+                if (ex.getRequestURI().getPath().equals("/chunked")) {
+                    ex.sendResponseHeaders(code, 0);
+                } else {
+                    ex.sendResponseHeaders(code, body.length);
+                }
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+
+        props = new Properties();
+        request = new GetServerStatusRequest();
+        request.setCredentials(new TreasureDataCredentials("api-key"));
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        System.setProperties(sysprops);
+    }
+
+    @Test
+    public void reuseConnectionAfterResponseBodyIsRead() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(props);
+        HttpConnectionImpl conn = new HttpConnectionImpl(props, pool);
+
+        for (int i = 0; i < 3; i++) {
+            conn.doGetRequest(request, "/v3/system/server_status", null, null);
+            assertEquals(200, conn.getResponseCode());
+            assertEquals("{\"status\":\"ok\"}", conn.getResponseBody());
+            conn.disconnect();
+        }
+
+        assertEquals(1, pool.getMissCount());
+        assertEquals(2, pool.getHitCount());
+        assertEquals(1, pool.getIdleConnectionCount());
+    }
+
+    @Test
+    public void reuseConnectionAfterChunkedAndErrorResponses() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(props);
+        HttpConnectionImpl conn = new HttpConnectionImpl(props, pool);
+
+        conn.doGetRequest(request, "/chunked", null, null);
+        assertEquals("{\"status\":\"ok\"}", conn.getResponseBody());
+        conn.disconnect();
+
+        conn.doPostRequest(request, "/error", null, null);
+        assertEquals(404, conn.getResponseCode());
+        // the error body is not read; disconnect drains it
+        conn.disconnect();
+
+        conn.doPutRequest(request, "/put", new byte[4096]);
+        assertEquals(200, conn.getResponseCode());
+        conn.disconnect();
+
+        assertEquals(1, pool.getMissCount());
+        assertEquals(2, pool.getHitCount());
+    }
+
+    @Test
+    public void closeConnectionsIfKeepAliveIsDisabled() throws Exception {
+        props.setProperty(Config.TD_CLIENT_CONNECTION_POOL_MAX_IDLE_PER_HOST, "0");
+        HttpConnectionPool pool = new HttpConnectionPool(props);
+        HttpConnectionImpl conn = new HttpConnectionImpl(props, pool);
+
+        for (int i = 0; i < 2; i++) {
+            conn.doGetRequest(request, "/v3/system/server_status", null, null);
+            assertEquals(200, conn.getResponseCode());
+            conn.disconnect();
+        }
+
+        assertEquals(2, pool.getMissCount());
+        assertEquals(0, pool.getHitCount());
+        assertEquals(0, pool.getIdleConnectionCount());
+    }
+
+    @Test
+    public void evictIdleConnections() throws Exception {
+        props.setProperty(Config.TD_CLIENT_CONNECTION_POOL_IDLE_TIMEOUT, "0");
+        HttpConnectionPool pool = new HttpConnectionPool(props);
+        HttpConnectionImpl conn = new HttpConnectionImpl(props, pool);
+
+        conn.doGetRequest(request, "/v3/system/server_status", null, null);
+        conn.getResponseBody();
+        conn.disconnect();
+        assertEquals(1, pool.getIdleConnectionCount());
+
+        Thread.sleep(10);
+        pool.evictIdleConnections();
+        assertEquals(0, pool.getIdleConnectionCount());
+        assertTrue(pool.getEvictionCount() >= 1);
+    }
+}
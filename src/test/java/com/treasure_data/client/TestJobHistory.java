@@ -0,0 +1,145 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.model.JobSummary;
+
+public class TestJobHistory {
+
+    private static final int HISTORY = 1050;
+
+    private HttpServer server;
+    private Properties sysprops;
+    private TreasureDataClient client;
+
+    private AtomicInteger listCalls = new AtomicInteger();
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/job/list", new HttpHandler() {
+            @SuppressWarnings({ "rawtypes", "unchecked" })
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                while (in.read() != -1) {
+                }
+                listCalls.incrementAndGet();
+                Map<String, Long> params = new HashMap<String, Long>();
+                for (String kv : ex.getRequestURI().getQuery().split("&")) {
+                    String[] p = kv.split("=");
+                    params.put(p[0], Long.parseLong(p[1]));
+                }
+                long from = params.get("from");
+                long to = Math.min(params.get("to"), HISTORY - 1);
+
+                List jobs = new ArrayList();
+                for (long i = from; i <= to; i++) {
+                    Map j = new HashMap();
+                    j.put("job_id", "" + (HISTORY - i));
+                    j.put("type", "hive");
+                    j.put("status", "success");
+                    jobs.add(j);
+                }
+                Map map = new HashMap();
+                map.put("count", (long) HISTORY);
+                map.put("from", from);
+                map.put("to", to);
+                map.put("jobs", jobs);
+                byte[] body = JSONValue.toJSONString(map).getBytes("UTF-8");
+                ex.sendResponseHeaders(200, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+        client = new TreasureDataClient(new TreasureDataCredentials("api-key"), new Properties());
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        System.setProperties(sysprops);
+    }
+
+    private void assertWholeHistory(JobHistory history) {
+        int expected = HISTORY;
+        for (JobSummary job : history) {
+            assertEquals("" + expected, job.getJobID());
+            expected--;
+        }
+        assertEquals(0, expected);
+    }
+
+    @Test
+    public void iterateWithPrefetch() throws Exception {
+        JobHistory history = client.getJobHistory();
+        history.setPageSize(100);
+        history.setPrefetchDepth(2);
+        assertWholeHistory(history);
+        assertEquals(11, listCalls.get());
+    }
+
+    @Test
+    public void iterateWithoutPrefetch() throws Exception {
+        JobHistory history = client.getJobHistory();
+        history.setPageSize(100);
+        history.setPrefetchDepth(0);
+        assertWholeHistory(history);
+        assertEquals(11, listCalls.get());
+    }
+
+    @Test
+    public void prefetchNextPagesWhileCallerWorks() throws Exception {
+        JobHistory history = client.getJobHistory();
+        history.setPageSize(10);
+        history.setPrefetchDepth(3);
+        JobHistory.PageIterator iter = history.iterator();
+        assertTrue(iter.hasNext());
+        iter.next();
+        for (int i = 0; i < 100 && listCalls.get() < 4; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, listCalls.get());
+        iter.close();
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void iterateRange() throws Exception {
+        JobHistory history = new JobHistory(client, 5, 24);
+        history.setPageSize(8);
+        List<String> ids = new ArrayList<String>();
+        for (JobSummary job : history) {
+            ids.add(job.getJobID());
+        }
+        assertEquals(20, ids.size());
+        assertEquals("" + (HISTORY - 5), ids.get(0));
+        assertEquals("" + (HISTORY - 24), ids.get(19));
+        assertEquals(3, listCalls.get());
+    }
+}
@@ -0,0 +1,129 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.model.Job;
+import com.treasure_data.model.JobSummary;
+
+public class TestJobWaiter {
+
+    private HttpServer server;
+    private Properties sysprops;
+    private TreasureDataClient client;
+
+    private AtomicInteger statusCalls = new AtomicInteger();
+    private AtomicInteger showCalls = new AtomicInteger();
+    private volatile int runningPolls;
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/job/", new HttpHandler() {
+            @SuppressWarnings({ "rawtypes", "unchecked" })
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                while (in.read() != -1) {
+                }
+                String path = ex.getRequestURI().getPath();
+                Map map = new HashMap();
+                map.put("job_id", "12345");
+                map.put("start_at", "2013-06-01 05:31:10 UTC");
+                if (path.startsWith("/v3/job/status/")) {
+                    int n = statusCalls.incrementAndGet();
+                    map.put("status", n <= runningPolls ? "running" : "success");
+                } else {
+                    showCalls.incrementAndGet();
+                    map.put("type", "hive");
+                    map.put("status", "success");
+                    map.put("query", "SELECT 1");
+                    Map debugMap = new HashMap();
+                    debugMap.put("cmdout", "");
+                    debugMap.put("stderr", "");
+                    map.put("debug", debugMap);
+                }
+                byte[] body = JSONValue.toJSONString(map).getBytes("UTF-8");
+                ex.sendResponseHeaders(200, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+        client = new TreasureDataClient(new TreasureDataCredentials("api-key"), new Properties());
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        System.setProperties(sysprops);
+    }
+
+    @Test
+    public void pollStatusAndShowJobOnceFinished() throws Exception {
+        runningPolls = 3;
+        JobWaiter waiter = new JobWaiter(client);
+        waiter.setMinIntervalMillis(1);
+        waiter.setMaxIntervalMillis(5);
+
+        JobSummary job = waiter.waitForCompletion(new Job("12345"), 10000);
+        assertEquals(JobSummary.Status.SUCCESS, job.getStatus());
+        assertEquals("SELECT 1", job.getQuery());
+        assertEquals(4, statusCalls.get());
+        assertEquals(1, showCalls.get());
+    }
+
+    @Test
+    public void throwClientExceptionOnTimeout() throws Exception {
+        runningPolls = Integer.MAX_VALUE;
+        JobWaiter waiter = new JobWaiter(client);
+        waiter.setMinIntervalMillis(10);
+        waiter.setMaxIntervalMillis(10);
+        try {
+            waiter.waitForCompletion(new Job("12345"), 100);
+            fail();
+        } catch (ClientException e) {
+            assertTrue(e.getMessage().contains("running"));
+        }
+        assertEquals(0, showCalls.get());
+    }
+
+    @Test
+    public void growPollIntervalWithRunningTime() throws Exception {
+        JobWaiter waiter = new JobWaiter(client);
+        assertEquals(1000, waiter.getPollInterval(0));
+        assertEquals(6000, waiter.getPollInterval(60 * 1000));
+        assertEquals(30000, waiter.getPollInterval(3600 * 1000));
+
+        SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z", Locale.ENGLISH);
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Date d = new Date(1370064670000L);
+        assertEquals(d.getTime(), JobWaiter.parseTime(f.format(d), -1));
+        assertEquals(-1, JobWaiter.parseTime("unknown", -1));
+    }
+}
@@ -0,0 +1,168 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.model.JobSummary;
+
+public class TestJobWatcher {
+
+    // job history: IDs 13000 (newest) down to 10001
+    private static final int NEWEST = 13000;
+    private static final int HISTORY = 3000;
+
+    private HttpServer server;
+    private Properties sysprops;
+    private TreasureDataClient client;
+
+    private Map<String, String> statuses = new ConcurrentHashMap<String, String>();
+    private AtomicInteger listCalls = new AtomicInteger();
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/job/list", new HttpHandler() {
+            @SuppressWarnings({ "rawtypes", "unchecked" })
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                while (in.read() != -1) {
+                }
+                listCalls.incrementAndGet();
+                Map<String, Long> params = new HashMap<String, Long>();
+                for (String kv : ex.getRequestURI().getQuery().split("&")) {
+                    String[] p = kv.split("=");
+                    params.put(p[0], Long.parseLong(p[1]));
+                }
+                long from = params.get("from");
+                long to = Math.min(params.get("to"), HISTORY - 1);
+
+                List jobs = new ArrayList();
+                for (long i = from; i <= to; i++) {
+                    String jobID = "" + (NEWEST - i);
+                    Map j = new HashMap();
+                    j.put("job_id", jobID);
+                    j.put("type", "hive");
+                    String status = statuses.get(jobID);
+                    j.put("status", status != null ? status : "success");
+                    jobs.add(j);
+                }
+                Map map = new HashMap();
+                map.put("count", (long) HISTORY);
+                map.put("from", from);
+                map.put("to", to);
+                map.put("jobs", jobs);
+                byte[] body = JSONValue.toJSONString(map).getBytes("UTF-8");
+                ex.sendResponseHeaders(200, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+        client = new TreasureDataClient(new TreasureDataCredentials("api-key"), new Properties());
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        System.setProperties(sysprops);
+    }
+
+    @Test
+    public void scanManyJobsWithFewPages() throws Exception {
+        final Map<String, JobSummary.Status> seen = new ConcurrentHashMap<String, JobSummary.Status>();
+        final AtomicInteger events = new AtomicInteger();
+        JobWatcher.Listener listener = new JobWatcher.Listener() {
+            public void onStatusChanged(JobSummary job, JobSummary.Status oldStatus) {
+                if (oldStatus == null) {
+                    assertNull(seen.get(job.getJobID()));
+                } else {
+                    assertEquals(seen.get(job.getJobID()), oldStatus);
+                }
+                seen.put(job.getJobID(), job.getStatus());
+                events.incrementAndGet();
+            }
+        };
+
+        JobWatcher watcher = new JobWatcher(client);
+        watcher.setPageSize(500);
+        // 1200 running jobs between the 1st and the 1400th newest
+        for (int i = 200; i < 1400; i++) {
+            String jobID = "" + (NEWEST - i);
+            statuses.put(jobID, "running");
+            watcher.watch(jobID, listener);
+        }
+
+        watcher.scan();
+        assertEquals(3, watcher.getLastScanPageCount());
+        assertEquals(1200, events.get());
+
+        // nothing changed
+        watcher.scan();
+        assertEquals(1200, events.get());
+
+        // the oldest 1000 jobs finish
+        for (int i = 400; i < 1400; i++) {
+            statuses.put("" + (NEWEST - i), "success");
+        }
+        watcher.scan();
+        assertEquals(2200, events.get());
+        assertEquals(JobSummary.Status.SUCCESS, seen.get("" + (NEWEST - 1399)));
+        assertEquals(200, watcher.getWatchedJobCount());
+
+        // the rest are found in the first page
+        watcher.scan();
+        assertEquals(1, watcher.getLastScanPageCount());
+    }
+
+    @Test
+    public void scanPeriodically() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        statuses.put("12990", "running");
+
+        JobWatcher watcher = new JobWatcher(client);
+        watcher.setPollIntervalMillis(10);
+        watcher.watch("12990", new JobWatcher.Listener() {
+            public void onStatusChanged(JobSummary job, JobSummary.Status oldStatus) {
+                if (job.getStatus() == JobSummary.Status.SUCCESS) {
+                    finished.countDown();
+                }
+            }
+        });
+        watcher.start();
+        try {
+            Thread.sleep(50);
+            statuses.put("12990", "success");
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+        } finally {
+            watcher.stop();
+        }
+        assertEquals(0, watcher.getWatchedJobCount());
+    }
+}
@@ -0,0 +1,238 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+
+public class TestLimitedHttpTransport {
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private Properties sysprops;
+
+    private volatile int showCode = 200;
+    private volatile long showDelay = 0;
+    private AtomicInteger activeShows = new AtomicInteger();
+    private AtomicInteger maxActiveShows = new AtomicInteger();
+    private CountDownLatch importStarted = new CountDownLatch(1);
+    private CountDownLatch importReleased = new CountDownLatch(1);
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/job/show/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                int active = activeShows.incrementAndGet();
+                synchronized (maxActiveShows) {
+                    maxActiveShows.set(Math.max(maxActiveShows.get(), active));
+                }
+                try {
+                    Thread.sleep(showDelay);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                activeShows.decrementAndGet();
+                String path = ex.getRequestURI().getPath();
+                String jobID = path.substring(path.lastIndexOf('/') + 1);
+                byte[] body = ("{\"job_id\":\"" + jobID + "\",\"type\":\"hive\","
+                        + "\"status\":\"success\",\"query\":\"SELECT 1\","
+                        + "\"debug\":{\"cmdout\":\"\",\"stderr\":\"\"}}").getBytes("UTF-8");
+                if (showCode != 200) {
+                    body = "{\"error\":\"unavailable\"}".getBytes("UTF-8");
+                }
+                ex.sendResponseHeaders(showCode, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        server.createContext("/v3/job/list", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                byte[] body = "{\"count\":0,\"from\":0,\"to\":0,\"jobs\":[]}".getBytes("UTF-8");
+                ex.sendResponseHeaders(200, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        server.createContext("/v3/table/import/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                while (in.read() != -1) {
+                }
+                importStarted.countDown();
+                try {
+                    importReleased.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                byte[] body = "{\"database\":\"mydb\",\"table\":\"mytbl\",\"elapsed_time\":0.1}"
+                        .getBytes("UTF-8");
+                ex.sendResponseHeaders(200, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        importReleased.countDown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        System.setProperties(sysprops);
+    }
+
+    private static TreasureDataClient newClient(int limit) {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_CLIENT_LIMITER_ENABLED, "true");
+        props.setProperty(Config.TD_CLIENT_LIMITER_INITIAL, "" + limit);
+        props.setProperty(Config.TD_CLIENT_LIMITER_MIN, "" + limit);
+        props.setProperty(Config.TD_CLIENT_LIMITER_MAX, "" + limit);
+        return new TreasureDataClient(new TreasureDataCredentials("api-key"), props);
+    }
+
+    private static LimitedHttpTransport getTransport(TreasureDataClient client) {
+        return (LimitedHttpTransport) client.getConfig().getTransport();
+    }
+
+    @Test
+    public void wrapTransportIfEnabled() throws Exception {
+        TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), new Properties());
+        assertTrue(client.getConfig().getTransport() instanceof DefaultHttpTransport);
+        assertTrue(getTransport(newClient(2)).getTransport() instanceof DefaultHttpTransport);
+    }
+
+    @Test
+    public void limitCallsInFlight() throws Exception {
+        final TreasureDataClient client = newClient(2);
+        showDelay = 50;
+        ExecutorService exec = Executors.newFixedThreadPool(6);
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 6; i++) {
+            final String jobID = "" + i;
+            futures.add(exec.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return client.showJob(jobID).getJobID();
+                }
+            }));
+        }
+        for (int i = 0; i < 6; i++) {
+            assertEquals("" + i, futures.get(i).get(10, TimeUnit.SECONDS));
+        }
+        exec.shutdown();
+
+        assertTrue(maxActiveShows.get() <= 2);
+        ConcurrencyLimiter limiter = getTransport(client).getControlLimiter();
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void limitUploadsSeparately() throws Exception {
+        final TreasureDataClient client = newClient(1);
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        Future<?> upload = exec.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                return client.importData("mydb", "mytbl", new byte[] { 1, 2, 3 });
+            }
+        });
+        assertTrue(importStarted.await(10, TimeUnit.SECONDS));
+
+        LimitedHttpTransport transport = getTransport(client);
+        assertEquals(1, transport.getUploadLimiter().getInFlight());
+        // a control call is not held up by the upload
+        assertEquals("12345", client.showJob("12345").getJobID());
+
+        importReleased.countDown();
+        upload.get(10, TimeUnit.SECONDS);
+        exec.shutdown();
+        assertEquals(0, transport.getUploadLimiter().getInFlight());
+    }
+
+    @Test
+    public void compareRoundTripsPerEndpoint() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_CLIENT_LIMITER_ENABLED, "true");
+        props.setProperty(Config.TD_CLIENT_LIMITER_RTT_TOLERANCE, "3");
+        TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), props);
+        ConcurrencyLimiter limiter = getTransport(client).getControlLimiter();
+        // slow enough that the showJob calls do not vary by 3 times
+        showDelay = 20;
+        for (int i = 0; i < 5; i++) {
+            client.showJob("12345");
+        }
+
+        // a slow listJobs is not compared with the quick showJob calls
+        client.listJobs(0, 100);
+        client.listJobs(0, 100);
+        assertEquals(20, limiter.getLimit());
+        assertTrue(limiter.getNoLoadRttMillis("/v3/job/list") >= 100);
+        assertTrue(limiter.getNoLoadRttMillis("/v3/job/show") < 100);
+    }
+
+    @Test
+    public void getEndpointOfPath() throws Exception {
+        assertEquals("/v3/job/show", LimitedHttpTransport.getEndpoint("/v3/job/show/12345"));
+        assertEquals("/v3/job/list", LimitedHttpTransport.getEndpoint("/v3/job/list"));
+        assertEquals("/v3/job/list", LimitedHttpTransport.getEndpoint("/v3/job/list?from=0"));
+        assertEquals("/v3/table/create",
+                LimitedHttpTransport.getEndpoint("/v3/table/create/mydb/mytbl/log"));
+    }
+
+    @Test
+    public void cutLimitOnUnavailableServer() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_CLIENT_LIMITER_ENABLED, "true");
+        TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), props);
+        ConcurrencyLimiter limiter = getTransport(client).getControlLimiter();
+        assertEquals(20, limiter.getLimit());
+
+        showCode = 503;
+        try {
+            client.showJob("12345");
+            fail();
+        } catch (HttpClientException e) {
+            assertEquals(503, e.getResponseCode());
+        }
+        assertEquals(18, limiter.getLimit());
+        assertEquals(1, limiter.getDroppedCount());
+        assertEquals(0, limiter.getInFlight());
+    }
+}
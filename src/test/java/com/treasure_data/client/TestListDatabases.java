@@ -32,6 +32,7 @@ public class TestListDatabases extends
     @Before
     public void createResources() throws Exception {
         super.createResources();
+        responsedStream = true;
         request = new ListDatabasesRequest();
     }
 
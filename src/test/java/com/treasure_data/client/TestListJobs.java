@@ -33,6 +33,7 @@ public class TestListJobs extends
     @Before
     public void createResources() throws Exception {
         super.createResources();
+        responsedStream = true;
         request = new ListJobsRequest();
     }
 
@@ -0,0 +1,70 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestListResponseParser {
+
+    private static class NameParser extends ListResponseParser<String> {
+        NameParser() {
+            super("items");
+        }
+
+        @Override
+        protected String toElement(Map<String, Object> fields) throws ClientException {
+            if (fields.containsKey("nested")) {
+                throw new ClientException("nested value must be skipped");
+            }
+            return fields.get("name") + ":" + fields.get("count");
+        }
+    }
+
+    @Test
+    public void parseElementsAndTopLevelFields() throws Exception {
+        String json = "{\"count\":2, \"meta\":{\"items\":[{\"name\":\"x\"}]},"
+                + " \"items\":[{\"name\":\"a\", \"count\":1, \"nested\":{\"name\":\"z\"}},"
+                + " {\"tags\":[1, [2]], \"name\":\"b\", \"count\":null}], \"from\":10}";
+        NameParser parser = new NameParser();
+        List<String> names = parser.parse(new StringReader(json));
+
+        assertEquals(2, names.size());
+        assertEquals("a:1", names.get(0));
+        assertEquals("b:null", names.get(1));
+        assertEquals(2L, parser.getField("count"));
+        assertEquals(10L, parser.getField("from"));
+        assertNull(parser.getField("meta"));
+    }
+
+    @Test
+    public void parseEmptyList() throws Exception {
+        assertTrue(new NameParser().parse(new StringReader("{\"items\":[]}")).isEmpty());
+    }
+
+    @Test
+    public void throwClientExceptionWhenListIsMissing() throws Exception {
+        try {
+            new NameParser().parse(new StringReader("{\"other\":[]}"));
+            fail();
+        } catch (ClientException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void throwClientExceptionWhenJSONIsInvalid() throws Exception {
+        try {
+            new NameParser().parse(new StringReader("{\"items\":[{\"name\":"));
+            fail();
+        } catch (ClientException e) {
+            // expected
+        }
+    }
+}
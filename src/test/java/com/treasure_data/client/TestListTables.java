@@ -34,6 +34,7 @@ public class TestListTables extends
     @Before
     public void createResources() throws Exception {
         super.createResources();
+        responsedStream = true;
         databaseName = "testdb";
         request = new ListTablesRequest(new Database(databaseName));
     }
@@ -0,0 +1,238 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.model.ListTablesResult;
+import com.treasure_data.model.TableSummary;
+
+public class TestMetadataCache {
+
+    private HttpServer server;
+    private Properties sysprops;
+    private Properties props;
+
+    private List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private Set<String> tables = Collections.synchronizedSet(new TreeSet<String>());
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/", new HttpHandler() {
+            @SuppressWarnings({ "rawtypes", "unchecked" })
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                while (in.read() != -1) {
+                }
+                String[] path = ex.getRequestURI().getPath().split("/");
+                String api = path[2] + "/" + path[3];
+                calls.add(api);
+
+                Map map = new HashMap();
+                if (api.equals("database/list")) {
+                    List dbs = new ArrayList();
+                    Map db = new HashMap();
+                    db.put("name", "db0");
+                    db.put("count", (long) tables.size());
+                    dbs.add(db);
+                    map.put("databases", dbs);
+                } else if (api.equals("table/list")) {
+                    List list = new ArrayList();
+                    for (String name : new ArrayList<String>(tables)) {
+                        Map t = new HashMap();
+                        t.put("name", name);
+                        t.put("type", "log");
+                        t.put("count", 0L);
+                        list.add(t);
+                    }
+                    map.put("tables", list);
+                } else {
+                    if (api.equals("table/create")) {
+                        tables.add(path[5]);
+                    } else if (api.equals("table/delete")) {
+                        tables.remove(path[5]);
+                    } else if (api.equals("table/rename")) {
+                        tables.remove(path[5]);
+                        tables.add(path[6]);
+                    }
+                    map.put("database", path.length > 4 ? path[4] : "db0");
+                    map.put("table", path.length > 5 ? path[5] : "t");
+                    map.put("table1", path.length > 5 ? path[5] : "t");
+                    map.put("table2", path.length > 6 ? path[6] : "t");
+                    map.put("type", "log");
+                }
+                byte[] body = JSONValue.toJSONString(map).getBytes("UTF-8");
+                ex.sendResponseHeaders(200, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+
+        props = new Properties();
+        props.setProperty(Config.TD_CLIENT_METADATA_CACHE_TTL, "60000");
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        System.setProperties(sysprops);
+    }
+
+    private int count(String api) {
+        return Collections.frequency(calls, api);
+    }
+
+    private static List<String> names(List<TableSummary> tables) {
+        List<String> names = new ArrayList<String>();
+        for (TableSummary t : tables) {
+            names.add(t.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void cacheListResults() throws Exception {
+        TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), props);
+        tables.add("t0");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, client.listTables("db0").size());
+            assertEquals(1, client.listDatabases().size());
+        }
+        assertEquals(1, count("table/list"));
+        assertEquals(1, count("database/list"));
+
+        MetadataCache cache = client.getMetadataCache();
+        assertEquals(4, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(4.0 / 6, cache.getHitRatio(), 0.001);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void invalidateOnTableChanges() throws Exception {
+        TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), props);
+
+        assertTrue(client.listTables("db0").isEmpty());
+        client.createTable("db0", "tbl0");
+        assertEquals("[tbl0]", names(client.listTables("db0")).toString());
+        assertEquals(1, client.listDatabases().get(0).getCount());
+
+        client.renameTable("db0", "tbl0", "tbl1");
+        assertEquals("[tbl1]", names(client.listTables("db0")).toString());
+
+        client.createTable("db0", "tbl2");
+        client.swapTable("db0", "tbl1", "tbl2");
+        client.listTables("db0");
+        client.deleteTable("db0", "tbl1");
+        assertEquals("[tbl2]", names(client.listTables("db0")).toString());
+
+        client.deletePartiallTable("db0", "tbl2", 0, 3600);
+        client.listTables("db0");
+        assertEquals(6, count("table/list"));
+        assertEquals(6, client.getMetadataCache().getInvalidationCount());
+
+        // other databases are not invalidated
+        client.listTables("db1");
+        client.createTable("db0", "tbl3");
+        client.listTables("db1");
+        assertEquals(7, count("table/list"));
+
+        client.createDatabase("db2");
+        client.listDatabases();
+        client.deleteDatabase("db1");
+        client.listTables("db1");
+        assertEquals(8, count("table/list"));
+    }
+
+    @Test
+    public void expireAndEvictEntries() throws Exception {
+        MetadataCache cache = new MetadataCache(50, 2);
+        assertTrue(cache.isEnabled());
+        final ListTablesResult result = new ListTablesResult(null, null);
+        MetadataCache.Loader<ListTablesResult> loader = new MetadataCache.Loader<ListTablesResult>() {
+            public ListTablesResult load() {
+                calls.add("load");
+                return result;
+            }
+        };
+
+        cache.getTables("db0", loader);
+        cache.getTables("db1", loader);
+        assertSame(result, cache.getTables("db0", loader));
+        cache.getTables("db2", loader); // evicts db1, the least recently used
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        cache.getTables("db0", loader);
+        assertEquals(3, count("load"));
+        cache.getTables("db1", loader);
+        assertEquals(4, count("load"));
+
+        Thread.sleep(60);
+        cache.evictExpiredEntries();
+        assertEquals(0, cache.size());
+        cache.getTables("db0", loader);
+        assertEquals(5, count("load"));
+    }
+
+    @Test
+    public void doNotCacheResultLoadedDuringInvalidation() throws Exception {
+        final MetadataCache cache = new MetadataCache(60000, 10);
+        MetadataCache.Loader<ListTablesResult> loader = new MetadataCache.Loader<ListTablesResult>() {
+            public ListTablesResult load() {
+                calls.add("load");
+                if (count("load") == 1) {
+                    // another thread creates a table while the list is loaded
+                    cache.invalidateTables("db0");
+                }
+                return new ListTablesResult(null, null);
+            }
+        };
+        cache.getTables("db0", loader);
+        assertEquals(0, cache.size());
+        cache.getTables("db0", loader);
+        cache.getTables("db0", loader);
+        assertEquals(2, count("load"));
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), new Properties());
+        assertFalse(client.getMetadataCache().isEnabled());
+        client.listTables("db0");
+        client.listTables("db0");
+        assertEquals(2, count("table/list"));
+        assertEquals(0, client.getMetadataCache().getHitCount());
+    }
+}
@@ -0,0 +1,509 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.model.GetServerStatusRequest;
+import com.treasure_data.model.JobSummary;
+
+public class TestNioHttpTransport {
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private Properties sysprops;
+    private Properties props;
+    private GetServerStatusRequest request;
+    private NioHttpTransport transport;
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 200);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                long length = 0;
+                while (in.read() != -1) {
+                    length++;
+                }
+                String path = ex.getRequestURI().getPath();
+                if (path.equals("/slow")) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        // stopped
+                    }
+                }
+                if (path.equals("/large")) {
+                    // 4 MB, chunked
+                    ex.sendResponseHeaders(200, 0);
+                    OutputStream out = ex.getResponseBody();
+                    byte[] buf = new byte[4096];
+                    for (int i = 0; i < 1024; i++) {
+                        buf[0] = (byte) i;
+                        out.write(buf);
+                    }
+                    ex.close();
+                    return;
+                }
+
+                byte[] body = ("{\"status\":\"ok\",\"length\":" + length + "}").getBytes("UTF-8");
+                int code = path.equals("/error") ? 404 : 200;
+                if (path.equals("/chunked")) {
+                    ex.sendResponseHeaders(code, 0);
+                } else {
+                    ex.sendResponseHeaders(code, body.length);
+                }
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        server.createContext("/v3/job/show/", new HttpHandler() {
+            @SuppressWarnings({ "rawtypes", "unchecked" })
+            public void handle(HttpExchange ex) throws IOException {
+                String path = ex.getRequestURI().getPath();
+                String jobID = path.substring(path.lastIndexOf('/') + 1);
+                Map map = new HashMap();
+                map.put("type", "hive");
+                map.put("job_id", jobID);
+                map.put("status", "success");
+                map.put("query", "SELECT " + jobID);
+                Map debugMap = new HashMap();
+                debugMap.put("cmdout", "");
+                debugMap.put("stderr", "");
+                map.put("debug", debugMap);
+                byte[] body = JSONValue.toJSONString(map).getBytes("UTF-8");
+                ex.sendResponseHeaders(200, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(32);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+
+        props = new Properties();
+        request = new GetServerStatusRequest();
+        request.setCredentials(new TreasureDataCredentials("api-key"));
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        if (transport != null) {
+            transport.close();
+        }
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        System.setProperties(sysprops);
+    }
+
+    @Test
+    public void selectTransportByProperty() throws Exception {
+        assertTrue(new Config(props).getTransport() instanceof DefaultHttpTransport);
+
+        props.setProperty(Config.TD_CLIENT_TRANSPORT, "nio");
+        Config conf = new Config(props);
+        assertTrue(conf.getTransport() instanceof NioHttpTransport);
+        assertTrue(conf.getTransport().createConnection() instanceof NioHttpConnection);
+        conf.getTransport().close();
+
+        props.setProperty(Config.TD_CLIENT_TRANSPORT, DefaultHttpTransport.class.getName());
+        assertTrue(new Config(props).getTransport() instanceof DefaultHttpTransport);
+
+        props.setProperty(Config.TD_CLIENT_TRANSPORT, "no.such.Transport");
+        try {
+            new Config(props).getTransport();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void reuseConnectionAfterResponses() throws Exception {
+        transport = new NioHttpTransport(props);
+        HttpConnection conn = transport.createConnection();
+
+        for (int i = 0; i < 3; i++) {
+            conn.doGetRequest(request, "/v3/system/server_status", null, null);
+            assertEquals(200, conn.getResponseCode());
+            assertEquals("{\"status\":\"ok\",\"length\":0}", conn.getResponseBody());
+            conn.disconnect();
+        }
+
+        conn.doGetRequest(request, "/chunked", null, null);
+        assertEquals("{\"status\":\"ok\",\"length\":0}", conn.getResponseBody());
+        conn.disconnect();
+
+        conn.doPostRequest(request, "/error", null, null);
+        assertEquals(404, conn.getResponseCode());
+        assertEquals("{\"status\":\"ok\",\"length\":0}", conn.getErrorMessage());
+        try {
+            conn.getInputStream();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        conn.disconnect();
+
+        assertEquals(1, transport.getMissCount());
+        assertEquals(4, transport.getHitCount());
+        assertEquals(1, transport.getOpenConnectionCount());
+    }
+
+    @Test
+    public void sendRequestBodies() throws Exception {
+        transport = new NioHttpTransport(props);
+        HttpConnection conn = transport.createConnection();
+
+        conn.doPutRequest(request, "/put", new byte[100000]);
+        assertEquals("{\"status\":\"ok\",\"length\":100000}", conn.getResponseBody());
+
+        byte[] data = new byte[300000];
+        conn.doPutRequest(request, "/put", new ByteArrayInputStream(data), data.length);
+        assertEquals("{\"status\":\"ok\",\"length\":300000}", conn.getResponseBody());
+
+        // chunked
+        conn.doPutRequest(request, "/put", new ByteArrayInputStream(data), -1);
+        assertEquals("{\"status\":\"ok\",\"length\":300000}", conn.getResponseBody());
+
+        try {
+            conn.doPutRequest(request, "/put", new ByteArrayInputStream(data), data.length + 1);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            conn.doPutRequest(request, "/put",
+                    new BufferedInputStream(new ByteArrayInputStream(data)), data.length + 1);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("1 bytes missing"));
+        }
+    }
+
+    @Test
+    public void streamLargeResponseBody() throws Exception {
+        transport = new NioHttpTransport(props);
+        HttpConnection conn = transport.createConnection();
+
+        conn.doGetRequest(request, "/large", null, null);
+        InputStream in = conn.getInputStream();
+        // read slowly; the transport must not buffer the whole body
+        Thread.sleep(200);
+        assertTrue(in.available() < 1024 * 1024);
+        byte[] buf = new byte[4096];
+        long total = 0;
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            total += n;
+        }
+        in.close();
+        assertEquals(4 * 1024 * 1024, total);
+
+        // closing a stream that is not read to the end
+        conn.doGetRequest(request, "/large", null, null);
+        assertEquals(4096, conn.getInputStream().read(buf));
+        conn.disconnect();
+
+        conn.doGetRequest(request, "/v3/system/server_status", null, null);
+        assertEquals(200, conn.getResponseCode());
+        conn.disconnect();
+    }
+
+    @Test
+    public void throwTimeoutIfServerIsSlow() throws Exception {
+        props.setProperty(Config.TD_CLIENT_GETMETHOD_READ_TIMEOUT, "100");
+        transport = new NioHttpTransport(props);
+        HttpConnection conn = transport.createConnection();
+
+        try {
+            conn.doGetRequest(request, "/slow", null, null);
+            conn.getResponseCode();
+            fail();
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        assertEquals(0, transport.getOpenConnectionCount());
+    }
+
+    @Test
+    public void sendRequestsThroughHttpProxy() throws Exception {
+        final List<String> targets = Collections.synchronizedList(new ArrayList<String>());
+        HttpServer proxy = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        proxy.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                targets.add(ex.getRequestURI() + " " + ex.getRequestHeaders().getFirst("Host"));
+                byte[] body = "proxied".getBytes();
+                ex.sendResponseHeaders(200, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        proxy.start();
+        try {
+            System.setProperty(Config.TD_API_SERVER_HOST, "api.example.invalid");
+            System.setProperty(Config.TD_API_SERVER_PORT, "8080");
+            System.setProperty("http.proxyHost", "127.0.0.1");
+            System.setProperty("http.proxyPort", "" + proxy.getAddress().getPort());
+
+            transport = new NioHttpTransport(props);
+            HttpConnection conn = transport.createConnection();
+            conn.doGetRequest(request, "/v3/system/server_status", null, null);
+            assertEquals("proxied", conn.getResponseBody());
+            conn.disconnect();
+            assertEquals("http://api.example.invalid:8080/v3/system/server_status"
+                    + " api.example.invalid:8080", targets.get(0));
+        } finally {
+            proxy.stop(0);
+        }
+    }
+
+    @Test
+    public void sendManyRequestsFromOneThread() throws Exception {
+        props.setProperty(Config.TD_CLIENT_TRANSPORT_NIO_MAX_CONNECTIONS_PER_HOST, "16");
+        transport = new NioHttpTransport(props);
+
+        int count = 2000;
+        List<Future<NioHttpTransport.Response>> futures =
+                new ArrayList<Future<NioHttpTransport.Response>>();
+        for (int i = 0; i < count; i++) {
+            futures.add(transport.send(request, "GET", AbstractHttpConnection.getApiServerPath(),
+                    "/v3/system/server_status", null, null, null, 0, 0));
+        }
+        for (Future<NioHttpTransport.Response> f : futures) {
+            NioHttpTransport.Response response = f.get(60, TimeUnit.SECONDS);
+            assertEquals(200, response.getResponseCode());
+            response.getInputStream().close();
+        }
+        // never more than the limit of connections
+        assertTrue(transport.getMissCount() <= 16);
+        assertEquals(count, transport.getMissCount() + transport.getHitCount());
+    }
+
+    @Test
+    public void readRequestBodyOnCallingThread() throws Exception {
+        transport = new NioHttpTransport(props);
+        HttpConnection conn = transport.createConnection();
+
+        final Set<String> readers = Collections.synchronizedSet(new HashSet<String>());
+        InputStream in = new InputStream() {
+            private int rest = 600000;
+
+            @Override
+            public int read() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                readers.add(Thread.currentThread().getName());
+                if (rest == 0) {
+                    return -1;
+                }
+                int n = Math.min(len, rest);
+                rest -= n;
+                return n;
+            }
+        };
+        conn.doPutRequest(request, "/put", in, 600000);
+        assertEquals("{\"status\":\"ok\",\"length\":600000}", conn.getResponseBody());
+        assertEquals(Collections.singleton(Thread.currentThread().getName()), readers);
+    }
+
+    @Test
+    public void sendGetAgainIfReusedConnectionIsClosed() throws Exception {
+        DroppingServer dropping = new DroppingServer(2);
+        try {
+            System.setProperty(Config.TD_API_SERVER_PORT, "" + dropping.getPort());
+            transport = new NioHttpTransport(props);
+            HttpConnection conn = transport.createConnection();
+            for (int i = 0; i < 2; i++) {
+                conn.doGetRequest(request, "/v3/job/show/1", null, null);
+                assertEquals("ok", conn.getResponseBody());
+                conn.disconnect();
+            }
+            assertEquals(3, dropping.getRequestCount());
+        } finally {
+            dropping.close();
+        }
+    }
+
+    @Test
+    public void notSendPostAgainIfReusedConnectionIsClosed() throws Exception {
+        DroppingServer dropping = new DroppingServer(2);
+        try {
+            System.setProperty(Config.TD_API_SERVER_PORT, "" + dropping.getPort());
+            transport = new NioHttpTransport(props);
+            HttpConnection conn = transport.createConnection();
+            conn.doPostRequest(request, "/v3/job/issue/hive/db", null, null);
+            assertEquals("ok", conn.getResponseBody());
+            conn.disconnect();
+
+            try {
+                conn.doPostRequest(request, "/v3/job/issue/hive/db", null, null);
+                conn.getResponseCode();
+                fail();
+            } catch (IOException e) {
+                // the job might have been issued
+            }
+            assertEquals(2, dropping.getRequestCount());
+        } finally {
+            dropping.close();
+        }
+    }
+
+    @Test
+    public void stopThreadsWhenClientIsClosed() throws Exception {
+        Set<Thread> others = getIOThreads();
+        props.setProperty(Config.TD_CLIENT_TRANSPORT, "nio");
+        TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), props);
+        transport = (NioHttpTransport) client.getConfig().getTransport();
+        assertEquals("job1", client.showJob("job1").getJobID());
+        Set<Thread> threads = getIOThreads();
+        threads.removeAll(others);
+        assertTrue(!threads.isEmpty());
+
+        client.close();
+        for (Thread t : threads) {
+            t.join(10000);
+            assertTrue(!t.isAlive());
+        }
+        try {
+            client.showJob("job1");
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static Set<Thread> getIOThreads() {
+        Set<Thread> threads = new HashSet<Thread>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("td-client-nio-")) {
+                threads.add(t);
+            }
+        }
+        return threads;
+    }
+
+    @Test
+    public void callAPIsFromManyThreads() throws Exception {
+        props.setProperty(Config.TD_CLIENT_TRANSPORT, "nio");
+        final TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), props);
+        transport = (NioHttpTransport) client.getConfig().getTransport();
+
+        ExecutorService exec = Executors.newFixedThreadPool(50);
+        final AtomicInteger succeeded = new AtomicInteger();
+        for (int i = 0; i < 50; i++) {
+            final int threadID = i;
+            exec.submit(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 20; j++) {
+                            String jobID = threadID + "_" + j;
+                            JobSummary job = client.showJob(jobID);
+                            if (jobID.equals(job.getJobID())
+                                    && ("SELECT " + jobID).equals(job.getQuery())) {
+                                succeeded.incrementAndGet();
+                            }
+                        }
+                    } catch (ClientException e) {
+                        // counted as a failure
+                    }
+                }
+            });
+        }
+        exec.shutdown();
+        assertTrue(exec.awaitTermination(60, TimeUnit.SECONDS));
+        assertEquals(50 * 20, succeeded.get());
+    }
+
+    @Test
+    public void openNewConnectionIfIdleConnectionIsClosed() throws Exception {
+        // answers one request per connection but says keep-alive
+        final ServerSocket ss = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final AtomicInteger accepted = new AtomicInteger();
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        Socket s = ss.accept();
+                        accepted.incrementAndGet();
+                        InputStream in = s.getInputStream();
+                        int state = 0;
+                        while (state < 4) {
+                            int b = in.read();
+                            if (b == -1) {
+                                break;
+                            }
+                            state = (b == '\r' || b == '\n') ? state + 1 : 0;
+                        }
+                        OutputStream out = s.getOutputStream();
+                        out.write(("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n"
+                                + "Connection: keep-alive\r\n\r\nok").getBytes("ISO-8859-1"));
+                        out.flush();
+                        s.close();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + ss.getLocalPort());
+
+        try {
+            transport = new NioHttpTransport(props);
+            HttpConnection conn = transport.createConnection();
+            for (int i = 0; i < 3; i++) {
+                conn.doGetRequest(request, "/v3/system/server_status", null, null);
+                assertEquals("ok", conn.getResponseBody());
+                conn.disconnect();
+            }
+            assertEquals(3, accepted.get());
+        } finally {
+            ss.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class TestParallelGZIPOutputStream {
+
+    private static byte[] data(int size) {
+        // compressible text like packed records
+        Random rand = new Random(size);
+        StringBuilder sbuf = new StringBuilder();
+        while (sbuf.length() < size) {
+            sbuf.append("{\"time\":").append(1370000000 + rand.nextInt(100000))
+                .append(",\"path\":\"/index").append(rand.nextInt(1000)).append(".html\"}\n");
+        }
+        return sbuf.substring(0, size).getBytes();
+    }
+
+    private static byte[] gunzip(byte[] gzipped) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static int countMembers(byte[] gzipped) {
+        // a member header is 1f 8b 08 00 00 00 00 00 00 ff
+        int count = 0;
+        for (int i = 0; i + 9 < gzipped.length; i++) {
+            if ((gzipped[i] & 0xff) == 0x1f && (gzipped[i + 1] & 0xff) == 0x8b
+                    && gzipped[i + 2] == 8 && gzipped[i + 3] == 0 && gzipped[i + 4] == 0
+                    && gzipped[i + 8] == 0 && (gzipped[i + 9] & 0xff) == 0xff) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void writeMultiMemberGzip() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        byte[] data = data(1000 * 1000 + 17);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(bytes, executor,
+                64 * 1024, 6);
+        // mixed single byte and array writes across block boundaries
+        out.write(data, 0, 10);
+        for (int i = 10; i < 1000; i++) {
+            out.write(data[i]);
+        }
+        for (int i = 1000; i < data.length; i += 7777) {
+            out.write(data, i, Math.min(7777, data.length - i));
+        }
+        out.close();
+        executor.shutdown();
+
+        byte[] gzipped = bytes.toByteArray();
+        assertArrayEquals(data, gunzip(gzipped));
+        assertTrue(countMembers(gzipped) >= (data.length + 64 * 1024 - 1) / (64 * 1024));
+        assertTrue(gzipped.length < data.length / 2);
+    }
+
+    @Test
+    public void compressAsWellAsGZIPOutputStream() throws Exception {
+        byte[] data = data(4 * 1024 * 1024);
+
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(parallel);
+        out.write(data);
+        out.close();
+
+        ByteArrayOutputStream single = new ByteArrayOutputStream();
+        GZIPOutputStream gzout = new GZIPOutputStream(single);
+        gzout.write(data);
+        gzout.close();
+
+        assertArrayEquals(data, gunzip(parallel.toByteArray()));
+        assertTrue(parallel.size() < single.size() * 1.05);
+    }
+
+    @Test
+    public void writeEmptyMember() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(bytes);
+        out.finish();
+        assertEquals(0, gunzip(bytes.toByteArray()).length);
+
+        try {
+            out.write(1);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestPollInterval {
+
+    @Test
+    public void growIntervalWithElapsedTime() throws Exception {
+        PollInterval interval = new PollInterval();
+        assertEquals(1000, interval.getMillis(0));
+        assertEquals(6000, interval.getMillis(60 * 1000));
+        assertEquals(30 * 1000, interval.getMillis(3600 * 1000));
+
+        interval.setMinIntervalMillis(10);
+        interval.setMaxIntervalMillis(20);
+        assertEquals(10, interval.getMillis(0));
+        assertEquals(15, interval.getMillis(150));
+        assertEquals(20, interval.getMillis(1000));
+    }
+}
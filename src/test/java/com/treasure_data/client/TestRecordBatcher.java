@@ -0,0 +1,254 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.type.Value;
+import org.msgpack.unpacker.Unpacker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+
+public class TestRecordBatcher {
+
+    private HttpServer server;
+    private Properties sysprops;
+    private TreasureDataClient client;
+
+    private AtomicInteger requests = new AtomicInteger();
+    private ConcurrentHashMap<String, AtomicInteger> records =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    private volatile int failures = 0;
+    private volatile long responseDelayMillis = 0;
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/table/import/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                String[] path = ex.getRequestURI().getPath().split("/");
+                String table = path[4] + "." + path[5];
+                int count = 0;
+                // read whole first: GZIPInputStream may stop at a member
+                // boundary of a stream whose next member has not arrived
+                byte[] gzipped = readAll(ex.getRequestBody());
+                Unpacker unpacker = new MessagePack().createUnpacker(
+                        new GZIPInputStream(new ByteArrayInputStream(gzipped)));
+                Iterator<Value> iter = unpacker.iterator();
+                while (iter.hasNext()) {
+                    iter.next();
+                    count++;
+                }
+
+                byte[] body;
+                int code;
+                if (failures > 0) {
+                    failures--;
+                    code = 503;
+                    body = "{\"error\":\"unavailable\"}".getBytes();
+                } else {
+                    code = 200;
+                    body = "{\"database\":\"db\",\"table\":\"t\",\"elapsed_time\":0.1}".getBytes();
+                    records.putIfAbsent(table, new AtomicInteger());
+                    records.get(table).addAndGet(count);
+                }
+                // counted after the records, which the tests read once they see a request
+                requests.incrementAndGet();
+                try {
+                    Thread.sleep(responseDelayMillis);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                ex.sendResponseHeaders(code, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+        client = new TreasureDataClient(new TreasureDataCredentials("api-key"), new Properties());
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        System.setProperties(sysprops);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, Object> record(int i) {
+        Map<String, Object> r = new HashMap<String, Object>();
+        r.put("time", 1370000000L + i);
+        r.put("path", "/index" + i + ".html");
+        return r;
+    }
+
+    @Test
+    public void flushByRecordCount() throws Exception {
+        RecordBatcher batcher = new RecordBatcher(client);
+        batcher.setMaxBatchRecords(100);
+        for (int i = 0; i < 1050; i++) {
+            batcher.add("db", "www_access", record(i));
+            batcher.add("db", "errors", record(i));
+        }
+        batcher.close();
+
+        assertEquals(1050, records.get("db.www_access").get());
+        assertEquals(1050, records.get("db.errors").get());
+        assertEquals(22, requests.get());
+        assertEquals(22, batcher.getUploadedBatchCount());
+        assertEquals(2100, batcher.getUploadedRecordCount());
+    }
+
+    @Test
+    public void skipRecordThatCannotBePacked() throws Exception {
+        RecordBatcher batcher = new RecordBatcher(client);
+        batcher.add("db", "www_access", record(0));
+        Map<String, Object> bad = new LinkedHashMap<String, Object>();
+        bad.put("value", new Object());
+        bad.put("time", 1370000000L);
+        try {
+            batcher.add("db", "www_access", bad);
+            fail();
+        } catch (ClientException e) {
+            // expected
+        }
+        batcher.add("db", "www_access", record(1));
+        batcher.close();
+
+        // the server decodes the batch without the half-packed record
+        assertEquals(2, records.get("db.www_access").get());
+        assertEquals(2, batcher.getUploadedRecordCount());
+    }
+
+    @Test
+    public void flushByBytes() throws Exception {
+        RecordBatcher batcher = new RecordBatcher(client);
+        batcher.setMaxBatchBytes(10 * 1024);
+        for (int i = 0; i < 2000; i++) {
+            batcher.add("db", "www_access", record(i));
+        }
+        batcher.flush();
+        assertEquals(2000, records.get("db.www_access").get());
+        assertTrue(requests.get() > 2);
+        assertTrue(requests.get() < 20);
+        batcher.close();
+    }
+
+    @Test
+    public void flushByAge() throws Exception {
+        RecordBatcher batcher = new RecordBatcher(client);
+        batcher.setMaxBatchAgeMillis(50);
+        batcher.add("db", "www_access", record(0));
+        for (int i = 0; i < 200 && requests.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, requests.get());
+        assertEquals(1, records.get("db.www_access").get());
+        batcher.close();
+    }
+
+    @Test
+    public void waitForUploadByAgeOnClose() throws Exception {
+        responseDelayMillis = 300;
+        RecordBatcher batcher = new RecordBatcher(client);
+        batcher.setMaxBatchAgeMillis(50);
+        batcher.add("db", "www_access", record(0));
+        for (int i = 0; i < 200 && requests.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, requests.get());
+
+        // the upload has started but waits for its response
+        batcher.close();
+        assertEquals(1, batcher.getUploadedBatchCount());
+    }
+
+    @Test
+    public void retryFailedUploadsAndReportFailures() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBaseDelayMillis(1);
+        policy.setMaxRetries(1);
+        RecordBatcher batcher = new RecordBatcher(client);
+        batcher.setRetryPolicy(policy);
+
+        failures = 1;
+        batcher.add("db", "www_access", record(0));
+        batcher.flush();
+        assertEquals(1, records.get("db.www_access").get());
+
+        failures = 2;
+        batcher.add("db", "www_access", record(1));
+        try {
+            batcher.flush();
+            fail();
+        } catch (ClientException e) {
+            // expected
+        }
+        assertEquals(1, batcher.getFailedBatchCount());
+        assertEquals(1, batcher.getFailedRecordCount());
+        batcher.close();
+    }
+
+    @Test
+    public void notRetryUploadAfterReadTimeout() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_CLIENT_PUTMETHOD_READ_TIMEOUT, "100");
+        TreasureDataClient timingOut = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), props);
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBaseDelayMillis(1);
+        RecordBatcher batcher = new RecordBatcher(timingOut);
+        batcher.setRetryPolicy(policy);
+
+        // the server imports the batch but answers too late; sending it
+        // again would import it twice
+        responseDelayMillis = 500;
+        batcher.add("db", "www_access", record(0));
+        try {
+            batcher.flush();
+            fail();
+        } catch (ClientException e) {
+            // expected
+        }
+        assertEquals(1, requests.get());
+        assertEquals(1, records.get("db.www_access").get());
+        assertEquals(1, batcher.getFailedBatchCount());
+        assertEquals(0, policy.getRetryCount());
+        responseDelayMillis = 0;
+        batcher.close();
+    }
+}
@@ -0,0 +1,252 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.type.Value;
+import org.msgpack.unpacker.Unpacker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+
+public class TestRecordCollector {
+
+    private HttpServer server;
+    private Properties sysprops;
+    private TreasureDataClient client;
+
+    private AtomicInteger requests = new AtomicInteger();
+    private ConcurrentHashMap<String, AtomicInteger> records =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    private volatile CountDownLatch blockServer = new CountDownLatch(0);
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/table/import/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                try {
+                    blockServer.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                String[] path = ex.getRequestURI().getPath().split("/");
+                String table = path[4] + "." + path[5];
+                int count = 0;
+                // read whole first: GZIPInputStream may stop at a member
+                // boundary of a stream whose next member has not arrived
+                byte[] gzipped = readAll(ex.getRequestBody());
+                Unpacker unpacker = new MessagePack().createUnpacker(
+                        new GZIPInputStream(new ByteArrayInputStream(gzipped)));
+                Iterator<Value> iter = unpacker.iterator();
+                while (iter.hasNext()) {
+                    iter.next();
+                    count++;
+                }
+                records.putIfAbsent(table, new AtomicInteger());
+                records.get(table).addAndGet(count);
+                // counted after the records, which the tests read once they see a request
+                requests.incrementAndGet();
+
+                byte[] body = "{\"database\":\"db\",\"table\":\"t\",\"elapsed_time\":0.1}".getBytes();
+                ex.sendResponseHeaders(200, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+        client = new TreasureDataClient(new TreasureDataCredentials("api-key"), new Properties());
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        blockServer.countDown();
+        server.stop(0);
+        System.setProperties(sysprops);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, Object> record(int i) {
+        Map<String, Object> r = new HashMap<String, Object>();
+        r.put("time", 1370000000L + i);
+        r.put("path", "/index" + i + ".html");
+        return r;
+    }
+
+    @Test
+    public void collectFromManyThreads() throws Exception {
+        final RecordCollector collector = new RecordCollector(client,
+                RecordCollector.OverflowMode.BLOCK, 8);
+        collector.setChunkBytes(1024);
+        collector.setMaxBatchBytes(64 * 1024);
+
+        final int threads = 16;
+        final int count = 5000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final String table = i % 2 == 0 ? "www_access" : "errors";
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < count; j++) {
+                            collector.add("db", table, record(j));
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            t.start();
+            producers.add(t);
+        }
+        start.countDown();
+        for (Thread t : producers) {
+            t.join();
+        }
+        collector.flush();
+
+        assertEquals(threads * count, collector.getAddedRecordCount());
+        assertEquals(threads * count / 2, records.get("db.www_access").get());
+        assertEquals(threads * count / 2, records.get("db.errors").get());
+        assertEquals(threads * count, collector.getUploadedRecordCount());
+        assertTrue(requests.get() > 2);
+        collector.close();
+    }
+
+    @Test
+    public void uploadRecordsAddedWhileClosing() throws Exception {
+        final RecordCollector collector = new RecordCollector(client,
+                RecordCollector.OverflowMode.BLOCK, 4);
+        collector.setChunkBytes(256);
+
+        final AtomicLong added = new AtomicLong();
+        final CountDownLatch started = new CountDownLatch(8);
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        for (int j = 0; ; j++) {
+                            collector.add("db", "www_access", record(j));
+                            added.incrementAndGet();
+                        }
+                    } catch (ClientException e) {
+                        // closed
+                    }
+                }
+            });
+            t.start();
+            producers.add(t);
+        }
+        started.await();
+        Thread.sleep(20);
+        collector.close();
+        for (Thread t : producers) {
+            t.join();
+        }
+
+        // every record whose add returned was uploaded
+        assertEquals(added.get(), collector.getAddedRecordCount());
+        assertEquals(added.get(), records.get("db.www_access").get());
+    }
+
+    @Test
+    public void skipRecordThatCannotBePacked() throws Exception {
+        RecordCollector collector = new RecordCollector(client);
+        collector.add("db", "www_access", record(0));
+        Map<String, Object> bad = new LinkedHashMap<String, Object>();
+        bad.put("value", new Object());
+        bad.put("time", 1370000000L);
+        try {
+            collector.add("db", "www_access", bad);
+            fail();
+        } catch (ClientException e) {
+            // expected
+        }
+        collector.add("db", "www_access", record(1));
+        collector.close();
+
+        // the server decodes the batch without the half-packed record
+        assertEquals(2, records.get("db.www_access").get());
+        assertEquals(2, collector.getUploadedRecordCount());
+    }
+
+    @Test
+    public void flushByAge() throws Exception {
+        RecordCollector collector = new RecordCollector(client);
+        collector.setMaxAgeMillis(50);
+        collector.add("db", "www_access", record(0));
+        for (int i = 0; i < 200 && requests.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, requests.get());
+        assertEquals(1, records.get("db.www_access").get());
+        collector.close();
+    }
+
+    @Test
+    public void dropRecordsIfQueueIsFull() throws Exception {
+        blockServer = new CountDownLatch(1);
+        RecordCollector collector = new RecordCollector(client,
+                RecordCollector.OverflowMode.DROP, 1);
+        collector.setChunkBytes(256);
+        collector.setMaxBatchBytes(256);
+        collector.setMaxQueuedBytes(4 * 1024);
+
+        boolean dropped = false;
+        for (int i = 0; i < 10000 && !dropped; i++) {
+            dropped = !collector.add("db", "www_access", record(i));
+        }
+        assertTrue(dropped);
+        assertTrue(collector.getDroppedRecordCount() > 0);
+
+        blockServer.countDown();
+        collector.close();
+        long added = collector.getAddedRecordCount();
+        assertEquals(added, records.get("db.www_access").get());
+        assertEquals(added, collector.getUploadedRecordCount());
+        assertFalse(collector.getQueuedBytes() > 0);
+    }
+}
@@ -0,0 +1,189 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRetryClient {
+
+    private RetryPolicy policy;
+    private List<Long> waits;
+    private RetryClient client;
+
+    @Before
+    public void createResources() throws Exception {
+        policy = new RetryPolicy();
+        policy.setRetryBudget(new RetryBudget(100, 0));
+        waits = new ArrayList<Long>();
+        client = new RetryClient(policy) {
+            @Override
+            protected void waitRetryMillis(long millis) {
+                waits.add(millis);
+            }
+        };
+    }
+
+    private static RetryClient.Retryable failing(final int times, final ClientException e,
+            final int[] calls) {
+        return new RetryClient.Retryable() {
+            public void doTry() throws ClientException {
+                calls[0]++;
+                if (calls[0] <= times) {
+                    throw e;
+                }
+            }
+        };
+    }
+
+    @Test
+    public void classifyErrors() throws Exception {
+        assertTrue(policy.isRetryable(new HttpClientException("x", "m", 500)));
+        assertTrue(policy.isRetryable(new HttpClientException("x", "m", 503)));
+        assertTrue(policy.isRetryable(new HttpClientException("x", "m", 429)));
+        assertFalse(policy.isRetryable(new HttpClientException("x", "m", 400)));
+        assertFalse(policy.isRetryable(new HttpClientException("x", "m", 404)));
+        assertFalse(policy.isRetryable(new HttpClientException("x", "m", 501)));
+        assertTrue(policy.isRetryable(new HttpClientException("x", "m", 0,
+                new ConnectException())));
+        assertTrue(policy.isRetryable(new HttpClientException("x", "m", 0,
+                new SocketTimeoutException())));
+        assertFalse(policy.isRetryable(new HttpClientException("x", "m", 0,
+                new UnknownHostException())));
+        assertFalse(policy.isRetryable(new HttpClientException("x", "m", 0,
+                new InterruptedIOException())));
+        assertFalse(policy.isRetryable(new ClientException("invalid JSON")));
+    }
+
+    @Test
+    public void classifyErrorsOfNonIdempotentCalls() throws Exception {
+        assertTrue(policy.isRetryable(new HttpClientException("x", "m", 503), false));
+        assertTrue(policy.isRetryable(new HttpClientException("x", "m", 429), false));
+        assertFalse(policy.isRetryable(new HttpClientException("x", "m", 404), false));
+        assertTrue(policy.isRetryable(new HttpClientException("x", "m", 0,
+                new ConnectException()), false));
+        assertFalse(policy.isRetryable(new HttpClientException("x", "m", 0,
+                new SocketTimeoutException()), false));
+        assertFalse(policy.isRetryable(new HttpClientException("x", "m", 200,
+                new SocketException("Connection reset")), false));
+        assertFalse(policy.isRetryable(new HttpClientException("x", "m", 0,
+                new UnknownHostException()), false));
+    }
+
+    @Test
+    public void notRetryNonIdempotentCallAfterTimeout() throws Exception {
+        int[] calls = new int[1];
+        try {
+            client.retry(failing(1, new HttpClientException("x", "m", 0,
+                    new SocketTimeoutException("Read timed out")), calls), false);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Not retryable error", e.getMessage());
+        }
+        assertEquals(1, calls[0]);
+
+        calls[0] = 0;
+        client.retry(failing(1, new HttpClientException("x", "m", 0,
+                new ConnectException("Connection refused")), calls), false);
+        assertEquals(2, calls[0]);
+    }
+
+    @Test
+    public void retryServerErrorsWithJitteredBackoff() throws Exception {
+        policy.setBaseDelayMillis(100);
+        policy.setMaxDelayMillis(1000);
+        int[] calls = new int[1];
+        client.retry(failing(5, new HttpClientException("x", "m", 503), calls), 5);
+
+        assertEquals(6, calls[0]);
+        assertEquals(5, waits.size());
+        long prev = 0;
+        for (long w : waits) {
+            assertTrue(w >= 100);
+            assertTrue(w <= Math.max(100, Math.min(1000, prev * 3)));
+            prev = w;
+        }
+        assertEquals(5, policy.getRetryCount());
+        assertEquals(1, policy.getRecoveredCount());
+    }
+
+    @Test
+    public void notRetryClientErrors() throws Exception {
+        int[] calls = new int[1];
+        try {
+            client.retry(failing(1, new HttpClientException("x", "m", 404), calls), 3);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof HttpClientException);
+        }
+        assertEquals(1, calls[0]);
+        assertEquals(1, policy.getNonRetryableCount());
+    }
+
+    @Test
+    public void giveUpAfterRetryCount() throws Exception {
+        int[] calls = new int[1];
+        try {
+            client.retry(failing(10, new HttpClientException("x", "m", 500), calls), 2, 0);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Retry count exceeded limit", e.getMessage());
+        }
+        assertEquals(3, calls[0]);
+        assertEquals(1, policy.getExhaustedCount());
+    }
+
+    @Test
+    public void honorRetryAfter() throws Exception {
+        int[] calls = new int[1];
+        client.retry(failing(1, new HttpClientException("x", "m", 429, "7"), calls), 3);
+        assertEquals(7000L, (long) waits.get(0));
+
+        assertEquals(-1, HttpClientException.parseRetryAfter(null));
+        assertEquals(-1, HttpClientException.parseRetryAfter("soon"));
+        assertEquals(0, HttpClientException.parseRetryAfter("Thu, 01 Jan 1970 00:00:00 GMT"));
+    }
+
+    @Test
+    public void shareRetryBudgetBetweenCalls() throws Exception {
+        policy.setRetryBudget(new RetryBudget(3, 0));
+        int[] calls = new int[1];
+        client.retry(failing(2, new HttpClientException("x", "m", 500), calls), 5);
+        calls[0] = 0;
+        try {
+            client.retry(failing(5, new HttpClientException("x", "m", 500), calls), 5);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Retry budget exhausted", e.getMessage());
+        }
+        assertEquals(2, calls[0]);
+        assertEquals(3, policy.getRetryCount());
+        assertEquals(1, policy.getBudgetExhaustedCount());
+    }
+
+    @Test
+    public void keepInterruptStatus() throws Exception {
+        RetryClient sleeping = new RetryClient(policy);
+        policy.setBaseDelayMillis(10000);
+        Thread.currentThread().interrupt();
+        int[] calls = new int[1];
+        try {
+            sleeping.retry(failing(1, new HttpClientException("x", "m", 500), calls), 3);
+            fail();
+        } catch (InterruptedIOException e) {
+            assertTrue(Thread.interrupted());
+        }
+    }
+}
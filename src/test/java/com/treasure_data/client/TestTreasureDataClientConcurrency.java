@@ -0,0 +1,156 @@
+package com.treasure_data.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.model.JobSummary;
+
+/**
+ * Many threads share one TreasureDataClient and call a local stub server.
+ */
+public class TestTreasureDataClientConcurrency {
+
+    private static final int THREADS = 100;
+    private static final int CALLS_PER_THREAD = 20;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private Properties sysprops;
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), THREADS);
+        server.createContext("/v3/job/show/", new HttpHandler() {
+            @SuppressWarnings({ "rawtypes", "unchecked" })
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                while (in.read() != -1) {
+                }
+                String path = ex.getRequestURI().getPath();
+                String jobID = path.substring(path.lastIndexOf('/') + 1);
+
+                Map map = new HashMap();
+                map.put("type", "hive");
+                map.put("job_id", jobID);
+                map.put("status", "success");
+                map.put("query", "SELECT " + jobID);
+                Map debugMap = new HashMap();
+                debugMap.put("cmdout", "");
+                debugMap.put("stderr", "");
+                map.put("debug", debugMap);
+                byte[] body = JSONValue.toJSONString(map).getBytes("UTF-8");
+                ex.sendResponseHeaders(200, body.length);
+                ex.getResponseBody().write(body);
+                ex.close();
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(16);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        System.setProperties(sysprops);
+    }
+
+    @Test
+    public void shareOneClientBetweenManyThreads() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_CLIENT_CONNECTION_POOL_MAX_IDLE_PER_HOST, "" + THREADS);
+        final TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), props);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService exec = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < THREADS; i++) {
+            final int threadID = i;
+            futures.add(exec.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    start.await();
+                    int count = 0;
+                    for (int j = 0; j < CALLS_PER_THREAD; j++) {
+                        String jobID = threadID + "_" + j;
+                        JobSummary job = client.showJob(jobID);
+                        // a response must never be mixed up with another thread's one
+                        assertEquals(jobID, job.getJobID());
+                        assertEquals("SELECT " + jobID, job.getQuery());
+                        count++;
+                    }
+                    return count;
+                }
+            }));
+        }
+        start.countDown();
+
+        int total = 0;
+        for (Future<Integer> f : futures) {
+            total += f.get();
+        }
+        exec.shutdown();
+        assertEquals(THREADS * CALLS_PER_THREAD, total);
+
+        HttpConnectionPool pool = client.getConfig().getConnectionPool();
+        assertEquals(THREADS * CALLS_PER_THREAD, pool.getHitCount() + pool.getMissCount());
+        assertTrue(pool.getMissCount() <= THREADS);
+    }
+
+    @Test
+    public void formatDateHeaderFromManyThreads() throws Exception {
+        ExecutorService exec = Executors.newFixedThreadPool(16);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 16; i++) {
+            final long base = i * 7919000L;
+            futures.add(exec.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    SimpleDateFormat expected = new SimpleDateFormat(
+                            "E, dd MMM yyyy HH:mm:ss Z", Locale.ENGLISH);
+                    for (int j = 0; j < 1000; j++) {
+                        Date d = new Date(base + j * 1000L);
+                        if (!expected.format(d).equals(HttpConnectionImpl.toRFC2822Format(d))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> f : futures) {
+            assertTrue(f.get());
+        }
+        exec.shutdown();
+    }
+}
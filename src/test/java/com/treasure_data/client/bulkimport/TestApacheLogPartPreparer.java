@@ -0,0 +1,116 @@
+package com.treasure_data.client.bulkimport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestApacheLogPartPreparer {
+
+    private File dir;
+
+    @Before
+    public void createResources() throws Exception {
+        dir = File.createTempFile("td-parts", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private File writeFile(String content) throws Exception {
+        File file = new File(dir, "access_log");
+        Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        w.write(content);
+        w.close();
+        return file;
+    }
+
+    @Test
+    public void convertCommonAndCombinedFormats() throws Exception {
+        File file = writeFile(
+                "127.0.0.1 - frank [10/Oct/2000:13:55:36 -0700] \"GET /apache_pb.gif HTTP/1.0\" 200 2326\n"
+                + "10.0.0.2 - - [01/Jun/2013:00:00:00 +0000] \"POST /search?q=a b HTTP/1.1\" 404 - "
+                + "\"http://example.com/\" \"Mozilla/5.0 (X11; \\\"Linux\\\")\"\n"
+                + "broken line\n"
+                + "10.0.0.3 - - [01/Foo/2013:00:00:00 +0000] \"GET / HTTP/1.1\" 200 1\n");
+
+        ApacheLogPartPreparer preparer = new ApacheLogPartPreparer();
+        preparer.setOutputDirectory(dir);
+        List<PreparedPart> parts = preparer.prepare(file);
+        assertEquals(1, parts.size());
+        assertEquals("access_log_000_0000", parts.get(0).getPartID());
+        assertEquals(2, parts.get(0).getRecordCount());
+        assertEquals(2, parts.get(0).getErrorCount());
+
+        List<Map<String, Object>> records = TestCSVPartPreparer.readRecords(parts.get(0));
+        Map<String, Object> r = records.get(0);
+        assertEquals("127.0.0.1", r.get("host"));
+        assertEquals("frank", r.get("user"));
+        assertEquals(971211336L, r.get("time"));
+        assertEquals("GET", r.get("method"));
+        assertEquals("/apache_pb.gif", r.get("path"));
+        assertEquals(200L, r.get("code"));
+        assertEquals(2326L, r.get("size"));
+        assertEquals(7, r.size());
+
+        r = records.get(1);
+        assertNull(r.get("user"));
+        assertEquals(1370044800L, r.get("time"));
+        assertEquals("POST", r.get("method"));
+        assertEquals("/search?q=a b", r.get("path"));
+        assertNull(r.get("size"));
+        assertEquals("http://example.com/", r.get("referer"));
+        assertEquals("Mozilla/5.0 (X11; \\\"Linux\\\")", r.get("agent"));
+    }
+
+    @Test
+    public void parseTimeOnManyThreads() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT+09:00"));
+        List<Long> times = new ArrayList<Long>();
+        StringBuilder sbuf = new StringBuilder();
+        for (long t = 0; t < 4000000000L; t += 400000L) {
+            sbuf.append("10.0.0.1 - - [").append(format.format(new Date(t * 1000)))
+                .append("] \"GET /index.html HTTP/1.1\" 200 100\n");
+            times.add(t);
+        }
+
+        ApacheLogPartPreparer preparer = new ApacheLogPartPreparer();
+        preparer.setOutputDirectory(dir);
+        preparer.setThreads(4);
+        preparer.setMinChunkSize(64 * 1024);
+        List<PreparedPart> parts = preparer.prepare(writeFile(sbuf.toString()));
+        assertTrue(parts.size() > 1);
+
+        List<Long> actual = new ArrayList<Long>();
+        for (PreparedPart p : parts) {
+            assertEquals(0, p.getErrorCount());
+            for (Map<String, Object> r : TestCSVPartPreparer.readRecords(p)) {
+                actual.add((Long) r.get("time"));
+            }
+        }
+        assertEquals(times, actual);
+    }
+}
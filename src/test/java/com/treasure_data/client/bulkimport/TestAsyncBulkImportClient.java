@@ -0,0 +1,206 @@
+package com.treasure_data.client.bulkimport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.client.AsyncTreasureDataClient;
+import com.treasure_data.client.ClientFuture;
+import com.treasure_data.client.Config;
+import com.treasure_data.client.RetryPolicy;
+import com.treasure_data.client.TreasureDataClient;
+import com.treasure_data.model.bulkimport.Session;
+
+public class TestAsyncBulkImportClient {
+
+    private HttpServer server;
+    private Properties sysprops;
+    private ExecutorService executor;
+    private AsyncTreasureDataClient asyncClient;
+    private AsyncBulkImportClient async;
+
+    private List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private volatile int performPolls = 3;
+    private volatile int commitPolls = 2;
+    private volatile boolean finishedAPI = true;
+    private volatile int pollFailures = 0;
+    private volatile String status = "performing";
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/bulk_import/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                while (in.read() != -1) {
+                }
+                String[] path = ex.getRequestURI().getPath().split("/");
+                String api = path[3];
+                calls.add(api);
+
+                int code = 200;
+                String body = "{\"name\":\"sess01\"}";
+                if ((api.equals("perform_finished") || api.equals("commit_finished"))
+                        && !finishedAPI) {
+                    code = 404;
+                    body = "{\"error\":\"not found\"}";
+                } else if ((api.equals("perform_finished") || api.equals("commit_finished"))
+                        && pollFailures > 0) {
+                    pollFailures--;
+                    code = 503;
+                    body = "{\"error\":\"unavailable\"}";
+                } else if (api.equals("perform")) {
+                    body = "{\"name\":\"sess01\",\"job_id\":\"12345\"}";
+                } else if (api.equals("list")) {
+                    body = "{\"bulk_imports\":[{\"name\":\"sess01\",\"database\":\"db\","
+                        + "\"table\":\"t\",\"status\":\"" + status + "\",\"upload_frozen\":true,"
+                        + "\"job_id\":\"12345\",\"valid_records\":100,\"error_records\":0,"
+                        + "\"valid_parts\":3,\"error_parts\":0}]}";
+                } else if (api.equals("perform_finished")) {
+                    body = "{\"name\":\"sess01\",\"finished\":" + (--performPolls < 0) + "}";
+                } else if (api.equals("commit_finished")) {
+                    body = "{\"name\":\"sess01\",\"finished\":" + (--commitPolls < 0) + "}";
+                }
+                byte[] bytes = body.getBytes("UTF-8");
+                ex.sendResponseHeaders(code, bytes.length);
+                ex.getResponseBody().write(bytes);
+                ex.close();
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+
+        TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), new Properties());
+        executor = Executors.newFixedThreadPool(1);
+        asyncClient = new AsyncTreasureDataClient(client, executor);
+        async = new AsyncBulkImportClient(new BulkImportClient(client), asyncClient);
+        async.setMinIntervalMillis(5);
+        async.setMaxIntervalMillis(5);
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        asyncClient.close();
+        executor.shutdownNow();
+        server.stop(0);
+        System.setProperties(sysprops);
+    }
+
+    @Test
+    public void chainUploadPerformAndCommit() throws Exception {
+        final Session sess = new Session("sess01", "mydb", "mytbl");
+        ClientFuture<Session> f = async.uploadPart(sess, "part1", new byte[] { 1, 2, 3 })
+            .then(new ClientFuture.Step<String, Session>() {
+                public ClientFuture<Session> apply(String partID) {
+                    return async.freezeSession(sess);
+                }
+            }).then(new ClientFuture.Step<Session, Session>() {
+                public ClientFuture<Session> apply(Session s) {
+                    return async.performSession(s);
+                }
+            }).then(new ClientFuture.Step<Session, Session>() {
+                public ClientFuture<Session> apply(Session s) {
+                    return async.waitForPerformFinished(s, 10000);
+                }
+            }).then(new ClientFuture.Step<Session, Session>() {
+                public ClientFuture<Session> apply(Session s) {
+                    return async.commitSession(s);
+                }
+            }).then(new ClientFuture.Step<Session, Session>() {
+                public ClientFuture<Session> apply(Session s) {
+                    return async.waitForCommitFinished(s, 10000);
+                }
+            });
+
+        assertTrue(f.get(10, TimeUnit.SECONDS) == sess);
+        List<String> expected = new ArrayList<String>();
+        expected.add("upload_part");
+        expected.add("freeze");
+        expected.add("perform");
+        for (int i = 0; i < 4; i++) {
+            expected.add("perform_finished");
+        }
+        expected.add("commit");
+        for (int i = 0; i < 3; i++) {
+            expected.add("commit_finished");
+        }
+        assertEquals(expected, calls);
+    }
+
+    @Test
+    public void retryFailedPolls() throws Exception {
+        pollFailures = 2;
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBaseDelayMillis(1);
+        async.setRetryPolicy(policy);
+        Session sess = new Session("sess01", "mydb", "mytbl");
+        assertTrue(async.waitForPerformFinished(sess, 10000).get(10, TimeUnit.SECONDS) == sess);
+        assertEquals(2, policy.getRetryCount());
+        assertEquals(1, policy.getRecoveredCount());
+    }
+
+    @Test
+    public void fallBackToSessionStatus() throws Exception {
+        finishedAPI = false;
+        Session sess = new Session("sess01", "mydb", "mytbl");
+        ClientFuture<Session> f = async.waitForPerformFinished(sess, 10000);
+        Thread.sleep(50);
+        assertFalse(f.isDone());
+        status = "ready";
+        assertTrue(f.get(10, TimeUnit.SECONDS) == sess);
+
+        status = "committing";
+        f = async.waitForCommitFinished(sess, 10000);
+        Thread.sleep(50);
+        assertFalse(f.isDone());
+        status = "committed";
+        assertTrue(f.get(10, TimeUnit.SECONDS) == sess);
+        assertTrue(calls.contains("list"));
+    }
+
+    @Test
+    public void failWaitOnTimeout() throws Exception {
+        performPolls = Integer.MAX_VALUE;
+        try {
+            async.waitForPerformFinished(new Session("sess01", null, null), 100)
+                .get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("Perform of session sess01"));
+        }
+    }
+
+    @Test
+    public void growPollIntervalWithTimeWaited() throws Exception {
+        async.setMinIntervalMillis(1000);
+        async.setMaxIntervalMillis(30 * 1000);
+        assertEquals(1000, async.getPollInterval(0));
+        assertEquals(6000, async.getPollInterval(60 * 1000));
+        assertEquals(30 * 1000, async.getPollInterval(3600 * 1000));
+    }
+}
@@ -0,0 +1,113 @@
+package com.treasure_data.client.bulkimport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.treasure_data.client.ClientException;
+
+public class TestBulkImportManifest {
+
+    private File file;
+
+    @Before
+    public void createResources() throws Exception {
+        file = File.createTempFile("td-manifest", ".txt");
+        file.delete();
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void recordAndReloadParts() throws Exception {
+        BulkImportManifest manifest = BulkImportManifest.open(file, "sess01");
+        assertEquals(0, manifest.size());
+        manifest.put(new BulkImportManifest.Entry("p0", 10, 1000, "aa"));
+        manifest.put(new BulkImportManifest.Entry("p1", 20, 2000, "bb"));
+        manifest.put(new BulkImportManifest.Entry("p0", 11, 3000, "cc"));
+        // lines are flushed before close
+        BulkImportManifest reloaded = BulkImportManifest.open(file, "sess01");
+        manifest.close();
+
+        assertEquals(2, reloaded.size());
+        BulkImportManifest.Entry e = reloaded.get("p0");
+        assertEquals(11, e.getSize());
+        assertEquals(3000, e.getLastModified());
+        assertEquals("cc", e.getHash());
+        assertEquals("bb", reloaded.get("p1").getHash());
+    }
+
+    @Test
+    public void ignoreBrokenLineAndCompact() throws Exception {
+        BulkImportManifest manifest = BulkImportManifest.open(file, "sess01");
+        manifest.put(new BulkImportManifest.Entry("p0", 10, 1000, "aa"));
+        manifest.put(new BulkImportManifest.Entry("p1", 20, 2000, "bb"));
+        manifest.close();
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write("p2\t30\t30".getBytes()); // killed while writing a line
+        out.close();
+
+        manifest = BulkImportManifest.open(file, "sess01");
+        assertEquals(2, manifest.size());
+        manifest.compact(Arrays.asList("p1", "p2"));
+        manifest.put(new BulkImportManifest.Entry("p2", 30, 3000, "dd"));
+        manifest.close();
+
+        manifest = BulkImportManifest.open(file, "sess01");
+        assertEquals(2, manifest.size());
+        assertNull(manifest.get("p0"));
+        assertEquals("bb", manifest.get("p1").getHash());
+        assertEquals("dd", manifest.get("p2").getHash());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void rejectManifestOfAnotherSession() throws Exception {
+        BulkImportManifest manifest = BulkImportManifest.open(file, "sess01");
+        manifest.put(new BulkImportManifest.Entry("p0", 10, 1000, "aa"));
+        manifest.close();
+        try {
+            BulkImportManifest.open(file, "sess02");
+            fail();
+        } catch (ClientException e) {
+            assertTrue(e.getMessage().contains("sess01"));
+        }
+    }
+
+    @Test
+    public void compareSizeAndModificationTime() throws Exception {
+        PartSource part = PartSource.fromBytes("p0", new byte[10]);
+        assertEquals(0, part.getLastModified());
+        // the time of in-memory parts is unknown
+        assertFalse(new BulkImportManifest.Entry("p0", 10, 0, "aa").isUnchanged(part));
+
+        File f = File.createTempFile("td-part", ".msgpack.gz");
+        try {
+            new FileOutputStream(f).close();
+            part = PartSource.fromFile("p0", f);
+            assertTrue(new BulkImportManifest.Entry("p0", 0, f.lastModified(), "aa").isUnchanged(part));
+            assertFalse(new BulkImportManifest.Entry("p0", 1, f.lastModified(), "aa").isUnchanged(part));
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void hashPartData() throws Exception {
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d",
+                BulkImportManifest.hash(PartSource.fromBytes("p0", "abc".getBytes())));
+    }
+}
@@ -0,0 +1,262 @@
+package com.treasure_data.client.bulkimport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.client.ClientException;
+import com.treasure_data.client.Config;
+import com.treasure_data.client.RetryPolicy;
+import com.treasure_data.client.TreasureDataClient;
+
+public class TestBulkImportPipeline {
+
+    private HttpServer server;
+    private Properties sysprops;
+    private BulkImportClient client;
+
+    private List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private AtomicInteger uploadedParts = new AtomicInteger();
+    private volatile int performPolls = 3;
+    private volatile int commitPolls = 2;
+    private volatile boolean finishedAPI = true;
+    private volatile int pollFailures = 0;
+    private volatile long errorRecords = 0;
+    private volatile String status = "uploading";
+    private volatile boolean sessionExists = false;
+    private List<String> serverParts = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/bulk_import/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                while (in.read() != -1) {
+                }
+                String[] path = ex.getRequestURI().getPath().split("/");
+                String api = path[3];
+                calls.add(api);
+
+                int code = 200;
+                String body = "{\"name\":\"sess01\"}";
+                if (api.equals("create")) {
+                    sessionExists = true;
+                } else if (api.equals("upload_part")) {
+                    uploadedParts.incrementAndGet();
+                    serverParts.add(path[5]);
+                } else if (api.equals("list_parts")) {
+                    body = "{\"name\":\"sess01\",\"parts\":"
+                        + JSONValue.toJSONString(new ArrayList<String>(serverParts)) + "}";
+                } else if (api.equals("perform")) {
+                    status = "performing";
+                    body = "{\"name\":\"sess01\",\"job_id\":\"12345\"}";
+                } else if (api.equals("commit")) {
+                    status = "committing";
+                } else if (api.equals("perform_finished") || api.equals("commit_finished")) {
+                    if (!finishedAPI) {
+                        code = 404;
+                        body = "{\"error\":\"not found\"}";
+                    } else if (pollFailures > 0) {
+                        pollFailures--;
+                        code = 503;
+                        body = "{\"error\":\"unavailable\"}";
+                    } else {
+                        body = "{\"name\":\"sess01\",\"finished\":" + poll(api) + "}";
+                    }
+                } else if (api.equals("list") && !sessionExists) {
+                    body = "{\"bulk_imports\":[]}";
+                } else if (api.equals("list")) {
+                    if (status.equals("performing") || status.equals("committing")) {
+                        poll(status.equals("performing") ? "perform_finished" : "commit_finished");
+                    }
+                    body = "{\"bulk_imports\":[{\"name\":\"sess01\",\"database\":\"db\",\"table\":\"t\","
+                        + "\"status\":\"" + status + "\",\"upload_frozen\":" + !status.equals("uploading") + ",\"job_id\":\"12345\","
+                        + "\"valid_records\":100,\"error_records\":" + errorRecords
+                        + ",\"valid_parts\":3,\"error_parts\":0}]}";
+                }
+
+                byte[] bytes = body.getBytes();
+                ex.sendResponseHeaders(code, bytes.length);
+                ex.getResponseBody().write(bytes);
+                ex.close();
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+        client = new BulkImportClient(new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), new Properties()));
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        System.setProperties(sysprops);
+    }
+
+    // counts down the polls of the phase, and moves the status on when done
+    private synchronized boolean poll(String api) {
+        if (api.equals("perform_finished")) {
+            if (--performPolls > 0) {
+                return false;
+            }
+            if (status.equals("performing")) {
+                status = "ready";
+            }
+        } else {
+            if (--commitPolls > 0) {
+                return false;
+            }
+            status = "committed";
+        }
+        return true;
+    }
+
+    private BulkImportPipeline newPipeline() {
+        BulkImportPipeline pipeline = new BulkImportPipeline(client);
+        pipeline.setMinIntervalMillis(10);
+        pipeline.setMaxIntervalMillis(20);
+        return pipeline;
+    }
+
+    private static List<PartSource> parts(int count) {
+        List<PartSource> parts = new ArrayList<PartSource>();
+        for (int i = 0; i < count; i++) {
+            parts.add(PartSource.fromBytes("part" + i, new byte[100]));
+        }
+        return parts;
+    }
+
+    @Test
+    public void runWholeLifecycle() throws Exception {
+        BulkImportPipeline pipeline = newPipeline();
+        BulkImportPipeline.Report report = pipeline.run("sess01", "db", "t", parts(3));
+
+        assertTrue(report.isCommitted());
+        assertEquals(3, uploadedParts.get());
+        assertEquals(3, report.getPollCount(BulkImportPipeline.Phase.PERFORM));
+        assertEquals(2, report.getPollCount(BulkImportPipeline.Phase.COMMIT));
+        assertEquals(100, report.getSessionSummary().getValidRecords());
+        for (BulkImportPipeline.Phase phase : BulkImportPipeline.Phase.values()) {
+            assertTrue(report.getPhaseMillis(phase) >= 0);
+        }
+        assertEquals("create", calls.get(0));
+        assertTrue(calls.indexOf("freeze") > calls.lastIndexOf("upload_part"));
+        assertTrue(calls.indexOf("perform") > calls.indexOf("freeze"));
+        assertTrue(calls.indexOf("commit") > calls.lastIndexOf("perform_finished"));
+        assertEquals("commit_finished", calls.get(calls.size() - 1));
+    }
+
+    @Test
+    public void retryFailedPollsAndFallBackToStatus() throws Exception {
+        pollFailures = 2;
+        BulkImportPipeline pipeline = newPipeline();
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBaseDelayMillis(1);
+        pipeline.setRetryPolicy(policy);
+        assertTrue(pipeline.run("sess01", "db", "t", parts(1)).isCommitted());
+        assertEquals(2, policy.getRetryCount());
+
+        calls.clear();
+        status = "uploading";
+        performPolls = 2;
+        commitPolls = 2;
+        finishedAPI = false;
+        assertTrue(newPipeline().run("sess01", "db", "t", parts(1)).isCommitted());
+        assertTrue(calls.contains("list"));
+    }
+
+    @Test
+    public void skipCommitIfTooManyErrorRecords() throws Exception {
+        errorRecords = 10;
+        BulkImportPipeline pipeline = newPipeline();
+        pipeline.setMaxErrorRecords(5);
+        BulkImportPipeline.Report report = pipeline.run("sess01", "db", "t", parts(1));
+        assertFalse(report.isCommitted());
+        assertEquals(-1, report.getPhaseMillis(BulkImportPipeline.Phase.COMMIT));
+        assertFalse(calls.contains("commit"));
+    }
+
+    @Test
+    public void cancelWhileWaitingForPerform() throws Exception {
+        performPolls = Integer.MAX_VALUE;
+        final BulkImportPipeline pipeline = newPipeline();
+        new Thread(new Runnable() {
+            public void run() {
+                while (!calls.contains("perform_finished")) {
+                    Thread.yield();
+                }
+                pipeline.cancel();
+            }
+        }).start();
+
+        try {
+            pipeline.run("sess01", "db", "t", parts(1));
+            fail();
+        } catch (ClientException e) {
+            assertTrue(e.getMessage().contains("cancelled"));
+        }
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertFalse(calls.contains("commit"));
+    }
+
+    @Test
+    public void resumeUploadWithManifest() throws Exception {
+        File manifestFile = File.createTempFile("td-manifest", ".txt");
+        manifestFile.delete();
+        try {
+            List<PartSource> parts = parts(3);
+            BulkImportManifest manifest = BulkImportManifest.open(manifestFile, "sess01");
+            manifest.put(new BulkImportManifest.Entry("part0", 100, 0,
+                    BulkImportManifest.hash(parts.get(0))));
+            manifest.close();
+            // the previous run uploaded part0 and failed
+            sessionExists = true;
+            serverParts.add("part0");
+
+            BulkImportPipeline pipeline = newPipeline();
+            pipeline.setManifestFile(manifestFile);
+            BulkImportPipeline.Report report = pipeline.run("sess01", "db", "t", parts);
+            assertTrue(report.isCommitted());
+            assertFalse(calls.contains("create"));
+            assertEquals(Arrays.asList("part0"), report.getSkippedParts());
+            assertEquals(2, uploadedParts.get());
+
+            // a frozen session cannot be resumed
+            calls.clear();
+            try {
+                pipeline.run("sess01", "db", "t", parts);
+                fail();
+            } catch (ClientException e) {
+                assertTrue(e.getMessage().contains("cannot be resumed"));
+            }
+            assertFalse(calls.contains("upload_part"));
+        } finally {
+            manifestFile.delete();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.treasure_data.client.bulkimport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.type.Value;
+import org.msgpack.unpacker.Unpacker;
+
+import com.treasure_data.client.ClientException;
+
+public class TestCSVPartPreparer {
+
+    private File dir;
+
+    @Before
+    public void createResources() throws Exception {
+        dir = File.createTempFile("td-parts", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    static List<Map<String, Object>> readRecords(PartSource part) throws Exception {
+        List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+        InputStream in = new GZIPInputStream(part.openStream());
+        try {
+            Unpacker unpacker = new MessagePack().createUnpacker(in);
+            Iterator<Value> iter = unpacker.iterator();
+            while (iter.hasNext()) {
+                records.add(toMap(iter.next()));
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    private static Map<String, Object> toMap(Value v) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (Map.Entry<Value, Value> e : v.asMapValue().entrySet()) {
+            map.put(e.getKey().asRawValue().getString(), toObject(e.getValue()));
+        }
+        return map;
+    }
+
+    private static Object toObject(Value v) {
+        if (v.isNilValue()) {
+            return null;
+        } else if (v.isMapValue()) {
+            return toMap(v);
+        } else if (v.isArrayValue()) {
+            List<Object> list = new ArrayList<Object>();
+            for (Value e : v.asArrayValue()) {
+                list.add(toObject(e));
+            }
+            return list;
+        } else if (v.isIntegerValue()) {
+            return v.asIntegerValue().getLong();
+        } else if (v.isFloatValue()) {
+            return v.asFloatValue().getDouble();
+        } else if (v.isBooleanValue()) {
+            return v.asBooleanValue().getBoolean();
+        } else {
+            return v.asRawValue().getString();
+        }
+    }
+
+    private static List<Map<String, Object>> readRecords(List<PreparedPart> parts)
+            throws Exception {
+        List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+        for (PreparedPart p : parts) {
+            List<Map<String, Object>> r = readRecords(p);
+            assertEquals(p.getRecordCount(), r.size());
+            records.addAll(r);
+        }
+        return records;
+    }
+
+    private File writeFile(String name, String content) throws Exception {
+        File file = new File(dir, name);
+        Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        w.write(content);
+        w.close();
+        return file;
+    }
+
+    private static InputStream stream(String content) throws Exception {
+        return new ByteArrayInputStream(content.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void convertTypedColumns() throws Exception {
+        CSVPartPreparer preparer = new CSVPartPreparer();
+        preparer.setOutputDirectory(dir);
+        preparer.setColumnType("zip", CSVPartPreparer.ColumnType.STRING);
+        preparer.setColumnType("admin", CSVPartPreparer.ColumnType.BOOLEAN);
+        List<PreparedPart> parts = preparer.prepare("users", stream(
+                "time,name,age,score,zip,admin,note\r\n"
+                + "1370000000,alice,30,1.5,01234,true,\"a, \"\"quoted\"\" note\"\r\n"
+                + "1370000001,bob,,2e3,98765,false,\r\n"));
+
+        assertEquals(1, parts.size());
+        assertEquals("users_000_0000", parts.get(0).getPartID());
+        assertEquals(2, parts.get(0).getRecordCount());
+        assertEquals(0, parts.get(0).getErrorCount());
+
+        List<Map<String, Object>> records = readRecords(parts);
+        Map<String, Object> r = records.get(0);
+        assertEquals(1370000000L, r.get("time"));
+        assertEquals("alice", r.get("name"));
+        assertEquals(30L, r.get("age"));
+        assertEquals(1.5, r.get("score"));
+        assertEquals("01234", r.get("zip"));
+        assertEquals(true, r.get("admin"));
+        assertEquals("a, \"quoted\" note", r.get("note"));
+
+        r = records.get(1);
+        assertNull(r.get("age"));
+        assertEquals(2000.0, r.get("score"));
+        assertEquals(false, r.get("admin"));
+        assertNull(r.get("note"));
+    }
+
+    @Test
+    public void convertTimeColumnAndCountErrors() throws Exception {
+        CSVPartPreparer preparer = CSVPartPreparer.newTSVPartPreparer();
+        preparer.setOutputDirectory(dir);
+        preparer.setColumnNames("created_at", "path");
+        preparer.setHasHeader(false);
+        preparer.setTimeColumn("created_at");
+        preparer.setTimeFormat("yyyy-MM-dd HH:mm:ss");
+        List<PreparedPart> parts = preparer.prepare("access", stream(
+                "2013-06-01 00:00:00\t/index.html\n"
+                + "bad time\t/error.html\n"
+                + "2013-06-01 00:00:01\n"
+                + "\n"
+                + "2013-06-01 00:00:02\t/\"quote\n"));
+
+        assertEquals(1, parts.size());
+        assertEquals(2, parts.get(0).getRecordCount());
+        assertEquals(2, parts.get(0).getErrorCount());
+
+        List<Map<String, Object>> records = readRecords(parts);
+        assertEquals(1370044800L, records.get(0).get("time"));
+        assertEquals("2013-06-01 00:00:00", records.get(0).get("created_at"));
+        assertEquals(1370044802L, records.get(1).get("time"));
+        assertEquals("/\"quote", records.get(1).get("path"));
+    }
+
+    @Test
+    public void requireTimeColumnOrValue() throws Exception {
+        CSVPartPreparer preparer = new CSVPartPreparer();
+        preparer.setOutputDirectory(dir);
+        try {
+            preparer.prepare("users", stream("name\nalice\n"));
+            fail();
+        } catch (ClientException e) {
+            // expected
+        }
+
+        preparer.setTimeValue(1370000000L);
+        List<PreparedPart> parts = preparer.prepare("users", stream("name\nalice\n"));
+        assertEquals(1370000000L, readRecords(parts).get(0).get("time"));
+    }
+
+    @Test
+    public void splitLargeFileIntoChunksAndParts() throws Exception {
+        StringBuilder sbuf = new StringBuilder("time,path,code\n");
+        int count = 20000;
+        for (int i = 0; i < count; i++) {
+            sbuf.append(1370000000 + i).append(",/index").append(i).append(".html,200\n");
+        }
+        File file = writeFile("www_access.log.csv", sbuf.toString());
+
+        CSVPartPreparer preparer = new CSVPartPreparer();
+        preparer.setOutputDirectory(dir);
+        preparer.setThreads(4);
+        preparer.setMinChunkSize(64 * 1024);
+        preparer.setPartSize(100 * 1024);
+        List<PreparedPart> parts = preparer.prepare(file);
+
+        assertTrue(parts.size() > 4);
+        assertEquals("www_access_000_0000", parts.get(0).getPartID());
+        assertTrue(parts.get(parts.size() - 1).getPartID().startsWith("www_access_003_"));
+
+        List<Map<String, Object>> records = readRecords(parts);
+        assertEquals(count, records.size());
+        // chunks and parts are in the order of the file
+        for (int i = 0; i < count; i++) {
+            assertEquals(1370000000L + i, records.get(i).get("time"));
+            assertEquals(200L, records.get(i).get("code"));
+        }
+    }
+
+    @Test
+    public void guessType() throws Exception {
+        assertEquals(CSVPartPreparer.ColumnType.LONG, CSVPartPreparer.guessType("-12"));
+        assertEquals(CSVPartPreparer.ColumnType.LONG, CSVPartPreparer.guessType("0"));
+        assertEquals(CSVPartPreparer.ColumnType.DOUBLE, CSVPartPreparer.guessType("0.5"));
+        assertEquals(CSVPartPreparer.ColumnType.DOUBLE, CSVPartPreparer.guessType("1.5e-3"));
+        assertEquals(CSVPartPreparer.ColumnType.STRING, CSVPartPreparer.guessType("007"));
+        assertEquals(CSVPartPreparer.ColumnType.STRING, CSVPartPreparer.guessType("-"));
+        assertEquals(CSVPartPreparer.ColumnType.STRING, CSVPartPreparer.guessType("1-2"));
+        assertEquals(CSVPartPreparer.ColumnType.STRING, CSVPartPreparer.guessType("e"));
+    }
+}
@@ -0,0 +1,225 @@
+package com.treasure_data.client.bulkimport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.packer.Packer;
+import org.msgpack.type.Value;
+import org.msgpack.type.ValueFactory;
+import org.msgpack.unpacker.Unpacker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.client.ClientException;
+import com.treasure_data.client.Config;
+import com.treasure_data.client.HttpConnectionPool;
+import com.treasure_data.client.TreasureDataClient;
+import com.treasure_data.model.bulkimport.ErrorRecordCursor;
+import com.treasure_data.model.bulkimport.Session;
+
+public class TestErrorRecordAggregator {
+
+    private HttpServer server;
+    private Properties sysprops;
+    private byte[] errorRecords;
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/bulk_import/error_records/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream in = ex.getRequestBody();
+                while (in.read() != -1) {
+                }
+                ex.sendResponseHeaders(200, 0); // chunked
+                ex.getResponseBody().write(errorRecords);
+                ex.close();
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        System.setProperties(sysprops);
+    }
+
+    // records whose time is a string every 4 records, and whose code is nil
+    // every 10 records
+    private static byte[] createErrorRecords(int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Packer packer = new MessagePack().createPacker(out);
+        for (int i = 0; i < count; i++) {
+            packer.writeMapBegin(3);
+            packer.write("time");
+            if (i % 4 == 0) {
+                packer.write("2013-06-01");
+            } else {
+                packer.write(1370000000L + i);
+            }
+            packer.write("code");
+            if (i % 10 == 0) {
+                packer.writeNil();
+            } else {
+                packer.write(200);
+            }
+            packer.write("error");
+            packer.write(i % 4 == 0 ? "invalid time" : "duplicated");
+            packer.writeMapEnd();
+        }
+        packer.flush();
+        return out.toByteArray();
+    }
+
+    private static Unpacker unpacker(byte[] bytes) {
+        return new MessagePack().createUnpacker(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void groupByField() throws Exception {
+        ErrorRecordAggregator agg = new ErrorRecordAggregator(ErrorRecordAggregator.byField("error"));
+        agg.addAll(unpacker(createErrorRecords(100)).iterator());
+
+        assertEquals(100, agg.getRecordCount());
+        List<ErrorRecordAggregator.Group> groups = agg.getGroups();
+        assertEquals(2, groups.size());
+        assertEquals("duplicated", groups.get(0).getKey());
+        assertEquals(75, groups.get(0).getCount());
+        assertEquals("invalid time", groups.get(1).getKey());
+        assertEquals(25, groups.get(1).getCount());
+        for (Value v : groups.get(1).getSamples()) {
+            assertTrue(v.asMapValue().get(rawValue("time")).isRawValue());
+        }
+        assertEquals(5, agg.getSamples().size());
+
+        agg = new ErrorRecordAggregator(ErrorRecordAggregator.byField("no_such_key"));
+        agg.addAll(unpacker(createErrorRecords(10)).iterator());
+        assertEquals(10, agg.getGroup(ErrorRecordAggregator.NONE).getCount());
+    }
+
+    @Test
+    public void groupByColumnType() throws Exception {
+        ErrorRecordAggregator agg = new ErrorRecordAggregator(ErrorRecordAggregator.byColumnType());
+        agg.setSampleSize(2);
+        agg.addAll(unpacker(createErrorRecords(100)).iterator());
+
+        assertEquals(75, agg.getGroup("time:integer").getCount());
+        assertEquals(25, agg.getGroup("time:raw").getCount());
+        assertEquals(90, agg.getGroup("code:integer").getCount());
+        assertEquals(10, agg.getGroup("code:nil").getCount());
+        assertEquals(100, agg.getGroup("error:raw").getCount());
+        assertEquals(2, agg.getGroup("code:nil").getSamples().size());
+        assertEquals(2, agg.getSamples().size());
+    }
+
+    @Test
+    public void limitGroups() throws Exception {
+        ErrorRecordAggregator agg = new ErrorRecordAggregator(ErrorRecordAggregator.byField("time"));
+        agg.setMaxGroups(10);
+        agg.addAll(unpacker(createErrorRecords(100)).iterator());
+
+        assertEquals(11, agg.getGroups().size());
+        // 9 other groups have one record each, and one is the string time
+        assertEquals(100 - 9 - 25, agg.getGroup(ErrorRecordAggregator.OTHER).getCount());
+        assertNull(agg.getGroup("1370000099"));
+    }
+
+    @Test
+    public void sampleUniformly() throws Exception {
+        // every record should be sampled with probability size / count
+        int count = 100;
+        int size = 10;
+        int trials = 2000;
+        byte[] bytes = createErrorRecords(count);
+        Random random = new Random(0);
+        Map<Long, Integer> hits = new HashMap<Long, Integer>();
+        for (int t = 0; t < trials; t++) {
+            ErrorRecordAggregator agg = new ErrorRecordAggregator(ErrorRecordAggregator.byField("error"));
+            agg.setSampleSize(size);
+            agg.setRandom(random);
+            agg.addAll(unpacker(bytes).iterator());
+            for (Value v : agg.getSamples()) {
+                Value time = v.asMapValue().get(rawValue("time"));
+                if (time.isIntegerValue()) {
+                    long i = time.asIntegerValue().getLong() - 1370000000L;
+                    hits.put(i / 25, (hits.containsKey(i / 25) ? hits.get(i / 25) : 0) + 1);
+                }
+            }
+        }
+        // 75 integer-time records, in 4 quarters of the stream: ~1500 hits per quarter
+        double expected = trials * size * 75.0 / count / 4;
+        for (long q = 0; q < 4; q++) {
+            assertEquals(expected, hits.get(q), expected * 0.1);
+        }
+    }
+
+    @Test
+    public void aggregateStreamedErrorRecords() throws Exception {
+        errorRecords = createErrorRecords(20000);
+        TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), new Properties());
+        BulkImportClient biclient = new BulkImportClient(client);
+        Session sess = new Session("sess01", "db", "t");
+
+        ErrorRecordAggregator agg = biclient.aggregateErrorRecords(sess,
+                new ErrorRecordAggregator(ErrorRecordAggregator.byField("error")));
+        assertEquals(20000, agg.getRecordCount());
+        assertEquals(5000, agg.getGroup("invalid time").getCount());
+
+        ErrorRecordCursor cursor = biclient.getErrorRecordCursor(sess);
+        assertTrue(cursor.hasNext());
+        cursor.next();
+        cursor.close();
+
+        // the connection is reused after the body is read to the end
+        biclient.aggregateErrorRecords(sess,
+                new ErrorRecordAggregator(ErrorRecordAggregator.byField("error")));
+        HttpConnectionPool pool = client.getConfig().getConnectionPool();
+        assertTrue(pool.getHitCount() >= 1);
+    }
+
+    @Test
+    public void failOnTruncatedErrorRecords() throws Exception {
+        byte[] records = createErrorRecords(20000);
+        errorRecords = new byte[records.length / 2 + 1];
+        System.arraycopy(records, 0, errorRecords, 0, errorRecords.length);
+        BulkImportClient biclient = new BulkImportClient(new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), new Properties()));
+
+        try {
+            biclient.aggregateErrorRecords(new Session("sess01", "db", "t"),
+                    new ErrorRecordAggregator(ErrorRecordAggregator.byField("error")));
+            fail();
+        } catch (ClientException e) {
+            assertTrue(e.getMessage().startsWith("Read error_records failed"));
+        }
+    }
+
+    private static Value rawValue(String s) {
+        return ValueFactory.createRawValue(s);
+    }
+}
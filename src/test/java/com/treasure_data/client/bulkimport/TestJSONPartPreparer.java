@@ -0,0 +1,97 @@
+package com.treasure_data.client.bulkimport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestJSONPartPreparer {
+
+    private File dir;
+
+    @Before
+    public void createResources() throws Exception {
+        dir = File.createTempFile("td-parts", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private List<PreparedPart> prepare(JSONPartPreparer preparer, String content)
+            throws Exception {
+        preparer.setOutputDirectory(dir);
+        return preparer.prepare("events", new ByteArrayInputStream(content.getBytes("UTF-8")));
+    }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void convertLines() throws Exception {
+        List<PreparedPart> parts = prepare(new JSONPartPreparer(),
+                "{\"time\":1370000000,\"name\":\"a\\\"b\\u00e9\",\"n\":-12,\"f\":1.5e2,\"ok\":true,\"none\":null}\n"
+                + "  \n"
+                + "{ \"time\" : 1370000001 , \"tags\" : [1, \"x\", [2]], \"obj\" : {\"time\": \"inner\", \"k\": {}} }\n");
+        assertEquals(1, parts.size());
+        assertEquals(2, parts.get(0).getRecordCount());
+        assertEquals(0, parts.get(0).getErrorCount());
+
+        List<Map<String, Object>> records = TestCSVPartPreparer.readRecords(parts.get(0));
+        Map<String, Object> r = records.get(0);
+        assertEquals(1370000000L, r.get("time"));
+        assertEquals("a\"b\u00e9", r.get("name"));
+        assertEquals(-12L, r.get("n"));
+        assertEquals(150.0, r.get("f"));
+        assertEquals(true, r.get("ok"));
+        assertNull(r.get("none"));
+        assertEquals(6, r.size());
+
+        r = records.get(1);
+        assertEquals(1370000001L, r.get("time"));
+        assertEquals(3, ((List) r.get("tags")).size());
+        assertEquals(2, ((Map) r.get("obj")).size());
+    }
+
+    @Test
+    public void countMalformedLines() throws Exception {
+        List<PreparedPart> parts = prepare(new JSONPartPreparer(),
+                "{\"time\":1370000000,\"a\":1}\n"
+                + "{\"time\":1370000001,\"a\":}\n"
+                + "[1, 2]\n"
+                + "{\"time\":1370000002,\"a\":\"unterminated}\n"
+                + "{\"a\":1}\n"
+                + "{\"time\":1370000003,\"a\":[1,2}\n"
+                + "{\"time\":1370000004} trailing\n"
+                + "{\"time\":1370000005}\n");
+        assertEquals(1, parts.size());
+        assertEquals(2, parts.get(0).getRecordCount());
+        assertEquals(6, parts.get(0).getErrorCount());
+
+        List<Map<String, Object>> records = TestCSVPartPreparer.readRecords(parts.get(0));
+        assertEquals(1370000005L, records.get(1).get("time"));
+    }
+
+    @Test
+    public void addTimeValue() throws Exception {
+        JSONPartPreparer preparer = new JSONPartPreparer();
+        preparer.setTimeValue(1370000000L);
+        List<PreparedPart> parts = prepare(preparer, "{\"a\":1,\"x\":\"time\"}\n{}\n");
+        List<Map<String, Object>> records = TestCSVPartPreparer.readRecords(parts.get(0));
+        assertEquals(1370000000L, records.get(0).get("time"));
+        assertEquals("time", records.get(0).get("x"));
+        assertEquals(1370000000L, records.get(1).get("time"));
+        assertEquals(1, records.get(1).size());
+    }
+}
@@ -63,6 +63,7 @@ public class TestListSessions
     @Before
     public void createResources() throws Exception {
         super.createResources();
+        responsedStream = true;
         sessionName = "testSess";
         databaseName = "testdb";
         tableName = "testtbl";
@@ -0,0 +1,166 @@
+package com.treasure_data.client.bulkimport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.client.Config;
+import com.treasure_data.client.TreasureDataClient;
+import com.treasure_data.model.bulkimport.Session;
+
+public class TestParallelUploader {
+
+    private static final int PARTS = 8;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private Properties sysprops;
+    private BulkImportClient client;
+
+    private Map<String, Integer> received = new ConcurrentHashMap<String, Integer>();
+    private AtomicInteger inFlight = new AtomicInteger();
+    private AtomicInteger maxInFlight = new AtomicInteger();
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/bulk_import/upload_part/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                int n = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), n));
+                }
+                try {
+                    InputStream in = ex.getRequestBody();
+                    int size = 0;
+                    while (in.read() != -1) {
+                        size++;
+                    }
+                    String path = ex.getRequestURI().getPath();
+                    String partID = path.substring(path.lastIndexOf('/') + 1);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+
+                    byte[] body;
+                    int code;
+                    // the first attempt of "part_fail" and every attempt of
+                    // "part_broken" fail
+                    if ((partID.equals("part_fail") && !received.containsKey(partID + "_1"))
+                            || partID.equals("part_broken")) {
+                        received.put(partID + "_1", size);
+                        code = 500;
+                        body = "{\"error\":\"internal error\"}".getBytes();
+                    } else {
+                        received.put(partID, size);
+                        code = 200;
+                        body = "{\"name\":\"sess01\"}".getBytes();
+                    }
+                    ex.sendResponseHeaders(code, body.length);
+                    ex.getResponseBody().write(body);
+                    ex.close();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(PARTS);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+
+        client = new BulkImportClient(new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), new Properties()));
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        System.setProperties(sysprops);
+    }
+
+    @Test
+    public void uploadPartsInParallel() throws Exception {
+        List<PartSource> parts = new ArrayList<PartSource>();
+        for (int i = 0; i < PARTS; i++) {
+            parts.add(PartSource.fromBytes("part" + i, new byte[1024 * (i + 1)]));
+        }
+        parts.add(PartSource.fromBytes("part_fail", new byte[100]));
+
+        final AtomicInteger progressed = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        ParallelUploader uploader = new ParallelUploader(client, 3);
+        uploader.setRetryWaitMillis(1);
+        uploader.setListener(new ParallelUploader.Listener() {
+            public void onPartStarted(PartSource part, int attempt) {
+            }
+
+            public void onPartProgress(PartSource part, long sentBytes) {
+                progressed.incrementAndGet();
+            }
+
+            public void onPartFinished(ParallelUploader.PartResult result) {
+                finished.incrementAndGet();
+            }
+        });
+        ParallelUploader.Report report = uploader.upload(new Session("sess01", null, null), parts);
+
+        assertTrue(report.isSucceeded());
+        assertEquals(PARTS + 1, report.getPartResults().size());
+        assertEquals(PARTS + 1, finished.get());
+        assertTrue(progressed.get() > 0);
+        for (int i = 0; i < PARTS; i++) {
+            assertEquals(1024 * (i + 1), (int) received.get("part" + i));
+            assertEquals(1, report.getPartResults().get(i).getAttempts());
+        }
+        assertEquals(100, (int) received.get("part_fail"));
+        assertEquals(2, report.getPartResults().get(PARTS).getAttempts());
+        assertTrue(maxInFlight.get() <= 3);
+        assertEquals(1024 * PARTS * (PARTS + 1) / 2 + 100, report.getUploadedBytes());
+    }
+
+    @Test
+    public void reportPartsThatFailAfterRetries() throws Exception {
+        List<PartSource> parts = new ArrayList<PartSource>();
+        parts.add(PartSource.fromBytes("part0", new byte[10]));
+        parts.add(PartSource.fromBytes("part_broken", new byte[10]));
+
+        ParallelUploader uploader = new ParallelUploader(client, 2);
+        uploader.setRetryCount(2);
+        uploader.setRetryWaitMillis(1);
+        ParallelUploader.Report report = uploader.upload(new Session("sess01", null, null), parts);
+
+        assertFalse(report.isSucceeded());
+        assertEquals(1, report.getFailedParts().size());
+        ParallelUploader.PartResult failed = report.getFailedParts().get(0);
+        assertEquals("part_broken", failed.getPartID());
+        assertEquals(3, failed.getAttempts());
+        assertTrue(failed.getError() != null);
+    }
+}
@@ -0,0 +1,195 @@
+package com.treasure_data.client.bulkimport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.client.Config;
+import com.treasure_data.client.RetryPolicy;
+import com.treasure_data.client.TreasureDataClient;
+import com.treasure_data.model.bulkimport.Session;
+
+public class TestResumableUploader {
+
+    private HttpServer server;
+    private Properties sysprops;
+    private BulkImportClient client;
+    private File dir;
+    private File manifestFile;
+    private Session sess = new Session("sess01", "db", "t");
+
+    // part ID -> uploaded data
+    private Map<String, byte[]> serverParts = new ConcurrentHashMap<String, byte[]>();
+    private List<String> uploads = Collections.synchronizedList(new ArrayList<String>());
+    private Set<String> failingParts = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+
+    @Before
+    public void createResources() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/bulk_import/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                InputStream in = ex.getRequestBody();
+                int b;
+                while ((b = in.read()) != -1) {
+                    data.write(b);
+                }
+                String[] path = ex.getRequestURI().getPath().split("/");
+
+                int code = 200;
+                String body = "{\"name\":\"sess01\"}";
+                if (path[3].equals("upload_part")) {
+                    String partID = path[5];
+                    uploads.add(partID);
+                    if (failingParts.contains(partID)) {
+                        code = 500;
+                        body = "{\"error\":\"failed\"}";
+                    } else {
+                        serverParts.put(partID, data.toByteArray());
+                    }
+                } else if (path[3].equals("list_parts")) {
+                    List<String> parts = new ArrayList<String>(serverParts.keySet());
+                    body = "{\"name\":\"sess01\",\"parts\":" + JSONValue.toJSONString(parts) + "}";
+                }
+
+                byte[] bytes = body.getBytes();
+                ex.sendResponseHeaders(code, bytes.length);
+                ex.getResponseBody().write(bytes);
+                ex.close();
+            }
+        });
+        server.start();
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getAddress().getPort());
+        client = new BulkImportClient(new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), new Properties()));
+
+        dir = File.createTempFile("td-parts", "");
+        dir.delete();
+        dir.mkdir();
+        manifestFile = new File(dir, "sess01.manifest");
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        server.stop(0);
+        System.setProperties(sysprops);
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private PartSource writePart(String partID, String content) throws Exception {
+        File f = new File(dir, partID + ".msgpack.gz");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(content.getBytes());
+        out.close();
+        return PartSource.fromFile(partID, f);
+    }
+
+    private ResumableUploader newUploader() {
+        ResumableUploader uploader = new ResumableUploader(client, 2, manifestFile);
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxRetries(0);
+        uploader.setRetryPolicy(policy);
+        return uploader;
+    }
+
+    @Test
+    public void resumeFailedUpload() throws Exception {
+        List<PartSource> parts = new ArrayList<PartSource>();
+        for (int i = 0; i < 5; i++) {
+            parts.add(writePart("p" + i, "data of part " + i));
+        }
+
+        failingParts.addAll(Arrays.asList("p3", "p4"));
+        ResumableUploader.Report report = newUploader().upload(sess, parts);
+        assertFalse(report.isSucceeded());
+        assertEquals(2, report.getUploadReport().getFailedParts().size());
+        assertEquals(0, report.getSkippedParts().size());
+        // results refer to the given parts
+        assertTrue(parts.contains(report.getUploadReport().getPartResults().get(0).getPart()));
+
+        failingParts.clear();
+        uploads.clear();
+        report = newUploader().upload(sess, parts);
+        assertTrue(report.isSucceeded());
+        assertEquals(Arrays.asList("p0", "p1", "p2"), report.getSkippedParts());
+        Collections.sort(uploads);
+        assertEquals(Arrays.asList("p3", "p4"), uploads);
+
+        uploads.clear();
+        report = newUploader().upload(sess, parts);
+        assertEquals(5, report.getSkippedParts().size());
+        assertTrue(uploads.isEmpty());
+        assertEquals("data of part 4", new String(serverParts.get("p4")));
+    }
+
+    @Test
+    public void uploadChangedAndUnknownParts() throws Exception {
+        List<PartSource> parts = new ArrayList<PartSource>();
+        for (int i = 0; i < 4; i++) {
+            parts.add(writePart("p" + i, "data of part " + i));
+        }
+        assertTrue(newUploader().upload(sess, parts).isSucceeded());
+
+        // p0 is changed; p1 is written again with the same data; p2 is lost on
+        // the server; p3 is recorded by someone else
+        parts.set(0, writePart("p0", "new data of part 0"));
+        File p1 = new File(dir, "p1.msgpack.gz");
+        writePart("p1", "data of part 1");
+        p1.setLastModified(p1.lastModified() - 10000);
+        serverParts.remove("p2");
+        manifestFile.delete();
+        BulkImportManifest manifest = BulkImportManifest.open(manifestFile, "sess01");
+        for (String partID : Arrays.asList("p0", "p1", "p2")) {
+            // recorded with another modification time, so that the hash is compared
+            byte[] data = ("data of part " + partID.substring(1)).getBytes();
+            manifest.put(new BulkImportManifest.Entry(partID, data.length, 1,
+                    BulkImportManifest.hash(PartSource.fromBytes(partID, data))));
+        }
+        manifest.close();
+
+        uploads.clear();
+        ResumableUploader.Report report = newUploader().upload(sess, parts);
+        assertTrue(report.isSucceeded());
+        assertEquals(Arrays.asList("p1"), report.getSkippedParts());
+        Collections.sort(uploads);
+        assertEquals(Arrays.asList("p0", "p2", "p3"), uploads);
+        assertEquals("new data of part 0", new String(serverParts.get("p0")));
+
+        // the new modification time of p1 is recorded
+        manifest = BulkImportManifest.open(manifestFile, "sess01");
+        assertEquals(p1.lastModified(), manifest.get("p1").getLastModified());
+        assertEquals(4, manifest.size());
+        manifest.close();
+    }
+}
@@ -0,0 +1,35 @@
+package com.treasure_data.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.net.SocketException;
+
+/**
+ * Stream of a response body whose connection is reset after the given
+ * number of bytes.
+ */
+public class FailingInputStream extends FilterInputStream {
+    private int remaining;
+
+    public FailingInputStream(byte[] bytes, int failAfter) {
+        super(new ByteArrayInputStream(bytes));
+        remaining = failAfter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            throw new SocketException("Connection reset");
+        }
+        int n = super.read(b, off, Math.min(len, remaining));
+        remaining -= Math.max(n, 0);
+        return n;
+    }
+}
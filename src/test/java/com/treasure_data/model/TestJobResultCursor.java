@@ -0,0 +1,128 @@
+package com.treasure_data.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.packer.Packer;
+import org.msgpack.type.Value;
+
+public class TestJobResultCursor {
+
+    private static class CloseCheckInputStream extends ByteArrayInputStream {
+        boolean closed = false;
+
+        CloseCheckInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+
+    private static byte[] createResult(int rows) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzout = new GZIPOutputStream(out);
+        Packer packer = new MessagePack().createPacker(gzout);
+        for (int i = 0; i < rows; i++) {
+            packer.writeArrayBegin(2);
+            packer.write(i);
+            packer.write("row" + i);
+            packer.writeArrayEnd();
+        }
+        packer.flush();
+        gzout.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readAllRows() throws Exception {
+        CloseCheckInputStream in = new CloseCheckInputStream(createResult(1000));
+        JobResultCursor cursor = new JobResultCursor(in);
+
+        int i = 0;
+        while (cursor.hasNext()) {
+            Value row = cursor.next();
+            assertEquals(i, row.asArrayValue().get(0).asIntegerValue().getInt());
+            assertEquals("row" + i, row.asArrayValue().get(1).asRawValue().getString());
+            i++;
+        }
+        assertEquals(1000, i);
+        assertEquals(1000, cursor.getRowCount());
+        // reading to the end releases the stream
+        assertTrue(in.closed);
+    }
+
+    @Test
+    public void closeBeforeEnd() throws Exception {
+        CloseCheckInputStream in = new CloseCheckInputStream(createResult(10));
+        JobResultCursor cursor = new JobResultCursor(in);
+
+        assertTrue(cursor.hasNext());
+        cursor.next();
+        cursor.close();
+        assertTrue(in.closed);
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    public void failOnTruncatedResult() throws Exception {
+        byte[] result = createResult(1000);
+        byte[] truncated = new byte[result.length / 2];
+        System.arraycopy(result, 0, truncated, 0, truncated.length);
+        CloseCheckInputStream in = new CloseCheckInputStream(truncated);
+        JobResultCursor cursor = new JobResultCursor(in);
+
+        int rows = 0;
+        try {
+            while (cursor.hasNext()) {
+                cursor.next();
+                rows++;
+            }
+            fail();
+        } catch (MessagePackCursor.ReadException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(rows < 1000);
+        assertEquals(rows, cursor.getRowCount());
+        assertTrue(in.closed);
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    public void failOnStreamError() throws Exception {
+        byte[] result = createResult(1000);
+        InputStream in = new FailingInputStream(result, result.length / 2);
+        JobResultCursor cursor = new JobResultCursor(in);
+
+        try {
+            while (cursor.hasNext()) {
+                cursor.next();
+            }
+            fail();
+        } catch (MessagePackCursor.ReadException e) {
+            assertTrue(e.getCause() instanceof SocketException);
+        }
+    }
+
+    @Test
+    public void emptyResult() throws Exception {
+        JobResultCursor cursor = new JobResultCursor(
+                new ByteArrayInputStream(createResult(0)));
+        assertFalse(cursor.hasNext());
+        assertEquals(0, cursor.getRowCount());
+    }
+}
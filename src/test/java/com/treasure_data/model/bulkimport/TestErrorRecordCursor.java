@@ -0,0 +1,127 @@
+package com.treasure_data.model.bulkimport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.packer.Packer;
+import org.msgpack.type.Value;
+
+import com.treasure_data.model.FailingInputStream;
+import com.treasure_data.model.MessagePackCursor;
+
+public class TestErrorRecordCursor {
+
+    private static class CloseCheckInputStream extends ByteArrayInputStream {
+        boolean closed = false;
+
+        CloseCheckInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+
+    private static byte[] createErrorRecords(int records) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Packer packer = new MessagePack().createPacker(out);
+        for (int i = 0; i < records; i++) {
+            packer.writeMapBegin(2);
+            packer.write("time");
+            packer.write("bad" + i);
+            packer.write("name");
+            packer.write("user" + i);
+            packer.writeMapEnd();
+        }
+        packer.flush();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readAllRecords() throws Exception {
+        CloseCheckInputStream in = new CloseCheckInputStream(createErrorRecords(1000));
+        ErrorRecordCursor cursor = new ErrorRecordCursor(in);
+
+        int i = 0;
+        while (cursor.hasNext()) {
+            Value record = cursor.next();
+            assertTrue(record.isMapValue());
+            assertEquals(2, record.asMapValue().size());
+            i++;
+        }
+        assertEquals(1000, i);
+        assertEquals(1000, cursor.getRecordCount());
+        // reading to the end releases the stream
+        assertTrue(in.closed);
+    }
+
+    @Test
+    public void closeBeforeEnd() throws Exception {
+        CloseCheckInputStream in = new CloseCheckInputStream(createErrorRecords(10));
+        ErrorRecordCursor cursor = new ErrorRecordCursor(in);
+
+        assertTrue(cursor.hasNext());
+        cursor.next();
+        cursor.close();
+        assertTrue(in.closed);
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    public void failOnTruncatedRecords() throws Exception {
+        byte[] records = createErrorRecords(1000);
+        byte[] truncated = new byte[records.length / 2 + 1];
+        System.arraycopy(records, 0, truncated, 0, truncated.length);
+        CloseCheckInputStream in = new CloseCheckInputStream(truncated);
+        ErrorRecordCursor cursor = new ErrorRecordCursor(in);
+
+        int count = 0;
+        try {
+            while (cursor.hasNext()) {
+                cursor.next();
+                count++;
+            }
+            fail();
+        } catch (MessagePackCursor.ReadException e) {
+            assertTrue(e.getCause() instanceof EOFException);
+        }
+        assertTrue(count < 1000);
+        assertEquals(count, cursor.getRecordCount());
+        assertTrue(in.closed);
+    }
+
+    @Test
+    public void failOnStreamError() throws Exception {
+        byte[] records = createErrorRecords(1000);
+        ErrorRecordCursor cursor = new ErrorRecordCursor(
+                new FailingInputStream(records, records.length / 2));
+        try {
+            while (cursor.hasNext()) {
+                cursor.next();
+            }
+            fail();
+        } catch (MessagePackCursor.ReadException e) {
+            assertTrue(e.getCause() instanceof SocketException);
+        }
+    }
+
+    @Test
+    public void emptyErrorRecords() throws Exception {
+        ErrorRecordCursor cursor = new ErrorRecordCursor(new ByteArrayInputStream(new byte[0]));
+        assertFalse(cursor.hasNext());
+        assertEquals(0, cursor.getRecordCount());
+    }
+}
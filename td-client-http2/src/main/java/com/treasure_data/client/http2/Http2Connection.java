@@ -0,0 +1,224 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.http2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.treasure_data.client.AbstractHttpConnection;
+import com.treasure_data.model.Request;
+
+/**
+ * Connection of an {@link Http2Transport}. The calling thread waits for the
+ * response header; the response body is read as the HttpClient receives it.
+ *
+ * The read timeouts (td.client.*method.readtimeout) limit the wait for the
+ * response header only. The HttpClient has no timeout for reading the body,
+ * so a server that stalls in the middle of a body blocks its reader.
+ *
+ * An object holds the state of one request at a time and is not thread-safe;
+ * create one per API call.
+ */
+public class Http2Connection extends AbstractHttpConnection {
+    private static Logger LOG = Logger.getLogger(Http2Connection.class.getName());
+
+    private static final DateTimeFormatter RFC2822FORMAT = DateTimeFormatter.ofPattern(
+            "EEE, dd MMM yyyy HH:mm:ss Z", Locale.ENGLISH);
+
+    // set by the HttpClient itself, which refuses them in a request
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "content-length", "date", "expect", "host", "upgrade"));
+
+    private HttpClient client;
+    private String url;
+    private HttpResponse<InputStream> response;
+
+    public Http2Connection(Properties props, HttpClient client) {
+        super(props);
+        this.client = client;
+    }
+
+    public void doGetRequest(Request<?> request, String path, Map<String, String> header,
+            Map<String, String> params) throws IOException {
+        sendRequest(request, "GET", appendParameters(path, params), header,
+                HttpRequest.BodyPublishers.noBody(), getReadTimeout);
+    }
+
+    public void doPostRequest(Request<?> request, String path, Map<String, String> header,
+            Map<String, String> params) throws IOException {
+        String pathAndQuery = appendParameters(path, params);
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine(pathAndQuery);
+        }
+        sendRequest(request, "POST", pathAndQuery, header,
+                HttpRequest.BodyPublishers.noBody(), postReadTimeout);
+    }
+
+    public void doPutRequest(Request<?> request, String path, byte[] bytes)
+            throws IOException {
+        sendRequest(request, "PUT", path, null,
+                HttpRequest.BodyPublishers.ofByteArray(bytes), putReadTimeout);
+    }
+
+    /**
+     * Sends a stream body. A body in a ByteArrayInputStream is sent as bytes;
+     * other streams can be sent once only, so that the request fails if the
+     * HttpClient wants to send it again, e.g. on a stream refused by the
+     * server.
+     */
+    public void doPutRequest(Request<?> request, String path, final InputStream in, int size)
+            throws IOException {
+        if (in instanceof ByteArrayInputStream && size >= 0) {
+            byte[] bytes = in.readNBytes(size);
+            if (bytes.length < size) {
+                throw new IOException(String.format(
+                        "request body is shorter than its size: %d bytes missing",
+                        size - bytes.length));
+            }
+            doPutRequest(request, path, bytes);
+            return;
+        }
+        if (size == 0) {
+            // fromPublisher takes a positive length only
+            sendRequest(request, "PUT", path, null, HttpRequest.BodyPublishers.noBody(),
+                    putReadTimeout);
+            return;
+        }
+
+        final AtomicBoolean supplied = new AtomicBoolean();
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            if (!supplied.compareAndSet(false, true)) {
+                throw new UncheckedIOException(new IOException(
+                        "request body stream cannot be sent again: " + path));
+            }
+            return in;
+        });
+        if (size > 0) {
+            // sent with content-length instead of till the end of the stream
+            body = HttpRequest.BodyPublishers.fromPublisher(body, size);
+        }
+        sendRequest(request, "PUT", path, null, body, putReadTimeout);
+    }
+
+    private void sendRequest(Request<?> request, String method, String path,
+            Map<String, String> header, HttpRequest.BodyPublisher body, int readTimeout)
+            throws IOException {
+        disconnect();
+        response = null;
+
+        url = "http://" + getApiServerPath() + path;
+        HttpRequest.Builder builder;
+        try {
+            builder = HttpRequest.newBuilder(URI.create(url)).method(method, body);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid URL " + url + ": " + e.getMessage(), e);
+        }
+        builder.header("User-Agent", USER_AGENT);
+        builder.header("Accept", "*/*");
+        String apiKey = request.getCredentials().getAPIKey();
+        if (apiKey != null) {
+            builder.header("Authorization", "TD1 " + apiKey);
+        }
+        setDateHeader(builder);
+        if (header != null) {
+            for (Map.Entry<String, String> e : header.entrySet()) {
+                if (!RESTRICTED_HEADERS.contains(e.getKey().toLowerCase(Locale.ENGLISH))) {
+                    builder.header(e.getKey(), e.getValue());
+                }
+            }
+        }
+        if (readTimeout > 0) {
+            // the time till the response header is received, not the body
+            builder.timeout(Duration.ofMillis(readTimeout));
+        }
+
+        try {
+            response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + url);
+        }
+    }
+
+    private static void setDateHeader(HttpRequest.Builder builder) {
+        try {
+            builder.header("Date", RFC2822FORMAT.format(ZonedDateTime.now()));
+        } catch (IllegalArgumentException e) {
+            // Date is a restricted header before Java 12; the request goes without it
+        }
+    }
+
+    public int getResponseCode() throws IOException {
+        return response == null ? -1 : response.statusCode();
+    }
+
+    /**
+     * Returns "" for a response; HTTP/2 has no reason phrase.
+     */
+    public String getResponseMessage() throws IOException {
+        return response == null ? null : "";
+    }
+
+    public String getHeaderField(String name) {
+        return response == null ? null : response.headers().firstValue(name).orElse(null);
+    }
+
+    /**
+     * Finishes the current response. The rest of the response body is
+     * discarded; the connection stays open for other streams.
+     */
+    public void disconnect() {
+        if (response == null) {
+            return;
+        }
+        try {
+            response.body().close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    protected InputStream getResponseStream() {
+        return response == null ? null : response.body();
+    }
+
+    @Override
+    protected String getURL() {
+        return url;
+    }
+}
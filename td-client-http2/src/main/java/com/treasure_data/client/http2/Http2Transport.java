@@ -0,0 +1,92 @@
+//
+// Java Client Library for Treasure Data Cloud
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package com.treasure_data.client.http2;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.treasure_data.client.Config;
+import com.treasure_data.client.HttpConnection;
+import com.treasure_data.client.HttpTransport;
+
+/**
+ * Transport of HTTP/2 through the HttpClient of Java 11: concurrent API
+ * calls to a host are multiplexed as streams over one connection, instead of
+ * a connection each. A plain http:// API server is asked to upgrade to
+ * HTTP/2 (h2c) by the first request; a server that does not upgrade is
+ * spoken to with HTTP/1.1.
+ *
+ * It is selected by td.client.transport=http2 when td-client-http2 is on the
+ * class path.
+ */
+public class Http2Transport implements HttpTransport {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final Properties props;
+    private final ExecutorService executor;
+    private final HttpClient client;
+
+    public Http2Transport(Config conf) {
+        this(conf.getProperties());
+    }
+
+    public Http2Transport(Properties props) {
+        this.props = props;
+        int connectTimeout = Integer.parseInt(props.getProperty(
+                Config.TD_CLIENT_CONNECT_TIMEOUT,
+                Config.TD_CLIENT_CONNECT_TIMEOUT_DEFAULTVALUE));
+
+        // the threads of the HttpClient must not keep the JVM alive
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "td-client-http2-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(executor);
+        if (connectTimeout > 0) {
+            builder.connectTimeout(Duration.ofMillis(connectTimeout));
+        }
+        client = builder.build();
+    }
+
+    public HttpClient getHttpClient() {
+        return client;
+    }
+
+    public HttpConnection createConnection() {
+        return new Http2Connection(props, client);
+    }
+
+    /**
+     * Stops the threads of the HttpClient; its connections are closed when
+     * they are idle.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+}
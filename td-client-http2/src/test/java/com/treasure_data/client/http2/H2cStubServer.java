@@ -0,0 +1,452 @@
+package com.treasure_data.client.http2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP/2 server over cleartext (h2c) for tests. It accepts the HTTP/1.1
+ * Upgrade of a connection to HTTP/2 and answers the streams of the connection
+ * on a thread pool, so that they are answered concurrently and out of order.
+ * Request headers are decoded with {@link HpackDecoder}; responses are
+ * encoded as literals without indexing.
+ */
+class H2cStubServer {
+
+    interface Handler {
+        Response handle(String method, String path, Map<String, String> headers,
+                byte[] body) throws Exception;
+    }
+
+    static class Response {
+        final int code;
+        final byte[] body;
+
+        Response(int code, String body) throws IOException {
+            this.code = code;
+            this.body = body.getBytes("UTF-8");
+        }
+    }
+
+    private static final byte[] PREFACE = bytes("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+    private static final int MAX_FRAME_SIZE = 16384;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY = 0x20;
+
+    private final Handler handler;
+    private final ServerSocket serverSocket;
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+    private volatile boolean upgradeEnabled = true;
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger upgradeCount = new AtomicInteger();
+    private final AtomicInteger streamCount = new AtomicInteger();
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final AtomicInteger maxActiveStreams = new AtomicInteger();
+
+    H2cStubServer(Handler handler) throws IOException {
+        this.handler = handler;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "h2c-stub-acceptor");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Answers with HTTP/1.1 and ignores the Upgrade header if false.
+     */
+    void setUpgradeEnabled(boolean upgradeEnabled) {
+        this.upgradeEnabled = upgradeEnabled;
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    int getUpgradeCount() {
+        return upgradeCount.get();
+    }
+
+    int getStreamCount() {
+        return streamCount.get();
+    }
+
+    /**
+     * Returns the largest number of streams that were being answered at a time.
+     */
+    int getMaxActiveStreams() {
+        return maxActiveStreams.get();
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket s : sockets) {
+                s.close();
+            }
+        }
+        workers.shutdownNow();
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket s;
+            try {
+                s = serverSocket.accept();
+            } catch (IOException e) {
+                return; // closed
+            }
+            connectionCount.incrementAndGet();
+            sockets.add(s);
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        serve(s);
+                    } catch (Exception e) {
+                        // the client went away, or the server is closed
+                    } finally {
+                        try {
+                            s.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void serve(Socket s) throws Exception {
+        InputStream in = new BufferedInputStream(s.getInputStream());
+        OutputStream out = new BufferedOutputStream(s.getOutputStream());
+
+        // HTTP/1.1 request that may ask for the upgrade
+        String requestLine = readLine(in);
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int i = line.indexOf(':');
+            headers.put(line.substring(0, i).trim().toLowerCase(Locale.ENGLISH),
+                    line.substring(i + 1).trim());
+        }
+        String[] request = requestLine.split(" ");
+        String contentLength = headers.get("content-length");
+        byte[] body = readFully(in, contentLength == null ? 0 : Integer.parseInt(contentLength));
+
+        if (!upgradeEnabled || !"h2c".equalsIgnoreCase(headers.get("upgrade"))) {
+            streamCount.incrementAndGet();
+            Response r = handler.handle(request[0], request[1], headers, body);
+            out.write(bytes("HTTP/1.1 " + r.code + " Stub\r\n"
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + r.body.length + "\r\n"
+                    + "Connection: close\r\n\r\n"));
+            out.write(r.body);
+            out.flush();
+            return;
+        }
+
+        upgradeCount.incrementAndGet();
+        out.write(bytes("HTTP/1.1 101 Switching Protocols\r\n"
+                + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n"));
+        FrameWriter writer = new FrameWriter(out);
+        writer.writeFrame(SETTINGS, 0, 0, new byte[0]);
+        writer.flush();
+        if (!Arrays.equals(PREFACE, readFully(in, PREFACE.length))) {
+            throw new IOException("no connection preface");
+        }
+
+        // stream 1 is the request that asked for the upgrade
+        answer(writer, 1, request[0], request[1], headers, body);
+        readFrames(in, writer);
+    }
+
+    private void readFrames(InputStream in, FrameWriter writer) throws Exception {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+        byte[] h = new byte[9];
+        while (readFully(in, h)) {
+            int length = ((h[0] & 0xff) << 16) | ((h[1] & 0xff) << 8) | (h[2] & 0xff);
+            int type = h[3] & 0xff;
+            int flags = h[4] & 0xff;
+            int streamID = ByteBuffer.wrap(h, 5, 4).getInt() & 0x7fffffff;
+            byte[] payload = readFully(in, length);
+
+            Stream stream = streams.get(streamID);
+            switch (type) {
+            case SETTINGS:
+                if ((flags & ACK) == 0) {
+                    writer.writeFrame(SETTINGS, ACK, 0, new byte[0]);
+                    writer.flush();
+                }
+                break;
+            case PING:
+                if ((flags & ACK) == 0) {
+                    writer.writeFrame(PING, ACK, 0, payload);
+                    writer.flush();
+                }
+                break;
+            case HEADERS: {
+                int off = 0;
+                int end = length;
+                if ((flags & PADDED) != 0) {
+                    off = 1;
+                    end -= payload[0] & 0xff;
+                }
+                if ((flags & PRIORITY) != 0) {
+                    off += 5;
+                }
+                stream = new Stream((flags & END_STREAM) != 0);
+                streams.put(streamID, stream);
+                stream.headerBlock.write(payload, off, end - off);
+                if ((flags & END_HEADERS) != 0) {
+                    stream.decodeHeaders(decoder);
+                    if (stream.endStream) {
+                        answer(writer, streamID, streams.remove(streamID));
+                    }
+                }
+                break;
+            }
+            case CONTINUATION:
+                stream.headerBlock.write(payload);
+                if ((flags & END_HEADERS) != 0) {
+                    stream.decodeHeaders(decoder);
+                    if (stream.endStream) {
+                        answer(writer, streamID, streams.remove(streamID));
+                    }
+                }
+                break;
+            case DATA: {
+                int off = 0;
+                int end = length;
+                if ((flags & PADDED) != 0) {
+                    off = 1;
+                    end -= payload[0] & 0xff;
+                }
+                stream.body.write(payload, off, end - off);
+                if (length > 0) {
+                    // gives the window back at once
+                    byte[] increment = ByteBuffer.allocate(4).putInt(length).array();
+                    writer.writeFrame(WINDOW_UPDATE, 0, 0, increment);
+                    if ((flags & END_STREAM) == 0) {
+                        writer.writeFrame(WINDOW_UPDATE, 0, streamID, increment);
+                    }
+                    writer.flush();
+                }
+                if ((flags & END_STREAM) != 0) {
+                    answer(writer, streamID, streams.remove(streamID));
+                }
+                break;
+            }
+            case RST_STREAM:
+                streams.remove(streamID);
+                break;
+            case GOAWAY:
+                return;
+            default:
+                // PRIORITY, WINDOW_UPDATE; responses are small enough for the window
+                break;
+            }
+        }
+    }
+
+    private void answer(FrameWriter writer, int streamID, Stream stream) {
+        Map<String, String> headers = stream.headers;
+        answer(writer, streamID, headers.get(":method"), headers.get(":path"), headers,
+                stream.body.toByteArray());
+    }
+
+    private void answer(final FrameWriter writer, final int streamID, final String method,
+            final String path, final Map<String, String> headers, final byte[] body) {
+        streamCount.incrementAndGet();
+        workers.execute(new Runnable() {
+            public void run() {
+                int active = activeStreams.incrementAndGet();
+                while (true) {
+                    int max = maxActiveStreams.get();
+                    if (active <= max || maxActiveStreams.compareAndSet(max, active)) {
+                        break;
+                    }
+                }
+                try {
+                    Response r = handler.handle(method, path, headers, body);
+                    writer.writeResponse(streamID, r);
+                } catch (Exception e) {
+                    // the connection is closed
+                } finally {
+                    activeStreams.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private static class Stream {
+        private final boolean endStream;
+        private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        Stream(boolean endStream) {
+            this.endStream = endStream;
+        }
+
+        void decodeHeaders(HpackDecoder decoder) throws IOException {
+            decoder.decode(headerBlock.toByteArray(), headers);
+        }
+    }
+
+    /**
+     * Writes the frames of all the streams of a connection, one frame or
+     * response at a time.
+     */
+    private static class FrameWriter {
+        private final OutputStream out;
+
+        FrameWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        synchronized void writeFrame(int type, int flags, int streamID, byte[] payload)
+                throws IOException {
+            out.write(payload.length >>> 16);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+            out.write(type);
+            out.write(flags);
+            out.write(ByteBuffer.allocate(4).putInt(streamID).array());
+            out.write(payload);
+        }
+
+        synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        synchronized void writeResponse(int streamID, Response r) throws IOException {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            writeLiteral(block, ":status", "" + r.code);
+            writeLiteral(block, "content-type", "application/json");
+            writeLiteral(block, "content-length", "" + r.body.length);
+            writeFrame(HEADERS, END_HEADERS | (r.body.length == 0 ? END_STREAM : 0),
+                    streamID, block.toByteArray());
+            for (int off = 0; off < r.body.length; off += MAX_FRAME_SIZE) {
+                int len = Math.min(MAX_FRAME_SIZE, r.body.length - off);
+                writeFrame(DATA, off + len == r.body.length ? END_STREAM : 0, streamID,
+                        Arrays.copyOfRange(r.body, off, off + len));
+            }
+            out.flush();
+        }
+
+        // literal header field without indexing, new name, no Huffman coding
+        private static void writeLiteral(ByteArrayOutputStream out, String name, String value)
+                throws IOException {
+            out.write(0);
+            writeString(out, name);
+            writeString(out, value);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String s)
+                throws IOException {
+            byte[] b = bytes(s);
+            int n = b.length;
+            if (n < 127) {
+                out.write(n);
+            } else {
+                out.write(127);
+                n -= 127;
+                while (n >= 128) {
+                    out.write((n & 0x7f) | 0x80);
+                    n >>>= 7;
+                }
+                out.write(n);
+            }
+            out.write(b);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sbuf = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                sbuf.append((char) c);
+            }
+        }
+        return sbuf.toString();
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] b = new byte[length];
+        if (!readFully(in, b)) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    /**
+     * Returns false at the end of the stream before the first byte.
+     */
+    private static boolean readFully(InputStream in, byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int n = in.read(b, off, b.length - off);
+            if (n == -1) {
+                if (off == 0) {
+                    return false;
+                }
+                throw new EOFException();
+            }
+            off += n;
+        }
+        return true;
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.treasure_data.client.http2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.treasure_data.auth.TreasureDataCredentials;
+import com.treasure_data.client.Config;
+import com.treasure_data.client.HttpConnection;
+import com.treasure_data.client.TreasureDataClient;
+import com.treasure_data.model.JobSummary;
+import com.treasure_data.model.ShowJobRequest;
+
+public class TestHttp2Transport {
+
+    private static final int THREADS = 50;
+
+    private H2cStubServer server;
+    private volatile long delay = 0;
+    private Properties sysprops;
+    private Http2Transport transport;
+
+    @Before
+    public void createResources() throws Exception {
+        server = new H2cStubServer(new H2cStubServer.Handler() {
+            @SuppressWarnings({ "rawtypes", "unchecked" })
+            public H2cStubServer.Response handle(String method, String path,
+                    Map<String, String> headers, byte[] body) throws Exception {
+                Thread.sleep(delay);
+                if (path.startsWith("/v3/job/show/")) {
+                    String jobID = path.substring(path.lastIndexOf('/') + 1);
+                    Map map = new HashMap();
+                    map.put("type", "hive");
+                    map.put("job_id", jobID);
+                    map.put("status", "success");
+                    map.put("query", "SELECT " + jobID);
+                    Map debugMap = new HashMap();
+                    debugMap.put("cmdout", "");
+                    debugMap.put("stderr", "");
+                    map.put("debug", debugMap);
+                    return new H2cStubServer.Response(200, JSONValue.toJSONString(map));
+                } else if (path.startsWith("/echo")) {
+                    return new H2cStubServer.Response(200, method + " " + body.length + " "
+                            + headers.get("authorization"));
+                }
+                return new H2cStubServer.Response(404, "{\"error\":\"not found\"}");
+            }
+        });
+
+        sysprops = (Properties) System.getProperties().clone();
+        System.setProperty(Config.TD_API_SERVER_HOST, "127.0.0.1");
+        System.setProperty(Config.TD_API_SERVER_PORT, "" + server.getPort());
+    }
+
+    @After
+    public void deleteResources() throws Exception {
+        if (transport != null) {
+            transport.close();
+        }
+        server.close();
+        System.setProperties(sysprops);
+    }
+
+    private static ShowJobRequest newRequest() {
+        ShowJobRequest request = new ShowJobRequest(null);
+        request.setCredentials(new TreasureDataCredentials("api-key"));
+        return request;
+    }
+
+    @Test
+    public void multiplexConcurrentCallsOverOneConnection() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_CLIENT_TRANSPORT, "http2");
+        final TreasureDataClient client = new TreasureDataClient(
+                new TreasureDataCredentials("api-key"), props);
+        transport = (Http2Transport) client.getConfig().getTransport();
+
+        // the first call upgrades the connection to HTTP/2
+        assertEquals("warmup", client.showJob("warmup").getJobID());
+        assertEquals(1, server.getUpgradeCount());
+
+        delay = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService exec = Executors.newFixedThreadPool(THREADS);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < THREADS; i++) {
+            final String jobID = "" + i;
+            futures.add(exec.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    start.await();
+                    JobSummary job = client.showJob(jobID);
+                    // a response must never be mixed up with another stream's one
+                    assertEquals(jobID, job.getJobID());
+                    assertEquals("SELECT " + jobID, job.getQuery());
+                    return true;
+                }
+            }));
+        }
+        long started = System.currentTimeMillis();
+        start.countDown();
+        for (Future<Boolean> f : futures) {
+            assertTrue(f.get());
+        }
+        long elapsed = System.currentTimeMillis() - started;
+        exec.shutdown();
+
+        assertEquals(1, server.getConnectionCount());
+        assertEquals(1, server.getUpgradeCount());
+        assertEquals(THREADS + 1, server.getStreamCount());
+        assertTrue(server.getMaxActiveStreams() > 1);
+        // the calls are answered at the same time, not one after another
+        assertTrue("elapsed " + elapsed, elapsed < THREADS * delay / 2);
+    }
+
+    @Test
+    public void sendRequestBodies() throws Exception {
+        transport = new Http2Transport(new Properties());
+        byte[] data = new byte[100 * 1024];
+
+        HttpConnection conn = transport.createConnection();
+        conn.doPutRequest(newRequest(), "/echo", data);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("PUT 102400 TD1 api-key", conn.getResponseBody());
+
+        conn = transport.createConnection();
+        conn.doPutRequest(newRequest(), "/echo", new ByteArrayInputStream(data), data.length);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("PUT 102400 TD1 api-key", conn.getResponseBody());
+
+        // without the size, the body is sent till the end of the stream
+        conn = transport.createConnection();
+        conn.doPutRequest(newRequest(), "/echo", new ByteArrayInputStream(data), -1);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("PUT 102400 TD1 api-key", conn.getResponseBody());
+
+        // a stream other than a ByteArrayInputStream is read while it is sent
+        conn = transport.createConnection();
+        conn.doPutRequest(newRequest(), "/echo",
+                new BufferedInputStream(new ByteArrayInputStream(data)), data.length);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("PUT 102400 TD1 api-key", conn.getResponseBody());
+
+        conn = transport.createConnection();
+        conn.doPutRequest(newRequest(), "/echo",
+                new BufferedInputStream(new ByteArrayInputStream(new byte[0])), 0);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("PUT 0 TD1 api-key", conn.getResponseBody());
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("a", "b");
+        conn = transport.createConnection();
+        conn.doPostRequest(newRequest(), "/echo", null, params);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("POST 0 TD1 api-key", conn.getResponseBody());
+        assertEquals("application/json", conn.getHeaderField("Content-Type"));
+        assertEquals(18, conn.getContentLength());
+
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void readErrorResponse() throws Exception {
+        transport = new Http2Transport(new Properties());
+        HttpConnection conn = transport.createConnection();
+        conn.doGetRequest(newRequest(), "/v3/unknown", null, null);
+        assertEquals(404, conn.getResponseCode());
+        assertEquals("", conn.getResponseMessage());
+        try {
+            conn.getInputStream();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals("{\"error\":\"not found\"}", conn.getErrorMessage());
+        conn.disconnect();
+    }
+
+    @Test
+    public void fallBackToHttp11() throws Exception {
+        server.setUpgradeEnabled(false);
+        transport = new Http2Transport(new Properties());
+        for (int i = 0; i < 3; i++) {
+            HttpConnection conn = transport.createConnection();
+            conn.doGetRequest(newRequest(), "/echo", null, null);
+            assertEquals(200, conn.getResponseCode());
+            assertEquals("GET 0 TD1 api-key", conn.getResponseBody());
+        }
+        assertEquals(0, server.getUpgradeCount());
+    }
+
+    @Test
+    public void timeOutSlowResponse() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(Config.TD_CLIENT_GETMETHOD_READ_TIMEOUT, "100");
+        transport = new Http2Transport(props);
+        delay = 1000;
+        HttpConnection conn = transport.createConnection();
+        try {
+            conn.doGetRequest(newRequest(), "/echo", null, null);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}